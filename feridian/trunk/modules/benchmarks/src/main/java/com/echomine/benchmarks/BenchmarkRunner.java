@@ -0,0 +1,36 @@
+package com.echomine.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Runs the benchmarks and writes the results as JSON, so that the results of
+ * different releases can be compared by tools. All the standard JMH options
+ * are accepted; unless another result format or file is given, the results
+ * are written to jmh-result.json in the current directory.
+ * </p>
+ *
+ * <pre>
+ * java -jar benchmarks.jar                   (all benchmarks)
+ * java -jar benchmarks.jar JIDBenchmark      (benchmarks matching a pattern)
+ * java -jar benchmarks.jar -rff release.json (JSON written to release.json)
+ * </pre>
+ */
+public class BenchmarkRunner {
+    /** the file the results are written to by default */
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue())
+            builder.result(DEFAULT_RESULT_FILE);
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,151 @@
+package com.echomine.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PacketFilter;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.impl.XMPPConnectionImpl;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.server.LinkConditions;
+import com.echomine.xmpp.server.LoopbackXMPPServer;
+
+/**
+ * <p>
+ * Drives many client sessions against the loopback server, and reports the
+ * throughput and the tail latency of the message round trips. Unlike the
+ * benchmarks, the server does the full stream negotiation, authentication
+ * and routing, and the link between the server and each client can be given
+ * a latency and a bandwidth limit.
+ * </p>
+ * <p>
+ * Each session keeps one message in flight: the echo of a message sends the
+ * next one, until each session has sent its share. The latency of a round
+ * trip is measured from the time the message is queued to the time its echo
+ * reaches the packet listener.
+ * </p>
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.echomine.benchmarks.LoadDriver [sessions] [messages per session] [latency ms] [bytes per second]
+ * </pre>
+ */
+public class LoadDriver {
+    private static final int LOGIN_THREADS = 16;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        long latency = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+        long bandwidth = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+        LoopbackXMPPServer server = new LoopbackXMPPServer();
+        server.start();
+        List<XMPPConnectionImpl> connections = new ArrayList<XMPPConnectionImpl>();
+        try {
+            connections.addAll(login(server, sessions));
+            System.out.println("Logged in " + sessions + " sessions");
+            server.setLinkConditions(LinkConditions.NONE.withLatency(latency, TimeUnit.MILLISECONDS).withBandwidth(bandwidth));
+            System.out.println("Link: " + server.getLinkConditions());
+            run(connections, messages);
+        } finally {
+            for (XMPPConnectionImpl conn : connections)
+                conn.disconnect();
+            server.stop();
+        }
+    }
+
+    /**
+     * logs in the sessions a few at a time, as each login blocks until the
+     * server replies
+     */
+    private static List<XMPPConnectionImpl> login(final LoopbackXMPPServer server, int sessions) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(LOGIN_THREADS);
+        try {
+            List<Future<XMPPConnectionImpl>> futures = new ArrayList<Future<XMPPConnectionImpl>>();
+            for (int i = 0; i < sessions; i++) {
+                final String username = "user" + i;
+                futures.add(executor.submit(new Callable<XMPPConnectionImpl>() {
+                    public XMPPConnectionImpl call() throws Exception {
+                        XMPPConnectionImpl conn = new XMPPConnectionImpl();
+                        conn.connect("127.0.0.1", server.getPort(), server.getDomain(), true);
+                        conn.login(username, "secret".toCharArray(), "load");
+                        return conn;
+                    }
+                }));
+            }
+            List<XMPPConnectionImpl> connections = new ArrayList<XMPPConnectionImpl>();
+            for (Future<XMPPConnectionImpl> future : futures)
+                connections.add(future.get());
+            return connections;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void run(List<XMPPConnectionImpl> connections, final int messages) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(connections.size());
+        final long[] latencies = new long[connections.size() * messages];
+        final AtomicInteger recorded = new AtomicInteger();
+        for (final XMPPConnectionImpl conn : connections) {
+            conn.addPacketListener(new IPacketListener() {
+                int sent = 1;
+
+                public void packetReceived(PacketEvent event) {
+                    MessagePacket echo = (MessagePacket) event.getPacket();
+                    latencies[recorded.getAndIncrement()] = System.nanoTime() - Long.parseLong(echo.getBody());
+                    if (sent++ >= messages || !send(conn))
+                        done.countDown();
+                }
+            }, new PacketFilter(MessagePacket.class), DispatchPolicy.INLINE);
+        }
+        long start = System.nanoTime();
+        for (XMPPConnectionImpl conn : connections)
+            if (!send(conn))
+                done.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        long[] sorted = new long[recorded.get()];
+        System.arraycopy(latencies, 0, sorted, 0, sorted.length);
+        Arrays.sort(sorted);
+        System.out.println("Round trips: " + sorted.length + " of " + latencies.length + " in " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + "ms (" + (sorted.length * 1000000000L / elapsed) + "/s)");
+        if (sorted.length == 0)
+            return;
+        System.out.println("Latency p50=" + micros(sorted, 0.5) + "us p99=" + micros(sorted, 0.99) + "us p99.9="
+                + micros(sorted, 0.999) + "us max=" + micros(sorted, 1) + "us");
+    }
+
+    /**
+     * sends a message without a recipient, which the server echoes back. The
+     * body carries the time it was sent.
+     *
+     * @return false if the session is gone, and sends no more
+     */
+    private static boolean send(XMPPConnectionImpl conn) {
+        MessagePacket message = new MessagePacket();
+        message.setType(MessagePacket.TYPE_CHAT);
+        message.setBody(String.valueOf(System.nanoTime()));
+        try {
+            conn.sendPacket(message, false);
+            return true;
+        } catch (SendPacketFailedException ex) {
+            System.err.println("Session failed: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        int idx = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, Math.min(idx, sorted.length - 1))]);
+    }
+}
@@ -0,0 +1,82 @@
+package com.echomine.benchmarks;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PacketFilter;
+import com.echomine.xmpp.impl.XMPPConnectionImpl;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.server.LoopbackXMPPServer;
+
+/**
+ * Measures the stanzas per second that go through a logged in connection end
+ * to end: each message is queued, marshalled, written to the socket, echoed
+ * back by the loopback server, parsed, and fired to a packet listener. A
+ * batch of messages is sent per operation, so the queue and the parser see
+ * the same bursts they see in practice, and the result is reported per
+ * stanza.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StanzaThroughputBenchmark {
+    private static final int BATCH = 1000;
+
+    private LoopbackXMPPServer server;
+    private XMPPConnectionImpl conn;
+    private MessagePacket message;
+    private final Semaphore received = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LoopbackXMPPServer();
+        server.start();
+        conn = new XMPPConnectionImpl();
+        conn.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.release();
+            }
+        }, new PacketFilter(MessagePacket.class), DispatchPolicy.INLINE);
+        conn.connect("127.0.0.1", server.getPort(), server.getDomain(), true);
+        conn.login("juliet", "secret".toCharArray(), "balcony");
+        // messages without a recipient are echoed back by the server
+        message = new MessagePacket();
+        message.setType(MessagePacket.TYPE_CHAT);
+        message.setBody("Wherefore art thou, Romeo?");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        conn.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void roundTrip() throws Exception {
+        for (int i = 0; i < BATCH; i++)
+            conn.sendPacket(message, false);
+        if (!received.tryAcquire(BATCH, 30, TimeUnit.SECONDS))
+            throw new IllegalStateException("Echoed messages were not received");
+    }
+}
@@ -0,0 +1,58 @@
+package com.echomine.jibx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.IBindingFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+
+/**
+ * Measures the lookups done for every stanza: finding the binding factory of
+ * a packet class, and finding the handler of an incoming element in the
+ * dispatch table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JiBXUtilBenchmark {
+    private ElementDispatchTable dispatchTable;
+
+    @Setup
+    public void setUp() throws Exception {
+        dispatchTable = FeridianConfiguration.getConfig().getDispatchTable();
+        // the first lookups load the bindings
+        JiBXUtil.getFactory(MessagePacket.class);
+        JiBXUtil.getFactory(RosterIQPacket.class);
+    }
+
+    @Benchmark
+    public IBindingFactory getFactoryStanza() throws Exception {
+        return JiBXUtil.getFactory(MessagePacket.class);
+    }
+
+    @Benchmark
+    public IBindingFactory getFactoryExtension() throws Exception {
+        return JiBXUtil.getFactory(RosterIQPacket.class);
+    }
+
+    @Benchmark
+    public Object dispatchLookup() {
+        return dispatchTable.get(XMPPConstants.NS_XMPP_CLIENT, "message");
+    }
+}
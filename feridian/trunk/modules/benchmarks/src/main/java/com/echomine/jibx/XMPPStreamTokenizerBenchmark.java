@@ -0,0 +1,99 @@
+package com.echomine.jibx;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.IXMLReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Compares the byte level tokenizer (see XMPPStreamTokenizer) against the
+ * current reading stack, where the bytes are decoded by XMPPLoggableReader
+ * and parsed by the pull parser. The stanzas are read from an in-memory UTF-8
+ * stream, either unmarshalled through the message mapper, or skipped the way
+ * the connection handler skips the elements it does not handle. The messages
+ * carry an unknown extension, which the mapper skips as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class XMPPStreamTokenizerBenchmark {
+    private static final int BATCH = 100;
+    private static final String STREAM_START = "<?xml version='1.0'?><stream:stream xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client'>";
+    private static final String STREAM_END = "</stream:stream>";
+    private static final String MESSAGE = "<message from='juliet@example.com/balcony' to='romeo@example.net' type='chat' id='m1'><body>Wherefore art thou, Romeo? \u00bfD\u00f3nde est\u00e1s?</body>"
+            + "<thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread><html xmlns='http://jabber.org/protocol/xhtml-im'><body xmlns='http://www.w3.org/1999/xhtml'>"
+            + "<p style='font-weight:bold'>Wherefore art thou, <em>Romeo</em>?</p></body></html></message>";
+
+    @Param( { "reader", "tokenizer" })
+    public String input;
+
+    private byte[] doc;
+    private XMPPUnmarshallingContext uctx;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuffer buf = new StringBuffer(STREAM_START);
+        for (int i = 0; i < BATCH; i++)
+            buf.append(MESSAGE);
+        buf.append(STREAM_END);
+        doc = buf.toString().getBytes("UTF-8");
+        uctx = new XMPPUnmarshallingContext();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void unmarshall(Blackhole bh) throws Exception {
+        start();
+        while (true) {
+            uctx.next();
+            if (uctx.currentEvent() == IXMLReader.END_DOCUMENT || uctx.isEnd())
+                break;
+            bh.consume(JiBXUtil.unmarshallObject(uctx, MessagePacket.class));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void skip(Blackhole bh) throws Exception {
+        start();
+        while (true) {
+            uctx.next();
+            if (uctx.currentEvent() == IXMLReader.END_DOCUMENT || uctx.isEnd())
+                break;
+            bh.consume(uctx.getName());
+            uctx.skipToEnd();
+        }
+    }
+
+    /**
+     * sets up the context to read the document from the start
+     */
+    private void start() throws Exception {
+        XMPPLoggableReader reader = new XMPPLoggableReader(new ByteArrayInputStream(doc), "UTF-8");
+        if ("tokenizer".equals(input)) {
+            uctx.setDocument(new XMPPStreamTokenizer(new ByteArrayInputStream(doc), reader, null));
+            uctx.reset();
+        } else {
+            uctx.setDocument(reader);
+        }
+        uctx.toStart();
+    }
+}
@@ -0,0 +1,51 @@
+package com.echomine.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Base64 encoding and decoding. The small size is typical of SASL
+ * exchanges, the large size of in-band data such as avatars.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base64Benchmark {
+    @Param( { "64", "8192" })
+    public int size;
+
+    private byte[] data;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        encoded = Base64.encodeBytes(data);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encodeBytes(data);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Base64.decode(encoded);
+    }
+}
@@ -0,0 +1,73 @@
+package com.echomine.xmpp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures JID parsing with and without the JID cache. The uncached parse is
+ * what every distinct JID costs the first time it is seen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class JIDBenchmark {
+    private static final String FULL_JID = "romeo@example.net/orchard";
+    private static final String BARE_JID = "juliet@example.com";
+
+    @State(Scope.Thread)
+    public static class Cached {
+        char[] buf = FULL_JID.toCharArray();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            JID.setCacheSize(JID.DEFAULT_CACHE_SIZE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Uncached {
+        @Setup(Level.Trial)
+        public void setUp() {
+            JID.setCacheSize(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            JID.setCacheSize(JID.DEFAULT_CACHE_SIZE);
+        }
+    }
+
+    @Benchmark
+    public JID parseCached(Cached state) throws Exception {
+        return JID.parseJID(FULL_JID);
+    }
+
+    @Benchmark
+    public JID parseCachedBuffer(Cached state) throws Exception {
+        return JID.parseJID(state.buf, 0, state.buf.length);
+    }
+
+    @Benchmark
+    public JID parseUncached(Uncached state) throws Exception {
+        return JID.parseJID(FULL_JID);
+    }
+
+    @Benchmark
+    public JID parseUncachedBare(Uncached state) throws Exception {
+        return JID.parseJID(BARE_JID);
+    }
+}
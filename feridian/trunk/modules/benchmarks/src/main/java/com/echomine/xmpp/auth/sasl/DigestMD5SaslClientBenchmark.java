@@ -0,0 +1,56 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.xmpp.XMPPAuthCallback;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+
+/**
+ * Measures the client side of a DIGEST-MD5 exchange: unwrapping the
+ * challenge and computing the response. This is the CPU cost of every login
+ * with DIGEST-MD5, which adds up when many connections log in at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestMD5SaslClientBenchmark {
+    /** realm="somerealm",nonce="OA6MG9tEQGm2hh",qop="auth",charset=utf-8,algorithm=md5-sess */
+    private static final String CHALLENGE = "cmVhbG09InNvbWVyZWFsbSIsbm9uY2U9Ik9BNk1HOXRFUUdtMmhoIixxb3A9ImF1dGgiLGNoYXJzZXQ9dXRmLTgsYWxnb3JpdGhtPW1kNS1zZXNzCg==";
+
+    private XMPPSessionContext sessCtx;
+    private XMPPStreamContext streamCtx;
+
+    @Setup
+    public void setUp() {
+        sessCtx = new XMPPSessionContext();
+        sessCtx.setHostName("example.com");
+        XMPPAuthCallback callback = new XMPPAuthCallback();
+        callback.setUsername("romeo");
+        callback.setPassword("secret".toCharArray());
+        callback.setResource("orchard");
+        streamCtx = new XMPPStreamContext();
+        streamCtx.setAuthCallback(callback);
+    }
+
+    @Benchmark
+    public String response() {
+        DigestMD5SaslClient client = new DigestMD5SaslClient();
+        client.unwrapChallenge(CHALLENGE);
+        return client.getAuthResponse(sessCtx, streamCtx);
+    }
+}
@@ -0,0 +1,118 @@
+package com.echomine.xmpp.packet.mapper;
+
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.impl.UnmarshallingContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Measures the stanzas per second that are unmarshalled and marshalled
+ * through the message, presence and IQ mappers, the same way the connection
+ * handler and the packet queue use them. Unmarshalling reads a batch of
+ * stanzas from an in-memory stream; marshalling writes to a discarding
+ * stream, so only the parsing and binding work is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketMapperBenchmark {
+    private static final int BATCH = 100;
+    private static final String STREAM_START = "<stream:stream xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client'>";
+    private static final String STREAM_END = "</stream:stream>";
+    private static final String PRESENCE = "<presence from='romeo@example.net/orchard' to='juliet@example.com'><show>away</show><status>be right back</status><priority>1</priority></presence>";
+    private static final String MESSAGE = "<message from='juliet@example.com/balcony' to='romeo@example.net' type='chat' id='m1'><body>Wherefore art thou, Romeo?</body><thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread></message>";
+    private static final String IQ = "<iq type='result' id='r1' to='juliet@example.com/balcony'><query xmlns='jabber:iq:roster'><item jid='romeo@example.net' name='Romeo' subscription='both'><group>Friends</group></item></query></iq>";
+
+    @Param( { "message", "presence", "iq" })
+    public String stanza;
+
+    private Class cls;
+    private String doc;
+    private Object packet;
+    private UnmarshallingContext uctx;
+    private XMPPStreamWriter writer;
+
+    @Setup
+    public void setUp() throws Exception {
+        String xml;
+        if ("presence".equals(stanza)) {
+            xml = PRESENCE;
+            cls = PresencePacket.class;
+        } else if ("iq".equals(stanza)) {
+            xml = IQ;
+            cls = IQPacket.class;
+        } else {
+            xml = MESSAGE;
+            cls = MessagePacket.class;
+        }
+        StringBuffer buf = new StringBuffer(STREAM_START);
+        for (int i = 0; i < BATCH; i++)
+            buf.append(xml);
+        buf.append(STREAM_END);
+        doc = buf.toString();
+        uctx = new UnmarshallingContext();
+        // the packet to marshall is the first one of the document
+        uctx.setDocument(new StringReader(doc));
+        uctx.toStart();
+        uctx.next();
+        packet = JiBXUtil.unmarshallObject(uctx, cls);
+        writer = new XMPPStreamWriter();
+        writer.setOutput(new DiscardingOutputStream());
+        writer.pushExtensionNamespaces(new String[] { XMPPConstants.NS_XMPP_CLIENT });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void unmarshall(Blackhole bh) throws Exception {
+        uctx.setDocument(new StringReader(doc));
+        uctx.toStart();
+        while (true) {
+            uctx.next();
+            if (uctx.currentEvent() == IXMLReader.END_DOCUMENT || uctx.isEnd())
+                break;
+            bh.consume(JiBXUtil.unmarshallObject(uctx, cls));
+        }
+    }
+
+    @Benchmark
+    public void marshall() throws Exception {
+        if (packet instanceof IQPacket)
+            JiBXUtil.marshallIQPacket(writer, (IQPacket) packet);
+        else
+            JiBXUtil.marshallObject(writer, packet);
+        writer.flush();
+    }
+
+    static class DiscardingOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
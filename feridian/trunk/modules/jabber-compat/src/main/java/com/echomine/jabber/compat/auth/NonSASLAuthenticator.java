@@ -1,5 +1,6 @@
 package com.echomine.jabber.compat.auth;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -90,6 +91,8 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
                 throw new XMPPException("Unable to find a supported non-SASL authentication method");
         } catch (JiBXException ex) {
             throw new XMPPException("Error while authenticating", ex);
+        } catch (IOException ex) {
+            throw new XMPPException("Error while authenticating", ex);
         } finally {
             streamCtx.getReader().stopLogging();
         }
@@ -104,8 +107,9 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
      *             received
      * @throws JiBXException if errors occur during writing or reading from
      *             streams
+     * @throws IOException if the request cannot be sent
      */
-    private void doPlainAuthentication(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException, JiBXException {
+    private void doPlainAuthentication(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException, JiBXException, IOException {
         if (log.isInfoEnabled())
             log.info("Authenticating using Plain method");
         XMPPStreamWriter writer = streamCtx.getWriter();
@@ -117,6 +121,7 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
         req.setPassword(String.valueOf(streamCtx.getAuthCallback().getPassword()));
         req.setResource(streamCtx.getAuthCallback().getResource());
         JiBXUtil.marshallIQPacket(writer, req);
+        writer.flush();
         // read the response
         IQPacket result = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
         streamCtx.getReader().flushLog();
@@ -135,8 +140,9 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
      *             received
      * @throws JiBXException if errors occur during writing or reading from
      *             streams
+     * @throws IOException if the request cannot be sent
      */
-    private void doDigestAuthentication(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException, JiBXException {
+    private void doDigestAuthentication(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException, JiBXException, IOException {
         if (log.isInfoEnabled())
             log.info("Authenticating using Digest method");
         XMPPStreamWriter writer = streamCtx.getWriter();
@@ -148,6 +154,7 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
         req.setDigest(getDigestPassword(sessCtx.getStreamId(), streamCtx.getAuthCallback().getPassword()));
         req.setResource(streamCtx.getAuthCallback().getResource());
         JiBXUtil.marshallIQPacket(writer, req);
+        writer.flush();
         // read the response
         IQPacket result = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
         streamCtx.getReader().flushLog();
@@ -199,8 +206,9 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
      * @throws JiBXException when parsing or writing occurs
      * @throws XMPPException if packet recieve is an error response or no result
      *             was received
+     * @throws IOException if the request cannot be sent
      */
-    private AuthIQPacket getInitialAuthResponse(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws JiBXException, XMPPException {
+    private AuthIQPacket getInitialAuthResponse(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws JiBXException, XMPPException, IOException {
         XMPPStreamWriter writer = streamCtx.getWriter();
         UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
         AuthIQPacket req = new AuthIQPacket();
@@ -208,6 +216,7 @@ public class NonSASLAuthenticator implements IXMPPAuthenticator {
         req.setType(IQPacket.TYPE_GET);
         req.setUsername(streamCtx.getAuthCallback().getUsername());
         JiBXUtil.marshallIQPacket(writer, req);
+        writer.flush();
         // synchronized for first access is required to prevent thread racing
         // issue
         synchronized (uctx) {
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 import com.echomine.net.MockSocket;
 import com.echomine.xmpp.BaseStreamTestCase;
+import com.echomine.xmpp.FlushCheckingReader;
 import com.echomine.xmpp.XMPPAuthCallback;
 import com.echomine.xmpp.XMPPConstants;
 
@@ -48,4 +49,16 @@ public class NonSASLAuthenticatorTest extends BaseStreamTestCase implements XMPP
         sessCtx.setStreamId("3EE948B0");
         runAndCompare(inRes, outRes, auth, true, true);
     }
+
+    /**
+     * each request must be flushed before its reply is read, or the
+     * authentication hangs against a real server
+     */
+    public void testRequestsAreFlushed() throws Exception {
+        String[] in = new String[] {
+                "<stream:stream from='example.com' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'><iq type='result'>",
+                "<query xmlns='jabber:iq:auth'><username/><password/><resource/></query></iq>", "<iq type='result'/></stream:stream>" };
+        String outRes = "com/echomine/jabber/compat/data/NonSASLPlain_out.xml";
+        runAndCompare(new FlushCheckingReader(in, os, "<iq"), outRes, auth, true, true);
+    }
 }
@@ -16,9 +16,15 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jibx.runtime.JiBXException;
 
+import com.echomine.jibx.BindingElementHandler;
+import com.echomine.jibx.ElementDispatchTable;
 import com.echomine.jibx.JiBXUtil;
 import com.echomine.util.ClassUtil;
 import com.echomine.xmpp.IXMPPAuthenticator;
+import com.echomine.xmpp.packet.ErrorPacket;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
 
 /**
  * Holds all the configuration information. The feridian-config.xml file is
@@ -34,6 +40,12 @@ import com.echomine.xmpp.IXMPPAuthenticator;
  * then the last parsed extension will be the one used. With this order of
  * parsing, user can use "/" classpath files to override those in "META-INF/",
  * which in turn will override the default extensions file.
+ * <p>
+ * The configuration also holds the dispatch table that routes incoming
+ * elements to their handlers by namespace and element name. It contains the
+ * core stanzas and the elements of all the packet extensions. Applications can
+ * register their own handlers in the table as well.
+ * </p>
  */
 public class FeridianConfiguration {
     private static final Log log = LogFactory.getLog(FeridianConfiguration.class);
@@ -41,7 +53,7 @@ public class FeridianConfiguration {
     private static final String DEFAULT_CONFIG_FILENAME = "feridian-config-default.xml";
     private static final String EXTENSIONS_FILENAME = "feridian-extensions.xml";
     private static final String DEFAULT_EXTENSIONS_FILENAME = "feridian-extensions-default.xml";
-    private static FeridianConfiguration config;
+    private static volatile FeridianConfiguration config;
 
     private HashMap<String, Class> extMappings = new HashMap<String, Class>();
     private HashMap<String, FeridianStreamExtension> streamMappings = new HashMap<String, FeridianStreamExtension>();
@@ -49,6 +61,17 @@ public class FeridianConfiguration {
     private Class connectionFactoryClass;
     private Class streamFactoryClass;
     private Class idGeneratorClass;
+    private ElementDispatchTable dispatchTable = new ElementDispatchTable();
+
+    /**
+     * Creates a configuration that routes the core stanzas
+     */
+    public FeridianConfiguration() {
+        registerElementHandler(PresencePacket.class);
+        registerElementHandler(MessagePacket.class);
+        registerElementHandler(IQPacket.class);
+        registerElementHandler(ErrorPacket.class);
+    }
 
     /**
      * Obtains the config file. It will first look in the main classpath "/". If
@@ -61,7 +84,19 @@ public class FeridianConfiguration {
      *             to be caught.
      */
     public static FeridianConfiguration getConfig() throws ConfigurationException {
-        if (config != null) return config;
+        FeridianConfiguration current = config;
+        if (current != null)
+            return current;
+        return loadConfig();
+    }
+
+    /**
+     * loads the config once, even when many connections are created at the
+     * same time
+     */
+    private static synchronized FeridianConfiguration loadConfig() throws ConfigurationException {
+        if (config != null)
+            return config;
         InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(CONFIG_FILENAME);
         if (is == null)
             is = Thread.currentThread().getContextClassLoader().getResourceAsStream("META-INF/" + CONFIG_FILENAME);
@@ -90,9 +125,11 @@ public class FeridianConfiguration {
         if (rdr == null)
             throw new IllegalArgumentException("Reader stream cannot be null");
         try {
-            config = (FeridianConfiguration) JiBXUtil.unmarshallObject(rdr, FeridianConfiguration.class);
-            config.loadExtensions();
-            return config;
+            // the config is only published once its extensions are loaded
+            FeridianConfiguration loaded = (FeridianConfiguration) JiBXUtil.unmarshallObject(rdr, FeridianConfiguration.class);
+            loaded.loadExtensions();
+            config = loaded;
+            return loaded;
         } catch (JiBXException ex) {
             throw new ConfigurationException("Error reading configuration", ex);
         }
@@ -123,6 +160,20 @@ public class FeridianConfiguration {
         return extMappings.get(ns);
     }
 
+    /**
+     * Retrieves the table that routes incoming elements to their handlers. The
+     * table contains the core stanzas (presence, message, iq and stream
+     * errors) as well as the child elements of all the packet extensions.
+     * Custom handlers can be registered in the table to process elements
+     * without going through the regular lookups. An ErrorPacket returned by a
+     * handler of a top-level element is treated as a stream error.
+     * 
+     * @return the dispatch table, never null
+     */
+    public ElementDispatchTable getDispatchTable() {
+        return dispatchTable;
+    }
+
     /**
      * Retrieves the stream class for the specified feature namespace.
      * 
@@ -225,6 +276,7 @@ public class FeridianConfiguration {
                     if (log.isInfoEnabled())
                         log.info("Packet Extension Found: URI=" + ext.getNamespace() + ", class=" + ext.getPacketClass().getName());
                     extMappings.put(ext.getNamespace(), ext.getPacketClass());
+                    registerElementHandler(ext.getPacketClass());
                 }
                 iter = extensions.getStreamList().iterator();
                 FeridianStreamExtension stream;
@@ -249,4 +301,22 @@ public class FeridianConfiguration {
             }
         }
     }
+
+    /**
+     * registers the handler for the element that the class is mapped to in
+     * its binding
+     */
+    private void registerElementHandler(Class<?> cls) {
+        try {
+            BindingElementHandler handler = JiBXUtil.createElementHandler(cls);
+            if (handler != null) {
+                dispatchTable.register(handler.getNamespace(), handler.getName(), handler);
+            } else if (log.isWarnEnabled()) {
+                log.warn("Class " + cls.getName() + " is not mapped to an element.  Incoming elements will not be routed to it.");
+            }
+        } catch (JiBXException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to load the binding for " + cls.getName() + ".  Incoming elements will not be routed to it.", ex);
+        }
+    }
 }
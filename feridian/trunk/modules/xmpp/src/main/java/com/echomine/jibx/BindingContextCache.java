@@ -0,0 +1,103 @@
+package com.echomine.jibx;
+
+import java.util.ArrayList;
+
+import org.jibx.runtime.IBindingFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.MarshallingContext;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+/**
+ * <p>
+ * Holds the binding factory of a binding together with the marshalling and
+ * unmarshalling contexts that are reused for the binding. Creating a context
+ * is expensive, since every context allocates its own tables of all the
+ * mappings in the binding. The contexts are thus kept and reused instead of
+ * being created for every stanza.
+ * </p>
+ * <p>
+ * Contexts are not thread-safe, so each thread has its own contexts. As a
+ * connection reads all of its incoming stanzas on its own thread, each
+ * connection effectively reuses its own contexts. A context is taken out of
+ * the cache while it is in use, so that nested (un)marshalling within the same
+ * binding (ie. an error inside an IQ stanza) gets a context of its own.
+ * </p>
+ */
+class BindingContextCache {
+    /**
+     * the maximum number of idle contexts kept per thread, which only needs
+     * to cover the nesting depth of the bindings
+     */
+    private static final int MAX_IDLE_CONTEXTS = 4;
+
+    private final IBindingFactory factory;
+    private final ThreadLocal<ArrayList<UnmarshallingContext>> unmarshallingContexts = new ThreadLocal<ArrayList<UnmarshallingContext>>() {
+        protected ArrayList<UnmarshallingContext> initialValue() {
+            return new ArrayList<UnmarshallingContext>(MAX_IDLE_CONTEXTS);
+        }
+    };
+    private final ThreadLocal<ArrayList<MarshallingContext>> marshallingContexts = new ThreadLocal<ArrayList<MarshallingContext>>() {
+        protected ArrayList<MarshallingContext> initialValue() {
+            return new ArrayList<MarshallingContext>(MAX_IDLE_CONTEXTS);
+        }
+    };
+
+    BindingContextCache(IBindingFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return the binding factory
+     */
+    IBindingFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Takes an unmarshalling context out of the cache, creating one if none
+     * is available. The context must be handed back with
+     * {@link #release(UnmarshallingContext)} once done.
+     */
+    UnmarshallingContext acquireUnmarshallingContext() throws JiBXException {
+        ArrayList<UnmarshallingContext> idle = unmarshallingContexts.get();
+        if (idle.isEmpty())
+            return (UnmarshallingContext) factory.createUnmarshallingContext();
+        return idle.remove(idle.size() - 1);
+    }
+
+    /**
+     * Hands the unmarshalling context back to the cache. The context is reset
+     * so that it does not hold on to any unmarshalled objects.
+     */
+    void release(UnmarshallingContext ctx) {
+        ctx.reset();
+        ArrayList<UnmarshallingContext> idle = unmarshallingContexts.get();
+        if (idle.size() < MAX_IDLE_CONTEXTS)
+            idle.add(ctx);
+    }
+
+    /**
+     * Takes a marshalling context out of the cache, creating one if none is
+     * available. The context must be handed back with
+     * {@link #release(MarshallingContext)} once done.
+     */
+    MarshallingContext acquireMarshallingContext() throws JiBXException {
+        ArrayList<MarshallingContext> idle = marshallingContexts.get();
+        if (idle.isEmpty())
+            return (MarshallingContext) factory.createMarshallingContext();
+        return idle.remove(idle.size() - 1);
+    }
+
+    /**
+     * Hands the marshalling context back to the cache. The writer is
+     * detached before the context is reset, so that the writer that was used
+     * keeps its state.
+     */
+    void release(MarshallingContext ctx) {
+        ctx.setXmlWriter(null);
+        ctx.reset();
+        ArrayList<MarshallingContext> idle = marshallingContexts.get();
+        if (idle.size() < MAX_IDLE_CONTEXTS)
+            idle.add(ctx);
+    }
+}
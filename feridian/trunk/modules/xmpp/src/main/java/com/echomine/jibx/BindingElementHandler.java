@@ -0,0 +1,55 @@
+package com.echomine.jibx;
+
+import org.jibx.runtime.IUnmarshaller;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+/**
+ * Unmarshalls an element with the unmarshaller of its mapping in a jibx
+ * binding. The unmarshaller is looked up once when the handler is created,
+ * so unmarshalling the element does not involve any lookups by class or by
+ * element name. Instances are created by
+ * {@link JiBXUtil#createElementHandler(Class)}.
+ */
+public class BindingElementHandler implements IElementHandler {
+    private final BindingContextCache binding;
+    private final IUnmarshaller unmarshaller;
+    private final String namespace;
+    private final String name;
+
+    BindingElementHandler(BindingContextCache binding, IUnmarshaller unmarshaller, String namespace, String name) {
+        this.binding = binding;
+        this.unmarshaller = unmarshaller;
+        this.namespace = namespace;
+        this.name = name;
+    }
+
+    /**
+     * @return the namespace of the mapped element
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the local name of the mapped element
+     */
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.jibx.IElementHandler#unmarshall(org.jibx.runtime.impl.UnmarshallingContext)
+     */
+    public Object unmarshall(UnmarshallingContext ctx) throws JiBXException {
+        UnmarshallingContext fctx = binding.acquireUnmarshallingContext();
+        try {
+            fctx.setFromContext(ctx);
+            return unmarshaller.unmarshal(null, fctx);
+        } finally {
+            binding.release(fctx);
+        }
+    }
+}
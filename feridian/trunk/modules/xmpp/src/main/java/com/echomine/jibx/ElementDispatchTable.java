@@ -0,0 +1,143 @@
+package com.echomine.jibx;
+
+/**
+ * <p>
+ * Routes incoming elements to their handlers by namespace and local name.
+ * Looking up a handler is a single hash lookup that does not lock and does not
+ * allocate. The namespaces and names are interned when they are registered, so
+ * that the strings handed out by the parser usually match by reference.
+ * </p>
+ * <p>
+ * The table is optimized for lookups. Every change to the table copies it, so
+ * registering handlers is comparably expensive and should happen at startup.
+ * </p>
+ */
+public class ElementDispatchTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Retrieves the handler for the element.
+     *
+     * @param ns the namespace of the element, null for no namespace
+     * @param name the local name of the element
+     * @return the handler or null if no handler is registered for the element
+     */
+    public IElementHandler get(String ns, String name) {
+        if (ns == null)
+            ns = "";
+        int hash = hash(ns, name);
+        Entry[] tab = table;
+        for (Entry e = tab[hash & (tab.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && matches(e.name, name) && matches(e.ns, ns))
+                return e.handler;
+        }
+        return null;
+    }
+
+    /**
+     * Registers the handler for the element. Any handler previously registered
+     * for the same element is replaced.
+     *
+     * @param ns the namespace of the element, null for no namespace
+     * @param name the local name of the element
+     * @param handler the handler for the element
+     * @return the handler that was replaced, or null if none
+     */
+    public synchronized IElementHandler register(String ns, String name, IElementHandler handler) {
+        if (name == null || handler == null)
+            throw new IllegalArgumentException("Element name and handler cannot be null");
+        IElementHandler previous = unregister(ns, name);
+        ns = ns == null ? "" : ns.intern();
+        name = name.intern();
+        int capacity = table.length;
+        if (size + 1 > capacity * 3 / 4)
+            capacity <<= 1;
+        Entry[] tab = copy(capacity);
+        int hash = hash(ns, name);
+        int idx = hash & (tab.length - 1);
+        tab[idx] = new Entry(ns, name, hash, handler, tab[idx]);
+        size++;
+        table = tab;
+        return previous;
+    }
+
+    /**
+     * Removes the handler for the element.
+     *
+     * @param ns the namespace of the element, null for no namespace
+     * @param name the local name of the element
+     * @return the removed handler, or null if none was registered
+     */
+    public synchronized IElementHandler unregister(String ns, String name) {
+        IElementHandler handler = get(ns, name);
+        if (handler == null)
+            return null;
+        if (ns == null)
+            ns = "";
+        Entry[] tab = new Entry[table.length];
+        Entry[] old = table;
+        for (int i = 0; i < old.length; i++) {
+            for (Entry e = old[i]; e != null; e = e.next) {
+                if (!(e.name.equals(name) && e.ns.equals(ns)))
+                    tab[i] = new Entry(e.ns, e.name, e.hash, e.handler, tab[i]);
+            }
+        }
+        size--;
+        table = tab;
+        return handler;
+    }
+
+    /**
+     * @return the number of registered handlers
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * copies all the entries into a new table with the given capacity
+     */
+    private Entry[] copy(int capacity) {
+        Entry[] tab = new Entry[capacity];
+        Entry[] old = table;
+        for (int i = 0; i < old.length; i++) {
+            for (Entry e = old[i]; e != null; e = e.next) {
+                int idx = e.hash & (capacity - 1);
+                tab[idx] = new Entry(e.ns, e.name, e.hash, e.handler, tab[idx]);
+            }
+        }
+        return tab;
+    }
+
+    private static int hash(String ns, String name) {
+        int h = ns.hashCode() * 31 + name.hashCode();
+        // spread the bits, as the table size is a power of 2
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String registered, String str) {
+        return registered == str || registered.equals(str);
+    }
+
+    /**
+     * An immutable entry in a bucket's chain
+     */
+    private static final class Entry {
+        final String ns;
+        final String name;
+        final int hash;
+        final IElementHandler handler;
+        final Entry next;
+
+        Entry(String ns, String name, int hash, IElementHandler handler, Entry next) {
+            this.ns = ns;
+            this.name = name;
+            this.hash = hash;
+            this.handler = handler;
+            this.next = next;
+        }
+    }
+}
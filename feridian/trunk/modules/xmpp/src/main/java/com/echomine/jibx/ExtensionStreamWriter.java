@@ -0,0 +1,356 @@
+package com.echomine.jibx;
+
+import java.io.IOException;
+
+import org.jibx.runtime.IXMLWriter;
+
+/**
+ * <p>
+ * Allows a marshaller from another binding to write directly into an existing
+ * XMPP stream writer. Every binding has its own namespace table, where index 0
+ * to 2 are always the empty namespace, the XML namespace and the XML Schema
+ * instance namespace, and the binding's own namespaces start at index 3. The
+ * stream writer has a different table, so the binding's namespaces are pushed
+ * as extension namespaces onto the stream writer and all the namespace
+ * indexes are translated on the fly.
+ * </p>
+ * <p>
+ * The writer is only valid for the duration of a single marshalling. It must
+ * be released once done so that the extension namespaces are popped off the
+ * stream writer again. Closing or resetting this writer does not affect the
+ * stream writer.
+ * </p>
+ */
+class ExtensionStreamWriter implements IXMLWriter {
+    private static final int FIXED_NAMESPACE_COUNT = 3;
+
+    private XMPPStreamWriter writer;
+    private String[] uris;
+    private int base;
+    private int extensionDepth;
+
+    /**
+     * @param writer the stream writer to write into
+     * @param uris the namespace table of the binding that will be marshalled
+     */
+    ExtensionStreamWriter(XMPPStreamWriter writer, String[] uris) {
+        this.writer = writer;
+        this.uris = uris;
+        base = writer.getNamespaceCount();
+        String[] extns = new String[Math.max(0, uris.length - FIXED_NAMESPACE_COUNT)];
+        System.arraycopy(uris, FIXED_NAMESPACE_COUNT, extns, 0, extns.length);
+        writer.pushExtensionNamespaces(extns);
+    }
+
+    /**
+     * Pops the binding's namespaces and any extension namespaces pushed
+     * through this writer off the stream writer.
+     */
+    void release() {
+        while (extensionDepth > 0) {
+            writer.popExtensionNamespaces();
+            extensionDepth--;
+        }
+        writer.popExtensionNamespaces();
+    }
+
+    /**
+     * translates a namespace index of the binding to the stream writer index
+     */
+    private int toWriterIndex(int index) {
+        if (index < FIXED_NAMESPACE_COUNT)
+            return index;
+        return base + index - FIXED_NAMESPACE_COUNT;
+    }
+
+    private int[] toWriterIndexes(int[] indexes) {
+        int[] translated = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            translated[i] = toWriterIndex(indexes[i]);
+        return translated;
+    }
+
+    /**
+     * translates a stream writer index back to the namespace index of the
+     * binding
+     */
+    private int toBindingIndex(int index) {
+        if (index < FIXED_NAMESPACE_COUNT)
+            return index;
+        if (index < base)
+            return -1;
+        return index - base + FIXED_NAMESPACE_COUNT;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getNestingDepth()
+     */
+    public int getNestingDepth() {
+        return writer.getNestingDepth();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getNamespaceCount()
+     */
+    public int getNamespaceCount() {
+        return writer.getNamespaceCount() - base + FIXED_NAMESPACE_COUNT;
+    }
+
+    /**
+     * Indentation is controlled by the stream writer, so this does nothing.
+     */
+    public void setIndentSpaces(int count, String newline, char indent) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writeXMLDecl(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void writeXMLDecl(String version, String encoding, String standalone) throws IOException {
+        writer.writeXMLDecl(version, encoding, standalone);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#startTagOpen(int, java.lang.String)
+     */
+    public void startTagOpen(int index, String name) throws IOException {
+        writer.startTagOpen(toWriterIndex(index), name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#startTagNamespaces(int,
+     *      java.lang.String, int[], java.lang.String[])
+     */
+    public void startTagNamespaces(int index, String name, int[] nums, String[] prefs) throws IOException {
+        writer.startTagNamespaces(toWriterIndex(index), name, toWriterIndexes(nums), prefs);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#addAttribute(int, java.lang.String,
+     *      java.lang.String)
+     */
+    public void addAttribute(int index, String name, String value) throws IOException {
+        writer.addAttribute(toWriterIndex(index), name, value);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#closeStartTag()
+     */
+    public void closeStartTag() throws IOException {
+        writer.closeStartTag();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#closeEmptyTag()
+     */
+    public void closeEmptyTag() throws IOException {
+        writer.closeEmptyTag();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#startTagClosed(int, java.lang.String)
+     */
+    public void startTagClosed(int index, String name) throws IOException {
+        writer.startTagClosed(toWriterIndex(index), name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#endTag(int, java.lang.String)
+     */
+    public void endTag(int index, String name) throws IOException {
+        writer.endTag(toWriterIndex(index), name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writeTextContent(java.lang.String)
+     */
+    public void writeTextContent(String text) throws IOException {
+        writer.writeTextContent(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writeCData(java.lang.String)
+     */
+    public void writeCData(String text) throws IOException {
+        writer.writeCData(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writeComment(java.lang.String)
+     */
+    public void writeComment(String text) throws IOException {
+        writer.writeComment(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writeEntityRef(java.lang.String)
+     */
+    public void writeEntityRef(String name) throws IOException {
+        writer.writeEntityRef(name);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writeDocType(java.lang.String,
+     *      java.lang.String, java.lang.String, java.lang.String)
+     */
+    public void writeDocType(String name, String sys, String pub, String subset) throws IOException {
+        writer.writeDocType(name, sys, pub, subset);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#writePI(java.lang.String,
+     *      java.lang.String)
+     */
+    public void writePI(String target, String data) throws IOException {
+        writer.writePI(target, data);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#indent()
+     */
+    public void indent() throws IOException {
+        writer.indent();
+    }
+
+    /**
+     * Flushing is left to the owner of the stream writer, so that the
+     * marshalled data is sent out together with the rest of the stanza.
+     */
+    public void flush() throws IOException {
+    }
+
+    /**
+     * The stream writer stays open, so this does nothing.
+     */
+    public void close() throws IOException {
+    }
+
+    /**
+     * The stream writer keeps its state, so this does nothing.
+     */
+    public void reset() {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getNamespaces()
+     */
+    public String[] getNamespaces() {
+        return uris;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getNamespaceUri(int)
+     */
+    public String getNamespaceUri(int index) {
+        return writer.getNamespaceUri(toWriterIndex(index));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getNamespacePrefix(int)
+     */
+    public String getNamespacePrefix(int index) {
+        return writer.getNamespacePrefix(toWriterIndex(index));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getPrefixIndex(java.lang.String)
+     */
+    public int getPrefixIndex(String prefix) {
+        int index = writer.getPrefixIndex(prefix);
+        if (index < 0)
+            return index;
+        return toBindingIndex(index);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#pushExtensionNamespaces(java.lang.String[])
+     */
+    public void pushExtensionNamespaces(String[] extns) {
+        writer.pushExtensionNamespaces(extns);
+        extensionDepth++;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#popExtensionNamespaces()
+     */
+    public void popExtensionNamespaces() {
+        if (extensionDepth == 0)
+            throw new IllegalStateException("No extension namespaces pushed through this writer");
+        writer.popExtensionNamespaces();
+        extensionDepth--;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#getExtensionNamespaces()
+     */
+    public String[][] getExtensionNamespaces() {
+        if (extensionDepth == 0)
+            return null;
+        String[][] all = writer.getExtensionNamespaces();
+        String[][] extns = new String[extensionDepth][];
+        System.arraycopy(all, all.length - extensionDepth, extns, 0, extensionDepth);
+        return extns;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLWriter#openNamespaces(int[],
+     *      java.lang.String[])
+     */
+    public int[] openNamespaces(int[] nums, String[] prefs) throws IOException {
+        int[] opened = writer.openNamespaces(toWriterIndexes(nums), prefs);
+        int[] translated = new int[opened.length];
+        for (int i = 0; i < opened.length; i++)
+            translated[i] = toBindingIndex(opened[i]);
+        return translated;
+    }
+}
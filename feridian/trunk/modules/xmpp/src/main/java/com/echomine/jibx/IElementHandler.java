@@ -0,0 +1,23 @@
+package com.echomine.jibx;
+
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+/**
+ * Handles an incoming element that is routed to it through the
+ * {@link ElementDispatchTable}. The handler is called with the context
+ * positioned at the start tag of the element, and it must consume the whole
+ * element, including its end tag. The handler is called on the thread that
+ * reads the incoming data, so it should be quick.
+ */
+public interface IElementHandler {
+    /**
+     * Unmarshalls the element the context is positioned at.
+     * 
+     * @param ctx the unmarshalling context positioned at the start tag
+     * @return the unmarshalled object, or null if the handler processed the
+     *         element by itself and there is nothing more to do with it
+     * @throws JiBXException if the element cannot be unmarshalled
+     */
+    Object unmarshall(UnmarshallingContext ctx) throws JiBXException;
+}
@@ -2,6 +2,7 @@ package com.echomine.jibx;
 
 import java.io.Reader;
 import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -15,16 +16,22 @@ import org.jibx.runtime.impl.UnmarshallingContext;
 import com.echomine.xmpp.packet.IQPacket;
 
 /**
- * The class provides some useful utility functions to work with jibx.
+ * The class provides some useful utility functions to work with jibx. The
+ * binding factory of each class is looked up only once, and the (un)marshalling
+ * contexts of each binding are reused instead of being created for every
+ * call.
  */
 public class JiBXUtil {
     private static Log log = LogFactory.getLog(JiBXUtil.class);
+    private static final ConcurrentHashMap<Class<?>, BindingContextCache> classBindings = new ConcurrentHashMap<Class<?>, BindingContextCache>();
+    private static final ConcurrentHashMap<IBindingFactory, BindingContextCache> factoryBindings = new ConcurrentHashMap<IBindingFactory, BindingContextCache>();
     private static IMarshaller iqPacketMapper;
-    private static IBindingFactory iqfactory;
+    private static BindingContextCache iqBinding;
 
     static {
         try {
-            iqfactory = BindingDirectory.getFactory(IQPacket.class);
+            iqBinding = getBinding(IQPacket.class);
+            IBindingFactory iqfactory = iqBinding == null ? null : iqBinding.getFactory();
             if (iqfactory == null && log.isWarnEnabled()) {
                 log.warn("No IQPacket Factory found (check to make sure binding file exists).  IQ packet marshalling is disabled.");
             } else {
@@ -39,11 +46,78 @@ public class JiBXUtil {
                 iqPacketMapper = ((MarshallingContext)iqfactory.createMarshallingContext()).getMarshaller(i, IQPacket.class.getName());
             }
         } catch (JiBXException ex) {
+            iqBinding = null;
             if (log.isWarnEnabled())
                 log.warn("Unable to instantiate IQ Packet Factory from Binding Directory.  IQ packet marshalling is disabled.", ex);
         }
     }
 
+    /**
+     * Retrieves the binding factory for the class. The factory is looked up in
+     * the jibx binding directory on first use and cached afterwards.
+     * 
+     * @param cls the bound class
+     * @return the binding factory or null if none is found
+     * @throws JiBXException if the binding directory lookup fails
+     */
+    public static final IBindingFactory getFactory(Class<?> cls) throws JiBXException {
+        BindingContextCache binding = getBinding(cls);
+        return binding == null ? null : binding.getFactory();
+    }
+
+    /**
+     * Creates a handler that unmarshalls the element that the class is mapped
+     * to in its binding. The handler can be registered in an
+     * {@link ElementDispatchTable} under the element's namespace and name.
+     *
+     * @param cls the class mapped to an element
+     * @return the handler, or null if the class is not mapped to an element
+     * @throws JiBXException if the binding cannot be loaded
+     */
+    public static final BindingElementHandler createElementHandler(Class<?> cls) throws JiBXException {
+        BindingContextCache binding = getBinding(cls);
+        if (binding == null)
+            return null;
+        IBindingFactory factory = binding.getFactory();
+        String[] classes = factory.getMappedClasses();
+        for (int i = 0; i < classes.length; i++) {
+            if (!cls.getName().equals(classes[i]))
+                continue;
+            String name = factory.getElementNames()[i];
+            if (name == null)
+                return null;
+            UnmarshallingContext ctx = binding.acquireUnmarshallingContext();
+            try {
+                return new BindingElementHandler(binding, ctx.getUnmarshaller(i), factory.getElementNamespaces()[i], name);
+            } finally {
+                binding.release(ctx);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * looks up the cached binding of the class. Classes in the same binding
+     * share the same cache.
+     */
+    private static BindingContextCache getBinding(Class<?> cls) throws JiBXException {
+        BindingContextCache binding = classBindings.get(cls);
+        if (binding != null)
+            return binding;
+        IBindingFactory factory = BindingDirectory.getFactory(cls);
+        if (factory == null)
+            return null;
+        binding = factoryBindings.get(factory);
+        if (binding == null) {
+            BindingContextCache newBinding = new BindingContextCache(factory);
+            binding = factoryBindings.putIfAbsent(factory, newBinding);
+            if (binding == null)
+                binding = newBinding;
+        }
+        classBindings.put(cls, binding);
+        return binding;
+    }
+
     /**
      * unmarshalls a document. This is a convenience method to unmarshall a
      * document from beginning to end without utilizing a previous context.
@@ -56,11 +130,15 @@ public class JiBXUtil {
     public static final Object unmarshallObject(Reader rdr, Class cls) throws JiBXException {
         if (rdr == null)
             throw new IllegalArgumentException("Reader cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(cls);
-        if (factory == null)
+        BindingContextCache binding = getBinding(cls);
+        if (binding == null)
             return null;
-        UnmarshallingContext fctx = (UnmarshallingContext) factory.createUnmarshallingContext();
-        return fctx.unmarshalDocument(rdr);
+        UnmarshallingContext fctx = binding.acquireUnmarshallingContext();
+        try {
+            return fctx.unmarshalDocument(rdr);
+        } finally {
+            binding.release(fctx);
+        }
     }
 
     /**
@@ -76,12 +154,16 @@ public class JiBXUtil {
     public static final Object unmarshallObject(UnmarshallingContext parentCtx, Class cls) throws JiBXException {
         if (parentCtx == null || cls == null)
             throw new IllegalArgumentException("Context or class reference cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(cls);
-        if (factory == null)
+        BindingContextCache binding = getBinding(cls);
+        if (binding == null)
             return null;
-        UnmarshallingContext fctx = (UnmarshallingContext) factory.createUnmarshallingContext();
-        fctx.setFromContext(parentCtx);
-        return fctx.unmarshalElement();
+        UnmarshallingContext fctx = binding.acquireUnmarshallingContext();
+        try {
+            fctx.setFromContext(parentCtx);
+            return fctx.unmarshalElement();
+        } finally {
+            binding.release(fctx);
+        }
     }
 
     /**
@@ -98,12 +180,16 @@ public class JiBXUtil {
     public static final void marshallObject(MarshallingContext parentCtx, Object obj) throws JiBXException {
         if (parentCtx == null || obj == null)
             throw new IllegalArgumentException("Context or object to marshall cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(obj.getClass());
-        if (factory == null)
+        BindingContextCache binding = getBinding(obj.getClass());
+        if (binding == null)
             return;
-        MarshallingContext fctx = (MarshallingContext) factory.createMarshallingContext();
-        fctx.setFromContext(parentCtx);
-        fctx.marshalDocument(obj);
+        MarshallingContext fctx = binding.acquireMarshallingContext();
+        try {
+            fctx.setFromContext(parentCtx);
+            fctx.marshalDocument(obj);
+        } finally {
+            binding.release(fctx);
+        }
     }
 
     /**
@@ -120,16 +206,48 @@ public class JiBXUtil {
     public static final void marshallObject(XMPPStreamWriter writer, Object obj) throws JiBXException {
         if (writer == null || obj == null)
             throw new IllegalArgumentException("Writer or object to marshall cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(obj.getClass());
-        if (factory == null)
+        BindingContextCache binding = getBinding(obj.getClass());
+        if (binding == null)
             return;
-        MarshallingContext fctx = (MarshallingContext) factory.createMarshallingContext();
+        MarshallingContext fctx = binding.acquireMarshallingContext();
         fctx.setXmlWriter(writer);
         try {
             writer.setStreamCloseable(false);
             fctx.marshalDocument(obj);
         } finally {
             writer.setStreamCloseable(true);
+            binding.release(fctx);
+        }
+    }
+
+    /**
+     * Marshalls an object that is bound in a different binding than the
+     * stream writer directly into the stream writer, without an intermediate
+     * string. The namespaces of the object's binding are pushed onto the
+     * writer for the duration of the marshalling, so that their prefixes are
+     * declared and scoped properly. It requires that the stream writer is
+     * placed at the position where the marshalled xml will go. If a marshaller
+     * cannot be found for the object, then nothing is done (no exception
+     * thrown either). This is normally used to marshall extension elements.
+     *
+     * @param writer the stream writer to write into
+     * @param obj the object to marshall
+     * @throws JiBXException
+     */
+    public static final void marshallExtension(XMPPStreamWriter writer, Object obj) throws JiBXException {
+        if (writer == null || obj == null)
+            throw new IllegalArgumentException("Writer or object to marshall cannot be null");
+        BindingContextCache binding = getBinding(obj.getClass());
+        if (binding == null)
+            return;
+        MarshallingContext fctx = binding.acquireMarshallingContext();
+        ExtensionStreamWriter extWriter = new ExtensionStreamWriter(writer, binding.getFactory().getNamespaces());
+        fctx.setXmlWriter(extWriter);
+        try {
+            fctx.marshalDocument(obj);
+        } finally {
+            extWriter.release();
+            binding.release(fctx);
         }
     }
 
@@ -146,12 +264,16 @@ public class JiBXUtil {
     public static final void marshallObject(Writer writer, Object obj) throws JiBXException {
         if (writer == null || obj == null)
             throw new IllegalArgumentException("Writer or object to marshall cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(obj.getClass());
-        if (factory == null)
+        BindingContextCache binding = getBinding(obj.getClass());
+        if (binding == null)
             return;
-        MarshallingContext fctx = (MarshallingContext) factory.createMarshallingContext();
-        fctx.setOutput(writer);
-        fctx.marshalDocument(obj);
+        MarshallingContext fctx = binding.acquireMarshallingContext();
+        try {
+            fctx.setOutput(writer);
+            fctx.marshalDocument(obj);
+        } finally {
+            binding.release(fctx);
+        }
     }
 
     /**
@@ -166,15 +288,16 @@ public class JiBXUtil {
     public static final void marshallIQPacket(XMPPStreamWriter writer, IQPacket packet) throws JiBXException {
         if (writer == null || packet == null)
             throw new IllegalArgumentException("Writer or packet to marshall cannot be null");
-        if (iqfactory == null)
+        if (iqBinding == null)
             return;
-        MarshallingContext fctx = (MarshallingContext) iqfactory.createMarshallingContext();
+        MarshallingContext fctx = iqBinding.acquireMarshallingContext();
         fctx.setXmlWriter(writer);
         try {
             writer.setStreamCloseable(false);
             iqPacketMapper.marshal(packet, fctx);
         } finally {
             writer.setStreamCloseable(true);
+            iqBinding.release(fctx);
         }
     }
 }
@@ -0,0 +1,166 @@
+package com.echomine.jibx;
+
+import java.io.Reader;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+import org.jibx.runtime.impl.XMLPullReaderFactory;
+
+/**
+ * An unmarshalling context that keeps count of the number of top-level
+ * elements (stanzas) that the parser has completely read. An element is
+ * counted when the parser reaches its end tag. The end of the stream root
+ * element is counted as well. The count is kept across documents, so that it
+ * survives stream restarts after TLS and SASL negotiation.
+ * <p>
+ * This is used by the NIO connection handling to compare the number of
+ * stanzas parsed against the number of stanzas received, and thus only parse
+ * when a complete stanza is waiting.
+ * </p>
+ */
+public class StanzaCountingUnmarshallingContext extends UnmarshallingContext {
+    /**
+     * nesting depth of the stanza elements. The stream root is at depth 1.
+     */
+    private static final int STANZA_DEPTH = 2;
+    private volatile long elementCount;
+
+    /**
+     * @return the number of top-level elements parsed since the context was
+     *         created
+     */
+    public long getElementCount() {
+        return elementCount;
+    }
+
+    /*
+     * Wraps the pull parser so that top-level end tags are counted.
+     *
+     * @see org.jibx.runtime.impl.UnmarshallingContext#setDocument(java.io.Reader,
+     *      java.lang.String, boolean)
+     */
+    public void setDocument(Reader rdr, String name, boolean nsa) throws JiBXException {
+        setDocument(new CountingReader(XMLPullReaderFactory.getInstance().createReader(rdr, name, nsa)));
+        reset();
+    }
+
+    /**
+     * counts the event if it is the end of a top-level element
+     */
+    void eventRead(IXMLReader reader, int event) {
+        if (event == IXMLReader.END_TAG && reader.getNestingDepth() <= STANZA_DEPTH)
+            elementCount++;
+    }
+
+    /**
+     * Delegating reader that reports all parsed events to the context
+     */
+    class CountingReader implements IXMLReader {
+        private IXMLReader reader;
+
+        CountingReader(IXMLReader reader) {
+            this.reader = reader;
+        }
+
+        public int nextToken() throws JiBXException {
+            int event = reader.nextToken();
+            eventRead(reader, event);
+            return event;
+        }
+
+        public int next() throws JiBXException {
+            int event = reader.next();
+            eventRead(reader, event);
+            return event;
+        }
+
+        public String buildPositionString() {
+            return reader.buildPositionString();
+        }
+
+        public int getEventType() throws JiBXException {
+            return reader.getEventType();
+        }
+
+        public String getName() {
+            return reader.getName();
+        }
+
+        public String getNamespace() {
+            return reader.getNamespace();
+        }
+
+        public String getPrefix() {
+            return reader.getPrefix();
+        }
+
+        public int getAttributeCount() {
+            return reader.getAttributeCount();
+        }
+
+        public String getAttributeName(int index) {
+            return reader.getAttributeName(index);
+        }
+
+        public String getAttributeNamespace(int index) {
+            return reader.getAttributeNamespace(index);
+        }
+
+        public String getAttributePrefix(int index) {
+            return reader.getAttributePrefix(index);
+        }
+
+        public String getAttributeValue(int index) {
+            return reader.getAttributeValue(index);
+        }
+
+        public String getAttributeValue(String ns, String name) {
+            return reader.getAttributeValue(ns, name);
+        }
+
+        public String getText() {
+            return reader.getText();
+        }
+
+        public int getNestingDepth() {
+            return reader.getNestingDepth();
+        }
+
+        public int getNamespaceCount(int depth) {
+            return reader.getNamespaceCount(depth);
+        }
+
+        public String getNamespaceUri(int index) {
+            return reader.getNamespaceUri(index);
+        }
+
+        public String getNamespacePrefix(int index) {
+            return reader.getNamespacePrefix(index);
+        }
+
+        public String getDocumentName() {
+            return reader.getDocumentName();
+        }
+
+        public int getLineNumber() {
+            return reader.getLineNumber();
+        }
+
+        public int getColumnNumber() {
+            return reader.getColumnNumber();
+        }
+
+        public String getNamespace(String prefix) {
+            return reader.getNamespace(prefix);
+        }
+
+        public String getInputEncoding() {
+            return reader.getInputEncoding();
+        }
+
+        public boolean isNamespaceAware() {
+            return reader.isNamespaceAware();
+        }
+    }
+}
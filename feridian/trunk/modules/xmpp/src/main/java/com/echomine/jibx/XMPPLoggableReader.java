@@ -1,50 +1,66 @@
 package com.echomine.jibx;
 
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
-import com.echomine.xmpp.XMPPLogger;
+import com.echomine.xmpp.XMPPWireTap;
 
 /**
- * This reader is the main reader wrapper for socket input streams.  It enables logging
- * for incoming data.
+ * This reader is the main reader wrapper for socket input streams. It enables
+ * logging for incoming data. The data read while logging is collected in a
+ * buffer of the reader, and handed to the wire tap (see XMPPWireTap) each time
+ * the log is flushed. The tap writes the log in the background, so that
+ * logging does not slow down the reading thread.
  */
 public class XMPPLoggableReader extends InputStreamReader {
     private static final int STOP = 0;
     private static final int START = 1;
-    private int status = STOP;
-    private CharArrayWriter writer = new CharArrayWriter(1024);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private final XMPPWireTap tap;
+    private final Object lock = new Object();
+    private volatile int status = STOP;
+    private char[] buffer;
+    private int length;
+    private CharsetDecoder byteDecoder;
+    private ByteBuffer pendingBytes;
 
     public XMPPLoggableReader(InputStream in, Charset cs) {
         super(in, cs);
+        tap = XMPPWireTap.getWireTap();
     }
 
     public XMPPLoggableReader(InputStream in, CharsetDecoder dec) {
         super(in, dec);
+        tap = XMPPWireTap.getWireTap();
     }
 
     public XMPPLoggableReader(InputStream in, String charsetName) throws UnsupportedEncodingException {
         super(in, charsetName);
+        tap = XMPPWireTap.getWireTap();
     }
 
     public XMPPLoggableReader(InputStream in) {
         super(in);
+        tap = XMPPWireTap.getWireTap();
     }
 
     /**
      * This will begin the process of logging any incoming data.
      */
     public void startLogging() {
-        synchronized (writer) {
+        synchronized (lock) {
             if (status == START)
                 return;
             status = START;
-            writer.reset();
+            length = 0;
         }
     }
 
@@ -53,12 +69,13 @@ public class XMPPLoggableReader extends InputStreamReader {
      * 
      */
     public void stopLogging() {
-        synchronized (writer) {
+        synchronized (lock) {
             if (status == STOP)
                 return;
             status = STOP;
-            if (XMPPLogger.canLogIncoming())
-                XMPPLogger.logIncoming(writer.toString());
+            if (tap.isIncomingEnabled())
+                tap.incoming(buffer, 0, length, false);
+            length = 0;
         }
     }
 
@@ -67,9 +84,11 @@ public class XMPPLoggableReader extends InputStreamReader {
      * outputted.
      */
     public void flushIgnoredDataToLog() {
-        if (XMPPLogger.canLogIgnored() && status == START) {
-            XMPPLogger.logIgnored(writer.toString());
-            writer.reset();
+        synchronized (lock) {
+            if (tap.isIgnoredEnabled() && status == START) {
+                tap.incoming(buffer, 0, length, true);
+                length = 0;
+            }
         }
     }
 
@@ -78,9 +97,11 @@ public class XMPPLoggableReader extends InputStreamReader {
      * to START. The status will not change after flushing.
      */
     public void flushLog() {
-        if (XMPPLogger.canLogIncoming() && status == START) {
-            XMPPLogger.logIncoming(writer.toString());
-            writer.reset();
+        synchronized (lock) {
+            if (tap.isIncomingEnabled() && status == START) {
+                tap.incoming(buffer, 0, length, false);
+                length = 0;
+            }
         }
     }
 
@@ -89,21 +110,72 @@ public class XMPPLoggableReader extends InputStreamReader {
      */
     public int read() throws IOException {
         int ch = super.read();
-        if (XMPPLogger.canLogIncoming() && status == START && ch != -1)
-            writer.write(ch);
+        if (status == START && ch != -1 && tap.isIncomingEnabled()) {
+            synchronized (lock) {
+                if (ensureSpace(1))
+                    buffer[length++] = (char) ch;
+            }
+        }
         return ch;
     }
 
     /**
      * Overridden to enable logging
      */
-    public int read(char[] cbuf, int offset, int length) throws IOException {
-        int read = super.read(cbuf, offset, length);
-        if (XMPPLogger.canLogIncoming() && status == START && read > 0)
-            writer.write(cbuf, offset, read);
+    public int read(char[] cbuf, int offset, int len) throws IOException {
+        int read = super.read(cbuf, offset, len);
+        if (status == START && read > 0 && tap.isIncomingEnabled()) {
+            synchronized (lock) {
+                int space = ensureSpace(read) ? read : MAX_BUFFER_SIZE - length;
+                System.arraycopy(cbuf, offset, buffer, length, space);
+                length += space;
+            }
+        }
         return read;
     }
 
+    /**
+     * Logs data that was read from the underlying stream by someone else than
+     * this reader, such as the byte tokenizer (see XMPPStreamTokenizer). The
+     * bytes are decoded as UTF-8 only when they are logged. A character split
+     * across two calls is kept until the rest of it comes in.
+     * 
+     * @param b the bytes read
+     * @param off the offset of the data
+     * @param len the number of bytes read
+     */
+    public void log(byte[] b, int off, int len) {
+        if (status != START || len <= 0 || !tap.isIncomingEnabled())
+            return;
+        synchronized (lock) {
+            if (byteDecoder == null) {
+                byteDecoder = Charset.forName("UTF-8").newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+                        CodingErrorAction.REPLACE);
+                pendingBytes = ByteBuffer.allocate(4);
+            }
+            ByteBuffer in = ByteBuffer.wrap(b, off, len);
+            CharBuffer out = CharBuffer.allocate(len + pendingBytes.position() + 1);
+            if (pendingBytes.position() > 0) {
+                // complete the character left over from the last call
+                while (pendingBytes.hasRemaining() && in.hasRemaining()) {
+                    pendingBytes.put(in.get());
+                    pendingBytes.flip();
+                    byteDecoder.decode(pendingBytes, out, false);
+                    pendingBytes.compact();
+                    if (pendingBytes.position() == 0)
+                        break;
+                }
+            }
+            byteDecoder.decode(in, out, false);
+            pendingBytes.put(in);
+            out.flip();
+            int count = out.remaining();
+            int space = ensureSpace(count) ? count : MAX_BUFFER_SIZE - length;
+            out.get(buffer, length, space);
+            length += space;
+        }
+    }
+
     /**
      * Overridden to enable logging
      */
@@ -118,7 +190,28 @@ public class XMPPLoggableReader extends InputStreamReader {
      * @return the log text, can possibly be empty
      */
     public String getLogText() {
-        return writer.toString();
+        synchronized (lock) {
+            return (length == 0) ? "" : new String(buffer, 0, length);
+        }
     }
 
+    /**
+     * makes room in the buffer for more data. The buffer grows up to a limit,
+     * beyond which the data of a single log entry is cut off. Must be called
+     * with the lock held.
+     * 
+     * @return true if all the data fits, false if it must be cut off
+     */
+    private boolean ensureSpace(int needed) {
+        if (buffer == null)
+            buffer = new char[INITIAL_BUFFER_SIZE];
+        if (length + needed <= buffer.length)
+            return true;
+        if (buffer.length < MAX_BUFFER_SIZE) {
+            char[] grown = new char[Math.min(MAX_BUFFER_SIZE, Math.max(length + needed, buffer.length * 2))];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        return length + needed <= buffer.length;
+    }
 }
@@ -0,0 +1,1128 @@
+package com.echomine.jibx;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+
+/**
+ * <p>
+ * A pull tokenizer for XMPP streams that works directly on the UTF-8 bytes
+ * read from the socket, and that can be used by JiBX in place of the pull
+ * parser. The regular reading path decodes every byte into characters
+ * (InputStreamReader), has the pull parser build strings for every name and
+ * attribute, and decodes ignored elements just to throw them away. This
+ * tokenizer instead:
+ * </p>
+ * <ul>
+ * <li>looks up element and attribute names (and namespace URIs) in a symbol
+ * table of interned strings, so that the names that come back with every
+ * stanza are not decoded or allocated again</li>
+ * <li>decodes text and attribute values only when they are asked for</li>
+ * <li>skips elements at the byte level (see skipElement()), without
+ * decoding or tokenizing their content</li>
+ * </ul>
+ * <p>
+ * It handles the restricted XML that XMPP allows (RFC 6120): there is no
+ * DTD, and only the predefined entities and character references are
+ * expanded. Comments and processing instructions, which XMPP does not allow
+ * either, are skipped. The stream must be UTF-8, which is the only encoding
+ * XMPP allows. Text, character data sections and entities are all reported
+ * as a single TEXT event by both next() and nextToken(). Line numbers are
+ * not tracked; positions are reported as byte offsets.
+ * </p>
+ * <p>
+ * Like the pull parser, the tokenizer only reads from the stream when it
+ * needs more data to complete the current token, so it never blocks on data
+ * that belongs to the next stanza. The data read can be logged through an
+ * XMPPLoggableReader. The tokenizer is not thread safe.
+ * </p>
+ */
+public class XMPPStreamTokenizer implements IXMLReader {
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+    private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int INITIAL_DEPTH = 16;
+    private static final int INITIAL_ATTRIBUTES = 8;
+    private static final int SYMBOL_BUCKETS = 256;
+    /** the most symbols kept, so that random names cannot fill the memory */
+    private static final int MAX_SYMBOLS = 2048;
+    private static final byte[] CDATA_START = { '<', '!', '[', 'C', 'D', 'A', 'T', 'A', '[' };
+
+    private final InputStream in;
+    private final XMPPLoggableReader log;
+    private final String docName;
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int pos;
+    private int end;
+    private long discarded;
+    private boolean eof;
+    private int event = START_DOCUMENT;
+    private boolean emptyElement;
+
+    // the open elements, indexed by depth
+    private int depth;
+    private Symbol[] elementNames = new Symbol[INITIAL_DEPTH];
+    private String[] elementNamespaces = new String[INITIAL_DEPTH];
+    private int[] namespaceCounts = new int[INITIAL_DEPTH];
+
+    // the namespaces declared by the open elements
+    private int namespaceCount;
+    private String[] namespacePrefixes = new String[INITIAL_DEPTH];
+    private String[] namespaceUris = new String[INITIAL_DEPTH];
+
+    // the attributes of the current start tag
+    private int attributeCount;
+    private Symbol[] attributeNames = new Symbol[INITIAL_ATTRIBUTES];
+    private String[] attributeNamespaces = new String[INITIAL_ATTRIBUTES];
+    private int[] attributeStarts = new int[INITIAL_ATTRIBUTES];
+    private int[] attributeEnds = new int[INITIAL_ATTRIBUTES];
+    private boolean[] attributeMarkup = new boolean[INITIAL_ATTRIBUTES];
+    private String[] attributeValues = new String[INITIAL_ATTRIBUTES];
+
+    // the current text
+    private int textStart;
+    private int textEnd;
+    private boolean textMarkup;
+    private String text;
+
+    private final Symbol[] symbols = new Symbol[SYMBOL_BUCKETS];
+    private int symbolCount;
+    private char[] chars = new char[256];
+
+    /**
+     * @param in the stream to read the UTF-8 data from
+     */
+    public XMPPStreamTokenizer(InputStream in) {
+        this(in, null, null);
+    }
+
+    /**
+     * @param in the stream to read the UTF-8 data from
+     * @param log the reader that logs the data read, or null
+     * @param docName the name of the document for error messages, or null
+     */
+    public XMPPStreamTokenizer(InputStream in, XMPPLoggableReader log, String docName) {
+        this.in = in;
+        this.log = log;
+        this.docName = docName;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#next()
+     */
+    public int next() throws JiBXException {
+        try {
+            event = parseNext();
+            return event;
+        } catch (IOException ex) {
+            throw new JiBXException("Error reading stream " + buildPositionString(), ex);
+        }
+    }
+
+    /*
+     * The text, character data and entities are reported as TEXT, and the
+     * comments and processing instructions are skipped, the same as next().
+     *
+     * @see org.jibx.runtime.IXMLReader#nextToken()
+     */
+    public int nextToken() throws JiBXException {
+        return next();
+    }
+
+    /**
+     * Skips the element at the current start tag, and leaves the tokenizer at
+     * the end tag of the element. The content is skipped at the byte level:
+     * it is only scanned for the tags that open and close elements, and none
+     * of it is decoded or kept. Names of the nested tags are not checked.
+     *
+     * @throws JiBXException if the tokenizer is not at a start tag, or if the
+     *             stream ends or cannot be read
+     */
+    public void skipElement() throws JiBXException {
+        if (event != START_TAG)
+            throw new JiBXException("Expected start tag to skip " + buildPositionString());
+        attributeCount = 0;
+        if (emptyElement) {
+            emptyElement = false;
+            event = END_TAG;
+            return;
+        }
+        try {
+            int level = 1;
+            while (true) {
+                // nothing skipped is kept, so the buffer is emptied as it goes
+                discard();
+                if (!skipTo((byte) '<'))
+                    throw unexpectedEnd();
+                require(2);
+                byte b = buf[pos + 1];
+                if (b == '/') {
+                    if (!skipTo((byte) '>'))
+                        throw unexpectedEnd();
+                    pos++;
+                    if (--level == 0)
+                        break;
+                } else if (b == '!' || b == '?') {
+                    skipMarkup();
+                } else if (skipStartTag()) {
+                    level++;
+                }
+            }
+        } catch (IOException ex) {
+            throw new JiBXException("Error reading stream " + buildPositionString(), ex);
+        }
+        event = END_TAG;
+    }
+
+    /**
+     * @return the number of symbols in the symbol table
+     */
+    public int getSymbolCount() {
+        return symbolCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getEventType()
+     */
+    public int getEventType() {
+        return event;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getName()
+     */
+    public String getName() {
+        if (event != START_TAG && event != END_TAG)
+            return null;
+        return elementNames[depth].local;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespace()
+     */
+    public String getNamespace() {
+        if (event != START_TAG && event != END_TAG)
+            return null;
+        return elementNamespaces[depth];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getPrefix()
+     */
+    public String getPrefix() {
+        if (event != START_TAG && event != END_TAG)
+            return null;
+        return elementNames[depth].prefix;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeCount()
+     */
+    public int getAttributeCount() {
+        return (event == START_TAG) ? attributeCount : -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeName(int)
+     */
+    public String getAttributeName(int index) {
+        checkAttribute(index);
+        return attributeNames[index].local;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeNamespace(int)
+     */
+    public String getAttributeNamespace(int index) {
+        checkAttribute(index);
+        return attributeNamespaces[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributePrefix(int)
+     */
+    public String getAttributePrefix(int index) {
+        checkAttribute(index);
+        return attributeNames[index].prefix;
+    }
+
+    /*
+     * The value is decoded the first time it is asked for.
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeValue(int)
+     */
+    public String getAttributeValue(int index) {
+        checkAttribute(index);
+        if (attributeValues[index] == null)
+            attributeValues[index] = decode(attributeStarts[index], attributeEnds[index], attributeMarkup[index], true);
+        return attributeValues[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeValue(java.lang.String,
+     *      java.lang.String)
+     */
+    public String getAttributeValue(String ns, String name) {
+        if (event != START_TAG)
+            return null;
+        if (ns == null)
+            ns = "";
+        for (int i = 0; i < attributeCount; i++) {
+            if (name.equals(attributeNames[i].local) && ns.equals(attributeNamespaces[i]))
+                return getAttributeValue(i);
+        }
+        return null;
+    }
+
+    /*
+     * The text is decoded the first time it is asked for.
+     *
+     * @see org.jibx.runtime.IXMLReader#getText()
+     */
+    public String getText() {
+        if (event != TEXT)
+            return null;
+        if (text == null)
+            text = decode(textStart, textEnd, textMarkup, false);
+        return text;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNestingDepth()
+     */
+    public int getNestingDepth() {
+        return depth;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespaceCount(int)
+     */
+    public int getNamespaceCount(int level) {
+        if (level < 0 || level > depth)
+            throw new IllegalArgumentException("Invalid depth: " + level);
+        return namespaceCounts[level];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespaceUri(int)
+     */
+    public String getNamespaceUri(int index) {
+        return namespaceUris[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespacePrefix(int)
+     */
+    public String getNamespacePrefix(int index) {
+        return namespacePrefixes[index];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespace(java.lang.String)
+     */
+    public String getNamespace(String prefix) {
+        if ("xml".equals(prefix))
+            return XML_NAMESPACE;
+        if ("xmlns".equals(prefix))
+            return XMLNS_NAMESPACE;
+        for (int i = namespaceCount - 1; i >= 0; i--) {
+            String declared = namespacePrefixes[i];
+            if ((prefix == null) ? declared == null : prefix.equals(declared))
+                return namespaceUris[i];
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#buildPositionString()
+     */
+    public String buildPositionString() {
+        String position = "(byte " + (discarded + pos) + ")";
+        return (docName == null) ? position : "(document \"" + docName + "\", byte " + (discarded + pos) + ")";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getDocumentName()
+     */
+    public String getDocumentName() {
+        return docName;
+    }
+
+    /*
+     * Lines are not tracked.
+     *
+     * @see org.jibx.runtime.IXMLReader#getLineNumber()
+     */
+    public int getLineNumber() {
+        return -1;
+    }
+
+    /*
+     * Columns are not tracked.
+     *
+     * @see org.jibx.runtime.IXMLReader#getColumnNumber()
+     */
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getInputEncoding()
+     */
+    public String getInputEncoding() {
+        return "UTF-8";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#isNamespaceAware()
+     */
+    public boolean isNamespaceAware() {
+        return true;
+    }
+
+    /**
+     * parses the next event
+     */
+    private int parseNext() throws IOException, JiBXException {
+        if (event == END_DOCUMENT)
+            return END_DOCUMENT;
+        if (emptyElement) {
+            emptyElement = false;
+            attributeCount = 0;
+            return END_TAG;
+        }
+        if (event == END_TAG) {
+            // the element is closed once its end tag was reported
+            namespaceCount = namespaceCounts[depth - 1];
+            depth--;
+        }
+        attributeCount = 0;
+        text = null;
+        if (pos > (buf.length >> 1))
+            discard();
+        if (event == START_DOCUMENT)
+            return parseProlog();
+        if (depth == 0)
+            return parseEpilog();
+        while (true) {
+            if (!ensure(1))
+                throw unexpectedEnd();
+            if (buf[pos] != '<')
+                return scanText();
+            require(2);
+            byte b = buf[pos + 1];
+            if (b == '/')
+                return parseEndTag();
+            if (b == '!') {
+                if (isCharacterData())
+                    return scanText();
+                skipMarkup();
+            } else if (b == '?') {
+                skipMarkup();
+            } else {
+                return parseStartTag();
+            }
+        }
+    }
+
+    /**
+     * skips the byte order mark, XML declaration, whitespace and comments
+     * before the root element, and parses the root start tag
+     */
+    private int parseProlog() throws IOException, JiBXException {
+        if (ensure(3) && (buf[pos] & 0xFF) == 0xEF && (buf[pos + 1] & 0xFF) == 0xBB && (buf[pos + 2] & 0xFF) == 0xBF)
+            pos += 3;
+        while (true) {
+            skipWhitespace();
+            if (!ensure(2))
+                throw unexpectedEnd();
+            if (buf[pos] != '<')
+                throw error("Content is not allowed in prolog");
+            byte b = buf[pos + 1];
+            if (b == '?' || b == '!')
+                skipMarkup();
+            else
+                return parseStartTag();
+        }
+    }
+
+    /**
+     * only whitespace may follow the root element
+     */
+    private int parseEpilog() throws IOException, JiBXException {
+        skipWhitespace();
+        if (ensure(1))
+            throw error("Content is not allowed after the root element");
+        return END_DOCUMENT;
+    }
+
+    /**
+     * parses the start tag at the current position
+     */
+    private int parseStartTag() throws IOException, JiBXException {
+        pos++;
+        Symbol name = scanName();
+        while (true) {
+            skipWhitespace();
+            require(1);
+            byte b = buf[pos];
+            if (b == '>') {
+                pos++;
+                break;
+            }
+            if (b == '/') {
+                require(2);
+                if (buf[pos + 1] != '>')
+                    throw error("Expected '>' after '/'");
+                pos += 2;
+                emptyElement = true;
+                break;
+            }
+            Symbol attr = scanName();
+            skipWhitespace();
+            require(1);
+            if (buf[pos] != '=')
+                throw error("Expected '=' after attribute " + attr.qname);
+            pos++;
+            skipWhitespace();
+            require(1);
+            byte quote = buf[pos];
+            if (quote != '\'' && quote != '"')
+                throw error("Expected quote for the value of attribute " + attr.qname);
+            int start = ++pos;
+            boolean markup = false;
+            while (true) {
+                require(1);
+                byte c = buf[pos];
+                if (c == quote)
+                    break;
+                if (c == '<')
+                    throw error("'<' is not allowed in attribute values");
+                if (c == '&' || c == '\r' || c == '\n' || c == '\t')
+                    markup = true;
+                pos++;
+            }
+            int stop = pos++;
+            if (attr.prefix == null && "xmlns".equals(attr.local))
+                declareNamespace(null, namespaceValue(start, stop, markup));
+            else if ("xmlns".equals(attr.prefix))
+                declareNamespace(attr.local, namespaceValue(start, stop, markup));
+            else
+                addAttribute(attr, start, stop, markup);
+        }
+        // the namespaces are resolved once all the declarations are known
+        if (depth + 1 >= elementNames.length)
+            growDepth();
+        depth++;
+        namespaceCounts[depth] = namespaceCount;
+        elementNames[depth] = name;
+        elementNamespaces[depth] = resolve(name, true);
+        for (int i = 0; i < attributeCount; i++)
+            attributeNamespaces[i] = resolve(attributeNames[i], false);
+        return START_TAG;
+    }
+
+    /**
+     * parses the end tag at the current position
+     */
+    private int parseEndTag() throws IOException, JiBXException {
+        pos += 2;
+        Symbol name = scanName();
+        skipWhitespace();
+        require(1);
+        if (buf[pos] != '>')
+            throw error("Expected '>' to end the end tag of " + name.qname);
+        pos++;
+        Symbol open = elementNames[depth];
+        if (name != open && !name.qname.equals(open.qname))
+            throw error("End tag " + name.qname + " does not match start tag " + open.qname);
+        return END_TAG;
+    }
+
+    /**
+     * scans the text up to the next tag. Character data sections are part of
+     * the text. The text is decoded when it is asked for.
+     */
+    private int scanText() throws IOException, JiBXException {
+        textStart = pos;
+        textMarkup = false;
+        while (true) {
+            if (pos == end && !fill())
+                break;
+            byte b = buf[pos];
+            if (b == '<') {
+                if (!isCharacterData())
+                    break;
+                textMarkup = true;
+                pos += CDATA_START.length;
+                if (!skipPast(']', ']', '>'))
+                    throw unexpectedEnd();
+                continue;
+            }
+            if (b == '&' || b == '\r')
+                textMarkup = true;
+            pos++;
+        }
+        textEnd = pos;
+        return TEXT;
+    }
+
+    /**
+     * scans an element or attribute name and looks it up in the symbol table
+     */
+    private Symbol scanName() throws IOException, JiBXException {
+        int start = pos;
+        int hash = 0;
+        while (true) {
+            if (pos == end && !fill())
+                throw unexpectedEnd();
+            byte b = buf[pos];
+            if (b == ' ' || b == '>' || b == '/' || b == '=' || b == '\n' || b == '\t' || b == '\r')
+                break;
+            if (b == '<' || b == '\'' || b == '"')
+                throw error("Invalid character in name");
+            hash = 31 * hash + b;
+            pos++;
+        }
+        if (pos == start)
+            throw error("Expected a name");
+        return lookup(start, pos, hash, true);
+    }
+
+    /**
+     * returns the namespace URI of a declaration, interned through the
+     * symbol table as well since the same namespaces come with every stanza
+     */
+    private String namespaceValue(int start, int stop, boolean markup) {
+        if (markup)
+            return decode(start, stop, true, true).intern();
+        int hash = 0;
+        for (int i = start; i < stop; i++)
+            hash = 31 * hash + buf[i];
+        return lookup(start, stop, hash, false).qname;
+    }
+
+    /**
+     * finds the symbol for the bytes, or adds it to the table
+     */
+    private Symbol lookup(int start, int stop, int hash, boolean qualified) {
+        int len = stop - start;
+        int bucket = hash & (SYMBOL_BUCKETS - 1);
+        for (Symbol s = symbols[bucket]; s != null; s = s.next) {
+            if (s.hash == hash && s.bytes.length == len && s.qualified == qualified && matches(s.bytes, start))
+                return s;
+        }
+        byte[] bytes = new byte[len];
+        System.arraycopy(buf, start, bytes, 0, len);
+        Symbol s = new Symbol(bytes, hash, decode(start, stop, false, false).intern(), qualified);
+        if (symbolCount < MAX_SYMBOLS) {
+            s.next = symbols[bucket];
+            symbols[bucket] = s;
+            symbolCount++;
+        }
+        return s;
+    }
+
+    private boolean matches(byte[] bytes, int start) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != buf[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private void declareNamespace(String prefix, String uri) {
+        if (namespaceCount == namespaceUris.length) {
+            namespaceUris = grow(namespaceUris);
+            namespacePrefixes = grow(namespacePrefixes);
+        }
+        namespacePrefixes[namespaceCount] = prefix;
+        namespaceUris[namespaceCount] = uri;
+        namespaceCount++;
+    }
+
+    private void addAttribute(Symbol name, int start, int stop, boolean markup) {
+        if (attributeCount == attributeNames.length) {
+            int size = attributeCount * 2;
+            Symbol[] names = new Symbol[size];
+            System.arraycopy(attributeNames, 0, names, 0, attributeCount);
+            attributeNames = names;
+            attributeNamespaces = grow(attributeNamespaces);
+            attributeValues = grow(attributeValues);
+            attributeStarts = grow(attributeStarts);
+            attributeEnds = grow(attributeEnds);
+            boolean[] flags = new boolean[size];
+            System.arraycopy(attributeMarkup, 0, flags, 0, attributeCount);
+            attributeMarkup = flags;
+        }
+        attributeNames[attributeCount] = name;
+        attributeStarts[attributeCount] = start;
+        attributeEnds[attributeCount] = stop;
+        attributeMarkup[attributeCount] = markup;
+        attributeValues[attributeCount] = null;
+        attributeCount++;
+    }
+
+    /**
+     * resolves the namespace of a name. Names without a prefix are in the
+     * default namespace if they are elements, and in no namespace if they are
+     * attributes.
+     */
+    private String resolve(Symbol name, boolean element) throws JiBXException {
+        if (name.prefix == null && !element)
+            return "";
+        String uri = getNamespace(name.prefix);
+        if (uri != null)
+            return uri;
+        if (name.prefix == null)
+            return "";
+        throw error("Undeclared namespace prefix: " + name.prefix);
+    }
+
+    private void growDepth() {
+        int size = elementNames.length * 2;
+        Symbol[] names = new Symbol[size];
+        System.arraycopy(elementNames, 0, names, 0, elementNames.length);
+        elementNames = names;
+        elementNamespaces = grow(elementNamespaces);
+        namespaceCounts = grow(namespaceCounts);
+    }
+
+    /**
+     * skips a comment, processing instruction or character data section at
+     * the current position. Document type declarations are not allowed.
+     */
+    private void skipMarkup() throws IOException, JiBXException {
+        if (buf[pos + 1] == '?') {
+            pos += 2;
+            if (!skipPast('?', '>'))
+                throw unexpectedEnd();
+        } else if (isCharacterData()) {
+            pos += CDATA_START.length;
+            if (!skipPast(']', ']', '>'))
+                throw unexpectedEnd();
+        } else {
+            require(4);
+            if (buf[pos + 2] != '-' || buf[pos + 3] != '-')
+                throw error("Document type declarations are not allowed");
+            pos += 4;
+            if (!skipPast('-', '-', '>'))
+                throw unexpectedEnd();
+        }
+    }
+
+    /**
+     * skips a start tag, with the quoted attribute values that may contain
+     * '>' or '/'
+     *
+     * @return true if the element has content, false if it is empty
+     */
+    private boolean skipStartTag() throws IOException, JiBXException {
+        pos++;
+        byte last = 0;
+        while (true) {
+            if (pos == end && !fill())
+                throw unexpectedEnd();
+            byte b = buf[pos++];
+            if (b == '>')
+                return last != '/';
+            if (b == '\'' || b == '"') {
+                if (!skipTo(b))
+                    throw unexpectedEnd();
+                pos++;
+            }
+            last = b;
+        }
+    }
+
+    /**
+     * moves to the next occurrence of the byte
+     *
+     * @return false if the stream ended first
+     */
+    private boolean skipTo(byte target) throws IOException {
+        while (true) {
+            for (int i = pos; i < end; i++) {
+                if (buf[i] == target) {
+                    pos = i;
+                    return true;
+                }
+            }
+            pos = end;
+            if (!fill())
+                return false;
+        }
+    }
+
+    /**
+     * moves past the next occurrence of the bytes
+     *
+     * @return false if the stream ended first
+     */
+    private boolean skipPast(char first, char second) throws IOException {
+        while (skipTo((byte) first)) {
+            if (!ensure(2))
+                return false;
+            pos++;
+            if (buf[pos] == second) {
+                pos++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * moves past the next occurrence of the bytes
+     *
+     * @return false if the stream ended first
+     */
+    private boolean skipPast(char first, char second, char third) throws IOException {
+        while (skipTo((byte) first)) {
+            if (!ensure(3))
+                return false;
+            if (buf[pos + 1] == second && buf[pos + 2] == third) {
+                pos += 3;
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (true) {
+            if (pos == end && !fill())
+                return;
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\t' && b != '\r')
+                return;
+            pos++;
+        }
+    }
+
+    /**
+     * checks for a character data section at the current '<'. The second byte
+     * is checked first so that an end tag never waits for more data.
+     */
+    private boolean isCharacterData() throws IOException {
+        return ensure(2) && buf[pos + 1] == '!' && startsWith(CDATA_START);
+    }
+
+    private boolean startsWith(byte[] prefix) throws IOException {
+        if (!ensure(prefix.length))
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[pos + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * makes sure that the bytes are in the buffer
+     *
+     * @return false if the stream ended first
+     */
+    private boolean ensure(int count) throws IOException {
+        while (end - pos < count) {
+            if (!fill())
+                return false;
+        }
+        return true;
+    }
+
+    private void require(int count) throws IOException, JiBXException {
+        if (!ensure(count))
+            throw unexpectedEnd();
+    }
+
+    /**
+     * reads more data into the buffer, growing it if it is full. This blocks
+     * until some data is available.
+     *
+     * @return false if the stream ended
+     */
+    private boolean fill() throws IOException {
+        if (eof)
+            return false;
+        if (end == buf.length) {
+            byte[] grown = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, end);
+            buf = grown;
+        }
+        int read;
+        do {
+            read = in.read(buf, end, buf.length - end);
+        } while (read == 0);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        if (log != null)
+            log.log(buf, end, read);
+        end += read;
+        return true;
+    }
+
+    /**
+     * drops the bytes before the current position. This must only be done
+     * between tokens, since it moves the data of the current token.
+     */
+    private void discard() {
+        if (pos == 0)
+            return;
+        System.arraycopy(buf, pos, buf, 0, end - pos);
+        discarded += pos;
+        end -= pos;
+        pos = 0;
+    }
+
+    /**
+     * decodes UTF-8 bytes, and expands the entities, character data sections
+     * and line ends if the bytes contain markup. Attribute values are
+     * normalized.
+     */
+    private String decode(int start, int stop, boolean markup, boolean attribute) {
+        if (chars.length < stop - start)
+            chars = new char[Math.max(stop - start, chars.length * 2)];
+        int n = 0;
+        int i = start;
+        boolean cdata = false;
+        while (i < stop) {
+            int b = buf[i];
+            if (b >= 0) {
+                if (markup) {
+                    if (b == '\r') {
+                        // line ends are normalized to a line feed
+                        chars[n++] = attribute ? ' ' : '\n';
+                        i++;
+                        if (i < stop && buf[i] == '\n')
+                            i++;
+                        continue;
+                    }
+                    if (cdata) {
+                        if (b == ']' && i + 2 < stop && buf[i + 1] == ']' && buf[i + 2] == '>') {
+                            cdata = false;
+                            i += 3;
+                            continue;
+                        }
+                    } else if (b == '<') {
+                        // the only markup in text is a character data section
+                        cdata = true;
+                        i += CDATA_START.length;
+                        continue;
+                    } else if (b == '&') {
+                        int semi = i + 1;
+                        while (semi < stop && buf[semi] != ';')
+                            semi++;
+                        int c = (semi < stop) ? entity(i + 1, semi) : -1;
+                        if (c >= 0) {
+                            n = append(c, n);
+                            i = semi + 1;
+                            continue;
+                        }
+                    } else if (attribute && (b == '\n' || b == '\t')) {
+                        chars[n++] = ' ';
+                        i++;
+                        continue;
+                    }
+                }
+                chars[n++] = (char) b;
+                i++;
+                continue;
+            }
+            // multi-byte sequence
+            int c;
+            int len;
+            if ((b & 0xE0) == 0xC0) {
+                c = b & 0x1F;
+                len = 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                c = b & 0x0F;
+                len = 3;
+            } else if ((b & 0xF8) == 0xF0) {
+                c = b & 0x07;
+                len = 4;
+            } else {
+                chars[n++] = '\uFFFD';
+                i++;
+                continue;
+            }
+            if (i + len > stop) {
+                chars[n++] = '\uFFFD';
+                break;
+            }
+            boolean valid = true;
+            for (int j = 1; j < len; j++) {
+                int cont = buf[i + j];
+                if ((cont & 0xC0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                c = (c << 6) | (cont & 0x3F);
+            }
+            if (valid) {
+                n = append(c, n);
+                i += len;
+            } else {
+                chars[n++] = '\uFFFD';
+                i++;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * appends a code point to the decoded characters. The characters never
+     * outnumber the bytes, since a code point that takes two characters takes
+     * four bytes.
+     */
+    private int append(int c, int n) {
+        if (c < 0x10000) {
+            chars[n++] = (char) c;
+        } else {
+            c -= 0x10000;
+            chars[n++] = (char) (0xD800 + (c >> 10));
+            chars[n++] = (char) (0xDC00 + (c & 0x3FF));
+        }
+        return n;
+    }
+
+    /**
+     * resolves a predefined entity or character reference between the
+     * ampersand and the semicolon
+     *
+     * @return the code point, or -1 if it is not known, in which case it is
+     *         kept as is
+     */
+    private int entity(int start, int stop) {
+        int len = stop - start;
+        if (len == 2 && buf[start + 1] == 't') {
+            if (buf[start] == 'l')
+                return '<';
+            if (buf[start] == 'g')
+                return '>';
+        } else if (len == 3 && buf[start] == 'a' && buf[start + 1] == 'm' && buf[start + 2] == 'p') {
+            return '&';
+        } else if (len == 4) {
+            if (buf[start] == 'a' && buf[start + 1] == 'p' && buf[start + 2] == 'o' && buf[start + 3] == 's')
+                return '\'';
+            if (buf[start] == 'q' && buf[start + 1] == 'u' && buf[start + 2] == 'o' && buf[start + 3] == 't')
+                return '"';
+        }
+        if (len > 1 && buf[start] == '#') {
+            int radix = 10;
+            int i = start + 1;
+            if (buf[i] == 'x') {
+                radix = 16;
+                i++;
+            }
+            if (i == stop)
+                return -1;
+            int c = 0;
+            for (; i < stop; i++) {
+                int digit = Character.digit((char) buf[i], radix);
+                if (digit < 0 || c > 0x10FFFF)
+                    return -1;
+                c = c * radix + digit;
+            }
+            return (c <= 0x10FFFF) ? c : -1;
+        }
+        return -1;
+    }
+
+    private void checkAttribute(int index) {
+        if (event != START_TAG || index < 0 || index >= attributeCount)
+            throw new IndexOutOfBoundsException("Invalid attribute index: " + index);
+    }
+
+    private JiBXException error(String msg) {
+        return new JiBXException(msg + " " + buildPositionString());
+    }
+
+    private JiBXException unexpectedEnd() {
+        return error("Unexpected end of stream");
+    }
+
+    private static String[] grow(String[] array) {
+        String[] grown = new String[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * A name (or namespace URI) from the stream, with the strings that are
+     * handed out for it
+     */
+    private static class Symbol {
+        final byte[] bytes;
+        final int hash;
+        final boolean qualified;
+        final String qname;
+        final String prefix;
+        final String local;
+        Symbol next;
+
+        Symbol(byte[] bytes, int hash, String qname, boolean qualified) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.qualified = qualified;
+            this.qname = qname;
+            int colon = qualified ? qname.indexOf(':') : -1;
+            if (colon > 0) {
+                prefix = qname.substring(0, colon).intern();
+                local = qname.substring(colon + 1).intern();
+            } else {
+                prefix = null;
+                local = qname;
+            }
+        }
+    }
+}
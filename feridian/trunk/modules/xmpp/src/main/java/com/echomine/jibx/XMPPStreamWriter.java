@@ -7,7 +7,7 @@ import org.jibx.runtime.impl.UTF8StreamWriter;
 
 import com.echomine.util.LocaleUtil;
 import com.echomine.xmpp.XMPPConstants;
-import com.echomine.xmpp.XMPPLogger;
+import com.echomine.xmpp.XMPPWireTap;
 
 /**
  * This customized stream writer will automatically register the prefixes for
@@ -68,12 +68,34 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
      */
     @Override
     public void flush() throws IOException {
-        if (XMPPLogger.canLogOutgoing())
-            if (m_fillOffset != 0)
-                XMPPLogger.logOutgoing(new String(m_buffer, 0, m_fillOffset));
+        tapOutgoing();
         super.flush();
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.jibx.runtime.impl.StreamWriterBase#makeSpace(int)
+     */
+    @Override
+    protected void makeSpace(int length) throws IOException {
+        // the buffer is written out when it is full, which must be logged too
+        if (m_fillOffset + length > m_buffer.length)
+            tapOutgoing();
+        super.makeSpace(length);
+    }
+
+    /**
+     * hands the buffered data that is about to be written to the wire tap
+     */
+    private void tapOutgoing() {
+        if (m_fillOffset != 0) {
+            XMPPWireTap tap = XMPPWireTap.getWireTap();
+            if (tap.isOutgoingEnabled())
+                tap.outgoing(m_buffer, 0, m_fillOffset);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -124,6 +146,39 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
         flush();
     }
 
+    /**
+     * This will write out the stream start tag that answers an incoming
+     * handshake, as sent by the receiving entity (ie. a server). It works the
+     * same as startHandshakeStream() except that the tag carries the stream id
+     * and the name of the answering host.
+     *
+     * @param stanzaNs the namespace of the stanza stream
+     * @param hostName the hostname of the answering entity
+     * @param streamId the id of the stream
+     * @param locale optional locale for the stream, null if not used
+     * @throws IOException when error occurs while writing out the tag
+     */
+    public void startHandshakeResponseStream(String stanzaNs, String hostName,
+            String streamId, Locale locale) throws IOException {
+        if (stanzaNs == null || hostName == null || streamId == null)
+            throw new IllegalArgumentException(
+                    "Namespace, host name and stream id cannot be null");
+        String[] uris = new String[] { stanzaNs };
+        pushExtensionNamespaces(uris);
+        startTagNamespaces(IDX_JABBER_STREAM, "stream", new int[] {
+                IDX_JABBER_STREAM, STANZA_IDX }, new String[] {
+                JABBER_STREAM_PREFIX, "" });
+        addAttribute(0, "version", "1.0");
+        addAttribute(0, "from", hostName);
+        addAttribute(0, "id", streamId);
+        if (locale != null)
+            addAttribute(XMPPConstants.IDX_XML, "lang", LocaleUtil
+                    .format(locale));
+        closeStartTag();
+        flagContent();
+        flush();
+    }
+
     /**
      * Ends the XMPP stream by sending out the document ending tag.
      * 
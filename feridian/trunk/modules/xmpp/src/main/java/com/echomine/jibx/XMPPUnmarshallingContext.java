@@ -0,0 +1,86 @@
+package com.echomine.jibx;
+
+import java.io.Reader;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+/**
+ * An unmarshalling context that can read its document with the byte level
+ * tokenizer (see XMPPStreamTokenizer). When it does, the elements that are
+ * skipped, by the mappers or by the connection handler, are skipped at the
+ * byte level instead of being parsed. With any other reader, it works the same
+ * as the JiBX context.
+ */
+public class XMPPUnmarshallingContext extends UnmarshallingContext {
+    private XMPPStreamTokenizer tokenizer;
+
+    /**
+     * @return the tokenizer the document is read with, or null if the document
+     *         is read with another reader
+     */
+    public XMPPStreamTokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    /*
+     * Keeps track of the tokenizer, so that elements can be skipped with it.
+     *
+     * @see org.jibx.runtime.impl.UnmarshallingContext#setDocument(org.jibx.runtime.IXMLReader)
+     */
+    public void setDocument(IXMLReader rdr) {
+        tokenizer = (rdr instanceof XMPPStreamTokenizer) ? (XMPPStreamTokenizer) rdr : null;
+        super.setDocument(rdr);
+    }
+
+    /*
+     * The pull parser is only recycled if it was the reader used last, since
+     * the tokenizer cannot be recycled into a pull parser.
+     *
+     * @see org.jibx.runtime.impl.UnmarshallingContext#setDocument(java.io.Reader,
+     *      java.lang.String, boolean)
+     */
+    public void setDocument(Reader rdr, String name, boolean nsa) throws JiBXException {
+        if (tokenizer != null)
+            setDocument((IXMLReader) null);
+        super.setDocument(rdr, name, nsa);
+    }
+
+    /*
+     * Skips the element at the byte level when reading with the tokenizer.
+     *
+     * @see org.jibx.runtime.impl.UnmarshallingContext#skipElement()
+     */
+    public void skipElement() throws JiBXException {
+        if (tokenizer != null && isStart()) {
+            tokenizer.skipElement();
+            next();
+        } else {
+            super.skipElement();
+        }
+    }
+
+    /**
+     * Skips the element at the current start tag, leaving the parser
+     * positioned at the element's end tag. Unlike skipElement(), this does not
+     * read past the end tag, so that nothing after the element is waited for.
+     *
+     * @throws JiBXException if the data cannot be parsed
+     */
+    public void skipToEnd() throws JiBXException {
+        if (tokenizer != null && isStart()) {
+            tokenizer.skipElement();
+            return;
+        }
+        int depth = 0;
+        do {
+            if (isStart())
+                depth++;
+            else
+                depth--;
+            if (depth > 0)
+                next();
+        } while (depth > 0);
+    }
+}
@@ -0,0 +1,271 @@
+package com.echomine.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Keeps the metrics of a socket acceptor: how fast connections come in, how
+ * many were turned away, and how long they wait for a worker and for their
+ * handshake. When the accept rate keeps going up while the queue wait or the
+ * handshake time climb with it, the acceptor is saturated; when the
+ * connections are rejected, the worker pool or the handshake limit is too
+ * small for the load.
+ * </p>
+ * <p>
+ * The metrics are updated by the accept thread and the workers without
+ * locking. Times are in microseconds.
+ * </p>
+ */
+public class AcceptorMetrics {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger handshaking = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final Latency queueWaits = new Latency();
+    private final Latency handshakes = new Latency();
+    private final Object rateLock = new Object();
+    private long windowStart = System.nanoTime();
+    private long windowCount;
+    private long lastRate;
+
+    /**
+     * @return the total number of connections accepted, including the ones
+     *         rejected afterwards
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of connections closed right after they were accepted
+     *         because the acceptor was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the connections accepted per second over the last second
+     */
+    public long getAcceptRate() {
+        synchronized (rateLock) {
+            long elapsed = System.nanoTime() - windowStart;
+            if (elapsed >= SECOND)
+                return (long) (windowCount * (double) SECOND / elapsed);
+            return lastRate;
+        }
+    }
+
+    /**
+     * @return the number of accepted connections waiting for a worker
+     */
+    public int getQueuedConnections() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of connections in their handshake
+     */
+    public int getActiveHandshakes() {
+        return handshaking.get();
+    }
+
+    /**
+     * @return the number of connections being handled, including the ones in
+     *         their handshake
+     */
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of handshakes that were completed or failed
+     */
+    public long getHandshakeCount() {
+        return handshakes.getCount();
+    }
+
+    /**
+     * @return the mean time of the handshakes
+     */
+    public long getHandshakeMean() {
+        return micros(handshakes.getMean());
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100
+     * @return the handshake time at the percentile, rounded up to the end of
+     *         its power-of-two bucket
+     */
+    public long getHandshakePercentile(double percentile) {
+        return micros(handshakes.getPercentile(percentile));
+    }
+
+    /**
+     * @return the longest handshake
+     */
+    public long getHandshakeMax() {
+        return micros(handshakes.getMax());
+    }
+
+    /**
+     * @return the mean time connections waited for a worker
+     */
+    public long getQueueWaitMean() {
+        return micros(queueWaits.getMean());
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100
+     * @return the time waited for a worker at the percentile, rounded up to
+     *         the end of its power-of-two bucket
+     */
+    public long getQueueWaitPercentile(double percentile) {
+        return micros(queueWaits.getPercentile(percentile));
+    }
+
+    /**
+     * @return the longest time a connection waited for a worker
+     */
+    public long getQueueWaitMax() {
+        return micros(queueWaits.getMax());
+    }
+
+    /**
+     * Clears the counts and times. The connections that are queued or active
+     * are still counted.
+     */
+    public void reset() {
+        accepted.set(0);
+        rejected.set(0);
+        queueWaits.reset();
+        handshakes.reset();
+        synchronized (rateLock) {
+            windowStart = System.nanoTime();
+            windowCount = 0;
+            lastRate = 0;
+        }
+    }
+
+    void connectionAccepted() {
+        accepted.incrementAndGet();
+        long now = System.nanoTime();
+        synchronized (rateLock) {
+            long elapsed = now - windowStart;
+            if (elapsed >= SECOND) {
+                lastRate = (long) (windowCount * (double) SECOND / elapsed);
+                windowStart = now;
+                windowCount = 0;
+            }
+            windowCount++;
+        }
+    }
+
+    void connectionRejected() {
+        rejected.incrementAndGet();
+    }
+
+    void connectionQueued() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * @param nanos the time the connection waited in the queue
+     */
+    void connectionDequeued(long nanos) {
+        queued.decrementAndGet();
+        queueWaits.record(nanos);
+    }
+
+    void connectionStarted() {
+        active.incrementAndGet();
+    }
+
+    void connectionEnded() {
+        active.decrementAndGet();
+    }
+
+    void handshakeStarted() {
+        handshaking.incrementAndGet();
+    }
+
+    /**
+     * @param nanos the time the handshake took
+     */
+    void handshakeEnded(long nanos) {
+        handshaking.decrementAndGet();
+        handshakes.record(nanos);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public String toString() {
+        return "accepted=" + getAccepted() + " (" + getAcceptRate() + "/s), rejected=" + getRejected() + ", queued=" + getQueuedConnections()
+                + ", handshaking=" + getActiveHandshakes() + ", active=" + getActiveConnections() + ", queue wait p99=" + getQueueWaitPercentile(99)
+                + "us, handshake p99=" + getHandshakePercentile(99) + "us";
+    }
+
+    /**
+     * Records times into buckets of powers of two. This is coarse, but enough
+     * to see where the time goes, and it takes no locks.
+     */
+    private static class Latency {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - ((nanos == 0) ? 0 : 1));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long current;
+            while ((current = max.get()) < nanos && !max.compareAndSet(current, nanos))
+                ;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        long getMean() {
+            long n = count.get();
+            return (n == 0) ? 0 : total.get() / n;
+        }
+
+        long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0)
+                return 0;
+            long target = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0)
+                    return Math.min((i == 63) ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < 64; i++)
+                buckets.set(i, 0);
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.echomine.net;
 
+import java.util.concurrent.ThreadFactory;
+
 import javax.swing.event.EventListenerList;
 
+import com.echomine.util.ThreadUtil;
+
 /**
  * Base class for all network connection related services. Specifies necessary
  * methods to be implemented by subclasses plus add the foundation for
@@ -9,6 +13,39 @@ import javax.swing.event.EventListenerList;
  */
 public abstract class Connection {
     protected EventListenerList listenerList = new EventListenerList();
+    private ThreadFactory threadFactory;
+
+    /**
+     * @return the factory used to create the threads of asynchronous
+     *         operations. If no factory is set, the default factory from
+     *         ThreadUtil is returned.
+     */
+    public ThreadFactory getThreadFactory() {
+        return (threadFactory != null) ? threadFactory : ThreadUtil.getDefaultThreadFactory();
+    }
+
+    /**
+     * Sets the factory used to create the threads of asynchronous operations.
+     * This allows, for instance, virtual threads to be used for all the
+     * connections.
+     * 
+     * @param threadFactory the factory, or null to use the default factory
+     * @see ThreadUtil#getVirtualThreadFactory()
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Creates a thread with the thread factory and starts it.
+     * 
+     * @param r the runnable to run
+     * @param threadName optional name of the thread
+     * @return the started thread
+     */
+    protected Thread startThread(Runnable r, String threadName) {
+        return ThreadUtil.startThread(getThreadFactory(), r, threadName);
+    }
 
     /** adds a subscriber to listen for connection events */
     public void addConnectionListener(ConnectionListener l) {
@@ -36,7 +36,7 @@ public class HandshakeablePerpetualSocketAcceptor extends PerpetualSocketAccepto
      */
     protected void establishingConnection(Socket socket, SocketHandler socketHandler, ConnectionContext connectionCtx) throws IOException, ConnectionException {
         if (socketHandler instanceof HandshakeableSocketHandler) {
-            socketHandler.handle(socket, connectionCtx);
+            ((HandshakeableSocketHandler) socketHandler).handshake(socket, connectionCtx);
             ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_OPENED);
             fireConnectionEstablished(e);
             return;
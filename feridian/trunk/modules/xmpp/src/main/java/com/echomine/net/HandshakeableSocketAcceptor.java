@@ -31,7 +31,7 @@ public class HandshakeableSocketAcceptor extends SocketAcceptor {
      */
     protected void establishingConnection(Socket socket, SocketHandler socketHandler, ConnectionContext connectionCtx) throws IOException, ConnectionException {
         if (socketHandler instanceof HandshakeableSocketHandler) {
-            socketHandler.handle(socket, connectionCtx);
+            ((HandshakeableSocketHandler) socketHandler).handshake(socket, connectionCtx);
             ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_OPENED);
             fireConnectionEstablished(e);
             return;
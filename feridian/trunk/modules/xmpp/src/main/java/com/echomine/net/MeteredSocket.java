@@ -0,0 +1,235 @@
+package com.echomine.net;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A socket adapter that counts the bytes read from and written to a regular
+ * socket. All other operations are forwarded to the wrapped socket. Since TLS
+ * sockets layered over this socket read and write through its streams, the
+ * bytes are counted as they are on the wire even after TLS is started. The
+ * streams are created once, so counting does not allocate anything.
+ * <p>
+ * A throttler can be given to shape the bytes written. Each write is delayed
+ * until the throttler allows it, and the delay is reported to the meter.
+ * </p>
+ */
+public class MeteredSocket extends Socket {
+    private final Socket socket;
+    private final TrafficMeter meter;
+    private final TokenBucketThrottler throttler;
+    private InputStream in;
+    private OutputStream out;
+
+    /**
+     * @param socket the connected socket to count the traffic of
+     * @param meter the meter that counts the bytes
+     */
+    public MeteredSocket(Socket socket, TrafficMeter meter) {
+        this(socket, meter, null);
+    }
+
+    /**
+     * @param socket the connected socket to count the traffic of
+     * @param meter the meter that counts the bytes
+     * @param throttler the throttler that shapes the bytes written, or null
+     */
+    public MeteredSocket(Socket socket, TrafficMeter meter, TokenBucketThrottler throttler) {
+        super();
+        this.socket = socket;
+        this.meter = meter;
+        this.throttler = throttler;
+    }
+
+    /**
+     * @return the socket that is wrapped
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        if (in == null)
+            in = new MeteredInputStream(socket.getInputStream());
+        return in;
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (out == null)
+            out = new MeteredOutputStream(socket.getOutputStream());
+        return out;
+    }
+
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    public SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    public void setSoTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    public int getSoTimeout() throws SocketException {
+        return socket.getSoTimeout();
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        socket.setKeepAlive(on);
+    }
+
+    public boolean getKeepAlive() throws SocketException {
+        return socket.getKeepAlive();
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        socket.setTcpNoDelay(on);
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return socket.getTcpNoDelay();
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        socket.setSoLinger(on, linger);
+    }
+
+    public int getSoLinger() throws SocketException {
+        return socket.getSoLinger();
+    }
+
+    public void setReceiveBufferSize(int size) throws SocketException {
+        socket.setReceiveBufferSize(size);
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return socket.getReceiveBufferSize();
+    }
+
+    public void setSendBufferSize(int size) throws SocketException {
+        socket.setSendBufferSize(size);
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return socket.getSendBufferSize();
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    public boolean isBound() {
+        return socket.isBound();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public boolean isInputShutdown() {
+        return socket.isInputShutdown();
+    }
+
+    public boolean isOutputShutdown() {
+        return socket.isOutputShutdown();
+    }
+
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    public synchronized void close() throws IOException {
+        socket.close();
+        super.close();
+    }
+
+    public String toString() {
+        return "MeteredSocket[" + socket + "]";
+    }
+
+    /**
+     * counts the bytes read
+     */
+    private class MeteredInputStream extends FilterInputStream {
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                meter.bytesReceived(1);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0)
+                meter.bytesReceived(read);
+            return read;
+        }
+    }
+
+    /**
+     * counts the bytes written, after waiting for the throttler
+     */
+    private class MeteredOutputStream extends FilterOutputStream {
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            throttle(1);
+            out.write(b);
+            meter.bytesSent(1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            throttle(len);
+            out.write(b, off, len);
+            meter.bytesSent(len);
+        }
+
+        private void throttle(int len) {
+            if (throttler == null)
+                return;
+            long nanos = throttler.acquireBytes(len);
+            if (nanos > 0)
+                meter.sendThrottled(nanos);
+        }
+    }
+}
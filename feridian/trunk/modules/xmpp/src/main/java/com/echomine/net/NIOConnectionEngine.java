@@ -0,0 +1,283 @@
+package com.echomine.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A selector-based connection engine. Instead of dedicating a reading thread
+ * to every connection, one selector thread watches all the registered
+ * connections and reads any incoming data as soon as it arrives. Processing
+ * of the data is then handed off to a small pool of worker threads that is
+ * shared by all the connections. Outgoing data is written directly by the
+ * thread that sends it and only falls back to the selector thread when the
+ * socket cannot accept all of the data at once.
+ * </p>
+ * <p>
+ * An engine can serve thousands of connections with a fixed number of
+ * threads. Most applications will simply use the shared default engine, which
+ * is started the first time it is used and runs on daemon threads.
+ * </p>
+ *
+ * @see NIOSession
+ * @see NIOSocketConnector
+ */
+public class NIOConnectionEngine implements Runnable {
+    private static final Log log = LogFactory.getLog(NIOConnectionEngine.class);
+    private static final String SELECTOR_THREAD_NAME = "Feridian NIO Selector";
+    private static final String WORKER_THREAD_NAME = "Feridian NIO Worker-";
+    /**
+     * default number of worker threads
+     */
+    public static final int DEFAULT_WORKER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static NIOConnectionEngine defaultEngine;
+
+    private int workerCount;
+    private Selector selector;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private ConcurrentLinkedQueue<NIOSession> pendingUpdates = new ConcurrentLinkedQueue<NIOSession>();
+
+    /**
+     * Creates an engine with the default number of worker threads. The engine
+     * must be started before it can be used.
+     */
+    public NIOConnectionEngine() {
+        this(DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * Creates an engine. The engine must be started before it can be used.
+     *
+     * @param workerCount the number of threads that process incoming data
+     */
+    public NIOConnectionEngine(int workerCount) {
+        if (workerCount < 1)
+            throw new IllegalArgumentException("Worker count must be at least 1");
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Retrieves the shared default engine, starting it if necessary.
+     *
+     * @return the default engine
+     * @throws IOException if the engine cannot be started
+     */
+    public static synchronized NIOConnectionEngine getDefaultEngine() throws IOException {
+        if (defaultEngine == null || !defaultEngine.isRunning()) {
+            defaultEngine = new NIOConnectionEngine();
+            defaultEngine.start();
+        }
+        return defaultEngine;
+    }
+
+    /**
+     * Starts the selector thread and the worker pool. Calling start on a
+     * running engine does nothing.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        selector = Selector.open();
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, WORKER_THREAD_NAME + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        running = true;
+        selectorThread = new Thread(this, SELECTOR_THREAD_NAME);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Shuts down the engine. All sessions that are still registered will be
+     * closed.
+     */
+    public synchronized void shutdown() {
+        if (!running)
+            return;
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException ex) {
+            // intentionally left empty
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * @return true if the engine is started and not shutdown
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Connects to the remote host and registers the connection with the
+     * engine. The connect itself is synchronous; once connected, all socket
+     * operations are non-blocking.
+     *
+     * @param address the remote address
+     * @param port the remote port
+     * @return the session for the new connection
+     * @throws IOException if the connection fails
+     */
+    public NIOSession connect(InetAddress address, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(address, port));
+            return register(channel);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Registers an already connected channel (ie. an accepted connection) with
+     * the engine.
+     *
+     * @param channel the connected channel
+     * @return the session for the channel
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    public NIOSession register(SocketChannel channel) throws IOException {
+        if (!running)
+            throw new IOException("NIO engine is not running");
+        channel.configureBlocking(false);
+        NIOSession session = new NIOSession(this, channel);
+        updateInterest(session);
+        return session;
+    }
+
+    /**
+     * Asks the selector thread to (re)compute the operations that the session
+     * is interested in. The update is applied by the selector thread.
+     */
+    void updateInterest(NIOSession session) {
+        pendingUpdates.add(session);
+        if (Thread.currentThread() != selectorThread)
+            selector.wakeup();
+    }
+
+    /**
+     * Runs a task on one of the worker threads
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * @return true if the current thread is the engine's selector thread
+     */
+    boolean isSelectorThread() {
+        return Thread.currentThread() == selectorThread;
+    }
+
+    /*
+     * The selector loop. It applies all the pending interest updates, waits
+     * for any ready connections and lets the sessions do their reading and
+     * writing.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            while (running) {
+                applyPendingUpdates();
+                selector.select();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    NIOSession session = (NIOSession) key.attachment();
+                    try {
+                        if (key.isWritable())
+                            session.handleWrite();
+                        if (key.isValid() && key.isReadable())
+                            session.handleRead();
+                    } catch (CancelledKeyException ex) {
+                        // session got closed in the meantime
+                    } catch (IOException ex) {
+                        if (log.isDebugEnabled())
+                            log.debug("IO error on NIO session.  Closing the session.", ex);
+                        session.close(ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Selector failed.  NIO engine is shutting down.", ex);
+        } finally {
+            running = false;
+            closeAll();
+        }
+    }
+
+    /**
+     * registers new sessions and updates the interest operations of the
+     * existing ones.
+     */
+    private void applyPendingUpdates() {
+        NIOSession session;
+        while ((session = pendingUpdates.poll()) != null) {
+            SelectionKey key = session.getSelectionKey();
+            try {
+                if (key == null) {
+                    if (session.isClosed())
+                        continue;
+                    key = session.getChannel().register(selector, session.getInterestOps(), session);
+                    session.setSelectionKey(key);
+                } else if (key.isValid()) {
+                    key.interestOps(session.getInterestOps());
+                }
+            } catch (ClosedChannelException ex) {
+                session.close(ex);
+            } catch (CancelledKeyException ex) {
+                // session got closed in the meantime
+            }
+        }
+    }
+
+    /**
+     * closes all sessions and the selector when the engine shuts down
+     */
+    private void closeAll() {
+        SelectionKey[] keys = selector.keys().toArray(new SelectionKey[0]);
+        for (int i = 0; i < keys.length; i++) {
+            NIOSession session = (NIOSession) keys[i].attachment();
+            if (session != null)
+                session.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            // intentionally left empty
+        }
+    }
+}
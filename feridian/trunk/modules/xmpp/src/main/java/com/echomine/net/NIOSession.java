@@ -0,0 +1,732 @@
+package com.echomine.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A single connection managed by a NIO connection engine. The session buffers
+ * all incoming data until it is read through the session's input stream, and
+ * writes all outgoing data given to the session's output stream without
+ * blocking on the network.
+ * </p>
+ * <p>
+ * The input stream will block the reading thread when no data is buffered.
+ * This keeps the session usable by code written for regular sockets (ie.
+ * handshaking). To avoid blocking worker threads, a session can be given a
+ * framer that finds complete protocol units in the incoming data. The session
+ * listener is then only notified when at least one more complete unit is
+ * available for reading.
+ * </p>
+ * <p>
+ * TLS is supported through an SSL engine. Once TLS is started, all data
+ * passing through the input and output streams is transparently decrypted and
+ * encrypted.
+ * </p>
+ */
+public class NIOSession {
+    private static final Log log = LogFactory.getLog(NIOSession.class);
+    private static final int READ_BUFFER_SIZE = 8192;
+    /**
+     * reading from the network is suspended when this much data is buffered
+     * and not yet consumed
+     */
+    private static final int MAX_BUFFERED_INPUT = 1024 * 1024;
+    /**
+     * writers are blocked when this much data is waiting to be written
+     */
+    private static final int MAX_BUFFERED_OUTPUT = 1024 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private NIOConnectionEngine engine;
+    private SocketChannel channel;
+    private volatile SelectionKey key;
+    private NIOSessionListener listener;
+    private NIOStreamFramer framer;
+    private volatile long framedUnits;
+    private volatile boolean closed;
+    private volatile TrafficMeter meter;
+    private Exception closeCause;
+    private boolean closeNotified;
+
+    // incoming data; guarded by inputLock
+    private final Object inputLock = new Object();
+    private byte[] input = new byte[READ_BUFFER_SIZE];
+    private int inputStart;
+    private int inputEnd;
+    private boolean inputClosed;
+    // written with inputLock held, but also read by handleRead() without it
+    private volatile boolean readSuspended;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // outgoing data and TLS state; guarded by writeLock
+    private final Object writeLock = new Object();
+    private LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    private int outputSize;
+    private boolean writeInterest;
+    private SSLEngine sslEngine;
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private boolean handshaking;
+
+    private AtomicBoolean dispatching = new AtomicBoolean();
+    private volatile boolean dispatchPending;
+    private Runnable dispatcher = new Runnable() {
+        public void run() {
+            dispatch();
+        }
+    };
+    private SessionInputStream in = new SessionInputStream();
+    private SessionOutputStream out = new SessionOutputStream();
+
+    NIOSession(NIOConnectionEngine engine, SocketChannel channel) {
+        this.engine = engine;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the underlying channel
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the engine that manages this session
+     */
+    public NIOConnectionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the stream to read incoming data from
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * @return the stream to write outgoing data to
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Sets the meter that counts the bytes read from and written to the
+     * channel. The bytes are counted as they are on the wire, before they are
+     * decrypted and after they are encrypted.
+     *
+     * @param meter the meter, or null to stop counting
+     */
+    public void setTrafficMeter(TrafficMeter meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Sets the listener to notify about incoming data and the closing of the
+     * session. If data is already available, the listener is notified
+     * immediately.
+     *
+     * @param listener the session listener
+     */
+    public void setListener(NIOSessionListener listener) {
+        this.listener = listener;
+        scheduleDispatch();
+    }
+
+    /**
+     * Asks for the listener to be notified again, even if no new data has
+     * arrived. This is useful when the listener stopped processing data for a
+     * while (ie. it was paused) and wants to catch up with the data that came
+     * in the meantime.
+     */
+    public void notifyListener() {
+        scheduleDispatch();
+    }
+
+    /**
+     * Sets the framer used to find complete units in the incoming data. All
+     * data that is already buffered and not yet read is scanned by the new
+     * framer.
+     *
+     * @param framer the framer, or null to notify the listener of every
+     *            incoming data
+     */
+    public void setFramer(NIOStreamFramer framer) {
+        synchronized (inputLock) {
+            this.framer = framer;
+            framedUnits = 0;
+            if (framer != null && inputEnd > inputStart)
+                framedUnits += framer.scan(input, inputStart, inputEnd - inputStart);
+        }
+    }
+
+    /**
+     * @return the framer used by this session, or null if none
+     */
+    public NIOStreamFramer getFramer() {
+        return framer;
+    }
+
+    /**
+     * Retrieves the number of complete units found by the framer since the
+     * framer was set.
+     *
+     * @return the number of framed units
+     */
+    public long getFramedUnits() {
+        return framedUnits;
+    }
+
+    /**
+     * @return the number of bytes received and not yet read
+     */
+    public int getBufferedInput() {
+        synchronized (inputLock) {
+            return inputEnd - inputStart;
+        }
+    }
+
+    /**
+     * @return true if the session is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return true if TLS is started on this session
+     */
+    public boolean isSecure() {
+        synchronized (writeLock) {
+            return sslEngine != null;
+        }
+    }
+
+    /**
+     * <p>
+     * Starts TLS in client mode on the session. The method blocks until the
+     * TLS handshake is complete. Any data written afterwards is encrypted, and
+     * any data received afterwards is decrypted before it is buffered.
+     * </p>
+     * <p>
+     * This must only be called when the remote entity is expected to begin
+     * TLS negotiation (ie. after it agreed to start TLS) and no unread data is
+     * still buffered.
+     * </p>
+     *
+     * @param context the SSL context to create the engine from
+     * @param host the name of the remote host
+     * @param port the remote port
+     * @throws IOException if the TLS handshake failed
+     */
+    public void startTLS(SSLContext context, String host, int port) throws IOException {
+        SSLEngine ssl = context.createSSLEngine(host, port);
+        ssl.setUseClientMode(true);
+        synchronized (writeLock) {
+            if (sslEngine != null)
+                throw new IOException("TLS is already started");
+            sslEngine = ssl;
+            netIn = ByteBuffer.allocate(ssl.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(ssl.getSession().getApplicationBufferSize());
+            handshaking = true;
+            ssl.beginHandshake();
+            processTLS();
+            while (handshaking && !closed) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted during TLS handshake");
+                }
+            }
+            if (handshaking) {
+                IOException ex = new IOException("Connection closed during TLS handshake");
+                if (closeCause != null)
+                    ex.initCause(closeCause);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Closes the session normally
+     */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Closes the session. The listener is notified once all the remaining
+     * buffered data has been delivered.
+     *
+     * @param cause the cause of the close, or null if closed normally
+     */
+    public void close(Exception cause) {
+        synchronized (writeLock) {
+            if (closed)
+                return;
+            closed = true;
+            closeCause = cause;
+            if (sslEngine != null && cause == null) {
+                // try to send close_notify, but do not wait on it
+                try {
+                    sslEngine.closeOutbound();
+                    wrap(EMPTY_BUFFER);
+                    writeOutput();
+                } catch (IOException ex) {
+                    // intentionally left empty
+                }
+            }
+            writeLock.notifyAll();
+        }
+        SelectionKey k = key;
+        if (k != null)
+            k.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // intentionally left empty
+        }
+        synchronized (inputLock) {
+            inputClosed = true;
+            inputLock.notifyAll();
+        }
+        if (log.isDebugEnabled())
+            log.debug("NIO session closed", cause);
+        scheduleDispatch();
+    }
+
+    SelectionKey getSelectionKey() {
+        return key;
+    }
+
+    void setSelectionKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the operations the session is currently interested in
+     */
+    int getInterestOps() {
+        int ops = 0;
+        synchronized (inputLock) {
+            if (!readSuspended && !inputClosed)
+                ops |= SelectionKey.OP_READ;
+        }
+        synchronized (writeLock) {
+            if (writeInterest)
+                ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * Reads all available data from the channel. Called by the selector
+     * thread.
+     */
+    void handleRead() throws IOException {
+        int read;
+        while ((read = channel.read(readBuffer)) > 0) {
+            TrafficMeter m = meter;
+            if (m != null)
+                m.bytesReceived(read);
+            readBuffer.flip();
+            synchronized (writeLock) {
+                if (sslEngine != null) {
+                    ensureNetInCapacity(readBuffer.remaining());
+                    netIn.put(readBuffer);
+                    processTLS();
+                    readBuffer.clear();
+                    continue;
+                }
+            }
+            appendInput(readBuffer);
+            readBuffer.clear();
+            if (readSuspended)
+                return;
+        }
+        if (read < 0)
+            close();
+    }
+
+    /**
+     * Writes out pending data once the channel is writable again. Called by
+     * the selector thread.
+     */
+    void handleWrite() throws IOException {
+        synchronized (writeLock) {
+            writeOutput();
+        }
+    }
+
+    /**
+     * writes the data through the session. The data is encrypted if TLS is
+     * started. As much data as possible is written immediately; the rest is
+     * written by the selector thread when the channel is writable.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            while (outputSize > MAX_BUFFERED_OUTPUT && !closed && !engine.isSelectorThread()) {
+                try {
+                    writeLock.wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted while waiting to write");
+                }
+            }
+            if (closed)
+                throw new IOException("Session is closed");
+            if (sslEngine != null) {
+                wrap(ByteBuffer.wrap(b, off, len));
+                processTLS();
+            } else if (output.isEmpty()) {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                sent(channel.write(buf));
+                if (buf.hasRemaining())
+                    queueOutput(copyOf(buf));
+            } else {
+                queueOutput(copyOf(ByteBuffer.wrap(b, off, len)));
+            }
+            writeOutput();
+        }
+    }
+
+    /**
+     * reads buffered incoming data, blocking until data is available
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        synchronized (inputLock) {
+            while (inputEnd == inputStart && !inputClosed) {
+                try {
+                    inputLock.wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted while waiting for data");
+                }
+            }
+            int available = inputEnd - inputStart;
+            if (available == 0)
+                return -1;
+            int count = Math.min(available, len);
+            System.arraycopy(input, inputStart, b, off, count);
+            inputStart += count;
+            if (inputStart == inputEnd)
+                inputStart = inputEnd = 0;
+            if (readSuspended && inputEnd - inputStart < MAX_BUFFERED_INPUT / 2) {
+                readSuspended = false;
+                engine.updateInterest(this);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Appends incoming (plain) data to the input buffer and notifies any
+     * waiting readers and the listener.
+     */
+    private void appendInput(ByteBuffer src) {
+        int units = 0;
+        int len = src.remaining();
+        if (len == 0)
+            return;
+        synchronized (inputLock) {
+            if (input.length - inputEnd < len) {
+                int size = inputEnd - inputStart;
+                byte[] buf = input;
+                if (input.length < size + len)
+                    buf = new byte[Math.max(input.length * 2, size + len)];
+                System.arraycopy(input, inputStart, buf, 0, size);
+                input = buf;
+                inputStart = 0;
+                inputEnd = size;
+            }
+            src.get(input, inputEnd, len);
+            if (framer != null) {
+                units = framer.scan(input, inputEnd, len);
+                framedUnits += units;
+            }
+            inputEnd += len;
+            if (inputEnd - inputStart > MAX_BUFFERED_INPUT && !readSuspended) {
+                readSuspended = true;
+                engine.updateInterest(this);
+            }
+            inputLock.notifyAll();
+        }
+        if (framer == null || units > 0)
+            scheduleDispatch();
+    }
+
+    /**
+     * drives the SSL engine as far as possible with the data currently
+     * available. Must be called with the write lock held.
+     */
+    private void processTLS() throws IOException {
+        boolean progress = true;
+        while (progress && !closed) {
+            switch (sslEngine.getHandshakeStatus()) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = sslEngine.getDelegatedTask()) != null)
+                    task.run();
+                break;
+            case NEED_WRAP:
+                progress = wrap(EMPTY_BUFFER);
+                break;
+            default:
+                progress = unwrap();
+                break;
+            }
+        }
+        if (handshaking) {
+            SSLEngineResult.HandshakeStatus status = sslEngine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.FINISHED || status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                handshaking = false;
+                writeLock.notifyAll();
+            }
+        }
+        writeOutput();
+    }
+
+    /**
+     * Encrypts the data and queues it for writing. Must be called with the
+     * write lock held.
+     *
+     * @return true if any progress is made
+     */
+    private boolean wrap(ByteBuffer src) throws SSLException {
+        boolean progress = false;
+        do {
+            ByteBuffer dst = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+            SSLEngineResult result = sslEngine.wrap(src, dst);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0)
+                break;
+            dst.flip();
+            if (dst.hasRemaining())
+                queueOutput(dst);
+            checkFinished(result);
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                break;
+            progress = true;
+        } while (src.hasRemaining());
+        return progress;
+    }
+
+    /**
+     * Decrypts the received network data. Must be called with the write lock
+     * held.
+     *
+     * @return true if any progress is made
+     */
+    private boolean unwrap() throws IOException {
+        if (netIn.position() == 0)
+            return false;
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = sslEngine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        checkFinished(result);
+        switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+            ByteBuffer buf = ByteBuffer.allocate(appIn.capacity() + sslEngine.getSession().getApplicationBufferSize());
+            appIn.flip();
+            buf.put(appIn);
+            appIn = buf;
+            return true;
+        case BUFFER_UNDERFLOW:
+            if (netIn.capacity() < sslEngine.getSession().getPacketBufferSize())
+                ensureNetInCapacity(sslEngine.getSession().getPacketBufferSize());
+            return false;
+        case CLOSED:
+            flushAppInput();
+            synchronized (inputLock) {
+                inputClosed = true;
+                inputLock.notifyAll();
+            }
+            return false;
+        default:
+            flushAppInput();
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * moves decrypted data into the input buffer
+     */
+    private void flushAppInput() {
+        if (appIn.position() == 0)
+            return;
+        appIn.flip();
+        appendInput(appIn);
+        appIn.clear();
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (handshaking && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaking = false;
+            writeLock.notifyAll();
+        }
+    }
+
+    /**
+     * grows the network input buffer if it cannot hold the given number of
+     * additional bytes
+     */
+    private void ensureNetInCapacity(int len) {
+        if (netIn.remaining() >= len)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(netIn.position() + len);
+        netIn.flip();
+        buf.put(netIn);
+        netIn = buf;
+    }
+
+    private void queueOutput(ByteBuffer buf) {
+        output.add(buf);
+        outputSize += buf.remaining();
+    }
+
+    /**
+     * counts the bytes written to the channel
+     */
+    private void sent(int count) {
+        TrafficMeter m = meter;
+        if (m != null && count > 0)
+            m.bytesSent(count);
+    }
+
+    /**
+     * writes as much queued output as the channel accepts and updates the
+     * write interest. Must be called with the write lock held.
+     */
+    private void writeOutput() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buf = output.getFirst();
+            int written = channel.write(buf);
+            sent(written);
+            outputSize -= written;
+            if (buf.hasRemaining())
+                break;
+            output.removeFirst();
+        }
+        boolean interest = !output.isEmpty();
+        if (interest != writeInterest) {
+            writeInterest = interest;
+            engine.updateInterest(this);
+        }
+        if (outputSize <= MAX_BUFFERED_OUTPUT)
+            writeLock.notifyAll();
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        ByteBuffer dst = ByteBuffer.allocate(src.remaining());
+        dst.put(src);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * schedules the listener notification on a worker thread unless it is
+     * already scheduled or running.
+     */
+    private void scheduleDispatch() {
+        if (listener == null)
+            return;
+        dispatchPending = true;
+        if (dispatching.compareAndSet(false, true))
+            engine.execute(dispatcher);
+    }
+
+    /**
+     * notifies the listener. Only one thread will ever run this at a time.
+     */
+    private void dispatch() {
+        try {
+            while (dispatchPending) {
+                dispatchPending = false;
+                try {
+                    listener.dataReceived(this);
+                    if (closed && !closeNotified) {
+                        closeNotified = true;
+                        listener.sessionClosed(this, closeCause);
+                    }
+                } catch (RuntimeException ex) {
+                    if (log.isWarnEnabled())
+                        log.warn("Session listener threw an exception", ex);
+                }
+            }
+        } finally {
+            dispatching.set(false);
+        }
+        // pick up any notification that was requested while finishing up
+        if (dispatchPending && dispatching.compareAndSet(false, true))
+            engine.execute(dispatcher);
+    }
+
+    /**
+     * Input stream reading the buffered data of the session
+     */
+    class SessionInputStream extends InputStream {
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = NIOSession.this.read(b, 0, 1);
+            return count < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            return NIOSession.this.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            return getBufferedInput();
+        }
+
+        /**
+         * Closing the stream closes the session, just like a regular socket
+         * stream does.
+         */
+        public void close() throws IOException {
+            NIOSession.this.close();
+        }
+    }
+
+    /**
+     * Output stream writing through the session
+     */
+    class SessionOutputStream extends OutputStream {
+        public void write(int b) throws IOException {
+            NIOSession.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            NIOSession.this.write(b, off, len);
+        }
+
+        /**
+         * Closing the stream closes the session, just like a regular socket
+         * stream does.
+         */
+        public void close() throws IOException {
+            NIOSession.this.close();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.echomine.net;
+
+/**
+ * Receives notifications from a NIO session. Notifications for one session
+ * are always serialized (ie. no two notifications for the same session will
+ * ever run at the same time), but they can run on any of the engine's worker
+ * threads.
+ */
+public interface NIOSessionListener {
+    /**
+     * Called when new data is available for reading. If the session has a
+     * framer, this is only called when at least one more complete unit is
+     * received.
+     *
+     * @param session the session with new data
+     */
+    void dataReceived(NIOSession session);
+
+    /**
+     * Called exactly once after the session is closed and all data received
+     * before the close has been delivered.
+     *
+     * @param session the closed session
+     * @param cause the error that caused the close, or null if the session was
+     *            closed normally
+     */
+    void sessionClosed(NIOSession session, Exception cause);
+}
@@ -0,0 +1,105 @@
+package com.echomine.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A socket adapter around a NIO session. This allows code written against
+ * regular sockets (ie. handshaking and stream negotiation) to work unchanged
+ * over a session that is managed by a NIO connection engine. All stream
+ * operations are forwarded to the session.
+ */
+public class NIOSocket extends Socket {
+    private NIOSession session;
+
+    public NIOSocket(NIOSession session) {
+        super();
+        this.session = session;
+    }
+
+    /**
+     * @return the session this socket wraps
+     */
+    public NIOSession getSession() {
+        return session;
+    }
+
+    /**
+     * Starts TLS over the session. This is the NIO equivalent of layering an
+     * SSLSocket over an existing socket. The socket object itself does not
+     * change.
+     *
+     * @param context the SSL context to use
+     * @throws IOException if the TLS handshake failed
+     */
+    public void startTLS(SSLContext context) throws IOException {
+        session.startTLS(context, getInetAddress().getHostAddress(), getPort());
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (session.isClosed())
+            throw new SocketException("Socket is closed");
+        return session.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        if (session.isClosed())
+            throw new SocketException("Socket is closed");
+        return session.getOutputStream();
+    }
+
+    public InetAddress getInetAddress() {
+        return session.getChannel().socket().getInetAddress();
+    }
+
+    public int getPort() {
+        return session.getChannel().socket().getPort();
+    }
+
+    public InetAddress getLocalAddress() {
+        return session.getChannel().socket().getLocalAddress();
+    }
+
+    public int getLocalPort() {
+        return session.getChannel().socket().getLocalPort();
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        session.getChannel().socket().setKeepAlive(on);
+    }
+
+    public boolean getKeepAlive() throws SocketException {
+        return session.getChannel().socket().getKeepAlive();
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        session.getChannel().socket().setTcpNoDelay(on);
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return session.getChannel().socket().getTcpNoDelay();
+    }
+
+    public boolean isConnected() {
+        return session.getChannel().isConnected();
+    }
+
+    public boolean isClosed() {
+        return session.isClosed();
+    }
+
+    public synchronized void close() throws IOException {
+        session.close();
+        super.close();
+    }
+
+    public String toString() {
+        return "NIOSocket[" + session.getChannel().socket() + "]";
+    }
+}
@@ -0,0 +1,126 @@
+package com.echomine.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.echomine.util.IOUtil;
+
+/**
+ * <p>
+ * A connector that creates its connections through a NIO connection engine.
+ * The connections are regular sockets to the handshaking code, so any
+ * handshakeable socket handler will still work with it. However, when the
+ * handler is also a NIOSocketHandler, connectWithSynchStart will not spawn a
+ * thread to handle the connection. The connection is handled by the engine's
+ * shared worker threads instead.
+ * </p>
+ * <p>
+ * The synchronous connect and asynchronous aconnect methods work just like
+ * they do in the parent class.
+ * </p>
+ *
+ * @see NIOConnectionEngine
+ * @see NIOSocketHandler
+ */
+public class NIOSocketConnector extends HandshakeableSocketConnector {
+    private NIOConnectionEngine engine;
+
+    /**
+     * Creates a connector that uses the default shared engine
+     *
+     * @throws IOException if the default engine cannot be started
+     */
+    public NIOSocketConnector() throws IOException {
+        this(NIOConnectionEngine.getDefaultEngine());
+    }
+
+    /**
+     * Creates a connector that connects through the given engine. Usually used
+     * for multi-threading reuse of this instance since the Handler can be
+     * passed in as a parameter for connect().
+     *
+     * @param engine the engine to create connections with
+     */
+    public NIOSocketConnector(NIOConnectionEngine engine) {
+        super();
+        this.engine = engine;
+    }
+
+    public NIOSocketConnector(NIOConnectionEngine engine, HandshakeableSocketHandler socketHandler) {
+        super(socketHandler);
+        this.engine = engine;
+    }
+
+    /**
+     * @return the engine used to create connections
+     */
+    public NIOConnectionEngine getEngine() {
+        return engine;
+    }
+
+    /*
+     * If the handler supports non-blocking handling, the handler is simply
+     * told to begin handling the connection and the method returns. The
+     * connection closed event is fired when the handler finishes. Otherwise,
+     * the connection is handled in a separate thread just like the parent
+     * does.
+     *
+     * @see com.echomine.net.SocketConnector#connectWithSynchStart(com.echomine.net.HandshakeableSocketHandler,
+     *      com.echomine.net.ConnectionContext, java.lang.String)
+     */
+    public void connectWithSynchStart(HandshakeableSocketHandler socketHandler, final ConnectionContext connectionCtx, String threadName) throws ConnectionException, ConnectionVetoException, IOException {
+        if (!(socketHandler instanceof NIOSocketHandler)) {
+            super.connectWithSynchStart(socketHandler, connectionCtx, threadName);
+            return;
+        }
+        startingConnection(socketHandler, connectionCtx);
+        Socket socket = null;
+        boolean fail = true;
+        try {
+            socket = establishingConnection(socketHandler, connectionCtx);
+            final Socket nioSocket = socket;
+            ((NIOSocketHandler) socketHandler).beginHandling((NIOSocket) socket, connectionCtx, new Runnable() {
+                public void run() {
+                    IOUtil.closeSocket(nioSocket);
+                    fireConnectionClosed(new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_CLOSED));
+                }
+            });
+            fail = false;
+        } catch (ConnectionException ex) {
+            ConnectionEvent event = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error..." + ex.getMessage());
+            fireConnectionClosed(event);
+            throw ex;
+        } finally {
+            if (fail)
+                IOUtil.closeSocket(socket);
+        }
+    }
+
+    /*
+     * Creates the connection through the engine.
+     *
+     * @see com.echomine.net.SocketConnector#createSocket(java.net.InetAddress,
+     *      int)
+     */
+    protected Socket createSocket(InetAddress address, int port) throws IOException {
+        return new NIOSocket(engine.connect(address, port));
+    }
+
+    /*
+     * Creates the connection through the engine and negotiates SSL over it
+     * before returning.
+     *
+     * @see com.echomine.net.SocketConnector#createSSLSocket(com.echomine.net.ConnectionContext)
+     */
+    protected Socket createSSLSocket(ConnectionContext connectionCtx) throws IOException {
+        NIOSocket socket = (NIOSocket) createSocket(connectionCtx.getHost(), connectionCtx.getPort());
+        try {
+            socket.startTLS(createSSLContext());
+        } catch (IOException ex) {
+            IOUtil.closeSocket(socket);
+            throw ex;
+        }
+        return socket;
+    }
+}
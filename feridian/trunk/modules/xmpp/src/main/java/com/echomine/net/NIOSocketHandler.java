@@ -0,0 +1,24 @@
+package com.echomine.net;
+
+import java.io.IOException;
+
+/**
+ * A handler that is able to process a connection without dedicating a thread
+ * to it. Instead of blocking inside handle(), the handler registers itself
+ * with the socket's NIO session and returns immediately. The session's worker
+ * threads will then drive all the processing.
+ */
+public interface NIOSocketHandler extends HandshakeableSocketHandler {
+    /**
+     * Begins processing of the connection and returns immediately. Once the
+     * connection is closed and all processing is finished, the handler must
+     * run the given completion task exactly once. The handler should not close
+     * the socket itself; the completion task will do that.
+     *
+     * @param socket the socket
+     * @param connCtx the connection context
+     * @param completion the task to run once the connection is finished
+     * @throws IOException if processing cannot be started
+     */
+    void beginHandling(NIOSocket socket, ConnectionContext connCtx, Runnable completion) throws IOException;
+}
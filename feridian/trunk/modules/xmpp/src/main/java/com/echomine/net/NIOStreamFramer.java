@@ -0,0 +1,31 @@
+package com.echomine.net;
+
+/**
+ * A framer is used by a NIO session to find protocol unit boundaries (ie. a
+ * complete XML stanza) inside the raw incoming bytes. The session feeds every
+ * chunk of data it receives into the framer as it arrives. Handlers can then
+ * find out whether a full unit is available before they start parsing, and
+ * thus never block a shared worker thread waiting for the remaining data.
+ * <p>
+ * A framer is only ever called by one thread at a time and is not required to
+ * be thread-safe.
+ * </p>
+ */
+public interface NIOStreamFramer {
+    /**
+     * Scans the newly received data. The data is given exactly once, in the
+     * order it was received, and must not be modified.
+     *
+     * @param data the buffer holding the data
+     * @param offset the offset of the new data
+     * @param length the number of new bytes
+     * @return the number of protocol units that were completed by the data
+     */
+    int scan(byte[] data, int offset, int length);
+
+    /**
+     * Resets the framer to its initial state, discarding any partially
+     * scanned data.
+     */
+    void reset();
+}
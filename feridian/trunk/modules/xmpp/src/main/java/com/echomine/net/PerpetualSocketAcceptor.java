@@ -2,6 +2,11 @@ package com.echomine.net;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.echomine.util.IOUtil;
 
@@ -23,6 +28,18 @@ import com.echomine.util.IOUtil;
  * Perpetual Acceptor also support firiing off of connection events.
  * </p>
  * <p>
+ * Synchronous accept holds up every connection behind the one being handled,
+ * and asynchronous accept spawns a thread per connection without any limit.
+ * The pooled accept (paccept) sits in between: connections are handled by a
+ * bounded pool of workers, the connections waiting for a worker are queued up
+ * to a limit, and the overload policy decides whether the acceptor stops
+ * accepting (leaving the connections in the accept backlog of the server
+ * socket) or closes the connections it cannot take. The number of concurrent
+ * handshakes can be limited separately for all the accept methods, and an
+ * admission throttler can slow down the rate connections are taken in. The
+ * metrics of the acceptor show where it is saturated.
+ * </p>
+ * <p>
  * NOTE: Using this class requires that the handler is multi-threading safe if
  * asynchronous accept is used (doesn't apply to synchronous accept). This means
  * for async accepts, the handler cannot contain any per-connection data.
@@ -30,7 +47,29 @@ import com.echomine.util.IOUtil;
  * </p>
  */
 public class PerpetualSocketAcceptor extends SocketAcceptor {
-    private boolean shutdown;
+    /**
+     * What the pooled accept does with a connection when all the workers are
+     * busy and the queue is full
+     */
+    public enum OverloadPolicy {
+        /**
+         * stop accepting until a worker is free. The connections wait in the
+         * accept backlog of the server socket, and are refused by the system
+         * once the backlog is full.
+         */
+        BLOCK,
+        /** accept the connection and close it right away */
+        REJECT
+    }
+
+    private volatile boolean shutdown;
+    private final AcceptorMetrics metrics = new AcceptorMetrics();
+    private int maxWorkers;
+    private int queueSize;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    private volatile Semaphore handshakeLimit;
+    private volatile ConnectionThrottler admissionThrottler;
+    private volatile ThreadPoolExecutor workers;
 
     public PerpetualSocketAcceptor() {
         super();
@@ -44,6 +83,99 @@ public class PerpetualSocketAcceptor extends SocketAcceptor {
         super(context, backlog);
     }
 
+    /**
+     * @return the metrics of the connections accepted
+     */
+    public AcceptorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of workers of the pooled accept
+     */
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Sets the number of workers that handle the connections of the pooled
+     * accept, which is the number of connections handled at the same time.
+     * It takes effect on the next call to paccept.
+     * 
+     * @param maxWorkers the number of workers, must be > 0
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        if (maxWorkers <= 0)
+            throw new IllegalArgumentException("Number of workers must be positive");
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * @return the number of connections that can wait for a worker
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the number of accepted connections that can wait for a worker of
+     * the pooled accept. It takes effect on the next call to paccept.
+     * 
+     * @param queueSize the size of the queue, 0 for no queue
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(0, queueSize);
+    }
+
+    /**
+     * @return what the pooled accept does when it is full
+     */
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    /**
+     * @param overloadPolicy what the pooled accept does when all the workers
+     *            are busy and the queue is full
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        if (overloadPolicy == null)
+            throw new IllegalArgumentException("Overload policy cannot be null");
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * Limits the number of connections that are in their handshake at the
+     * same time. Handshakes (ie. TLS) are the expensive part of taking in a
+     * connection, so limiting them keeps a burst of connections from starving
+     * the connections that are already established. The connections over the
+     * limit wait for their turn.
+     * 
+     * @param maxHandshakes the number of concurrent handshakes, 0 for no limit
+     */
+    public void setMaxHandshakes(int maxHandshakes) {
+        handshakeLimit = (maxHandshakes > 0) ? new Semaphore(maxHandshakes) : null;
+    }
+
+    /**
+     * Sets the throttler that is called on the accept thread for each
+     * connection accepted, before the connection is handed out. The throttler
+     * can delay the accept thread to limit the rate connections are taken in.
+     * 
+     * @param admissionThrottler the throttler, or null for none
+     */
+    public void setAdmissionThrottler(ConnectionThrottler admissionThrottler) {
+        this.admissionThrottler = admissionThrottler;
+    }
+
+    /**
+     * @return the throttler called for each connection accepted, or null
+     */
+    public ConnectionThrottler getAdmissionThrottler() {
+        return admissionThrottler;
+    }
+
     /**
      * <p>
      * Accepts a connection and hands it over to the handler for processing one
@@ -63,38 +195,21 @@ public class PerpetualSocketAcceptor extends SocketAcceptor {
      */
     public void accept(final SocketHandler socketHandler, String threadName) {
         shutdown = false;
-        Thread thread = new Thread(new Runnable() {
+        startThread(new Runnable() {
             public void run() {
                 try {
                     Socket s = null;
                     while (!shutdown) {
                         s = socket.accept();
+                        metrics.connectionAccepted();
                         ConnectionContext connectionCtx = new ConnectionContext(s.getInetAddress(), s.getPort());
-                        try {
-                            startingConnection(socketHandler, connectionCtx);
-                            establishingConnection(s, socketHandler, connectionCtx);
-                            handleConnection(s, socketHandler, connectionCtx);
-                        } catch (IOException ex) {
-                            // handle threw exception, fire closed event
-                            ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error while handling connection: " + ex.getMessage());
-                            fireConnectionClosed(e);
-                        } catch (ConnectionException ex) {
-                            ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error during handling: " + ex.getMessage());
-                            fireConnectionClosed(e);
-                        } catch (ConnectionVetoException ex) {
-                            // do nothing because connection closed is already
-                            // called
-                        } finally {
-                            IOUtil.closeSocket(s);
-                        }
+                        admit(connectionCtx);
+                        process(socketHandler, s, connectionCtx);
                     }
                 } catch (IOException ex) {
                 }
             }
-        });
-        if (threadName != null)
-            thread.setName(threadName);
-        thread.start();
+        }, threadName);
     }
 
     /**
@@ -117,23 +232,81 @@ public class PerpetualSocketAcceptor extends SocketAcceptor {
      */
     public void aaccept(final SocketHandler socketHandler, String threadName) {
         shutdown = false;
-        Thread thread = new Thread(new Runnable() {
+        startThread(new Runnable() {
             public void run() {
                 try {
                     Socket s;
                     while (!shutdown) {
                         s = socket.accept();
+                        metrics.connectionAccepted();
                         ConnectionContext context = new ConnectionContext(s.getInetAddress(), s.getPort());
-                        AcceptorThread athread = new AcceptorThread(socketHandler, s, context);
-                        athread.start();
+                        admit(context);
+                        startThread(new AcceptorRunner(socketHandler, s, context), null);
                     }
                 } catch (Exception ex) {
                 }
             }
-        });
-        if (threadName != null)
-            thread.setName(threadName);
-        thread.start();
+        }, threadName);
+    }
+
+    /**
+     * <p>
+     * Accepts connections and hands them over to a bounded pool of workers.
+     * This differs from the asynchronous accept in that the number of
+     * connections handled at the same time is limited by the number of
+     * workers. Once all the workers are busy, accepted connections wait in the
+     * queue, and once the queue is full, the overload policy applies.
+     * </p>
+     * <p>
+     * The number of workers must be set before this method is called. The
+     * handler must be multi-threading safe, as with the asynchronous accept.
+     * The method returns immediately and runs the daemon in a background
+     * thread.
+     * </p>
+     * 
+     * @param socketHandler the socket handler to use
+     * @param threadName optional name of the accept thread
+     * @throws IllegalStateException if the number of workers is not set
+     */
+    public void paccept(final SocketHandler socketHandler, String threadName) {
+        if (maxWorkers <= 0)
+            throw new IllegalStateException("Number of workers must be set");
+        shutdown = false;
+        final Semaphore slots = new Semaphore(maxWorkers + queueSize);
+        final OverloadPolicy policy = overloadPolicy;
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                getThreadFactory());
+        workers = pool;
+        startThread(new Runnable() {
+            public void run() {
+                try {
+                    Socket s;
+                    while (!shutdown) {
+                        s = socket.accept();
+                        metrics.connectionAccepted();
+                        ConnectionContext context = new ConnectionContext(s.getInetAddress(), s.getPort());
+                        admit(context);
+                        if (!acquireSlot(slots, policy)) {
+                            metrics.connectionRejected();
+                            IOUtil.closeSocket(s);
+                            continue;
+                        }
+                        metrics.connectionQueued();
+                        try {
+                            pool.execute(new PooledRunner(socketHandler, s, context, slots));
+                        } catch (RejectedExecutionException ex) {
+                            // the acceptor is closed
+                            slots.release();
+                            metrics.connectionDequeued(0);
+                            IOUtil.closeSocket(s);
+                        }
+                    }
+                } catch (IOException ex) {
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }, threadName);
     }
 
     /**
@@ -149,35 +322,123 @@ public class PerpetualSocketAcceptor extends SocketAcceptor {
         shutdown = true;
         // unbind the server socket
         super.close();
+        // the workers finish the connections they have, including the queued
+        // ones
+        ThreadPoolExecutor pool = workers;
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * lets the admission throttler delay the accept thread
+     */
+    private void admit(ConnectionContext context) {
+        ConnectionThrottler throttler = admissionThrottler;
+        if (throttler != null)
+            throttler.throttle(context);
+    }
+
+    /**
+     * takes a worker or queue slot for an accepted connection. A blocked
+     * acceptor checks now and then whether it was closed.
+     * 
+     * @return true if the connection got a slot
+     */
+    private boolean acquireSlot(Semaphore slots, OverloadPolicy policy) {
+        if (policy == OverloadPolicy.REJECT)
+            return slots.tryAcquire();
+        try {
+            while (!shutdown) {
+                if (slots.tryAcquire(100, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Processes a single accepted connection from start to end, and closes
+     * the socket afterwards. The handshake (starting and establishing the
+     * connection) is held to the handshake limit, and timed.
+     */
+    void process(SocketHandler handler, Socket s, ConnectionContext connectionCtx) {
+        metrics.connectionStarted();
+        try {
+            Semaphore limit = handshakeLimit;
+            if (limit != null)
+                limit.acquireUninterruptibly();
+            long start = System.nanoTime();
+            metrics.handshakeStarted();
+            try {
+                startingConnection(handler, connectionCtx);
+                establishingConnection(s, handler, connectionCtx);
+            } finally {
+                metrics.handshakeEnded(System.nanoTime() - start);
+                if (limit != null)
+                    limit.release();
+            }
+            handleConnection(s, handler, connectionCtx);
+        } catch (IOException ex) {
+            // handle threw exception, fire closed event
+            ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error while handling connection: " + ex.getMessage());
+            fireConnectionClosed(e);
+        } catch (ConnectionException ex) {
+            ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error during handling: " + ex.getMessage());
+            fireConnectionClosed(e);
+        } catch (ConnectionVetoException ex) {
+            // do nothing as connection closed event is already fired
+        } finally {
+            metrics.connectionEnded();
+            IOUtil.closeSocket(s);
+        }
+    }
+
+    /**
+     * Handles a single accepted connection in a thread of its own
+     */
+    class AcceptorRunner implements Runnable {
+        Socket s;
+        ConnectionContext connectionCtx;
+        SocketHandler handler;
+
+        public AcceptorRunner(SocketHandler handler, Socket s, ConnectionContext context) {
+            this.s = s;
+            this.connectionCtx = context;
+            this.handler = handler;
+        }
+
+        public void run() {
+            process(handler, s, connectionCtx);
+        }
     }
 
-    class AcceptorThread extends Thread {
+    /**
+     * Handles a queued connection in a worker of the pool, and frees its slot
+     * once done
+     */
+    class PooledRunner implements Runnable {
         Socket s;
         ConnectionContext connectionCtx;
         SocketHandler handler;
+        Semaphore slots;
+        long queuedTime;
 
-        public AcceptorThread(SocketHandler handler, Socket s, ConnectionContext context) {
+        public PooledRunner(SocketHandler handler, Socket s, ConnectionContext context, Semaphore slots) {
             this.s = s;
             this.connectionCtx = context;
             this.handler = handler;
+            this.slots = slots;
+            this.queuedTime = System.nanoTime();
         }
 
         public void run() {
+            metrics.connectionDequeued(System.nanoTime() - queuedTime);
             try {
-                startingConnection(handler, connectionCtx);
-                establishingConnection(s, handler, connectionCtx);
-                handleConnection(s, handler, connectionCtx);
-            } catch (IOException ex) {
-                // handle threw exception, fire closed event
-                ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error while handling connection: " + ex.getMessage());
-                fireConnectionClosed(e);
-            } catch (ConnectionException ex) {
-                ConnectionEvent e = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error during handling: " + ex.getMessage());
-                fireConnectionClosed(e);
-            } catch (ConnectionVetoException ex) {
-                // do nothing as connection closed event is already fired
+                process(handler, s, connectionCtx);
             } finally {
-                IOUtil.closeSocket(s);
+                slots.release();
             }
         }
     }
@@ -100,7 +100,7 @@ public class SocketAcceptor extends TimeableConnection {
      * @param threadName optional name of thread
      */
     public void aaccept(final SocketHandler socketHandler, String threadName) {
-        Thread thread = new Thread(new Runnable() {
+        startThread(new Runnable() {
             public void run() {
                 Socket s = null;
                 try {
@@ -127,10 +127,7 @@ public class SocketAcceptor extends TimeableConnection {
                     // is that someone closed the server socket for us
                 }
             }
-        });
-        if (threadName != null)
-            thread.setName(threadName);
-        thread.start();
+        }, threadName);
     }
 
     /**
@@ -155,6 +152,16 @@ public class SocketAcceptor extends TimeableConnection {
         return connectionCtx;
     }
 
+    /**
+     * Retrieves the port that the server socket is bound to. This is mostly
+     * useful when the acceptor binds to port 0 to pick any free port.
+     * 
+     * @return the local port, or -1 if the server socket is not open
+     */
+    public int getLocalPort() {
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
     /**
      * <p>
      * use a new connection context. The current server socket will be closed
@@ -150,7 +150,7 @@ public class SocketConnector extends TimeableConnection {
      * @param threadName optional name of the thread
      */
     public void aconnect(final SocketHandler socketHandler, final ConnectionContext connectionCtx, String threadName) {
-        Thread thread = new Thread(new Runnable() {
+        startThread(new Runnable() {
             public void run() {
                 try {
                     startingConnection(socketHandler, connectionCtx);
@@ -173,10 +173,7 @@ public class SocketConnector extends TimeableConnection {
                     // do nothing, connection closed event already fired
                 }
             }
-        });
-        if (threadName != null)
-            thread.setName(threadName);
-        thread.start();
+        }, threadName);
     }
 
     /**
@@ -217,10 +214,7 @@ public class SocketConnector extends TimeableConnection {
                 }
             };
             runner.socket = socket;
-            Thread thread = new Thread(runner);
-            if (threadName != null)
-                thread.setName(threadName);
-            thread.start();
+            startThread(runner, threadName);
         } catch (ConnectionException ex) {
             ConnectionEvent event = new ConnectionEvent(connectionCtx, ConnectionEvent.CONNECTION_ERRORED, "Error..." + ex.getMessage());
             fireConnectionClosed(event);
@@ -313,6 +307,35 @@ public class SocketConnector extends TimeableConnection {
     protected Socket createSSLSocket(ConnectionContext connectionCtx) throws IOException {
         InetAddress host = connectionCtx.getHost();
         int port = connectionCtx.getPort();
+        SSLContext context = createSSLContext();
+
+        // Get a sockey factory
+        SSLSocketFactory sslSocketfactory = context.getSocketFactory();
+
+        // Make a socket from the factory
+        SSLSocket socket = null;
+        try {
+            socket = (SSLSocket) sslSocketfactory.createSocket(host, port); // throws
+            // IOException
+        } catch (UnknownHostException uhe) {
+            throw new IOException("Unknown host exception");
+        }
+        socket.setUseClientMode(true);
+        socket.setEnabledCipherSuites(getCiphers(socket));
+        socket.startHandshake(); // synchronous for the first time, throws
+        // IOException
+        return socket;
+    }
+
+    /**
+     * helper method to create and initialize the SSL context used for SSL
+     * connections. The key store, passphrase and trust manager are taken from
+     * the system properties described in the class documentation.
+     * 
+     * @return the initialized SSL context
+     * @throws IOException if the context cannot be initialized
+     */
+    protected SSLContext createSSLContext() throws IOException {
         String keyStorePath = System.getProperty(KEY_KEYSTORE, VALUE_KEYSTORE);
         String keyStorePassphrase = System.getProperty(KEY_PASSPHRASE, VALUE_PASSPHRASE);
         char[] keyStorePassword = keyStorePassphrase.toCharArray();
@@ -422,23 +445,7 @@ public class SocketConnector extends TimeableConnection {
         } catch (KeyManagementException e) {
             throw new IOException("Unable to initiaize SSL context");
         }
-
-        // Get a sockey factory
-        SSLSocketFactory sslSocketfactory = context.getSocketFactory();
-
-        // Make a socket from the factory
-        SSLSocket socket = null;
-        try {
-            socket = (SSLSocket) sslSocketfactory.createSocket(host, port); // throws
-            // IOException
-        } catch (UnknownHostException uhe) {
-            throw new IOException("Unknown host exception");
-        }
-        socket.setUseClientMode(true);
-        socket.setEnabledCipherSuites(getCiphers(socket));
-        socket.startHandshake(); // synchronous for the first time, throws
-        // IOException
-        return socket;
+        return context;
     }
 
     /**
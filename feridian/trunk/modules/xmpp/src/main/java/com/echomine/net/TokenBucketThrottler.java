@@ -0,0 +1,285 @@
+package com.echomine.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Shapes the outgoing traffic of connections with token buckets, one for the
+ * bytes and one for the stanzas sent. Servers limit the traffic of each
+ * connection (ie. karma or shapers), and disconnect the clients that go over
+ * the limits. Shaping the traffic on the client side sends at the highest rate
+ * allowed without tripping them.
+ * </p>
+ * <p>
+ * A bucket fills up at its rate, up to the burst allowance, and sending takes
+ * tokens out of it. When there are not enough tokens, the sender is delayed
+ * until they are refilled. A sender can take more tokens than the bucket
+ * holds, in which case the bucket goes into debt and the senders that follow
+ * wait until it is paid off. The rate is therefore kept on average, and large
+ * writes are never blocked for good.
+ * </p>
+ * <p>
+ * A throttler can have a parent to limit several connections together: each
+ * connection gets its own throttler with the limits per connection, and all of
+ * them share a parent with the global limits. Senders are delayed for as long
+ * as the stricter of the two requires.
+ * </p>
+ * <p>
+ * The throttler also measures the rates that go through it, and the total
+ * time senders were delayed. It is thread safe.
+ * </p>
+ */
+public class TokenBucketThrottler implements ConnectionThrottler {
+    /** the default burst allowance, as the time it takes to fill a bucket */
+    public static final long DEFAULT_BURST_MILLIS = 1000;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final Bucket bytes;
+    private final Bucket stanzas;
+    private final TokenBucketThrottler parent;
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private long lastBytesTransferred;
+
+    /**
+     * @param bytesPerSecond the bytes allowed per second, 0 for no limit
+     * @param stanzasPerSecond the stanzas allowed per second, 0 for no limit
+     */
+    public TokenBucketThrottler(long bytesPerSecond, long stanzasPerSecond) {
+        this(bytesPerSecond, stanzasPerSecond, null);
+    }
+
+    /**
+     * @param bytesPerSecond the bytes allowed per second, 0 for no limit
+     * @param stanzasPerSecond the stanzas allowed per second, 0 for no limit
+     * @param parent the throttler shared with other connections, or null
+     */
+    public TokenBucketThrottler(long bytesPerSecond, long stanzasPerSecond, TokenBucketThrottler parent) {
+        long now = System.nanoTime();
+        this.bytes = new Bucket(bytesPerSecond, now);
+        this.stanzas = new Bucket(stanzasPerSecond, now);
+        this.parent = parent;
+    }
+
+    /**
+     * @return the throttler shared with other connections, or null
+     */
+    public TokenBucketThrottler getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the bytes allowed per second, or 0 if there is no limit
+     */
+    public long getBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    /**
+     * @param bytesPerSecond the bytes allowed per second, 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        bytes.setRate(bytesPerSecond, System.nanoTime());
+    }
+
+    /**
+     * @return the stanzas allowed per second, or 0 if there is no limit
+     */
+    public long getStanzasPerSecond() {
+        return stanzas.getRate();
+    }
+
+    /**
+     * @param stanzasPerSecond the stanzas allowed per second, 0 for no limit
+     */
+    public void setStanzasPerSecond(long stanzasPerSecond) {
+        stanzas.setRate(stanzasPerSecond, System.nanoTime());
+    }
+
+    /**
+     * @return the burst allowance in milliseconds
+     */
+    public long getBurstMillis() {
+        return bytes.getBurstMillis();
+    }
+
+    /**
+     * Sets how much can be sent at once after a pause, as the time it takes
+     * to fill the buckets at their rates. A server that enforces its limits
+     * over a short period needs a small burst allowance.
+     *
+     * @param burstMillis the burst allowance in milliseconds, must be > 0
+     * @throws IllegalArgumentException if the allowance is not positive
+     */
+    public void setBurstMillis(long burstMillis) {
+        if (burstMillis <= 0)
+            throw new IllegalArgumentException("Burst allowance must be positive");
+        bytes.setBurstMillis(burstMillis);
+        stanzas.setBurstMillis(burstMillis);
+    }
+
+    /**
+     * Takes tokens for the bytes about to be sent, and delays the caller if
+     * the byte rate of this throttler or its parent is exceeded.
+     *
+     * @param count the number of bytes
+     * @return the time the caller was delayed in nanoseconds
+     */
+    public long acquireBytes(long count) {
+        long now = System.nanoTime();
+        long wait = bytes.reserve(count, now);
+        if (parent != null)
+            wait = Math.max(wait, parent.bytes.reserve(count, now));
+        return delay(wait);
+    }
+
+    /**
+     * Takes tokens for the stanzas about to be sent, and delays the caller if
+     * the stanza rate of this throttler or its parent is exceeded.
+     *
+     * @param count the number of stanzas
+     * @return the time the caller was delayed in nanoseconds
+     */
+    public long acquireStanzas(int count) {
+        long now = System.nanoTime();
+        long wait = stanzas.reserve(count, now);
+        if (parent != null)
+            wait = Math.max(wait, parent.stanzas.reserve(count, now));
+        return delay(wait);
+    }
+
+    /**
+     * Delays the caller for the bytes transferred through the context since
+     * the last call. Since the bytes are counted after they are sent, the
+     * delay makes up for them afterwards. A throttler used this way must only
+     * be used with one context.
+     *
+     * @see com.echomine.net.ConnectionThrottler#throttle(com.echomine.net.ConnectionContext)
+     */
+    public void throttle(ConnectionContext ccontext) {
+        long count;
+        synchronized (this) {
+            count = ccontext.bytesTransferred - lastBytesTransferred;
+            lastBytesTransferred = ccontext.bytesTransferred;
+        }
+        if (count > 0)
+            acquireBytes(count);
+    }
+
+    /**
+     * @return the bytes sent per second over the last second
+     */
+    public long getByteRate() {
+        return bytes.getMeasuredRate(System.nanoTime());
+    }
+
+    /**
+     * @return the stanzas sent per second over the last second
+     */
+    public long getStanzaRate() {
+        return stanzas.getMeasuredRate(System.nanoTime());
+    }
+
+    /**
+     * @return the total time senders were delayed in milliseconds. The time
+     *         of a parent includes the delays of all its connections.
+     */
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * sleeps for the time, and counts it as throttled time here and in the
+     * parent
+     */
+    private long delay(long nanos) {
+        if (nanos <= 0)
+            return 0;
+        throttledNanos.addAndGet(nanos);
+        if (parent != null)
+            parent.throttledNanos.addAndGet(nanos);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            // the data is sent early rather than not at all
+            Thread.currentThread().interrupt();
+        }
+        return nanos;
+    }
+
+    /**
+     * A token bucket, which also measures the rate of the tokens taken
+     */
+    private static class Bucket {
+        private long rate;
+        private long burstMillis = DEFAULT_BURST_MILLIS;
+        private double tokens;
+        private long lastRefill;
+        private long windowStart;
+        private long windowCount;
+        private long lastRate;
+
+        Bucket(long rate, long now) {
+            this.rate = Math.max(0, rate);
+            this.tokens = capacity();
+            this.lastRefill = now;
+            this.windowStart = now;
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate, long now) {
+            refill(now);
+            this.rate = Math.max(0, rate);
+            tokens = Math.min(tokens, capacity());
+        }
+
+        synchronized long getBurstMillis() {
+            return burstMillis;
+        }
+
+        synchronized void setBurstMillis(long burstMillis) {
+            this.burstMillis = burstMillis;
+            tokens = Math.min(tokens, capacity());
+        }
+
+        /**
+         * takes the tokens, going into debt if there are not enough
+         *
+         * @return the time until the debt is paid off in nanoseconds, or 0
+         */
+        synchronized long reserve(long count, long now) {
+            long elapsed = now - windowStart;
+            if (elapsed >= SECOND) {
+                lastRate = (long) (windowCount * (double) SECOND / elapsed);
+                windowStart = now;
+                windowCount = 0;
+            }
+            windowCount += count;
+            if (rate == 0)
+                return 0;
+            refill(now);
+            tokens -= count;
+            return (tokens >= 0) ? 0 : (long) Math.ceil(-tokens * SECOND / rate);
+        }
+
+        synchronized long getMeasuredRate(long now) {
+            long elapsed = now - windowStart;
+            // the current window decays the rate once the sending stops
+            if (elapsed >= SECOND)
+                return (long) (windowCount * (double) SECOND / elapsed);
+            return lastRate;
+        }
+
+        private void refill(long now) {
+            if (rate > 0)
+                tokens = Math.min(capacity(), tokens + (now - lastRefill) * (double) rate / SECOND);
+            lastRefill = now;
+        }
+
+        private double capacity() {
+            return Math.max(1, rate * (double) burstMillis / 1000);
+        }
+    }
+}
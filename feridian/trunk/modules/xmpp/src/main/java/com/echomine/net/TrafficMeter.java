@@ -0,0 +1,25 @@
+package com.echomine.net;
+
+/**
+ * Counts the bytes that go over a connection. The bytes are counted as they
+ * are read from and written to the network, which means that encrypted and
+ * compressed data is counted as it is on the wire. The methods are called by
+ * the threads doing the I/O and must therefore be fast and must not block.
+ */
+public interface TrafficMeter {
+    /**
+     * @param count the number of bytes just read from the network
+     */
+    void bytesReceived(int count);
+
+    /**
+     * @param count the number of bytes just written to the network
+     */
+    void bytesSent(int count);
+
+    /**
+     * @param nanos the time a write was just delayed by a throttler to keep
+     *            the outgoing rate
+     */
+    void sendThrottled(long nanos);
+}
@@ -0,0 +1,107 @@
+package com.echomine.util;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * Calculates the delays between retries of an operation that keeps failing,
+ * such as reconnecting to a server. The delay doubles with each attempt until
+ * it reaches the max delay. A random jitter of up to half the delay is taken
+ * off each delay so that many clients that failed at the same time (ie.
+ * because the server went down) do not all retry at the same time.
+ * </p>
+ * <p>
+ * Once the operation succeeds, the backoff should be reset so that the next
+ * failure starts over with the initial delay.
+ * </p>
+ */
+public class Backoff {
+    /**
+     * the default delay before the first retry in milliseconds
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    /**
+     * the default max delay between retries in milliseconds
+     */
+    public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int attempts;
+
+    /**
+     * creates a backoff with the default delays
+     */
+    public Backoff() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param initialDelay the delay before the first retry in milliseconds
+     * @param maxDelay the max delay between retries in milliseconds
+     * @throws IllegalArgumentException if the initial delay is not positive or
+     *             the max delay is less than the initial delay
+     */
+    public Backoff(long initialDelay, long maxDelay) {
+        this(initialDelay, maxDelay, new Random());
+    }
+
+    /**
+     * @param initialDelay the delay before the first retry in milliseconds
+     * @param maxDelay the max delay between retries in milliseconds
+     * @param random the source of the jitter
+     * @throws IllegalArgumentException if the initial delay is not positive or
+     *             the max delay is less than the initial delay
+     */
+    public Backoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay <= 0 || maxDelay < initialDelay)
+            throw new IllegalArgumentException("Initial delay must be > 0 and max delay must be >= initial delay");
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * Calculates the delay before the next attempt and counts the attempt.
+     *
+     * @return the delay in milliseconds
+     */
+    public synchronized long nextDelay() {
+        long delay = maxDelay;
+        // stop shifting before the delay overflows
+        if (attempts < 62 && (initialDelay << attempts) >> attempts == initialDelay)
+            delay = Math.min(maxDelay, initialDelay << attempts);
+        attempts++;
+        long jitter = delay / 2;
+        return delay - (long) (random.nextDouble() * jitter);
+    }
+
+    /**
+     * @return the number of attempts since the backoff was created or reset
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * starts over with the initial delay
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    /**
+     * @return the delay before the first retry in milliseconds
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * @return the max delay between retries in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+}
@@ -0,0 +1,335 @@
+package com.echomine.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * A timer that is optimized for a large number of timeouts that are mostly
+ * cancelled before they expire, such as reply timeouts of outgoing requests.
+ * Scheduling and cancelling a timeout are constant time operations that never
+ * block, and a single thread serves all the timeouts no matter how many there
+ * are.
+ * </p>
+ * <p>
+ * The timer keeps a wheel of buckets. Each tick, the timer thread advances to
+ * the next bucket and expires the timeouts that are due in it. Timeouts are
+ * thus not precise; they expire within one tick after they are due. The tick
+ * duration should be chosen accordingly (100 milliseconds by default).
+ * </p>
+ * <p>
+ * The timeout tasks run on the timer thread. They should therefore be short
+ * and must not block; longer work should be handed off to another thread.
+ * </p>
+ */
+public class HashedWheelTimer {
+    private static final Log log = LogFactory.getLog(HashedWheelTimer.class);
+    private static final String TIMER_THREAD_NAME = "Feridian Timer";
+    /**
+     * the default tick duration in milliseconds
+     */
+    public static final long DEFAULT_TICK_DURATION = 100;
+    /**
+     * the default number of buckets in the wheel
+     */
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+    private static HashedWheelTimer sharedTimer;
+
+    private final ThreadFactory threadFactory;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<WheelTimeout> pendingTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final ConcurrentLinkedQueue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final Object startLock = new Object();
+    private volatile Thread workerThread;
+    private volatile boolean shutdown;
+    private volatile long startTime;
+    private long tick;
+
+    /**
+     * Creates a timer with the default tick duration and wheel size.
+     */
+    public HashedWheelTimer() {
+        this(null, DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param threadFactory the factory that creates the timer thread, null to
+     *            create a platform daemon thread
+     * @param tickDuration the duration between ticks
+     * @param unit the unit of the tick duration
+     * @param ticksPerWheel the number of buckets in the wheel. It is rounded
+     *            up to the next power of 2.
+     */
+    public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("Tick duration must be greater than 0");
+        if (ticksPerWheel <= 0)
+            throw new IllegalArgumentException("Ticks per wheel must be greater than 0");
+        this.threadFactory = threadFactory;
+        this.tickDuration = unit.toNanos(tickDuration);
+        int size = 1;
+        while (size < ticksPerWheel)
+            size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+    }
+
+    /**
+     * @return a timer that is shared by the whole library. It is created on
+     *         first use and runs on a daemon thread.
+     */
+    public static synchronized HashedWheelTimer getSharedTimer() {
+        if (sharedTimer == null)
+            sharedTimer = new HashedWheelTimer();
+        return sharedTimer;
+    }
+
+    /**
+     * Schedules the task to run once after the delay.
+     *
+     * @param task the task to run
+     * @param delay the delay before the task runs
+     * @param unit the unit of the delay
+     * @return the handle that allows the timeout to be cancelled
+     * @throws IllegalStateException if the timer has been stopped
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null)
+            throw new IllegalArgumentException("Task cannot be null");
+        if (shutdown)
+            throw new IllegalStateException("Timer has been stopped");
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        WheelTimeout timeout = new WheelTimeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer. Timeouts that have not expired yet will never run.
+     */
+    public void stop() {
+        shutdown = true;
+        Thread thread = workerThread;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * starts the timer thread on first use
+     */
+    private void start() {
+        if (workerThread != null)
+            return;
+        synchronized (startLock) {
+            if (workerThread != null)
+                return;
+            startTime = System.nanoTime();
+            Runnable worker = new Runnable() {
+                public void run() {
+                    runWorker();
+                }
+            };
+            if (threadFactory != null) {
+                workerThread = ThreadUtil.startThread(threadFactory, worker, TIMER_THREAD_NAME);
+            } else {
+                Thread thread = new Thread(worker, TIMER_THREAD_NAME);
+                thread.setDaemon(true);
+                workerThread = thread;
+                thread.start();
+            }
+        }
+    }
+
+    private void runWorker() {
+        while (!shutdown) {
+            long deadline = waitForNextTick();
+            if (deadline < 0)
+                break;
+            removeCancelledTimeouts();
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * sleeps until the next tick is due
+     *
+     * @return the time of the tick relative to the start time, or -1 if the
+     *         timer is stopped
+     */
+    private long waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long current = System.nanoTime() - startTime;
+            long sleepMillis = (deadline - current + 999999) / 1000000;
+            if (sleepMillis <= 0)
+                return current;
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException ex) {
+                if (shutdown)
+                    return -1;
+            }
+        }
+    }
+
+    private void removeCancelledTimeouts() {
+        WheelTimeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        WheelTimeout timeout;
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            timeout = pendingTimeouts.poll();
+            if (timeout == null)
+                break;
+            if (timeout.isCancelled())
+                continue;
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // timeouts that are already due go into the current bucket
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A handle to a scheduled task
+     */
+    public interface Timeout {
+        /**
+         * Cancels the timeout so that its task will not run.
+         *
+         * @return true if the timeout was cancelled, false if it has already
+         *         expired or was cancelled before
+         */
+        boolean cancel();
+
+        /**
+         * @return true if the timeout was cancelled
+         */
+        boolean isCancelled();
+
+        /**
+         * @return true if the timeout has expired and its task has run
+         */
+        boolean isExpired();
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final class WheelTimeout implements Timeout {
+        final Runnable task;
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(ST_INIT);
+        long remainingRounds;
+        // the fields below are only accessed by the timer thread
+        Bucket bucket;
+        WheelTimeout next;
+        WheelTimeout prev;
+
+        WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+                return false;
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                if (log.isWarnEnabled())
+                    log.warn("Timeout task threw an exception", t);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts. Only accessed by the timer thread.
+     */
+    private static final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            if (timeout == head)
+                head = timeout.next;
+            if (timeout == tail)
+                tail = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * expires all the timeouts that are due by the deadline and are in
+         * their last round
+         */
+        void expireTimeouts(long deadline) {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    if (timeout.deadline <= deadline) {
+                        remove(timeout);
+                        timeout.expire();
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.echomine.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Convenience methods for creating the threads used by connectors, acceptors
+ * and packet queues. All such threads are created through a ThreadFactory, so
+ * that the threading model can be swapped out without changing the blocking
+ * code that runs inside the threads.
+ * </p>
+ * <p>
+ * Two factories are available out of the box. The platform factory creates
+ * regular threads, exactly as a plain <code>new Thread()</code> would. The
+ * virtual factory creates virtual threads, which only use a few kilobytes of
+ * memory each instead of a full thread stack. Virtual threads require a Java
+ * 21 or newer runtime; they are looked up through reflection so that the
+ * library still runs on older runtimes.
+ * </p>
+ * <p>
+ * The default factory is used by all components that are not given a factory
+ * of their own. It can be set through setDefaultThreadFactory(), or by setting
+ * the system property com.echomine.threadMode to "virtual" before the library
+ * is used. By default, platform threads are used.
+ * </p>
+ */
+public class ThreadUtil {
+    private static final Log log = LogFactory.getLog(ThreadUtil.class);
+
+    /**
+     * property that sets the default thread mode
+     */
+    public static final String KEY_THREAD_MODE = "com.echomine.threadMode";
+    /**
+     * thread mode value for virtual threads
+     */
+    public static final String MODE_VIRTUAL = "virtual";
+    /**
+     * thread mode value for platform threads
+     */
+    public static final String MODE_PLATFORM = "platform";
+
+    private static final ThreadFactory PLATFORM_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(r);
+        }
+    };
+
+    private static ThreadFactory virtualFactory;
+    private static volatile ThreadFactory defaultFactory;
+
+    static {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = ofVirtual.getReturnType().getMethod("factory");
+            virtualFactory = (ThreadFactory) factory.invoke(builder);
+        } catch (Exception ex) {
+            // virtual threads are not supported by this runtime
+        }
+        defaultFactory = PLATFORM_FACTORY;
+        String mode = System.getProperty(KEY_THREAD_MODE, MODE_PLATFORM);
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+            if (virtualFactory != null) {
+                defaultFactory = virtualFactory;
+            } else if (log.isWarnEnabled()) {
+                log.warn("Virtual threads are not supported by this runtime.  Platform threads will be used instead.");
+            }
+        }
+    }
+
+    /**
+     * @return a factory that creates regular platform threads
+     */
+    public static ThreadFactory getPlatformThreadFactory() {
+        return PLATFORM_FACTORY;
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return virtualFactory != null;
+    }
+
+    /**
+     * @return a factory that creates virtual threads
+     * @throws UnsupportedOperationException if the runtime does not support
+     *             virtual threads
+     */
+    public static ThreadFactory getVirtualThreadFactory() {
+        if (virtualFactory == null)
+            throw new UnsupportedOperationException("Virtual threads are not supported by this runtime");
+        return virtualFactory;
+    }
+
+    /**
+     * @return the factory used by all components that do not have a factory
+     *         of their own
+     */
+    public static ThreadFactory getDefaultThreadFactory() {
+        return defaultFactory;
+    }
+
+    /**
+     * Sets the factory used by all components that do not have a factory of
+     * their own.
+     *
+     * @param factory the factory, or null to go back to platform threads
+     */
+    public static void setDefaultThreadFactory(ThreadFactory factory) {
+        defaultFactory = (factory != null) ? factory : PLATFORM_FACTORY;
+    }
+
+    /**
+     * Creates a thread with the factory and starts it.
+     *
+     * @param factory the factory to create the thread with, null to use the
+     *            default factory
+     * @param r the runnable to run
+     * @param threadName optional name of the thread
+     * @return the started thread
+     */
+    public static Thread startThread(ThreadFactory factory, Runnable r, String threadName) {
+        if (factory == null)
+            factory = defaultFactory;
+        Thread thread = factory.newThread(r);
+        if (threadName != null)
+            thread.setName(threadName);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,26 @@
+package com.echomine.xmpp;
+
+/**
+ * Determines on which thread a packet listener is notified of incoming
+ * packets.
+ */
+public enum DispatchPolicy {
+    /**
+     * The listener is notified right away on the thread that reads the
+     * incoming data. This is the cheapest policy, but a slow listener holds up
+     * the reading of all subsequent packets of the connection.
+     */
+    INLINE,
+    /**
+     * The listener is notified on a thread of the shared dispatch pool.
+     * Packets may be delivered concurrently and out of order.
+     */
+    SHARED_POOL,
+    /**
+     * The listener is notified on a thread of the shared dispatch pool, one
+     * packet at a time and in the order the packets were received. The
+     * listener has a queue of its own, so a slow listener only holds up
+     * itself.
+     */
+    ORDERED
+}
@@ -13,7 +13,7 @@ import com.echomine.util.ClassUtil;
  * configuration and instantiate.
  */
 public abstract class IDGenerator {
-    private static IDGenerator generator;
+    private static volatile IDGenerator generator;
 
     /**
      * obatins the real generator implementation
@@ -37,9 +37,15 @@ public abstract class IDGenerator {
      * generator.
      */
     public static String nextID() throws XMPPException {
-        if (generator == null)
-            generator = getGenerator();
-        return generator.generateID();
+        IDGenerator gen = generator;
+        if (gen == null) {
+            synchronized (IDGenerator.class) {
+                if (generator == null)
+                    generator = getGenerator();
+                gen = generator;
+            }
+        }
+        return gen.generateID();
     }
 
     /**
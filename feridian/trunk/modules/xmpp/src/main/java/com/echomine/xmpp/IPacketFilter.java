@@ -0,0 +1,16 @@
+package com.echomine.xmpp;
+
+/**
+ * Decides whether a listener is interested in an incoming packet. Filters are
+ * evaluated on the thread that reads the incoming data, so they must be quick
+ * and must not block.
+ * 
+ * @see PacketFilter
+ */
+public interface IPacketFilter {
+    /**
+     * @param packet the incoming packet
+     * @return true if the packet should be passed to the listener
+     */
+    boolean accept(IStanzaPacket packet);
+}
@@ -0,0 +1,27 @@
+package com.echomine.xmpp;
+
+import java.util.concurrent.Future;
+
+/**
+ * The pending reply of a packet that was sent asynchronously. The reply can
+ * either be waited for with one of the get() methods, or be received through a
+ * listener, in which case no thread needs to wait for it at all. A future that
+ * times out fails with a java.util.concurrent.TimeoutException as the cause.
+ * 
+ * @see IXMPPConnection#sendPacketAsync(IStanzaPacket)
+ */
+public interface IPacketFuture extends Future<IStanzaPacket> {
+    /**
+     * @return the packet that is waiting for the reply
+     */
+    IStanzaPacket getPacket();
+
+    /**
+     * Adds a listener that will be notified once the reply is received or the
+     * wait fails. If the future is already done, the listener is notified
+     * right away in the calling thread.
+     * 
+     * @param listener the listener to add
+     */
+    void addReplyListener(IReplyListener listener);
+}
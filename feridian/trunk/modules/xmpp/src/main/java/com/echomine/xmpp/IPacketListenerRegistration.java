@@ -0,0 +1,49 @@
+package com.echomine.xmpp;
+
+/**
+ * The registration of a packet listener together with its filter and dispatch
+ * policy. The registration keeps the dispatch statistics of the listener.
+ * Latencies are measured from the time the packet is received to the time the
+ * listener returns.
+ * 
+ * @see IXMPPConnection#addPacketListener(IPacketListener, IPacketFilter,
+ *      DispatchPolicy)
+ */
+public interface IPacketListenerRegistration {
+    /**
+     * @return the registered listener
+     */
+    IPacketListener getListener();
+
+    /**
+     * @return the filter of the listener, or null if the listener receives all
+     *         packets
+     */
+    IPacketFilter getFilter();
+
+    /**
+     * @return the dispatch policy of the listener
+     */
+    DispatchPolicy getPolicy();
+
+    /**
+     * @return the number of packets waiting to be passed to the listener
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of packets that have been passed to the listener
+     */
+    long getDispatchedCount();
+
+    /**
+     * @return the average latency in nanoseconds, or 0 if no packet has been
+     *         passed to the listener yet
+     */
+    long getAverageLatency();
+
+    /**
+     * @return the highest latency in nanoseconds
+     */
+    long getMaxLatency();
+}
@@ -0,0 +1,33 @@
+package com.echomine.xmpp;
+
+import java.util.EventListener;
+
+/**
+ * Listens for changes to the presence table of a connection. The listeners
+ * are notified on the thread that applies the change, which is normally the
+ * thread that reads the incoming packets, so they must return quickly.
+ * 
+ * @see IPresenceTable
+ */
+public interface IPresenceListener extends EventListener {
+    /**
+     * called when a resource becomes available, changes its presence, or
+     * becomes unavailable
+     * 
+     * @param jid the full JID of the resource
+     * @param presence the new presence, or null if the resource is now
+     *            unavailable
+     */
+    void resourceChanged(JID jid, ResourcePresence presence);
+
+    /**
+     * called when the best resource of a contact changes. This is called
+     * after resourceChanged(), and only when the best resource or its
+     * presence is different.
+     * 
+     * @param bareJID the bare JID of the contact
+     * @param best the new best resource, or null if the contact is now
+     *            unavailable
+     */
+    void bestResourceChanged(JID bareJID, ResourcePresence best);
+}
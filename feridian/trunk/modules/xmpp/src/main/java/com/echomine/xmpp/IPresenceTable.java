@@ -0,0 +1,80 @@
+package com.echomine.xmpp;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * The presence of the contacts, kept from the presence received by a
+ * connection. The table is keyed by bare JID, and keeps the available
+ * resources of each contact ranked from best to worst. The best resource is
+ * the one with the highest priority, and then the most available show (chat,
+ * available, away, xa, dnd). Among equal resources, the one that changed last
+ * ranks first.
+ * </p>
+ * <p>
+ * Lookups do not lock and the best resource is found without any searching.
+ * The table is emptied when the connection closes, since presence is only
+ * valid for the session.
+ * </p>
+ * 
+ * @see IXMPPConnection#getPresenceTable()
+ */
+public interface IPresenceTable {
+    /**
+     * Retrieves the resource that messages sent to the bare JID should go
+     * to. As per the XMPP specs, resources with a negative priority are never
+     * picked.
+     * 
+     * @param jid the JID of the contact, the resource is ignored
+     * @return the full JID of the best resource, or null if none is available
+     */
+    JID getBestResource(JID jid);
+
+    /**
+     * Retrieves the presence of a contact or a resource.
+     * 
+     * @param jid the bare JID for the best resource of the contact
+     *            (regardless of its priority), or the full JID for that
+     *            resource
+     * @return the presence, or null if unavailable
+     */
+    ResourcePresence getPresence(JID jid);
+
+    /**
+     * @param jid the JID of the contact, the resource is ignored
+     * @return the available resources ranked from best to worst, empty if the
+     *         contact is unavailable
+     */
+    List<ResourcePresence> getResources(JID jid);
+
+    /**
+     * @param jid the JID of the contact, the resource is ignored
+     * @return true if at least one resource of the contact is available
+     */
+    boolean isAvailable(JID jid);
+
+    /**
+     * @return the bare JIDs of the contacts that are available
+     */
+    Set<JID> getAvailableContacts();
+
+    /**
+     * @return the number of contacts that are available
+     */
+    int size();
+
+    /**
+     * adds a listener for presence changes
+     * 
+     * @param listener the listener to add
+     */
+    void addPresenceListener(IPresenceListener listener);
+
+    /**
+     * removes the listener
+     * 
+     * @param listener the listener to remove
+     */
+    void removePresenceListener(IPresenceListener listener);
+}
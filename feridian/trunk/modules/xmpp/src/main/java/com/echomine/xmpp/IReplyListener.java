@@ -0,0 +1,33 @@
+package com.echomine.xmpp;
+
+import java.util.EventListener;
+
+/**
+ * Receives the outcome of a packet that was sent asynchronously and is waiting
+ * for a reply. Exactly one of the methods is called once per packet. The
+ * methods are called on the thread that received the reply or detected the
+ * failure (ie. the connection's reader thread or the timer thread), so they
+ * should return quickly and must not wait for other replies.
+ * 
+ * @see IPacketFuture#addReplyListener(IReplyListener)
+ */
+public interface IReplyListener extends EventListener {
+    /**
+     * called when the reply to the request packet is received. The reply may
+     * be an error reply.
+     * 
+     * @param request the packet that was sent
+     * @param reply the reply packet
+     */
+    void replyReceived(IStanzaPacket request, IStanzaPacket reply);
+
+    /**
+     * called when no reply will be received, either because the packet could
+     * not be sent, the wait timed out (with a TimeoutException), or the wait
+     * was cancelled (with a CancellationException).
+     * 
+     * @param request the packet that was sent
+     * @param cause the reason why no reply is received
+     */
+    void replyFailed(IStanzaPacket request, Throwable cause);
+}
@@ -0,0 +1,106 @@
+package com.echomine.xmpp;
+
+import java.util.Collection;
+import java.util.Set;
+
+import com.echomine.xmpp.packet.RosterItem;
+
+/**
+ * <p>
+ * The roster of a connection, kept on the client side. The roster is loaded
+ * from the server once, and is then kept up to date by applying the roster
+ * pushes sent by the server. All the lookups are served from memory without
+ * any round trip to the server. The items are indexed by their bare JID and
+ * by their groups.
+ * </p>
+ * <p>
+ * If the server supports roster versioning (XEP-0237), the roster is kept
+ * across reconnects of the same connection, and reloading it only transfers
+ * the changes since the version that was last seen. The roster can also be
+ * restored from storage with restore() before it is loaded.
+ * </p>
+ * <p>
+ * The roster items returned are shared by the roster and must not be
+ * modified. To change the roster, send the change to the server (ie. through
+ * RosterHelper); the roster is updated once the server pushes the change.
+ * </p>
+ * 
+ * @see IXMPPConnection#getRoster()
+ */
+public interface IRoster {
+    /**
+     * Loads the roster from the server, and waits until it is loaded. With
+     * roster versioning, only the changes since the current version are
+     * transferred.
+     * 
+     * @throws SendPacketFailedException if the request cannot be sent or if
+     *             timeout occurred while waiting for the reply
+     * @throws XMPPStanzaErrorException if the server replied with an error
+     */
+    void load() throws SendPacketFailedException, XMPPStanzaErrorException;
+
+    /**
+     * @return true if the roster was loaded from the server
+     */
+    boolean isLoaded();
+
+    /**
+     * Replaces the roster with items and a version that were stored, such as
+     * the roster of the last session saved to disk. Loading the roster then
+     * only transfers the changes since the stored version.
+     * 
+     * @param items the stored items
+     * @param version the stored roster version, null if unknown
+     */
+    void restore(Collection<RosterItem> items, String version);
+
+    /**
+     * @return the version of the roster, or null if versioning is not used
+     */
+    String getVersion();
+
+    /**
+     * Retrieves the item of a contact. Any resource of the JID is ignored.
+     * 
+     * @param jid the JID of the contact
+     * @return the item, or null if the contact is not in the roster
+     */
+    RosterItem getItem(JID jid);
+
+    /**
+     * @param jid the JID of the contact, any resource is ignored
+     * @return true if the contact is in the roster
+     */
+    boolean contains(JID jid);
+
+    /**
+     * @return an unmodifiable view of all the items
+     */
+    Collection<RosterItem> getItems();
+
+    /**
+     * @param group the name of the group
+     * @return the items in the group, empty if there is no such group
+     */
+    Collection<RosterItem> getItemsInGroup(String group);
+
+    /**
+     * @return the names of all the groups that have items
+     */
+    Set<String> getGroups();
+
+    /**
+     * @return the number of items in the roster
+     */
+    int size();
+
+    /**
+     * adds a listener for changes to the roster
+     */
+    void addRosterListener(IRosterListener listener);
+
+    /**
+     * removes a listener for changes to the roster
+     */
+    void removeRosterListener(IRosterListener listener);
+}
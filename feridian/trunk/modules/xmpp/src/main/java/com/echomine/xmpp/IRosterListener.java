@@ -0,0 +1,35 @@
+package com.echomine.xmpp;
+
+import java.util.EventListener;
+
+import com.echomine.xmpp.packet.RosterItem;
+
+/**
+ * Listens for changes to the roster kept by a connection. The listeners are
+ * notified on the thread that applies the change, which is normally the
+ * thread that reads the incoming packets, so they must return quickly.
+ * 
+ * @see IRoster
+ */
+public interface IRosterListener extends EventListener {
+    /**
+     * called after the whole roster is loaded from the server
+     * 
+     * @param roster the roster
+     */
+    void rosterLoaded(IRoster roster);
+
+    /**
+     * called when an item is added to the roster or changed by a roster push
+     * 
+     * @param item the new state of the item
+     */
+    void rosterItemUpdated(RosterItem item);
+
+    /**
+     * called when an item is removed from the roster
+     * 
+     * @param item the item that was removed
+     */
+    void rosterItemRemoved(RosterItem item);
+}
@@ -61,6 +61,24 @@ public interface IXMPPConnection {
     IStanzaPacket sendPacket(IStanzaPacket packet, boolean wait)
             throws SendPacketFailedException;
 
+    /**
+     * Sends a packet to the remote entity and returns right away with a future
+     * for the reply. Unlike sendPacket(), no thread needs to wait for the
+     * reply; a listener can be added to the future instead. This allows any
+     * number of requests (normally IQ packets) to be in flight at the same
+     * time. The wait for the reply times out after the timeout specified in the
+     * packet, in which case the future fails with a TimeoutException. Error
+     * replies complete the future normally; it is up to the caller to check
+     * the reply for errors.
+     * 
+     * @param packet the packet to send
+     * @return the future for the reply
+     * @throws SendPacketFailedException if the packet cannot be queued for
+     *         sending
+     */
+    IPacketFuture sendPacketAsync(IStanzaPacket packet)
+            throws SendPacketFailedException;
+
     /**
      * Checks whether the we are connected.
      * 
@@ -180,10 +198,43 @@ public interface IXMPPConnection {
      */
     void addPacketListener(IPacketListener listener);
 
+    /**
+     * adds a listener to listen for incoming packets that are accepted by the
+     * filter. The policy determines whether the listener is notified on the
+     * thread that reads the incoming data, or on a pooled thread so that a
+     * slow listener does not hold up the connection. As with
+     * addPacketListener(IPacketListener), the listener is not removed when
+     * the connection closes.
+     * 
+     * @param listener the listener to add
+     * @param filter the filter, null to receive all packets
+     * @param policy the thread the listener is notified on
+     * @return the registration holding the dispatch statistics of the listener
+     */
+    IPacketListenerRegistration addPacketListener(IPacketListener listener, IPacketFilter filter, DispatchPolicy policy);
+
     /**
      * removes the packet listener
      * 
      * @param listener the listener to remove
      */
     void removePacketListener(IPacketListener listener);
+
+    /**
+     * Retrieves the roster kept by this connection. The roster is created on
+     * first use and is kept up to date with the roster pushes from the server
+     * from then on. It is empty until it is loaded or restored.
+     * 
+     * @return the roster of this connection
+     */
+    IRoster getRoster();
+
+    /**
+     * Retrieves the presence table kept by this connection. The table is
+     * created on first use, and only reflects the presence received from then
+     * on. It is emptied when the connection closes.
+     * 
+     * @return the presence table of this connection
+     */
+    IPresenceTable getPresenceTable();
 }
@@ -1,44 +1,156 @@
 package com.echomine.xmpp;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Contains the JID resource. It also knows how to parse the information or
  * output it in the JID compliant format. This is mainly used to generate or
  * retrieve parts of the JID in a easy way. you simply pass in the JID string,
- * and then retrieve whatever you like. An instantiated JID is immutable by
- * default.
+ * and then retrieve whatever you like. An instantiated JID is immutable, and
+ * its string form and hash code are computed only once.
+ * <p>
+ * Parsed JIDs are kept in a bounded cache shared by all connections, so that
+ * parsing the same JID again (ie. the from and to attributes of every stanza
+ * of a presence storm) returns the same instance without parsing or
+ * allocating anything. The cache is direct-mapped: each JID has a single slot
+ * determined by its hash, and a new JID simply replaces the one in its slot.
+ * Lookups and replacements are lock-free.
+ * </p>
  */
 public class JID {
-    private static Pattern jidPat = Pattern.compile("(?:(.+)\\@)?([^/]+)(?:/(.+))?");
+    /** the default number of slots in the cache */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
 
-    private String node;
-    private String host;
-    private String resource;
+    private static volatile AtomicReferenceArray<JID> cache = new AtomicReferenceArray<JID>(DEFAULT_CACHE_SIZE);
+
+    private final String node;
+    private final String host;
+    private final String resource;
+    private final String jid;
+    private final int hash;
+    private volatile JID bareJID;
 
     /**
-     * takes in a JID string and parses it into a JID component.
-     * 
+     * takes in a JID string and parses it into a JID component. The JID is
+     * returned from the cache if it was parsed before.
+     *
      * @throws JIDFormatException if the jid does not conform to the format
      */
     public static JID parseJID(String jidStr) throws JIDFormatException {
         if (jidStr == null)
             throw new JIDFormatException("JID cannot be null");
-        // URI Syntax is [node@]domain[/resource]
-        Matcher matcher = jidPat.matcher(jidStr);
-        if (matcher.matches()) {
-            JID jid = new JID(matcher.group(1), matcher.group(2), matcher.group(3));
+        AtomicReferenceArray<JID> slots = cache;
+        int hash = jidStr.hashCode();
+        int slot = hash & (slots.length() - 1);
+        JID jid = (slots.length() == 0) ? null : slots.get(slot);
+        if (jid != null && jid.hash == hash && jid.jid.equals(jidStr))
             return jid;
-        } else {
-            throw new JIDFormatException("Unable to parse JID: " + jidStr);
+        jid = parse(jidStr, null, 0, jidStr.length());
+        if (slots.length() != 0)
+            slots.set(slot, jid);
+        return jid;
+    }
+
+    /**
+     * Parses a JID directly from a character buffer, such as the buffer of
+     * the XML parser. When the JID is in the cache, no string is created.
+     *
+     * @param buf the buffer containing the JID
+     * @param offset the offset of the JID in the buffer
+     * @param length the length of the JID
+     * @throws JIDFormatException if the jid does not conform to the format
+     */
+    public static JID parseJID(char[] buf, int offset, int length) throws JIDFormatException {
+        if (buf == null)
+            throw new JIDFormatException("JID cannot be null");
+        AtomicReferenceArray<JID> slots = cache;
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++)
+            hash = 31 * hash + buf[i];
+        int slot = hash & (slots.length() - 1);
+        JID jid = (slots.length() == 0) ? null : slots.get(slot);
+        if (jid != null && jid.hash == hash && jid.matches(buf, offset, length))
+            return jid;
+        jid = parse(null, buf, offset, length);
+        if (slots.length() != 0)
+            slots.set(slot, jid);
+        return jid;
+    }
+
+    /**
+     * Sets the number of slots of the JID cache. The cache is emptied.
+     *
+     * @param size the number of slots, rounded up to a power of two, or 0 to
+     *            disable caching
+     */
+    public static void setCacheSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        int slots = 0;
+        if (size > 0) {
+            slots = 1;
+            while (slots < size)
+                slots <<= 1;
         }
+        cache = new AtomicReferenceArray<JID>(slots);
+    }
+
+    /**
+     * @return the number of slots of the JID cache
+     */
+    public static int getCacheSize() {
+        return cache.length();
+    }
+
+    /**
+     * Removes all the JIDs from the cache
+     */
+    public static void clearCache() {
+        cache = new AtomicReferenceArray<JID>(cache.length());
+    }
+
+    /**
+     * parses the JID in a single pass. The syntax is [node@]domain[/resource],
+     * where the resource starts at the first slash and may contain any
+     * character, and the node ends at the first at sign before the resource.
+     * Either the string or the buffer is given.
+     */
+    private static JID parse(String str, char[] buf, int offset, int length) throws JIDFormatException {
+        int end = offset + length;
+        int at = -1;
+        int slash = -1;
+        for (int i = offset; i < end; i++) {
+            char ch = (str != null) ? str.charAt(i) : buf[i];
+            if (ch == '/') {
+                slash = i;
+                break;
+            }
+            if (ch == '@') {
+                if (at != -1)
+                    throw new JIDFormatException("Unable to parse JID: " + text(str, buf, offset, length));
+                at = i;
+            }
+        }
+        int hostStart = (at == -1) ? offset : at + 1;
+        int hostEnd = (slash == -1) ? end : slash;
+        if (at == offset || hostStart == hostEnd || slash == end - 1)
+            throw new JIDFormatException("Unable to parse JID: " + text(str, buf, offset, length));
+        String node = (at == -1) ? null : text(str, buf, offset, at - offset);
+        String host = text(str, buf, hostStart, hostEnd - hostStart);
+        String resource = (slash == -1) ? null : text(str, buf, slash + 1, end - slash - 1);
+        return new JID(node, host, resource, str);
+    }
+
+    private static String text(String str, char[] buf, int offset, int length) {
+        if (str != null)
+            return str.substring(offset, offset + length);
+        return new String(buf, offset, length);
     }
 
     /**
      * a static method to turn the JID into a String for deserialization
      * purposes
-     * 
+     *
      * @param jid the jid to deserialize
      * @return the string form of the JID
      */
@@ -51,15 +163,30 @@ public class JID {
     /**
      * takes in a set of information to create the JID object that can be use to
      * convert into a JID string
-     * 
+     *
      * @param node the name of the node or user, required
      * @param host the Jabber server name, required
      * @param resource the resource used, can be null to specify none
      */
     public JID(String node, String host, String resource) {
+        this(node, host, resource, null);
+    }
+
+    private JID(String node, String host, String resource, String jid) {
         this.node = node;
         this.host = host;
         this.resource = resource;
+        if (jid == null) {
+            StringBuffer buf = new StringBuffer();
+            if (node != null)
+                buf.append(node).append("@");
+            buf.append(host);
+            if (resource != null)
+                buf.append("/").append(resource);
+            jid = buf.toString();
+        }
+        this.jid = jid;
+        this.hash = jid.hashCode();
     }
 
     /**
@@ -72,7 +199,7 @@ public class JID {
     /**
      * The value may possibly be a host name in canonical form (ie.
      * www.blah.com) or in IPv4 or IPv6 form.
-     * 
+     *
      * @return the domain or host part of the JID.
      */
     public String getHost() {
@@ -94,11 +221,29 @@ public class JID {
         return getNode();
     }
 
+    /**
+     * Retrieves the JID without its resource. Since parsed JIDs are shared
+     * through the cache, the bare JID is kept once it is computed, and later
+     * calls return the same instance.
+     *
+     * @return this JID if it has no resource, the node@domain JID otherwise
+     */
+    public JID getBareJID() {
+        if (resource == null)
+            return this;
+        JID bare = bareJID;
+        if (bare == null) {
+            bare = new JID(node, host, null);
+            bareJID = bare;
+        }
+        return bare;
+    }
+
     /**
      * retrieves the node@domain part of the JID. It is basically the normal JID
      * that you would use if you do not specify a resource. This is here for
      * convenience.
-     * 
+     *
      * @return the node@domain part of the JID
      */
     public String getJIDWithoutResource() {
@@ -109,13 +254,7 @@ public class JID {
      * @return the JID in the correct format
      */
     public String toString() {
-        StringBuffer buf = new StringBuffer();
-        if (node != null)
-            buf.append(node).append("@");
-        buf.append(host);
-        if (resource != null)
-            buf.append("/").append(resource);
-        return buf.toString();
+        return jid;
     }
 
     public boolean equals(Object obj) {
@@ -123,7 +262,11 @@ public class JID {
             return false;
         if (obj == this)
             return true;
-        if (toString().equals(obj.toString()))
+        if (obj instanceof JID) {
+            JID other = (JID) obj;
+            return hash == other.hash && jid.equals(other.jid);
+        }
+        if (jid.equals(obj.toString()))
             return true;
         return false;
     }
@@ -132,6 +275,18 @@ public class JID {
      * Uses the full JID string as the hash code
      */
     public int hashCode() {
-        return toString().hashCode();
+        return hash;
+    }
+
+    /**
+     * @return true if the string form of this JID equals the characters
+     */
+    private boolean matches(char[] buf, int offset, int length) {
+        if (jid.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (jid.charAt(i) != buf[offset + i])
+                return false;
+        return true;
     }
 }
@@ -0,0 +1,146 @@
+package com.echomine.xmpp;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.xmpp.packet.IMPacket;
+
+/**
+ * <p>
+ * A filter that matches packets by their class, stanza type, namespace and
+ * sender. Only the criteria that are set are checked; a filter with no
+ * criteria set accepts all packets.
+ * </p>
+ * <p>
+ * The namespace matches presence and message packets that carry an extension
+ * of the namespace, and IQ packets of the class that is configured for the
+ * namespace (ie. jabber:iq:roster matches RosterIQPacket). The sender matches
+ * all the resources of the sender if the sender JID has no resource.
+ * </p>
+ * <p>
+ * The packet class is used by the listener manager to index the listeners, so
+ * that listeners of other packet classes are never even looked at.
+ * </p>
+ */
+public class PacketFilter implements IPacketFilter {
+    private Class<?> packetClass = IStanzaPacket.class;
+    private String type;
+    private String namespace;
+    private JID from;
+
+    /**
+     * Creates a filter that accepts all packets
+     */
+    public PacketFilter() {
+    }
+
+    /**
+     * Creates a filter that accepts all packets of the class (and its
+     * subclasses)
+     *
+     * @param packetClass the packet class
+     */
+    public PacketFilter(Class<?> packetClass) {
+        setPacketClass(packetClass);
+    }
+
+    /**
+     * @param packetClass the packet class
+     * @param type the stanza type (ie. chat, result), null for any
+     */
+    public PacketFilter(Class<?> packetClass, String type) {
+        setPacketClass(packetClass);
+        this.type = type;
+    }
+
+    /**
+     * @return the class of packets accepted, never null
+     */
+    public Class<?> getPacketClass() {
+        return packetClass;
+    }
+
+    /**
+     * @param packetClass the class of packets accepted, null for all
+     */
+    public void setPacketClass(Class<?> packetClass) {
+        this.packetClass = (packetClass != null) ? packetClass : IStanzaPacket.class;
+    }
+
+    /**
+     * @return the stanza type accepted, or null for any
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @param type the stanza type accepted, null for any
+     */
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the namespace accepted, or null for any
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @param namespace the namespace accepted, null for any
+     */
+    public void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * @return the sender accepted, or null for any
+     */
+    public JID getFrom() {
+        return from;
+    }
+
+    /**
+     * @param from the sender accepted, null for any. A JID without resource
+     *            accepts all the resources of the sender.
+     */
+    public void setFrom(JID from) {
+        this.from = from;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketFilter#accept(com.echomine.xmpp.IStanzaPacket)
+     */
+    public boolean accept(IStanzaPacket packet) {
+        if (!packetClass.isInstance(packet))
+            return false;
+        if (type != null && !type.equals(packet.getType()))
+            return false;
+        if (from != null && !matchesSender(packet.getFrom()))
+            return false;
+        if (namespace != null && !matchesNamespace(packet))
+            return false;
+        return true;
+    }
+
+    private boolean matchesSender(JID sender) {
+        if (sender == null)
+            return false;
+        if (!equals(from.getNode(), sender.getNode()) || !equals(from.getHost(), sender.getHost()))
+            return false;
+        return from.getResource() == null || from.getResource().equals(sender.getResource());
+    }
+
+    private boolean matchesNamespace(IStanzaPacket packet) {
+        if (packet instanceof IMPacket)
+            return ((IMPacket) packet).getExtension(namespace) != null;
+        Class<?> cls = FeridianConfiguration.getConfig().getClassForUri(namespace);
+        return cls != null && cls.isInstance(packet);
+    }
+
+    private static boolean equals(String str1, String str2) {
+        return (str1 == null) ? str2 == null : str1.equals(str2);
+    }
+}
@@ -0,0 +1,55 @@
+package com.echomine.xmpp;
+
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * The availability of a resource, as given by the show element of its
+ * presence. The values are declared from the most to the least available, so
+ * that they can be compared by their ordinal.
+ */
+public enum PresenceShow {
+    /** free to chat */
+    CHAT(PresencePacket.SHOW_CHAT),
+    /** available, which is presence without a show element */
+    AVAILABLE(null),
+    /** temporarily away */
+    AWAY(PresencePacket.SHOW_AWAY),
+    /** away for an extended period */
+    XA(PresencePacket.SHOW_XA),
+    /** do not disturb */
+    DND(PresencePacket.SHOW_DND);
+
+    private final String show;
+
+    private PresenceShow(String show) {
+        this.show = show;
+    }
+
+    /**
+     * @return the value of the show element, or null for AVAILABLE
+     */
+    public String getShow() {
+        return show;
+    }
+
+    /**
+     * Converts the value of a show element. Unknown values are treated as
+     * available.
+     * 
+     * @param show the value of the show element, may be null
+     * @return the availability
+     */
+    public static PresenceShow fromShow(String show) {
+        if (show == null)
+            return AVAILABLE;
+        if (PresencePacket.SHOW_AWAY.equals(show))
+            return AWAY;
+        if (PresencePacket.SHOW_CHAT.equals(show))
+            return CHAT;
+        if (PresencePacket.SHOW_DND.equals(show))
+            return DND;
+        if (PresencePacket.SHOW_XA.equals(show))
+            return XA;
+        return AVAILABLE;
+    }
+}
@@ -0,0 +1,80 @@
+package com.echomine.xmpp;
+
+/**
+ * The presence of a single available resource, as kept by the presence table.
+ * Only the parts of the presence that are needed to pick a resource are kept:
+ * the full JID, the priority, the show and the status. The show is an enum and
+ * short statuses are interned, so that the many resources sharing the same
+ * status (ie. "Away") share a single string. An instance is immutable.
+ * 
+ * @see IPresenceTable
+ */
+public class ResourcePresence {
+    /** statuses up to this length are interned */
+    private static final int MAX_INTERNED_STATUS = 32;
+
+    private final JID jid;
+    private final int priority;
+    private final PresenceShow show;
+    private final String status;
+
+    /**
+     * @param jid the full JID of the resource
+     * @param priority the priority of the resource
+     * @param show the availability of the resource
+     * @param status the status, may be null
+     */
+    public ResourcePresence(JID jid, int priority, PresenceShow show, String status) {
+        if (jid == null)
+            throw new IllegalArgumentException("JID cannot be null");
+        this.jid = jid;
+        this.priority = priority;
+        this.show = (show == null) ? PresenceShow.AVAILABLE : show;
+        if (status != null && status.length() <= MAX_INTERNED_STATUS)
+            status = status.intern();
+        this.status = status;
+    }
+
+    /**
+     * @return the full JID of the resource
+     */
+    public JID getJID() {
+        return jid;
+    }
+
+    /**
+     * @return the priority of the resource
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the availability of the resource
+     */
+    public PresenceShow getShow() {
+        return show;
+    }
+
+    /**
+     * @return the status, or null if none
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Resources are ranked by priority first, and then by availability.
+     * 
+     * @return true if this resource ranks before the other resource
+     */
+    public boolean isPreferredTo(ResourcePresence other) {
+        if (priority != other.priority)
+            return priority > other.priority;
+        return show.ordinal() < other.show.ordinal();
+    }
+
+    public String toString() {
+        return jid + " [" + priority + ", " + show + "]";
+    }
+}
@@ -0,0 +1,165 @@
+package com.echomine.xmpp;
+
+/**
+ * <p>
+ * Keeps the state of stream management (XEP-0198) for a connection: whether
+ * it is enabled on the current stream, the number of stanzas handled in each
+ * direction, and what is needed to resume the session on a new stream after
+ * the connection is lost.
+ * </p>
+ * <p>
+ * Unlike the session and stream contexts, this context is not reset when the
+ * connection is restarted, since a session is resumed across connections. It
+ * is only cleared when the session ends for good (ie. the connection is
+ * disconnected on purpose, or the server refuses to resume it).
+ * </p>
+ * <p>
+ * The counters wrap around at 2^32 as defined by the specification.
+ * </p>
+ */
+public class StreamManagementContext {
+    private static final long COUNTER_MASK = 0xFFFFFFFFL;
+    private volatile boolean enabled;
+    private volatile boolean resumed;
+    private String resumeId;
+    private String resource;
+    private long maxResumeTime;
+    private volatile long handledCount;
+    private long ackedCount;
+
+    /**
+     * @return true if stream management is enabled on the current stream
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if the current stream resumed a previous session instead
+     *         of binding a new one
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return true if the session can be resumed on a new stream
+     */
+    public synchronized boolean isResumable() {
+        return resumeId != null;
+    }
+
+    /**
+     * @return the ID of the session to resume, or null if the session cannot
+     *         be resumed
+     */
+    public synchronized String getResumeId() {
+        return resumeId;
+    }
+
+    /**
+     * @return the resource the session is bound to
+     */
+    public synchronized String getResource() {
+        return resource;
+    }
+
+    /**
+     * @return the max time in seconds the server keeps the session for
+     *         resumption, or 0 if the server did not say
+     */
+    public synchronized long getMaxResumeTime() {
+        return maxResumeTime;
+    }
+
+    /**
+     * Called once the server enabled stream management on the current
+     * stream. The counters start over.
+     *
+     * @param resumeId the ID to resume the session with, or null if the
+     *            session cannot be resumed
+     * @param resource the resource the session is bound to
+     * @param maxResumeTime the max time in seconds the server keeps the
+     *            session, or 0 if unknown
+     */
+    public synchronized void enabled(String resumeId, String resource, long maxResumeTime) {
+        this.resumeId = resumeId;
+        this.resource = resource;
+        this.maxResumeTime = maxResumeTime;
+        handledCount = 0;
+        ackedCount = 0;
+        resumed = false;
+        enabled = true;
+    }
+
+    /**
+     * Called once the server resumed the session on the current stream. The
+     * counters carry on from the previous stream.
+     *
+     * @param h the number of stanzas the server handled
+     * @return the number of stanzas acknowledged since the last ack
+     */
+    public synchronized long resumed(long h) {
+        resumed = true;
+        enabled = true;
+        return acknowledged(h);
+    }
+
+    /**
+     * Called when a new stream is started. Stream management must be enabled
+     * or resumed again on the new stream, but the session is kept for
+     * resumption.
+     */
+    public synchronized void streamStarted() {
+        enabled = false;
+        resumed = false;
+    }
+
+    /**
+     * Ends the session. It can no longer be resumed.
+     */
+    public synchronized void clear() {
+        enabled = false;
+        resumed = false;
+        resumeId = null;
+        resource = null;
+        maxResumeTime = 0;
+        handledCount = 0;
+        ackedCount = 0;
+    }
+
+    /**
+     * Counts a stanza received on the current stream. This is only called by
+     * the thread reading the stream.
+     */
+    public void stanzaHandled() {
+        handledCount = (handledCount + 1) & COUNTER_MASK;
+    }
+
+    /**
+     * @return the number of stanzas received and handled, which is reported
+     *         to the server in acks
+     */
+    public long getHandledCount() {
+        return handledCount;
+    }
+
+    /**
+     * Records an ack from the server.
+     *
+     * @param h the number of stanzas the server handled
+     * @return the number of stanzas acknowledged since the last ack
+     */
+    public synchronized long acknowledged(long h) {
+        long count = (h - ackedCount) & COUNTER_MASK;
+        ackedCount = h & COUNTER_MASK;
+        return count;
+    }
+
+    /**
+     * @return the number of stanzas the server acknowledged last
+     */
+    public synchronized long getAckedCount() {
+        return ackedCount;
+    }
+}
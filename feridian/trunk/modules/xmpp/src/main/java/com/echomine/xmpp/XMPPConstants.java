@@ -22,4 +22,17 @@ public interface XMPPConstants {
     static final String NS_STREAM_BINDING = "urn:ietf:params:xml:ns:xmpp-bind";
     static final String NS_STREAM_SESSION = "urn:ietf:params:xml:ns:xmpp-session";
     static final String NS_STREAM_SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+
+    // stream compression (XEP-0138)
+    static final String NS_FEATURE_COMPRESS = "http://jabber.org/features/compress";
+    static final String NS_PROTOCOL_COMPRESS = "http://jabber.org/protocol/compress";
+
+    // roster versioning (XEP-0237)
+    static final String NS_FEATURE_ROSTERVER = "urn:xmpp:features:rosterver";
+
+    // xmpp ping (XEP-0199)
+    static final String NS_XMPP_PING = "urn:xmpp:ping";
+
+    // stream management (XEP-0198)
+    static final String NS_STREAM_MANAGEMENT = "urn:xmpp:sm:3";
 }
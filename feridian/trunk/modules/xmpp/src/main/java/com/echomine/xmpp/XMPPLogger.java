@@ -6,7 +6,9 @@ import org.apache.commons.logging.LogFactory;
 /**
  * The logger that currently only logs incoming and outgoing packets under
  * specific logging spaces. These logging spaces can then be enabled in logging
- * configuration files (ie. log4j or java logging).
+ * configuration files (ie. log4j or java logging). The readers and writers of
+ * the connections do not call this logger directly, but hand their data to
+ * the wire tap (see XMPPWireTap), which calls this logger in the background.
  */
 public class XMPPLogger {
     private static final Log inlog = LogFactory.getLog("com.echomine.feridian.packet.incoming");
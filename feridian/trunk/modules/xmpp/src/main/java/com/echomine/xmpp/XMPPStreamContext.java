@@ -1,11 +1,17 @@
 package com.echomine.xmpp;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 
+import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
+import com.echomine.jibx.StanzaCountingUnmarshallingContext;
 import com.echomine.jibx.XMPPLoggableReader;
+import com.echomine.jibx.XMPPStreamTokenizer;
 import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.jibx.XMPPUnmarshallingContext;
 import com.echomine.xmpp.packet.StreamFeatures;
 
 /**
@@ -13,12 +19,19 @@ import com.echomine.xmpp.packet.StreamFeatures;
  * objects.
  */
 public class XMPPStreamContext {
+    /**
+     * the system property that turns on the byte level tokenizer (see
+     * setByteTokenizer()) for new contexts
+     */
+    public static final String KEY_BYTE_TOKENIZER = "com.echomine.xmpp.byteTokenizer";
     private UnmarshallingContext uctx;
     private XMPPStreamWriter writer;
     private XMPPLoggableReader reader;
     private Socket socket;
     private StreamFeatures features;
     private XMPPAuthCallback authCallback;
+    private StreamManagementContext smCtx;
+    private boolean byteTokenizer = Boolean.getBoolean(KEY_BYTE_TOKENIZER);
 
     public XMPPStreamContext() {
         reset();
@@ -76,7 +89,7 @@ public class XMPPStreamContext {
      * resets the data in this class so that the class can be reused.
      */
     public void reset() {
-        uctx = new UnmarshallingContext();
+        uctx = new XMPPUnmarshallingContext();
         writer = new XMPPStreamWriter();
         socket = null;
         reader = null;
@@ -131,6 +144,27 @@ public class XMPPStreamContext {
         this.authCallback = authCallback;
     }
 
+    /**
+     * Retrieves the stream management state of the connection. It is kept
+     * when this context is reset, as the session may be resumed on the new
+     * stream.
+     * 
+     * @return the stream management context, or null if the connection does
+     *         not support stream management
+     */
+    public StreamManagementContext getStreamManagementContext() {
+        return smCtx;
+    }
+
+    /**
+     * sets the stream management state of the connection
+     * 
+     * @param smCtx the stream management context
+     */
+    public void setStreamManagementContext(StreamManagementContext smCtx) {
+        this.smCtx = smCtx;
+    }
+
     /**
      * @return The reader for the input stream
      */
@@ -143,5 +177,47 @@ public class XMPPStreamContext {
      */
     public void setReader(XMPPLoggableReader reader) {
         this.reader = reader;
-    } 
+    }
+
+    /**
+     * @return true if the input is read with the byte level tokenizer
+     */
+    public boolean isByteTokenizer() {
+        return byteTokenizer;
+    }
+
+    /**
+     * Sets whether the input is read with the byte level tokenizer (see
+     * XMPPStreamTokenizer) instead of being decoded by the reader and parsed
+     * by the pull parser. The tokenizer does not decode the names that it
+     * has already seen, or the elements that are skipped. It takes effect the
+     * next time the input is set.
+     * 
+     * @param byteTokenizer true to read with the tokenizer
+     */
+    public void setByteTokenizer(boolean byteTokenizer) {
+        this.byteTokenizer = byteTokenizer;
+    }
+
+    /**
+     * Sets the input stream the incoming data is read from, for a new stream
+     * or after the stream is restarted (ie. after TLS or SASL negotiation).
+     * The input reader is set to a new reader for the stream, which is also
+     * used to log the incoming data, and the unmarshalling context is set to
+     * read from it. The tokenizer is not used with a stanza counting context,
+     * as the stanzas are counted by the pull parser.
+     * 
+     * @param in the input stream
+     * @throws IOException if the reader cannot be created
+     * @throws JiBXException if the unmarshalling context cannot be set up
+     */
+    public void setInput(InputStream in) throws IOException, JiBXException {
+        reader = new XMPPLoggableReader(in, "UTF-8");
+        if (byteTokenizer && !(uctx instanceof StanzaCountingUnmarshallingContext)) {
+            uctx.setDocument(new XMPPStreamTokenizer(in, reader, null));
+            uctx.reset();
+        } else {
+            uctx.setDocument(reader);
+        }
+    }
 }
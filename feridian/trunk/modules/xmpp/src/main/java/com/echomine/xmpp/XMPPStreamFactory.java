@@ -10,7 +10,7 @@ import com.echomine.util.ClassUtil;
  * additional new stream features and others.
  */
 public abstract class XMPPStreamFactory {
-    private static XMPPStreamFactory factory;
+    private static volatile XMPPStreamFactory factory;
 
     public static final XMPPStreamFactory getFactory() throws XMPPException {
         if (factory != null)
@@ -0,0 +1,383 @@
+package com.echomine.xmpp;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.ThreadUtil;
+
+/**
+ * <p>
+ * Logs the incoming and outgoing XML data asynchronously. The readers and
+ * writers hand their data to the tap, which copies it into a preallocated ring
+ * buffer and returns right away. A background thread takes the data out of
+ * the ring buffer, turns it into strings, and passes them to XMPPLogger. When
+ * the background thread cannot keep up and the ring buffer is full, the data
+ * is dropped instead of holding up the connections; the number of dropped
+ * entries is counted and reported in the log.
+ * </p>
+ * <p>
+ * Checking whether a logger is enabled is not free with most logging
+ * implementations, so the tap keeps the enabled state of the three loggers
+ * and refreshes it from the background thread about once a second. Changes to
+ * the logging configuration therefore take effect within a second. Outgoing
+ * data is kept as raw UTF-8 bytes and only decoded by the background thread.
+ * </p>
+ */
+public class XMPPWireTap {
+    private static final Log log = LogFactory.getLog(XMPPWireTap.class);
+
+    /** data received and processed */
+    public static final int INCOMING = 0;
+
+    /** data received but ignored */
+    public static final int IGNORED = 1;
+
+    /** data sent */
+    public static final int OUTGOING = 2;
+
+    /** the default capacity of the ring buffer in characters */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final int HEADER_SIZE = 3;
+    private static final long REFRESH_INTERVAL = 1000;
+    private static volatile XMPPWireTap sharedTap;
+
+    private final char[] ring;
+    private final Object lock = new Object();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong loggedCount = new AtomicLong();
+    private long writePos;
+    private long readPos;
+    private boolean consumerWaiting;
+    private boolean processing;
+    private volatile boolean incomingEnabled;
+    private volatile boolean ignoredEnabled;
+    private volatile boolean outgoingEnabled;
+    private volatile Thread thread;
+    private char[] scratch = new char[1024];
+    private byte[] byteScratch = new byte[1024];
+    private long reportedDrops;
+
+    /**
+     * Creates a tap that is not started yet. Data handed to the tap is
+     * buffered until the tap is started, or dropped when the buffer is full.
+     *
+     * @param capacity the capacity of the ring buffer in characters
+     */
+    public XMPPWireTap(int capacity) {
+        if (capacity <= HEADER_SIZE)
+            throw new IllegalArgumentException("Capacity is too small");
+        ring = new char[capacity];
+        refreshEnabled();
+    }
+
+    /**
+     * @return the tap shared by all connections, which is created and started
+     *         on first use
+     */
+    public static XMPPWireTap getWireTap() {
+        if (sharedTap != null)
+            return sharedTap;
+        synchronized (XMPPWireTap.class) {
+            if (sharedTap == null) {
+                XMPPWireTap tap = new XMPPWireTap(DEFAULT_CAPACITY);
+                tap.start();
+                sharedTap = tap;
+            }
+            return sharedTap;
+        }
+    }
+
+    /**
+     * Starts the background thread that writes the log
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        Thread t = ThreadUtil.getDefaultThreadFactory().newThread(new Runnable() {
+            public void run() {
+                consume();
+            }
+        });
+        t.setName("Feridian Wire Tap");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the background thread. Data that is still in the ring buffer is
+     * not logged until the tap is started again.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t == null)
+            return;
+        t.interrupt();
+        try {
+            t.join(REFRESH_INTERVAL);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether incoming data is logged
+     */
+    public boolean isIncomingEnabled() {
+        return incomingEnabled;
+    }
+
+    /**
+     * @return whether ignored incoming data is logged
+     */
+    public boolean isIgnoredEnabled() {
+        return ignoredEnabled;
+    }
+
+    /**
+     * @return whether outgoing data is logged
+     */
+    public boolean isOutgoingEnabled() {
+        return outgoingEnabled;
+    }
+
+    /**
+     * @return the number of entries dropped because the ring buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of entries passed on to the log
+     */
+    public long getLoggedCount() {
+        return loggedCount.get();
+    }
+
+    /**
+     * Hands incoming data to the tap. The data is copied, so the buffer can be
+     * reused right away.
+     *
+     * @param data the characters received
+     * @param offset the offset of the first character
+     * @param length the number of characters
+     * @param ignored true if the data was ignored
+     */
+    public void incoming(char[] data, int offset, int length, boolean ignored) {
+        if (length <= 0)
+            return;
+        synchronized (lock) {
+            if (!reserve(ignored ? IGNORED : INCOMING, length))
+                return;
+            int pos = (int) (writePos % ring.length);
+            int first = Math.min(length, ring.length - pos);
+            System.arraycopy(data, offset, ring, pos, first);
+            if (first < length)
+                System.arraycopy(data, offset + first, ring, 0, length - first);
+            published(length);
+        }
+    }
+
+    /**
+     * Hands outgoing data to the tap. The data is copied, so the buffer can be
+     * reused right away.
+     *
+     * @param data the UTF-8 encoded bytes sent
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     */
+    public void outgoing(byte[] data, int offset, int length) {
+        if (length <= 0)
+            return;
+        synchronized (lock) {
+            if (!reserve(OUTGOING, length))
+                return;
+            int pos = (int) (writePos % ring.length);
+            for (int i = 0; i < length; i++) {
+                ring[pos] = (char) (data[offset + i] & 0xff);
+                if (++pos == ring.length)
+                    pos = 0;
+            }
+            published(length);
+        }
+    }
+
+    /**
+     * Waits until all the data handed to the tap so far is logged. This is
+     * mostly useful for tests and when shutting down.
+     *
+     * @param timeout the max time to wait in milliseconds
+     * @return true if all the data was logged, false on timeout
+     */
+    public boolean drain(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            while (readPos != writePos || processing) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                lock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes one entry to the log. This is called by the background thread
+     * only.
+     *
+     * @param type the type of the entry (INCOMING, IGNORED or OUTGOING)
+     * @param data the data of the entry
+     */
+    protected void log(int type, String data) {
+        switch (type) {
+        case INCOMING:
+            XMPPLogger.logIncoming(data);
+            break;
+        case IGNORED:
+            XMPPLogger.logIgnored(data);
+            break;
+        default:
+            XMPPLogger.logOutgoing(data);
+        }
+    }
+
+    /**
+     * reserves space for an entry and writes its header. Must be called with
+     * the lock held.
+     *
+     * @return true if there is space, false if the entry is dropped
+     */
+    private boolean reserve(int type, int length) {
+        if (ring.length - (writePos - readPos) < HEADER_SIZE + length) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        put(writePos, (char) type);
+        put(writePos + 1, (char) (length >>> 16));
+        put(writePos + 2, (char) length);
+        writePos += HEADER_SIZE;
+        return true;
+    }
+
+    /**
+     * commits the entry after its data is copied. Must be called with the lock
+     * held.
+     */
+    private void published(int length) {
+        writePos += length;
+        if (consumerWaiting)
+            lock.notifyAll();
+    }
+
+    private void put(long pos, char ch) {
+        ring[(int) (pos % ring.length)] = ch;
+    }
+
+    private char get(long pos) {
+        return ring[(int) (pos % ring.length)];
+    }
+
+    /**
+     * the loop of the background thread
+     */
+    private void consume() {
+        Thread current = Thread.currentThread();
+        long nextRefresh = System.currentTimeMillis() + REFRESH_INTERVAL;
+        try {
+            while (thread == current) {
+                int type;
+                int length;
+                synchronized (lock) {
+                    processing = false;
+                    if (readPos == writePos) {
+                        lock.notifyAll();
+                        consumerWaiting = true;
+                        lock.wait(REFRESH_INTERVAL);
+                        consumerWaiting = false;
+                    }
+                    if (readPos == writePos) {
+                        type = -1;
+                        length = 0;
+                    } else {
+                        type = get(readPos);
+                        length = (get(readPos + 1) << 16) | get(readPos + 2);
+                        if (scratch.length < length)
+                            scratch = new char[Math.max(length, scratch.length * 2)];
+                        int pos = (int) ((readPos + HEADER_SIZE) % ring.length);
+                        int first = Math.min(length, ring.length - pos);
+                        System.arraycopy(ring, pos, scratch, 0, first);
+                        if (first < length)
+                            System.arraycopy(ring, 0, scratch, first, length - first);
+                        readPos += HEADER_SIZE + length;
+                        processing = true;
+                    }
+                }
+                if (type != -1)
+                    format(type, length);
+                // refreshed on a busy tap as well, which never goes idle
+                long now = System.currentTimeMillis();
+                if (now >= nextRefresh) {
+                    refreshEnabled();
+                    nextRefresh = now + REFRESH_INTERVAL;
+                }
+                reportDrops();
+            }
+        } catch (InterruptedException ex) {
+            // stopped
+        } finally {
+            synchronized (lock) {
+                processing = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * turns the entry in the scratch buffer into a string and logs it
+     */
+    private void format(int type, int length) {
+        String data;
+        if (type == OUTGOING) {
+            if (byteScratch.length < length)
+                byteScratch = new byte[Math.max(length, byteScratch.length * 2)];
+            for (int i = 0; i < length; i++)
+                byteScratch[i] = (byte) scratch[i];
+            try {
+                data = new String(byteScratch, 0, length, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                data = new String(byteScratch, 0, length);
+            }
+        } else {
+            data = new String(scratch, 0, length);
+        }
+        try {
+            log(type, data);
+            loggedCount.incrementAndGet();
+        } catch (RuntimeException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to write wire log entry", ex);
+        }
+    }
+
+    private void reportDrops() {
+        long dropped = droppedCount.get();
+        if (dropped == reportedDrops)
+            return;
+        if (log.isWarnEnabled())
+            log.warn((dropped - reportedDrops) + " wire log entries dropped since the log could not keep up");
+        reportedDrops = dropped;
+    }
+
+    private void refreshEnabled() {
+        incomingEnabled = XMPPLogger.canLogIncoming();
+        ignoredEnabled = XMPPLogger.canLogIgnored();
+        outgoingEnabled = XMPPLogger.canLogOutgoing();
+    }
+}
@@ -9,7 +9,6 @@ import org.apache.commons.logging.LogFactory;
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
-import com.echomine.jibx.XMPPLoggableReader;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.xmpp.IXMPPAuthenticator;
 import com.echomine.xmpp.XMPPConstants;
@@ -80,14 +79,12 @@ public abstract class BaseSaslAuthenticator implements IXMPPAuthenticator,
                 log.info("SASL authentication complete, resetting input and output streams for new handshake");
             // reset writer and unmarshalling context for handshake
             // renegotiation preparation
-            XMPPLoggableReader bis = new XMPPLoggableReader(streamCtx.getSocket().getInputStream(), "UTF-8");
             BufferedOutputStream bos = new BufferedOutputStream(streamCtx.getSocket().getOutputStream(), SOCKETBUF);
             writer.flush();
             writer = new XMPPStreamWriter();
             writer.setOutput(bos);
-            uctx.setDocument(bis);
+            streamCtx.setInput(streamCtx.getSocket().getInputStream());
             streamCtx.setWriter(writer);
-            streamCtx.setReader(bis);
         } catch (IOException ex) {
             throw new XMPPException(ex);
         } catch (JiBXException ex) {
@@ -0,0 +1,126 @@
+package com.echomine.xmpp.auth;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.XMPPAuthCallback;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.auth.sasl.ScramSaslClient;
+
+/**
+ * This is the base authenticator for the SASL SCRAM mechanisms (RFC 5802).
+ * Unlike DIGEST-MD5, the server proves that it knows the password as well, and
+ * the authentication fails if its signature is wrong. The keys derived from
+ * the password are cached across connections, so reconnects only cost a few
+ * hashes instead of thousands.
+ *
+ * @see ScramSaslClient
+ */
+public abstract class ScramSaslAuthenticator extends BaseSaslAuthenticator {
+    private static Log log = LogFactory.getLog(ScramSaslAuthenticator.class);
+    private static final String CHALLENGE_ELEMENT_NAME = "challenge";
+    private static final String RESPONSE_ELEMENT_NAME = "response";
+    private static final String SUCCESS_ELEMENT_NAME = "success";
+    private final ScramSaslClient.Mechanism mechanism;
+
+    /**
+     * @param mechanism the SCRAM mechanism to authenticate with
+     */
+    protected ScramSaslAuthenticator(ScramSaslClient.Mechanism mechanism) {
+        this.mechanism = mechanism;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IXMPPAuthenticator#canAuthenticate(com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    public boolean canAuthenticate(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) {
+        if (!streamCtx.getFeatures().isSaslSupported()) return false;
+        return streamCtx.getFeatures().isSaslMechanismSupported(mechanism.getName());
+    }
+
+    /*
+     * Authenticates using the SASL SCRAM mechanism
+     *
+     * @see com.echomine.xmpp.auth.BaseSaslAuthenticator#processSasl(int,
+     *      org.jibx.runtime.impl.UnmarshallingContext,
+     *      com.echomine.jibx.XMPPStreamWriter,
+     *      com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    @Override
+    protected void processSasl(int idx, UnmarshallingContext uctx, XMPPStreamWriter writer, XMPPSessionContext sessCtx, XMPPStreamContext streamCtx)
+            throws IOException, JiBXException, XMPPException {
+        XMPPAuthCallback callback = streamCtx.getAuthCallback();
+        if (callback == null)
+            throw new IllegalStateException("Authentication callback must be set");
+        ScramSaslClient client = createClient(mechanism);
+        // send <auth> with the client-first-message
+        writer.startTagNamespaces(idx, "auth", new int[] { idx }, new String[] { "" });
+        writer.addAttribute(0, "mechanism", mechanism.getName());
+        writer.closeStartTag();
+        writer.writeTextContent(client.getInitialResponse(callback.getUsername()));
+        writer.endTag(idx, "auth");
+        writer.flush();
+        // synchronize the first access in case connection handler read extra
+        // data
+        synchronized (uctx) {
+            if (!uctx.isAt(NS_STREAM_SASL, CHALLENGE_ELEMENT_NAME)
+                    && !uctx.isAt(NS_STREAM_SASL, FAILURE_ELEMENT_NAME))
+                uctx.next();
+        }
+        parseAndThrowFailure(uctx, streamCtx);
+        String challenge = parseElementText(uctx, CHALLENGE_ELEMENT_NAME, streamCtx);
+        // the keys are cached per account, not only per username
+        String account = new JID(callback.getUsername(), sessCtx.getHostName(), null).getJIDWithoutResource();
+        String response = client.getFinalResponse(challenge, account, callback.getPassword());
+        writer.startTagNamespaces(idx, RESPONSE_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+        writer.closeStartTag();
+        writer.writeTextContent(response);
+        writer.endTag(idx, RESPONSE_ELEMENT_NAME);
+        writer.flush();
+        uctx.next();
+        parseAndThrowFailure(uctx, streamCtx);
+        String serverFinal;
+        if (uctx.isAt(NS_STREAM_SASL, CHALLENGE_ELEMENT_NAME)) {
+            // some servers send the server-final-message as a challenge,
+            // which is answered with an empty response
+            serverFinal = parseElementText(uctx, CHALLENGE_ELEMENT_NAME, streamCtx);
+            if (!client.verifyServerFinal(serverFinal))
+                throw new XMPPException("SCRAM server signature is invalid");
+            writer.startTagNamespaces(idx, RESPONSE_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+            writer.closeEmptyTag();
+            writer.flush();
+            uctx.next();
+            parseAndThrowFailure(uctx, streamCtx);
+            parseElementText(uctx, SUCCESS_ELEMENT_NAME, streamCtx);
+        } else {
+            serverFinal = parseElementText(uctx, SUCCESS_ELEMENT_NAME, streamCtx);
+            if (!client.verifyServerFinal(serverFinal))
+                throw new XMPPException("SCRAM server signature is invalid");
+        }
+        if (log.isInfoEnabled())
+            log.info("Server signature verified, " + mechanism.getName() + " authentication complete");
+    }
+
+    /**
+     * Creates the client that works out the exchange. Subclasses can override
+     * this to use a different key cache.
+     *
+     * @param mechanism the SCRAM mechanism
+     * @return the client
+     */
+    protected ScramSaslClient createClient(ScramSaslClient.Mechanism mechanism) {
+        return new ScramSaslClient(mechanism);
+    }
+}
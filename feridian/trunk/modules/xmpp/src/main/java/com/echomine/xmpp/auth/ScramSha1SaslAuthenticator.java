@@ -0,0 +1,12 @@
+package com.echomine.xmpp.auth;
+
+import com.echomine.xmpp.auth.sasl.ScramSaslClient;
+
+/**
+ * This authenticator performs SASL SCRAM-SHA-1 authentication.
+ */
+public class ScramSha1SaslAuthenticator extends ScramSaslAuthenticator {
+    public ScramSha1SaslAuthenticator() {
+        super(ScramSaslClient.Mechanism.SHA_1);
+    }
+}
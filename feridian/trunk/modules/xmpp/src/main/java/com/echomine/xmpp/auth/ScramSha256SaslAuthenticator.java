@@ -0,0 +1,12 @@
+package com.echomine.xmpp.auth;
+
+import com.echomine.xmpp.auth.sasl.ScramSaslClient;
+
+/**
+ * This authenticator performs SASL SCRAM-SHA-256 authentication.
+ */
+public class ScramSha256SaslAuthenticator extends ScramSaslAuthenticator {
+    public ScramSha256SaslAuthenticator() {
+        super(ScramSaslClient.Mechanism.SHA_256);
+    }
+}
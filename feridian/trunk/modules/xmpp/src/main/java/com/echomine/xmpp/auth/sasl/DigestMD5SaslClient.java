@@ -4,7 +4,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -81,11 +80,11 @@ public class DigestMD5SaslClient {
      * @return the password digest string
      */
     private String generatePasswordDigest(XMPPSessionContext sessCtx, XMPPAuthCallback callback) {
-        MessageDigest md;
+        MessageDigest md = null;
         byte[] temp;
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            md = MessageDigest.getInstance("MD5");
+            md = SaslCrypto.getDigest("MD5");
             String realm = challengeCtx.getRealm() != null ? challengeCtx.getRealm()
                     : "";
             String x = callback.getUsername() + ":" + realm + ":"
@@ -111,25 +110,32 @@ public class DigestMD5SaslClient {
             throw new IllegalStateException("Specified message digest algorithm not supported");
         } catch (IOException ex) {
             throw new IllegalArgumentException("IOException during hashing");
+        } finally {
+            if (md != null)
+                SaslCrypto.releaseDigest(md);
         }
     }
 
     /**
      * Generate our own nonce to return. Used to prevent replay attacks. Our
-     * generation is rather simple. Current implementation simply uses random
-     * bytes
+     * generation is rather simple. Current implementation simply hashes random
+     * bytes taken from the shared SecureRandom, since seeding a new one for
+     * every login is costly when many connections log in at once.
      * 
      * @return
      */
     private String generateCNonce() {
-        SecureRandom rand = new SecureRandom();
-        byte[] randBytes = new byte[1024];
-        rand.nextBytes(randBytes);
+        byte[] randBytes = new byte[32];
+        SaslCrypto.nextBytes(randBytes);
+        MessageDigest md = null;
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
+            md = SaslCrypto.getDigest("MD5");
             return Base64.encodeBytes(md.digest(randBytes));
         } catch (NoSuchAlgorithmException ex) {
             throw new IllegalStateException("Specified message digest algorithm not supported");
+        } finally {
+            if (md != null)
+                SaslCrypto.releaseDigest(md);
         }
     }
 }
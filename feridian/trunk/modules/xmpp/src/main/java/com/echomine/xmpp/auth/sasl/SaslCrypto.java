@@ -0,0 +1,110 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * Shares the cryptographic objects used by the SASL clients. Creating a
+ * SecureRandom seeds it from the system, and looking up a MessageDigest or a
+ * Mac goes through the security providers. Both cost more than the hashing
+ * itself when many connections log in at once, so a single SecureRandom is
+ * shared, and digests and macs are pooled per algorithm.
+ * </p>
+ * <p>
+ * A pooled instance must be released once it is no longer used, and must not
+ * be used after it is released. The pools grow to the number of logins that
+ * run at the same time. A mac is keyed with a fixed dummy key when it is
+ * released, so that the pool does not keep the password or the keys derived
+ * from it.
+ * </p>
+ */
+public final class SaslCrypto {
+    private static final byte[] RELEASED_KEY = new byte[] { 0 };
+    private static final SecureRandom random = new SecureRandom();
+    private static final ConcurrentHashMap<String, ConcurrentLinkedQueue<MessageDigest>> digests = new ConcurrentHashMap<String, ConcurrentLinkedQueue<MessageDigest>>();
+    private static final ConcurrentHashMap<String, ConcurrentLinkedQueue<Mac>> macs = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Mac>>();
+
+    private SaslCrypto() {
+    }
+
+    /**
+     * Fills the array with random bytes from the shared SecureRandom.
+     *
+     * @param bytes the array to fill
+     */
+    public static void nextBytes(byte[] bytes) {
+        random.nextBytes(bytes);
+    }
+
+    /**
+     * Takes a digest from the pool, or creates one if the pool is empty.
+     *
+     * @param algorithm the digest algorithm (ie. SHA-1)
+     * @return a digest that is reset
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    public static MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest md = pool(digests, algorithm).poll();
+        return (md != null) ? md : MessageDigest.getInstance(algorithm);
+    }
+
+    /**
+     * Resets the digest and returns it to the pool.
+     *
+     * @param md the digest taken from the pool
+     */
+    public static void releaseDigest(MessageDigest md) {
+        md.reset();
+        pool(digests, md.getAlgorithm()).offer(md);
+    }
+
+    /**
+     * Takes a mac from the pool, or creates one if the pool is empty. The mac
+     * must be initialized with a key before it is used.
+     *
+     * @param algorithm the mac algorithm (ie. HmacSHA1)
+     * @return a mac
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    public static Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+        Mac mac = pool(macs, algorithm).poll();
+        return (mac != null) ? mac : Mac.getInstance(algorithm);
+    }
+
+    /**
+     * Replaces the key of the mac with a dummy key and returns it to the
+     * pool. A mac that cannot be keyed again is dropped instead.
+     *
+     * @param mac the mac taken from the pool
+     */
+    public static void releaseMac(Mac mac) {
+        try {
+            mac.init(new SecretKeySpec(RELEASED_KEY, mac.getAlgorithm()));
+        } catch (InvalidKeyException ex) {
+            return;
+        }
+        pool(macs, mac.getAlgorithm()).offer(mac);
+    }
+
+    /**
+     * @return the pool of the algorithm, which is created on first use
+     */
+    private static <T> ConcurrentLinkedQueue<T> pool(ConcurrentHashMap<String, ConcurrentLinkedQueue<T>> pools, String algorithm) {
+        ConcurrentLinkedQueue<T> pool = pools.get(algorithm);
+        if (pool == null) {
+            pool = new ConcurrentLinkedQueue<T>();
+            ConcurrentLinkedQueue<T> existing = pools.putIfAbsent(algorithm, pool);
+            if (existing != null)
+                pool = existing;
+        }
+        return pool;
+    }
+}
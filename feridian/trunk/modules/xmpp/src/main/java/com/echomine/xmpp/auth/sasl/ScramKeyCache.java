@@ -0,0 +1,229 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.Base64;
+
+/**
+ * <p>
+ * Caches the keys that SCRAM derives from the password. Deriving them runs
+ * PBKDF2 with the iteration count given by the server (4096 or more), which is
+ * by far the most expensive part of a login. The server sends the same salt
+ * and iteration count until the password is changed, so the keys are kept per
+ * account, salt and iteration count, and reconnects skip the derivation.
+ * </p>
+ * <p>
+ * The password itself is not kept. An HMAC of the salt and the password is
+ * kept with the keys instead, so that keys derived from an old password are
+ * not used after the password is changed locally. The HMAC is keyed with a
+ * random secret that is created once per process and never leaves it, so the
+ * cached value cannot be used to guess the password offline. The least
+ * recently used keys are dropped once the cache is full.
+ * </p>
+ */
+public class ScramKeyCache {
+    private static final Log log = LogFactory.getLog(ScramKeyCache.class);
+    /** the default number of accounts whose keys are kept */
+    public static final int DEFAULT_MAX_SIZE = 256;
+    private static final byte[] INT_1 = new byte[] { 0, 0, 0, 1 };
+    private static final byte[] secret = new byte[32];
+    private static final ScramKeyCache sharedCache = new ScramKeyCache(DEFAULT_MAX_SIZE);
+    private final KeyMap keys;
+    private long hits;
+    private long misses;
+
+    static {
+        SaslCrypto.nextBytes(secret);
+    }
+
+    /**
+     * @return the cache shared by the whole library
+     */
+    public static ScramKeyCache getSharedCache() {
+        return sharedCache;
+    }
+
+    /**
+     * @param maxSize the number of accounts whose keys are kept
+     */
+    public ScramKeyCache(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Max size must be positive");
+        keys = new KeyMap(maxSize);
+    }
+
+    /**
+     * Retrieves the keys of the account, deriving them if they are not cached
+     * yet. The derivation is done outside of the cache's lock, so that logins
+     * of other accounts are not held up.
+     *
+     * @param mechanism the SCRAM mechanism
+     * @param account the account the password belongs to
+     * @param password the password encoded in UTF-8, which must not be empty
+     * @param salt the salt sent by the server
+     * @param iterations the iteration count sent by the server
+     * @return the keys
+     * @throws GeneralSecurityException if the algorithms are not supported
+     */
+    public Keys getKeys(ScramSaslClient.Mechanism mechanism, String account, byte[] password, byte[] salt, int iterations)
+            throws GeneralSecurityException {
+        String key = mechanism.getName() + '\0' + account + '\0' + Base64.encodeBytes(salt) + '\0' + iterations;
+        byte[] passwordHash = hashPassword(mechanism, password, salt);
+        synchronized (this) {
+            Keys cached = keys.get(key);
+            if (cached != null && MessageDigest.isEqual(cached.passwordHash, passwordHash)) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Deriving " + mechanism.getName() + " keys for " + account + " with " + iterations + " iterations");
+        Keys derived = derive(mechanism, password, salt, iterations, passwordHash);
+        synchronized (this) {
+            keys.put(key, derived);
+        }
+        return derived;
+    }
+
+    /**
+     * @return the number of times the keys were found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of times the keys had to be derived
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of accounts whose keys are cached
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Drops all cached keys.
+     */
+    public synchronized void clear() {
+        keys.clear();
+    }
+
+    /**
+     * derives the keys as defined by RFC 5802
+     */
+    private static Keys derive(ScramSaslClient.Mechanism mechanism, byte[] password, byte[] salt, int iterations, byte[] passwordHash)
+            throws GeneralSecurityException {
+        Mac mac = SaslCrypto.getMac(mechanism.getMacAlgorithm());
+        MessageDigest md = SaslCrypto.getDigest(mechanism.getDigestAlgorithm());
+        try {
+            // SaltedPassword := Hi(password, salt, i)
+            mac.init(new SecretKeySpec(password, mechanism.getMacAlgorithm()));
+            mac.update(salt);
+            mac.update(INT_1);
+            byte[] u = mac.doFinal();
+            byte[] saltedPassword = u.clone();
+            for (int i = 1; i < iterations; i++) {
+                u = mac.doFinal(u);
+                for (int j = 0; j < u.length; j++)
+                    saltedPassword[j] ^= u[j];
+            }
+            mac.init(new SecretKeySpec(saltedPassword, mechanism.getMacAlgorithm()));
+            byte[] clientKey = mac.doFinal("Client Key".getBytes("UTF-8"));
+            byte[] serverKey = mac.doFinal("Server Key".getBytes("UTF-8"));
+            return new Keys(clientKey, md.digest(clientKey), serverKey, passwordHash);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        } finally {
+            SaslCrypto.releaseMac(mac);
+            SaslCrypto.releaseDigest(md);
+        }
+    }
+
+    /**
+     * hashes the salt and the password with the process secret, which is cheap
+     * compared to deriving the keys
+     */
+    private static byte[] hashPassword(ScramSaslClient.Mechanism mechanism, byte[] password, byte[] salt)
+            throws GeneralSecurityException {
+        Mac mac = SaslCrypto.getMac(mechanism.getMacAlgorithm());
+        try {
+            mac.init(new SecretKeySpec(secret, mechanism.getMacAlgorithm()));
+            mac.update(salt);
+            return mac.doFinal(password);
+        } finally {
+            SaslCrypto.releaseMac(mac);
+        }
+    }
+
+    /**
+     * Keeps the keys in access order, and drops the least recently used ones
+     * once there are more than the max size.
+     */
+    private static class KeyMap extends LinkedHashMap<String, Keys> {
+        private static final long serialVersionUID = 6044237620961538542L;
+        private final int maxSize;
+
+        KeyMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Keys> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * The keys derived from a password. They are only read once created.
+     */
+    public static class Keys {
+        private final byte[] clientKey;
+        private final byte[] storedKey;
+        private final byte[] serverKey;
+        private final byte[] passwordHash;
+
+        Keys(byte[] clientKey, byte[] storedKey, byte[] serverKey, byte[] passwordHash) {
+            this.clientKey = clientKey;
+            this.storedKey = storedKey;
+            this.serverKey = serverKey;
+            this.passwordHash = passwordHash;
+        }
+
+        /**
+         * @return the ClientKey, which must not be modified
+         */
+        public byte[] getClientKey() {
+            return clientKey;
+        }
+
+        /**
+         * @return the StoredKey, which must not be modified
+         */
+        public byte[] getStoredKey() {
+            return storedKey;
+        }
+
+        /**
+         * @return the ServerKey, which must not be modified
+         */
+        public byte[] getServerKey() {
+            return serverKey;
+        }
+    }
+}
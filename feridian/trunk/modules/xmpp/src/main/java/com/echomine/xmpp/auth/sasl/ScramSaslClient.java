@@ -0,0 +1,288 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.Base64;
+import com.echomine.xmpp.XMPPException;
+
+/**
+ * <p>
+ * Works out the client side of the SCRAM exchange defined by RFC 5802. The
+ * client sends the initial response, answers the challenge with the client
+ * proof, and verifies the server signature sent with the success.
+ * </p>
+ * <p>
+ * The keys derived from the password are taken from a ScramKeyCache, so that
+ * reconnects of the same account do not derive them again. Channel binding is
+ * not supported, and the password is not normalized with SASLprep, which only
+ * matters for passwords that are not plain ASCII.
+ * </p>
+ */
+public class ScramSaslClient {
+    private static final Log log = LogFactory.getLog(ScramSaslClient.class);
+    private static final String GS2_HEADER = "n,,";
+
+    /**
+     * The SCRAM mechanisms and their hash algorithms
+     */
+    public enum Mechanism {
+        SHA_1("SCRAM-SHA-1", "SHA-1", "HmacSHA1"),
+        SHA_256("SCRAM-SHA-256", "SHA-256", "HmacSHA256");
+
+        private final String name;
+        private final String digestAlgorithm;
+        private final String macAlgorithm;
+
+        Mechanism(String name, String digestAlgorithm, String macAlgorithm) {
+            this.name = name;
+            this.digestAlgorithm = digestAlgorithm;
+            this.macAlgorithm = macAlgorithm;
+        }
+
+        /**
+         * @return the SASL mechanism name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the digest algorithm
+         */
+        public String getDigestAlgorithm() {
+            return digestAlgorithm;
+        }
+
+        /**
+         * @return the mac algorithm
+         */
+        public String getMacAlgorithm() {
+            return macAlgorithm;
+        }
+    }
+
+    private final Mechanism mechanism;
+    private final ScramKeyCache cache;
+    private final String cnonce;
+    private String clientFirstBare;
+    private byte[] serverSignature;
+
+    /**
+     * Creates a client that uses the shared key cache.
+     *
+     * @param mechanism the SCRAM mechanism
+     */
+    public ScramSaslClient(Mechanism mechanism) {
+        this(mechanism, ScramKeyCache.getSharedCache(), generateCNonce());
+    }
+
+    /**
+     * Creates a client with a known nonce. This is used for testing against
+     * the examples of the specifications.
+     *
+     * @param mechanism the SCRAM mechanism
+     * @param cache the cache of derived keys
+     * @param cnonce the client nonce
+     */
+    ScramSaslClient(Mechanism mechanism, ScramKeyCache cache, String cnonce) {
+        this.mechanism = mechanism;
+        this.cache = cache;
+        this.cnonce = cnonce;
+    }
+
+    /**
+     * Creates the client-first-message.
+     *
+     * @param username the username to authenticate as
+     * @return the base64-encoded message
+     */
+    public String getInitialResponse(String username) {
+        clientFirstBare = "n=" + escape(username) + ",r=" + cnonce;
+        return encode(GS2_HEADER + clientFirstBare);
+    }
+
+    /**
+     * Answers the server-first-message with the client-final-message, which
+     * proves that the client knows the password.
+     *
+     * @param challenge the base64-encoded challenge
+     * @param account the account the password belongs to, which the derived
+     *            keys are cached for
+     * @param password the password
+     * @return the base64-encoded response
+     * @throws XMPPException if the challenge is invalid
+     */
+    public String getFinalResponse(String challenge, String account, char[] password) throws XMPPException {
+        if (clientFirstBare == null)
+            throw new IllegalStateException("Initial response must be created first");
+        String serverFirst = decode(challenge);
+        if (log.isDebugEnabled())
+            log.debug("Decoded Challenge String: " + serverFirst);
+        HashMap<String, String> values = parse(serverFirst);
+        String nonce = values.get("r");
+        String salt = values.get("s");
+        String iterations = values.get("i");
+        if (values.containsKey("m"))
+            throw new XMPPException("SCRAM extensions are not supported");
+        if (nonce == null || salt == null || iterations == null)
+            throw new XMPPException("Invalid SCRAM challenge: " + serverFirst);
+        if (!nonce.startsWith(cnonce) || nonce.length() == cnonce.length())
+            throw new XMPPException("SCRAM nonce does not extend the client nonce");
+        int count;
+        try {
+            count = Integer.parseInt(iterations);
+        } catch (NumberFormatException ex) {
+            throw new XMPPException("Invalid SCRAM iteration count: " + iterations);
+        }
+        if (count < 1)
+            throw new XMPPException("Invalid SCRAM iteration count: " + iterations);
+        if (password == null || password.length == 0)
+            throw new XMPPException("SCRAM requires a password");
+        String clientFinalWithoutProof = "c=" + encode(GS2_HEADER) + ",r=" + nonce;
+        String authMessage = clientFirstBare + "," + serverFirst + "," + clientFinalWithoutProof;
+        try {
+            ScramKeyCache.Keys keys;
+            byte[] passwordBytes = encodePassword(password);
+            try {
+                keys = cache.getKeys(mechanism, account, passwordBytes, Base64.decode(salt), count);
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+            byte[] authBytes = authMessage.getBytes("UTF-8");
+            Mac mac = SaslCrypto.getMac(mechanism.getMacAlgorithm());
+            try {
+                // ClientProof := ClientKey XOR HMAC(StoredKey, AuthMessage)
+                mac.init(new SecretKeySpec(keys.getStoredKey(), mechanism.getMacAlgorithm()));
+                byte[] proof = mac.doFinal(authBytes);
+                byte[] clientKey = keys.getClientKey();
+                for (int i = 0; i < proof.length; i++)
+                    proof[i] ^= clientKey[i];
+                mac.init(new SecretKeySpec(keys.getServerKey(), mechanism.getMacAlgorithm()));
+                serverSignature = mac.doFinal(authBytes);
+                return encode(clientFinalWithoutProof + ",p=" + Base64.encodeBytes(proof));
+            } finally {
+                SaslCrypto.releaseMac(mac);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new XMPPException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
+
+    /**
+     * Verifies the server-final-message, which proves that the server knows
+     * the password as well.
+     *
+     * @param data the base64-encoded data sent with the success
+     * @return true if the server signature is correct
+     * @throws XMPPException if the server sent an error
+     */
+    public boolean verifyServerFinal(String data) throws XMPPException {
+        if (serverSignature == null)
+            throw new IllegalStateException("Final response must be created first");
+        if (data == null)
+            return false;
+        HashMap<String, String> values = parse(decode(data));
+        if (values.containsKey("e"))
+            throw new XMPPException("SCRAM failed with error: " + values.get("e"));
+        String verifier = values.get("v");
+        return verifier != null && MessageDigest.isEqual(serverSignature, Base64.decode(verifier));
+    }
+
+    /**
+     * Encodes the password in UTF-8 without going through a String, which
+     * would keep the password in memory until it is garbage collected. The
+     * caller must clear the returned array once it is done with it.
+     */
+    private static byte[] encodePassword(char[] password) {
+        CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.ceil(password.length * encoder.maxBytesPerChar()));
+        encoder.encode(CharBuffer.wrap(password), buf, true);
+        encoder.flush(buf);
+        byte[] bytes = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, bytes, 0, bytes.length);
+        Arrays.fill(buf.array(), (byte) 0);
+        return bytes;
+    }
+
+    /**
+     * escapes the characters that cannot appear in a name as is
+     */
+    private static String escape(String name) {
+        StringBuffer buf = new StringBuffer(name.length() + 8);
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch == '=')
+                buf.append("=3D");
+            else if (ch == ',')
+                buf.append("=2C");
+            else
+                buf.append(ch);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * parses the comma-separated attributes of a message. Values may contain
+     * equal signs (ie. base64).
+     */
+    private static HashMap<String, String> parse(String message) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        StringTokenizer tokenizer = new StringTokenizer(message, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken();
+            int eq = token.indexOf('=');
+            if (eq > 0)
+                values.put(token.substring(0, eq), token.substring(eq + 1));
+        }
+        return values;
+    }
+
+    /**
+     * encodes the message in base64 without line breaks
+     */
+    private static String encode(String message) {
+        try {
+            return Base64.encodeBytes(message.getBytes("UTF-8")).replace("\n", "");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
+
+    private static String decode(String data) {
+        try {
+            return new String(Base64.decode(data.trim()), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
+
+    /**
+     * Generates the client nonce from the shared SecureRandom. The base64
+     * alphabet does not contain commas, so the nonce can be used as is.
+     */
+    private static String generateCNonce() {
+        byte[] randBytes = new byte[18];
+        SaslCrypto.nextBytes(randBytes);
+        return Base64.encodeBytes(randBytes);
+    }
+}
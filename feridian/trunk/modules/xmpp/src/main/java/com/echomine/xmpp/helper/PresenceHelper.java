@@ -17,7 +17,9 @@ public class PresenceHelper {
      * sets status to available with optional show state and status line. The
      * default priority is 0. This method is asynchronous. If you need to tag
      * additional extension information to the presence packet, you will need to
-     * create your own presence packet.
+     * create your own presence packet. Calling this repeatedly in a short time
+     * only sends the latest presence if outgoing presence is coalesced (see
+     * PacketQueue.getPresenceCoalescer()).
      * 
      * @param conn the connection to send this packet through
      * @param show optional parameter to set the show state (available states
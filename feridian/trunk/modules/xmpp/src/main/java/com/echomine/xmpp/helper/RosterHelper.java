@@ -18,8 +18,10 @@ import com.echomine.xmpp.packet.RosterItem;
  * Advanced uses SHOULD directly instantiate the roster packet.
  * <p>
  * Please refer to the roster packet for more details on how to work with
- * rosters
+ * rosters. Clients that need to keep the roster up to date with the pushes
+ * from the server should use the roster of the connection instead.
  * 
+ * @see com.echomine.xmpp.IXMPPConnection#getRoster()
  * @see com.echomine.xmpp.packet.RosterIQPacket
  * @see com.echomine.xmpp.packet.RosterItem
  */
@@ -0,0 +1,309 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.ThreadUtil;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPConnectionFactory;
+import com.echomine.xmpp.XMPPException;
+
+/**
+ * <p>
+ * Connects and logs in many accounts at once, such as when a node restarts
+ * and has to reconnect all its accounts. Each account is connected and logged
+ * in by one of a fixed number of workers, so that many handshakes are in
+ * progress at the same time without starting a thread per account. The rate
+ * at which new connections are started can be limited so that the server is
+ * not flooded with connection attempts.
+ * </p>
+ * <p>
+ * The time spent in each phase (TCP, stream handshake, TLS, authentication,
+ * binding and session) is recorded for every connection and accumulated for
+ * all connections. Since the TLS sessions are kept by the shared SSL context
+ * (see TLSHandshakeStream), reconnecting to the same server resumes the
+ * previous TLS sessions.
+ * </p>
+ */
+public class BulkConnector {
+    private static final Log log = LogFactory.getLog(BulkConnector.class);
+
+    /**
+     * The details needed to connect and log in an account
+     */
+    public static class Account {
+        private final String host;
+        private final int port;
+        private final String domain;
+        private final String username;
+        private final char[] password;
+        private final String resource;
+
+        /**
+         * @param host the host name to connect to
+         * @param port the port to connect to
+         * @param domain the xmpp domain, null if the same as the host
+         * @param username the username
+         * @param password the password
+         * @param resource optional resource to bind to
+         */
+        public Account(String host, int port, String domain, String username, char[] password, String resource) {
+            this.host = host;
+            this.port = port;
+            this.domain = (domain != null) ? domain : host;
+            this.username = username;
+            this.password = password;
+            this.resource = resource;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public char[] getPassword() {
+            return password;
+        }
+
+        public String getResource() {
+            return resource;
+        }
+    }
+
+    /**
+     * The outcome of connecting an account
+     */
+    public static class Result {
+        private final Account account;
+        private final IXMPPConnection connection;
+        private final ConnectTimings timings;
+        private final Throwable failure;
+
+        Result(Account account, IXMPPConnection connection, ConnectTimings timings, Throwable failure) {
+            this.account = account;
+            this.connection = connection;
+            this.timings = timings;
+            this.failure = failure;
+        }
+
+        public Account getAccount() {
+            return account;
+        }
+
+        /**
+         * @return the logged in connection, or null if the account failed
+         */
+        public IXMPPConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return the time spent in each phase, as far as the account got
+         */
+        public ConnectTimings getTimings() {
+            return timings;
+        }
+
+        /**
+         * @return the reason the account failed, or null if it succeeded
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+    }
+
+    private final ExecutorService workers;
+    private final ConnectTimings totalTimings = new ConnectTimings();
+    private final AtomicLong connectedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile long connectInterval;
+    private long nextConnectTime = System.nanoTime();
+
+    /**
+     * @param workers the number of accounts that are connected at the same
+     *            time
+     */
+    public BulkConnector(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("There must be at least one worker");
+        final AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = ThreadUtil.getDefaultThreadFactory().newThread(r);
+                thread.setName("Feridian Bulk Connector " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Limits the rate at which new connections are started. The connections
+     * are spread out evenly instead of being started in bursts.
+     *
+     * @param connectsPerSecond the max number of connections started per
+     *            second, 0 for no limit
+     */
+    public void setConnectRate(double connectsPerSecond) {
+        if (connectsPerSecond < 0)
+            throw new IllegalArgumentException("Connect rate cannot be negative");
+        connectInterval = (connectsPerSecond == 0) ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / connectsPerSecond);
+    }
+
+    /**
+     * @return the max number of connections started per second, 0 if there
+     *         is no limit
+     */
+    public double getConnectRate() {
+        long interval = connectInterval;
+        return (interval == 0) ? 0 : (double) TimeUnit.SECONDS.toNanos(1) / interval;
+    }
+
+    /**
+     * Queues the account to be connected and logged in by the next free
+     * worker.
+     *
+     * @param account the account to connect
+     * @return the future for the outcome, which never fails; a failure to
+     *         connect is reported in the result
+     */
+    public Future<Result> connect(final Account account) {
+        return workers.submit(new Callable<Result>() {
+            public Result call() throws Exception {
+                return connectAccount(account);
+            }
+        });
+    }
+
+    /**
+     * Queues all the accounts to be connected and logged in.
+     *
+     * @param accounts the accounts to connect
+     * @return the futures for the outcomes, in the order of the accounts
+     */
+    public List<Future<Result>> connectAll(Collection<Account> accounts) {
+        List<Future<Result>> results = new ArrayList<Future<Result>>(accounts.size());
+        for (Account account : accounts)
+            results.add(connect(account));
+        return results;
+    }
+
+    /**
+     * @return the accumulated time spent in each phase by all the accounts
+     */
+    public ConnectTimings getTotalTimings() {
+        return totalTimings;
+    }
+
+    /**
+     * @return the number of accounts that were connected and logged in
+     */
+    public long getConnectedCount() {
+        return connectedCount.get();
+    }
+
+    /**
+     * @return the number of accounts that failed to connect or log in
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stops the workers. Accounts that are queued but not yet started are not
+     * connected; the connections that are established are not affected.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Creates the connection for an account. By default, the connection is
+     * created by the configured connection factory.
+     *
+     * @return a new connection
+     * @throws XMPPException if the connection cannot be created
+     */
+    protected IXMPPConnection createConnection() throws XMPPException {
+        return XMPPConnectionFactory.getFactory().createXMPPConnection();
+    }
+
+    /**
+     * connects and logs in the account in the current worker
+     */
+    private Result connectAccount(Account account) throws InterruptedException {
+        waitForConnectSlot();
+        IXMPPConnection conn = null;
+        try {
+            conn = createConnection();
+            conn.connect(account.getHost(), account.getPort(), account.getDomain(), true);
+            conn.login(account.getUsername(), account.getPassword(), account.getResource());
+            connectedCount.incrementAndGet();
+            return new Result(account, conn, recordTimings(conn), null);
+        } catch (Exception ex) {
+            if (log.isInfoEnabled())
+                log.info("Unable to connect " + account.getUsername() + "@" + account.getDomain(), ex);
+            failedCount.incrementAndGet();
+            ConnectTimings timings = null;
+            if (conn != null) {
+                timings = recordTimings(conn);
+                conn.disconnect();
+            }
+            return new Result(account, null, timings, ex);
+        }
+    }
+
+    private ConnectTimings recordTimings(IXMPPConnection conn) {
+        ConnectTimings timings = new ConnectTimings();
+        if (conn instanceof XMPPConnectionImpl) {
+            timings.add(((XMPPConnectionImpl) conn).getConnectTimings());
+            totalTimings.add(timings);
+        }
+        return timings;
+    }
+
+    /**
+     * waits until the next connection may be started according to the
+     * connect rate
+     */
+    private void waitForConnectSlot() throws InterruptedException {
+        long interval = connectInterval;
+        if (interval == 0)
+            return;
+        long now = System.nanoTime();
+        long slot;
+        synchronized (this) {
+            slot = (nextConnectTime - now > 0) ? nextConnectTime : now;
+            nextConnectTime = slot + interval;
+        }
+        if (slot - now > 0)
+            TimeUnit.NANOSECONDS.sleep(slot - now);
+    }
+}
@@ -0,0 +1,126 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the time spent in each phase of establishing a session. The times are
+ * recorded by the connection handler while it connects and logs in, and are
+ * reset when the handler starts a new connection. When used to accumulate the
+ * timings of many connections, the number of times each phase was recorded is
+ * kept as well, so that averages can be computed.
+ */
+public class ConnectTimings {
+    /**
+     * The phases of establishing a session, in the order they occur
+     */
+    public enum Phase {
+        /** opening the socket, up to the start of the stream handshake */
+        TCP,
+        /** the initial stream handshake */
+        STREAM,
+        /** the TLS negotiation and the stream handshake after it */
+        TLS,
+        /** the SASL authentication (or other authentication) */
+        AUTH,
+        /** the resource binding */
+        BIND,
+        /** the session establishment */
+        SESSION,
+        /**
+         * the resumption of a previous session (XEP-0198), which replaces the
+         * resource binding and the session establishment
+         */
+        RESUME
+    }
+
+    private static final int PHASES = Phase.values().length;
+
+    private final AtomicLongArray times = new AtomicLongArray(PHASES);
+    private final AtomicLongArray counts = new AtomicLongArray(PHASES);
+
+    /**
+     * Records the time spent in a phase. Recording the same phase again adds
+     * to the time.
+     *
+     * @param phase the phase
+     * @param nanos the time spent in nanoseconds
+     */
+    public void record(Phase phase, long nanos) {
+        times.addAndGet(phase.ordinal(), nanos);
+        counts.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * Adds all the times of the other timings to these timings
+     *
+     * @param timings the timings to add
+     */
+    public void add(ConnectTimings timings) {
+        for (int i = 0; i < PHASES; i++) {
+            long count = timings.counts.get(i);
+            if (count == 0)
+                continue;
+            times.addAndGet(i, timings.times.get(i));
+            counts.addAndGet(i, count);
+        }
+    }
+
+    /**
+     * @param phase the phase
+     * @return the total time spent in the phase in nanoseconds
+     */
+    public long getTime(Phase phase) {
+        return times.get(phase.ordinal());
+    }
+
+    /**
+     * @param phase the phase
+     * @return the number of times the phase was recorded
+     */
+    public long getCount(Phase phase) {
+        return counts.get(phase.ordinal());
+    }
+
+    /**
+     * @param phase the phase
+     * @return the average time spent in the phase in nanoseconds, 0 if it was
+     *         never recorded
+     */
+    public long getAverageTime(Phase phase) {
+        long count = getCount(phase);
+        return count == 0 ? 0 : getTime(phase) / count;
+    }
+
+    /**
+     * @return the total time spent in all phases in nanoseconds
+     */
+    public long getTotalTime() {
+        long total = 0;
+        for (int i = 0; i < PHASES; i++)
+            total += times.get(i);
+        return total;
+    }
+
+    /**
+     * Clears all the timings
+     */
+    public void reset() {
+        for (int i = 0; i < PHASES; i++) {
+            times.set(i, 0);
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the timings of each phase in milliseconds
+     */
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        for (Phase phase : Phase.values()) {
+            if (buf.length() > 0)
+                buf.append(", ");
+            buf.append(phase).append('=').append(getTime(phase) / 1000000).append("ms");
+        }
+        return buf.toString();
+    }
+}
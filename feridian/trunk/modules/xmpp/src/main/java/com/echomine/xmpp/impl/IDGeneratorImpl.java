@@ -1,5 +1,7 @@
 package com.echomine.xmpp.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.echomine.xmpp.IDGenerator;
 
 /**
@@ -11,14 +13,13 @@ import com.echomine.xmpp.IDGenerator;
  */
 public class IDGeneratorImpl extends IDGenerator {
     private static final String ID_HEADER = "frdn_";
-    private int id;
+    private AtomicInteger id = new AtomicInteger();
 
     protected String generateID() {
         return String.valueOf(ID_HEADER + increment());
     }
 
     public int increment() {
-        // this is an atomic operation, no need for synchronization
-        return id++;
+        return id.getAndIncrement();
     }
 }
@@ -0,0 +1,348 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.util.ThreadUtil;
+import com.echomine.xmpp.IPacketFuture;
+import com.echomine.xmpp.IReplyListener;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.JIDFormatException;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.PingIQPacket;
+import com.echomine.xmpp.packet.XMLTextPacket;
+
+/**
+ * <p>
+ * Keeps an idle connection alive and detects connections that went dead
+ * without being closed. There are two kinds of keepalives, each of which can
+ * be turned on separately:
+ * <ul>
+ * <li>Whitespace keepalives send a single space once nothing has been sent
+ * for the whitespace interval. This keeps NATs and firewalls from dropping
+ * the idle connection, and lets the server know the client is still there.</li>
+ * <li>Pings (XEP-0199) send a ping to the server once nothing has been
+ * received for the ping interval. If no reply is received within the ping
+ * timeout, the connection is considered dead and is shut down. Any reply,
+ * including an error reply from a server that does not support pings, means
+ * the connection is alive. Pings are only sent once a resource is bound.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Unlike the KeepAlive of the old Jabber API, this does not use a thread per
+ * connection. The checks are scheduled on the timer shared by the whole
+ * library (the same timer the reply timeouts run on), so each connection
+ * costs only a single timer entry. The keepalives themselves are sent from
+ * an executor, since a queue without a thread of its own writes to the socket
+ * in the thread that queues the packet. Both kinds of keepalives are off by
+ * default.
+ * </p>
+ */
+public class KeepAlive implements Runnable {
+    private static final Log log = LogFactory.getLog(KeepAlive.class);
+    /**
+     * the default time in milliseconds to wait for the reply to a ping
+     */
+    public static final long DEFAULT_PING_TIMEOUT = 30000;
+    private static final XMLTextPacket WHITESPACE = new XMLTextPacket();
+
+    static {
+        WHITESPACE.setText(" ");
+    }
+
+    private final XMPPConnectionHandler handler;
+    private final AtomicBoolean pingPending = new AtomicBoolean();
+    private HashedWheelTimer timer = HashedWheelTimer.getSharedTimer();
+    private volatile Executor executor;
+    private long whitespaceInterval;
+    private long pingInterval;
+    private long pingTimeout = DEFAULT_PING_TIMEOUT;
+    private HashedWheelTimer.Timeout timeout;
+    private boolean started;
+
+    /**
+     * @param handler the handler of the connection to keep alive
+     */
+    public KeepAlive(XMPPConnectionHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the timer that schedules the checks. By default, the timer shared
+     * by the whole library is used.
+     *
+     * @param timer the timer to use
+     */
+    public synchronized void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+        reschedule();
+    }
+
+    /**
+     * Sets the executor that sends the keepalives. By default, the executor
+     * that notifies the connection's listeners is used.
+     *
+     * @param executor the executor, null to use the listeners' executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the idle time in milliseconds after which a whitespace
+     *         keepalive is sent, or 0 if whitespace keepalives are off
+     */
+    public synchronized long getWhitespaceInterval() {
+        return whitespaceInterval;
+    }
+
+    /**
+     * Sets the idle time after which a whitespace keepalive is sent. The
+     * change takes effect right away if the connection is already started.
+     *
+     * @param whitespaceInterval the interval in milliseconds, or 0 to turn
+     *            whitespace keepalives off
+     */
+    public synchronized void setWhitespaceInterval(long whitespaceInterval) {
+        this.whitespaceInterval = Math.max(0, whitespaceInterval);
+        reschedule();
+    }
+
+    /**
+     * @return the idle time in milliseconds after which the server is pinged,
+     *         or 0 if pings are off
+     */
+    public synchronized long getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Sets the time without any incoming data after which the server is
+     * pinged. The change takes effect right away if the connection is already
+     * started.
+     *
+     * @param pingInterval the interval in milliseconds, or 0 to turn pings off
+     */
+    public synchronized void setPingInterval(long pingInterval) {
+        this.pingInterval = Math.max(0, pingInterval);
+        reschedule();
+    }
+
+    /**
+     * @return the time in milliseconds to wait for the reply to a ping
+     */
+    public synchronized long getPingTimeout() {
+        return pingTimeout;
+    }
+
+    /**
+     * Sets the time to wait for the reply to a ping before the connection is
+     * considered dead.
+     *
+     * @param pingTimeout the timeout in milliseconds, must be > 0
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public synchronized void setPingTimeout(long pingTimeout) {
+        if (pingTimeout <= 0)
+            throw new IllegalArgumentException("Ping timeout must be > 0");
+        this.pingTimeout = pingTimeout;
+    }
+
+    /**
+     * starts checking the connection. This is called by the handler when the
+     * connection is started.
+     */
+    public synchronized void start() {
+        started = true;
+        pingPending.set(false);
+        reschedule();
+    }
+
+    /**
+     * stops checking the connection. This is called by the handler when the
+     * connection is shut down.
+     */
+    public synchronized void stop() {
+        started = false;
+        cancel();
+    }
+
+    /**
+     * Checks the connection and hands the keepalives that are due to the
+     * executor. This runs on the timer thread, and schedules the next check
+     * itself.
+     */
+    public void run() {
+        long now = System.nanoTime();
+        long wsInterval, pInterval;
+        synchronized (this) {
+            if (!started)
+                return;
+            timeout = null;
+            wsInterval = whitespaceInterval;
+            pInterval = pingInterval;
+        }
+        if (handler.isConnected()) {
+            boolean whitespace = wsInterval > 0 && idleTime(now, handler.getLastSentTime()) >= wsInterval;
+            boolean ping = pInterval > 0 && idleTime(now, handler.getLastReceivedTime()) >= pInterval;
+            if (whitespace || ping)
+                send(whitespace, ping);
+        }
+        synchronized (this) {
+            if (timeout == null)
+                reschedule();
+        }
+    }
+
+    /**
+     * Schedules the next check for when the earliest keepalive is due. Must be
+     * called with the lock held.
+     */
+    private void reschedule() {
+        cancel();
+        if (!started || (whitespaceInterval == 0 && pingInterval == 0))
+            return;
+        long now = System.nanoTime();
+        long delay = Long.MAX_VALUE;
+        if (whitespaceInterval > 0)
+            delay = Math.min(delay, nextDue(whitespaceInterval, idleTime(now, handler.getLastSentTime())));
+        if (pingInterval > 0)
+            delay = Math.min(delay, nextDue(pingInterval, idleTime(now, handler.getLastReceivedTime())));
+        timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the time until the keepalive is due again. If it is overdue
+     *         (ie. while a ping is still pending or the connection is not
+     *         running), the full interval is waited.
+     */
+    private long nextDue(long interval, long idleTime) {
+        long delay = interval - idleTime;
+        return (delay > 0) ? delay : interval;
+    }
+
+    /**
+     * cancels the scheduled check. Must be called with the lock held.
+     */
+    private void cancel() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    /**
+     * @return the time in milliseconds since the given time
+     */
+    private long idleTime(long now, long lastActivity) {
+        return TimeUnit.NANOSECONDS.toMillis(now - lastActivity);
+    }
+
+    /**
+     * Sends the keepalives from the executor, so that the timer thread that
+     * all connections share never waits on a socket.
+     */
+    private void send(final boolean whitespace, final boolean ping) {
+        Runnable task = new Runnable() {
+            public void run() {
+                if (whitespace)
+                    sendWhitespace();
+                if (ping)
+                    sendPing();
+            }
+        };
+        Executor exec = executor;
+        if (exec == null) {
+            PacketListenerManager manager = handler.getPacketListenerManager();
+            if (manager != null)
+                exec = manager.getExecutor();
+        }
+        if (exec == null)
+            exec = PacketListenerManager.getSharedExecutor();
+        try {
+            exec.execute(task);
+        } catch (RejectedExecutionException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Keepalive rejected by executor.  Sending keepalive in the timer thread.", ex);
+            task.run();
+        }
+    }
+
+    /**
+     * queues the whitespace keepalive
+     */
+    private void sendWhitespace() {
+        try {
+            handler.queuePacket(WHITESPACE, false);
+        } catch (SendPacketFailedException ex) {
+            if (log.isDebugEnabled())
+                log.debug("Unable to send whitespace keepalive", ex);
+        }
+    }
+
+    /**
+     * pings the server unless a ping is already waiting for its reply
+     */
+    private void sendPing() {
+        XMPPSessionContext sessCtx = handler.getSessionContext();
+        if (sessCtx.getResource() == null || !pingPending.compareAndSet(false, true))
+            return;
+        PingIQPacket ping = new PingIQPacket();
+        ping.setType(IQPacket.TYPE_GET);
+        ping.setTimeout(getPingTimeout());
+        try {
+            if (sessCtx.getHostName() != null)
+                ping.setTo(JID.parseJID(sessCtx.getHostName()));
+            IPacketFuture future = handler.queuePacketAsync(ping);
+            future.addReplyListener(new IReplyListener() {
+                public void replyReceived(IStanzaPacket request, IStanzaPacket reply) {
+                    pingPending.set(false);
+                }
+
+                public void replyFailed(IStanzaPacket request, Throwable cause) {
+                    pingPending.set(false);
+                    if (cause instanceof TimeoutException)
+                        pingTimedOut();
+                    else if (!(cause instanceof CancellationException) && log.isDebugEnabled())
+                        log.debug("Ping failed", cause);
+                }
+            });
+        } catch (JIDFormatException ex) {
+            pingPending.set(false);
+            if (log.isWarnEnabled())
+                log.warn("Unable to ping invalid host name " + sessCtx.getHostName(), ex);
+        } catch (SendPacketFailedException ex) {
+            pingPending.set(false);
+            if (log.isDebugEnabled())
+                log.debug("Unable to send ping", ex);
+        }
+    }
+
+    /**
+     * Shuts down the connection that did not reply to the ping. The shutdown
+     * waits for the queue to stop, so it is handed off to its own thread
+     * instead of holding up the timer thread.
+     */
+    private void pingTimedOut() {
+        if (!handler.isConnected())
+            return;
+        if (log.isInfoEnabled())
+            log.info("No reply to ping within " + getPingTimeout() + "ms. Shutting down the dead connection...");
+        ThreadUtil.startThread(null, new Runnable() {
+            public void run() {
+                handler.shutdown();
+            }
+        }, "Feridian KeepAlive Shutdown");
+    }
+}
@@ -0,0 +1,26 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+
+import com.echomine.net.NIOConnectionEngine;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPConnectionFactory;
+
+/**
+ * A connection factory that creates connections using NIO connection
+ * handling. All connections created by this factory share the default NIO
+ * engine, so they do not use any threads of their own. To use this factory,
+ * specify it as the connection factory in the feridian configuration.
+ * 
+ * @see com.echomine.net.NIOConnectionEngine
+ * @see com.echomine.xmpp.impl.NIOXMPPConnectionHandler
+ */
+public class NIOXMPPConnectionFactoryImpl extends XMPPConnectionFactory {
+    public IXMPPConnection createXMPPConnection() {
+        try {
+            return new XMPPConnectionImpl(NIOConnectionEngine.getDefaultEngine());
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to start the NIO engine: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.StanzaCountingUnmarshallingContext;
+import com.echomine.net.ConnectionContext;
+import com.echomine.net.HandshakeFailedException;
+import com.echomine.net.NIOSession;
+import com.echomine.net.NIOSessionListener;
+import com.echomine.net.NIOSocket;
+import com.echomine.net.NIOSocketHandler;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+
+/**
+ * <p>
+ * A connection handler that processes incoming stanzas on the shared worker
+ * threads of a NIO connection engine instead of on a thread of its own. The
+ * raw incoming data is framed into complete stanzas as it arrives. A stanza is
+ * only handed to the parser once all of its data is received, so processing
+ * never blocks a worker thread waiting for more data. Outgoing packets are
+ * written directly by the thread that sends them.
+ * </p>
+ * <p>
+ * Handshaking, TLS and SASL negotiation work the same way as in the regular
+ * handler; they simply read from the session's buffered input. The handler
+ * also works with regular sockets, in which case it behaves exactly like the
+ * regular handler.
+ * </p>
+ *
+ * @see com.echomine.net.NIOSocketConnector
+ */
+public class NIOXMPPConnectionHandler extends XMPPConnectionHandler implements NIOSocketHandler, NIOSessionListener {
+    private static final Log log = LogFactory.getLog(NIOXMPPConnectionHandler.class);
+
+    private NIOSession session;
+    private Runnable completion;
+
+    public NIOXMPPConnectionHandler() {
+        super();
+    }
+
+    /**
+     * A method allowing the customization of the session and stream context.
+     *
+     * @param sessCtx the custom session context
+     * @param streamCtx the custom stream context
+     */
+    public NIOXMPPConnectionHandler(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) {
+        super(sessCtx, streamCtx);
+    }
+
+    /*
+     * Sets up the session framing and stanza counting before the handshake
+     * reads any data.
+     *
+     * @see com.echomine.xmpp.impl.XMPPConnectionHandler#handshake(java.net.Socket,
+     *      com.echomine.net.ConnectionContext)
+     */
+    public void handshake(Socket socket, ConnectionContext connCtx) throws HandshakeFailedException {
+        if (socket instanceof NIOSocket) {
+            session = ((NIOSocket) socket).getSession();
+            streamCtx.setUnmarshallingContext(new StanzaCountingUnmarshallingContext());
+            session.setFramer(new XMPPStreamFramer());
+        }
+        super.handshake(socket, connCtx);
+    }
+
+    /*
+     * Begins handling and waits until the connection is finished. This allows
+     * the handler to be used by the blocking connect methods as well.
+     *
+     * @see com.echomine.xmpp.impl.XMPPConnectionHandler#handle(java.net.Socket,
+     *      com.echomine.net.ConnectionContext)
+     */
+    public void handle(Socket socket, ConnectionContext connCtx) throws IOException {
+        if (!(socket instanceof NIOSocket)) {
+            super.handle(socket, connCtx);
+            return;
+        }
+        final CountDownLatch finished = new CountDownLatch(1);
+        beginHandling((NIOSocket) socket, connCtx, new Runnable() {
+            public void run() {
+                finished.countDown();
+            }
+        });
+        try {
+            finished.await();
+        } catch (InterruptedException ex) {
+            shutdown();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.NIOSocketHandler#beginHandling(com.echomine.net.NIOSocket,
+     *      com.echomine.net.ConnectionContext, java.lang.Runnable)
+     */
+    public void beginHandling(NIOSocket socket, ConnectionContext connCtx, Runnable completion) throws IOException {
+        if (socket.getSession() != session || !(streamCtx.getUnmarshallingContext() instanceof StanzaCountingUnmarshallingContext))
+            throw new IOException("Socket was not handshaked by this handler");
+        this.completion = completion;
+        // sets the stream context as user context for unmarshallers to use
+        streamCtx.getUnmarshallingContext().setUserContext(streamCtx);
+        session.setListener(this);
+    }
+
+    /*
+     * Processes all the complete stanzas that are received but not yet
+     * parsed. Nothing is processed while the handler is paused, since the
+     * stream that took over the processing is reading the data itself.
+     *
+     * @see com.echomine.net.NIOSessionListener#dataReceived(com.echomine.net.NIOSession)
+     */
+    public void dataReceived(NIOSession session) {
+        UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
+        StanzaCountingUnmarshallingContext counter = (StanzaCountingUnmarshallingContext) uctx;
+        try {
+            while (state == RunningState.RUNNING && session.getFramedUnits() > counter.getElementCount()) {
+                if (!processIncomingElement(uctx)) {
+                    session.close();
+                    break;
+                }
+            }
+        } catch (JiBXException ex) {
+            if (state != RunningState.STOPPED)
+                getMetrics().parseError();
+            if (log.isInfoEnabled())
+                log.info("Error while reading incoming data. Likely stream is closed due to shutdown or error", ex);
+            session.close(ex);
+        } catch (IOException ex) {
+            session.close(ex);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.NIOSessionListener#sessionClosed(com.echomine.net.NIOSession,
+     *      java.lang.Exception)
+     */
+    public void sessionClosed(NIOSession session, Exception cause) {
+        shutdown();
+        endStream();
+        Runnable task = completion;
+        completion = null;
+        if (task != null)
+            task.run();
+    }
+
+    /*
+     * Sends out packets directly instead of from a queue thread
+     *
+     * @see com.echomine.xmpp.impl.XMPPConnectionHandler#createPacketQueue()
+     */
+    protected PacketQueue createPacketQueue() {
+        return new PacketQueue(this, false);
+    }
+
+    /*
+     * Catches up with any stanzas received while paused.
+     *
+     * @see com.echomine.xmpp.impl.XMPPConnectionHandler#resume()
+     */
+    protected void resume() {
+        super.resume();
+        if (session != null)
+            session.notifyListener();
+    }
+}
@@ -1,19 +1,44 @@
 package com.echomine.xmpp.impl;
 
-import javax.swing.event.EventListenerList;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.echomine.util.ThreadUtil;
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketFilter;
 import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IPacketListenerRegistration;
 import com.echomine.xmpp.IStanzaPacket;
 import com.echomine.xmpp.IXMPPConnection;
 import com.echomine.xmpp.PacketEvent;
 
 /**
+ * <p>
  * A supporting class to manage packet listeners, and firing events to those
- * listeners.
+ * listeners. Each listener is registered with an optional filter and a
+ * dispatch policy that determines the thread the listener is notified on.
+ * Listeners that are not notified inline run on a dispatch pool, which is
+ * shared by all connections unless an executor is set.
+ * </p>
+ * <p>
+ * The listeners are indexed by the packet class of their filters (see
+ * PacketFilter), so listeners for other packet classes cost nothing when a
+ * packet is fired. Listeners are notified in the reverse order they were
+ * added.
+ * </p>
  */
 public class PacketListenerManager {
+    private static final PacketListenerRegistration[] NO_REGISTRATIONS = new PacketListenerRegistration[0];
+    private static volatile ExecutorService sharedExecutor;
+
     private IXMPPConnection connection;
-    protected EventListenerList listenerList = new EventListenerList();
+    private volatile Executor executor;
+    private volatile Snapshot snapshot = new Snapshot(NO_REGISTRATIONS);
 
     /**
      * Instantiate with the source connection. This manager will subsequently
@@ -23,28 +48,154 @@ public class PacketListenerManager {
         this.connection = source;
     }
 
+    /**
+     * @return the pool that is shared by all connections to notify listeners.
+     *         It is created on first use with a thread per processor.
+     */
+    public static ExecutorService getSharedExecutor() {
+        if (sharedExecutor != null)
+            return sharedExecutor;
+        synchronized (PacketListenerManager.class) {
+            if (sharedExecutor != null)
+                return sharedExecutor;
+            final AtomicInteger count = new AtomicInteger();
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            sharedExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = ThreadUtil.getDefaultThreadFactory().newThread(r);
+                    thread.setName("Feridian Packet Dispatcher " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            return sharedExecutor;
+        }
+    }
+
+    /**
+     * @return the pool used to notify listeners, null if the shared pool is
+     *         used
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the pool used to notify the listeners that are not notified
+     * inline.
+     *
+     * @param executor the pool, null to use the shared pool
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     /** adds a subscriber to listen for connection events */
     public void addPacketListener(IPacketListener l) {
-        listenerList.add(IPacketListener.class, l);
+        addPacketListener(l, null, DispatchPolicy.INLINE);
+    }
+
+    /**
+     * Adds a listener that is notified of the packets accepted by the filter
+     *
+     * @param l the listener
+     * @param filter the filter, null to receive all packets
+     * @param policy the thread the listener is notified on
+     * @return the registration that holds the listener's statistics
+     */
+    public synchronized IPacketListenerRegistration addPacketListener(IPacketListener l, IPacketFilter filter, DispatchPolicy policy) {
+        if (l == null || policy == null)
+            throw new IllegalArgumentException("Listener and policy cannot be null");
+        PacketListenerRegistration registration = new PacketListenerRegistration(l, filter, policy);
+        PacketListenerRegistration[] old = snapshot.registrations;
+        PacketListenerRegistration[] regs = new PacketListenerRegistration[old.length + 1];
+        regs[0] = registration;
+        System.arraycopy(old, 0, regs, 1, old.length);
+        snapshot = new Snapshot(regs);
+        return registration;
     }
 
     /** remove from listening to connection events */
-    public void removePacketListener(IPacketListener l) {
-        listenerList.remove(IPacketListener.class, l);
+    public synchronized void removePacketListener(IPacketListener l) {
+        PacketListenerRegistration[] old = snapshot.registrations;
+        ArrayList<PacketListenerRegistration> regs = new ArrayList<PacketListenerRegistration>(old.length);
+        for (int i = 0; i < old.length; i++)
+            if (old[i].getListener() != l)
+                regs.add(old[i]);
+        if (regs.size() != old.length)
+            snapshot = new Snapshot(regs.toArray(NO_REGISTRATIONS));
+    }
+
+    /**
+     * @return all the current listener registrations
+     */
+    public IPacketListenerRegistration[] getRegistrations() {
+        PacketListenerRegistration[] regs = snapshot.registrations;
+        IPacketListenerRegistration[] copy = new IPacketListenerRegistration[regs.length];
+        System.arraycopy(regs, 0, copy, 0, regs.length);
+        return copy;
+    }
+
+    /**
+     * @return the number of packets waiting to be passed to listeners
+     */
+    public int getQueueDepth() {
+        PacketListenerRegistration[] regs = snapshot.registrations;
+        int depth = 0;
+        for (int i = 0; i < regs.length; i++)
+            depth += regs[i].getQueueDepth();
+        return depth;
     }
 
     /**
      * This will fire off a packet event that contains the incoming packet
-     * 
+     *
      * @param packet
      */
-    protected void firePacketReceived(IStanzaPacket packet) {        
+    protected void firePacketReceived(IStanzaPacket packet) {
+        long receivedTime = System.nanoTime();
+        PacketListenerRegistration[] regs = snapshot.getCandidates(packet.getClass());
+        if (regs.length == 0)
+            return;
+        Executor exec = executor;
+        if (exec == null)
+            exec = getSharedExecutor();
         PacketEvent event = new PacketEvent(connection, packet);
-        Object[] listeners = listenerList.getListenerList();
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            ((IPacketListener) listeners[i + 1]).packetReceived(event);
+        for (int i = 0; i < regs.length; i++) {
+            if (regs[i].accept(event))
+                regs[i].dispatch(event, receivedTime, exec);
+        }
+    }
+
+    /**
+     * The registrations at one point in time, with the registrations indexed
+     * by the packet classes seen so far. The snapshot is replaced as a whole
+     * whenever a listener is added or removed.
+     */
+    private static class Snapshot {
+        final PacketListenerRegistration[] registrations;
+        final ConcurrentHashMap<Class<?>, PacketListenerRegistration[]> candidates = new ConcurrentHashMap<Class<?>, PacketListenerRegistration[]>();
+
+        Snapshot(PacketListenerRegistration[] registrations) {
+            this.registrations = registrations;
+        }
+
+        /**
+         * @return the registrations that may accept packets of the class
+         */
+        PacketListenerRegistration[] getCandidates(Class<?> cls) {
+            if (registrations.length == 0)
+                return NO_REGISTRATIONS;
+            PacketListenerRegistration[] regs = candidates.get(cls);
+            if (regs == null) {
+                ArrayList<PacketListenerRegistration> list = new ArrayList<PacketListenerRegistration>(registrations.length);
+                for (int i = 0; i < registrations.length; i++)
+                    if (registrations[i].handlesClass(cls))
+                        list.add(registrations[i]);
+                regs = list.toArray(NO_REGISTRATIONS);
+                candidates.put(cls, regs);
+            }
+            return regs;
         }
     }
 }
@@ -0,0 +1,230 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketFilter;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IPacketListenerRegistration;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PacketFilter;
+
+/**
+ * Dispatches the packets to a single listener according to the listener's
+ * policy, and keeps the listener's statistics. Ordered listeners have a queue
+ * of their own that is drained by one pool thread at a time.
+ */
+public class PacketListenerRegistration implements IPacketListenerRegistration {
+    private static final Log log = LogFactory.getLog(PacketListenerRegistration.class);
+    /**
+     * the number of packets an ordered listener processes before giving the
+     * pool thread back to other listeners
+     */
+    private static final int MAX_ORDERED_BATCH = 64;
+
+    private final IPacketListener listener;
+    private final IPacketFilter filter;
+    private final DispatchPolicy policy;
+    private final Class<?> packetClass;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private ConcurrentLinkedQueue<PendingEvent> orderedQueue;
+    private AtomicBoolean draining;
+
+    PacketListenerRegistration(IPacketListener listener, IPacketFilter filter, DispatchPolicy policy) {
+        this.listener = listener;
+        this.filter = filter;
+        this.policy = policy;
+        if (filter instanceof PacketFilter)
+            packetClass = ((PacketFilter) filter).getPacketClass();
+        else
+            packetClass = null;
+        if (policy == DispatchPolicy.ORDERED) {
+            orderedQueue = new ConcurrentLinkedQueue<PendingEvent>();
+            draining = new AtomicBoolean();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getListener()
+     */
+    public IPacketListener getListener() {
+        return listener;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getFilter()
+     */
+    public IPacketFilter getFilter() {
+        return filter;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getPolicy()
+     */
+    public DispatchPolicy getPolicy() {
+        return policy;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getQueueDepth()
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getDispatchedCount()
+     */
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getAverageLatency()
+     */
+    public long getAverageLatency() {
+        long count = dispatchedCount.get();
+        return count == 0 ? 0 : totalLatency.get() / count;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketListenerRegistration#getMaxLatency()
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /**
+     * @return true if the listener may accept packets of the class. This only
+     *         checks the packet class of the filter, if it is known.
+     */
+    boolean handlesClass(Class<?> cls) {
+        return packetClass == null || packetClass.isAssignableFrom(cls);
+    }
+
+    /**
+     * @return true if the listener accepts the packet event
+     */
+    boolean accept(PacketEvent event) {
+        return filter == null || filter.accept(event.getPacket());
+    }
+
+    /**
+     * Passes the event to the listener according to the listener's policy
+     *
+     * @param event the event to pass on
+     * @param receivedTime the time the packet was received, in nanoseconds
+     * @param executor the pool to run the listener with
+     */
+    void dispatch(final PacketEvent event, final long receivedTime, Executor executor) {
+        switch (policy) {
+        case SHARED_POOL:
+            queueDepth.incrementAndGet();
+            execute(executor, new Runnable() {
+                public void run() {
+                    queueDepth.decrementAndGet();
+                    notifyListener(event, receivedTime);
+                }
+            });
+            break;
+        case ORDERED:
+            queueDepth.incrementAndGet();
+            orderedQueue.add(new PendingEvent(event, receivedTime));
+            scheduleDrain(executor);
+            break;
+        default:
+            notifyListener(event, receivedTime);
+        }
+    }
+
+    /**
+     * starts draining the ordered queue unless it is being drained already
+     */
+    private void scheduleDrain(final Executor executor) {
+        if (!draining.compareAndSet(false, true))
+            return;
+        execute(executor, new Runnable() {
+            public void run() {
+                drain(executor);
+            }
+        });
+    }
+
+    private void drain(Executor executor) {
+        PendingEvent pending;
+        int count = 0;
+        while (count++ < MAX_ORDERED_BATCH && (pending = orderedQueue.poll()) != null) {
+            queueDepth.decrementAndGet();
+            notifyListener(pending.event, pending.receivedTime);
+        }
+        draining.set(false);
+        // packets may have been queued after the last poll
+        if (!orderedQueue.isEmpty())
+            scheduleDrain(executor);
+    }
+
+    /**
+     * runs the task on the executor, or in the current thread if the executor
+     * does not accept it
+     */
+    private void execute(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Listener dispatch pool rejected the packet.  Notifying listener in the current thread.", ex);
+            task.run();
+        }
+    }
+
+    private void notifyListener(PacketEvent event, long receivedTime) {
+        try {
+            listener.packetReceived(event);
+        } catch (RuntimeException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Packet listener threw an exception", ex);
+        }
+        long latency = System.nanoTime() - receivedTime;
+        dispatchedCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatency.get()))
+            if (maxLatency.compareAndSet(max, latency))
+                break;
+    }
+
+    private static class PendingEvent {
+        final PacketEvent event;
+        final long receivedTime;
+
+        PendingEvent(PacketEvent event, long receivedTime) {
+            this.event = event;
+            this.receivedTime = receivedTime;
+        }
+    }
+}
@@ -1,17 +1,34 @@
 package com.echomine.xmpp.impl;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.util.ThreadUtil;
+import com.echomine.xmpp.IPacketFuture;
 import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
 import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.packet.IMPacket;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
 
 /**
  * An internally used queue that will perform multiple functions. First, it runs
@@ -20,43 +37,429 @@ import com.echomine.xmpp.packet.IQPacket;
  * packets will be checked against any outgoing packet to see if any outgoing
  * packets match with any incoming packets. This second function allows
  * synchronicity in the API.
+ * <p>
+ * Packets waiting for a reply are kept in a concurrent table keyed by the
+ * packet ID, each with a future that completes when the reply arrives. Reply
+ * timeouts are tracked by a shared timer instead of a waiting thread, so any
+ * number of requests can be in flight asynchronously. The synchronous wait is
+ * simply a wait on the future.
+ * </p>
+ * <p>
+ * The queue can also run without a thread of its own. In that case, packets
+ * are sent out directly by the thread that queues them. They are only held in
+ * the queue while the queue is paused, and are sent out in order as soon as
+ * the queue resumes. This is used by the NIO connection handling, where no
+ * thread is dedicated to a single connection.
+ * </p>
+ * <p>
+ * Outgoing packets are sent in batches. Whenever the queue thread wakes up, it
+ * takes all the packets that are currently queued (up to the max batch size),
+ * writes them out and flushes only once. Under load, such as presence floods
+ * or bulk roster pushes, this turns many small socket writes (and TLS records)
+ * into a few large ones. A packet that is queued on its own is still sent
+ * right away. Optionally, the queue can linger for a short time to wait for
+ * more packets before flushing a batch that is not full. Setting the max batch
+ * size to 1 flushes every packet on its own.
+ * </p>
+ * <p>
+ * By default, the queue of outgoing packets is unbounded. It can be bounded by
+ * the number of packets and by the estimated size of the packets, so that a
+ * slow server or network does not fill up the heap. What happens to a packet
+ * that does not fit is determined by the overflow policy. The highest number
+ * of packets and bytes that were queued at any time are kept as high-water
+ * marks. The size of a packet is estimated when it is queued and again when it
+ * leaves the queue, so a packet should not be changed once it is queued.
+ * </p>
+ * <p>
+ * Outgoing presence can optionally be coalesced before it is queued (see
+ * PresenceCoalescer), so that only the latest availability presence to each
+ * recipient is sent within the coalescing window.
+ * </p>
+ * <p>
+ * Once stream management (XEP-0198) is enabled, every stanza that is sent is
+ * also kept in a buffer of unacknowledged stanzas until the server acks it.
+ * The buffer outlives the queue being stopped and started, so that the
+ * stanzas that were lost with a broken connection can be sent again once the
+ * session is resumed.
+ * </p>
  */
 public class PacketQueue implements Runnable {
     private static Log log = LogFactory.getLog(PacketQueue.class);
     private static final String QUEUE_RUNNING = "Feridian Packet Queue";
     private static final String QUEUE_PAUSED = "Feridian Packet Queue -- PAUSED";
+    /**
+     * the default max number of packets sent with a single flush
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    /**
+     * the estimated size of a packet without any content (the element names,
+     * attributes and stream framing)
+     */
+    private static final int PACKET_SIZE_OVERHEAD = 64;
+    /**
+     * the estimated size of an extension in a message or presence packet
+     */
+    private static final int EXTENSION_SIZE_ESTIMATE = 128;
 
     protected enum RunningState {
         RUNNING, PAUSED, STOPPING, STOPPED
     }
 
+    /**
+     * Determines what happens to an outgoing packet when the queue is full.
+     * Only availability presence (presence without type, or of type
+     * unavailable) is ever dropped; subscription requests and other packets
+     * are kept.
+     */
+    public enum OverflowPolicy {
+        /** the sender waits until there is room in the queue */
+        BLOCK,
+        /** the packet is rejected with a SendPacketFailedException */
+        FAIL,
+        /**
+         * the oldest queued availability presence is dropped to make room. If
+         * there is none, the packet is rejected.
+         */
+        DROP_OLDEST_PRESENCE,
+        /**
+         * a queued availability presence to the same recipient is dropped, as
+         * it is superseded by the new presence. If there is none, the packet
+         * is rejected.
+         */
+        COALESCE_PRESENCE
+    }
+
     protected LinkedBlockingQueue<IStanzaPacket> queue;
-    protected HashMap<String, IStanzaPacket> packetReplyTable;
-    protected HashMap<String, IStanzaPacket> replyPackets;
-    protected RunningState state = RunningState.STOPPED;
+    protected ConcurrentHashMap<String, ReplyFuture> packetReplyTable;
+    protected volatile RunningState state = RunningState.STOPPED;
     private XMPPConnectionHandler handler;
     private ReentrantLock lock;
-    private Semaphore pauseLock;
+    private Condition resumed;
+    private Condition notFull;
     private Thread queueThread;
+    private boolean threaded;
+    private ThreadFactory threadFactory;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxLinger;
+    private HashedWheelTimer timer;
+    private volatile int maxQueuedPackets;
+    private volatile long maxQueuedBytes;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong packetHighWaterMark = new AtomicLong();
+    private final AtomicLong byteHighWaterMark = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final PresenceCoalescer presenceCoalescer;
+    private final LinkedList<IStanzaPacket> unacked = new LinkedList<IStanzaPacket>();
 
     public PacketQueue(XMPPConnectionHandler handler) {
+        this(handler, true);
+    }
+
+    /**
+     * Creates a queue that optionally runs without a thread of its own.
+     * 
+     * @param handler the handler to send packets through
+     * @param threaded true to send packets from the queue thread, false to
+     *            send them directly from the thread that queues them
+     */
+    public PacketQueue(XMPPConnectionHandler handler, boolean threaded) {
         this.handler = handler;
+        this.threaded = threaded;
         queue = new LinkedBlockingQueue<IStanzaPacket>();
         lock = new ReentrantLock();
-        pauseLock = new Semaphore(1);
-        packetReplyTable = new HashMap<String, IStanzaPacket>(25);
-        replyPackets = new HashMap<String, IStanzaPacket>(25);
+        resumed = lock.newCondition();
+        notFull = lock.newCondition();
+        packetReplyTable = new ConcurrentHashMap<String, ReplyFuture>(25);
+        timer = HashedWheelTimer.getSharedTimer();
+        presenceCoalescer = new PresenceCoalescer(new PresenceCoalescer.IPresenceSink() {
+            public void deliver(PresencePacket presence) {
+                try {
+                    sendNow(presence);
+                } catch (SendPacketFailedException ex) {
+                    if (log.isInfoEnabled())
+                        log.info("Coalesced presence cannot be sent.", ex);
+                }
+            }
+        }, true);
+    }
+
+    /**
+     * @return the coalescer of outgoing presence, which is disabled until its
+     *         window is set
+     */
+    public PresenceCoalescer getPresenceCoalescer() {
+        return presenceCoalescer;
+    }
+
+    /**
+     * Sets the timer that times out the waits for replies. By default, the
+     * timer shared by the whole library is used.
+     * 
+     * @param timer the timer to use
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Sets the factory that creates the queue thread. This takes effect the
+     * next time the queue is started.
+     * 
+     * @param threadFactory the factory, or null to use the default factory
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return the max number of packets that are sent with a single flush
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the max number of packets that are sent with a single flush. A size
+     * of 1 flushes every packet on its own, which gives the lowest latency per
+     * packet at the cost of more socket writes.
+     * 
+     * @param maxBatchSize the max batch size, must be at least 1
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Max batch size must be at least 1");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the max time in milliseconds to wait for more packets before a
+     *         batch that is not full is flushed
+     */
+    public long getMaxLinger() {
+        return maxLinger;
+    }
+
+    /**
+     * Sets the max time to wait for more packets before a batch that is not
+     * full is flushed. By default, the queue does not linger at all; a batch
+     * simply contains the packets that were queued by the time the queue
+     * thread got to them. Lingering reduces the number of socket writes even
+     * further when packets trickle in, but delays every packet by up to the
+     * linger time. Lingering only applies to the queue thread.
+     * 
+     * @param maxLinger the max linger time in milliseconds, 0 to disable
+     */
+    public void setMaxLinger(long maxLinger) {
+        if (maxLinger < 0)
+            throw new IllegalArgumentException("Max linger cannot be negative");
+        this.maxLinger = maxLinger;
+    }
+
+    /**
+     * @return the max number of packets in the queue, 0 if unbounded
+     */
+    public int getMaxQueuedPackets() {
+        return maxQueuedPackets;
+    }
+
+    /**
+     * Sets the max number of packets that can wait in the queue to be sent.
+     * 
+     * @param maxQueuedPackets the max number of packets, 0 for no limit
+     */
+    public void setMaxQueuedPackets(int maxQueuedPackets) {
+        if (maxQueuedPackets < 0)
+            throw new IllegalArgumentException("Max queued packets cannot be negative");
+        this.maxQueuedPackets = maxQueuedPackets;
+    }
+
+    /**
+     * @return the max estimated size in bytes of the packets in the queue, 0
+     *         if unbounded
+     */
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Sets the max estimated size of the packets that can wait in the queue to
+     * be sent. A single packet that is larger than the max is still accepted
+     * into an empty queue.
+     * 
+     * @param maxQueuedBytes the max size in bytes, 0 for no limit
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        if (maxQueuedBytes < 0)
+            throw new IllegalArgumentException("Max queued bytes cannot be negative");
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * @return what happens to packets that do not fit into the queue
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets what happens to packets that do not fit into the queue. The
+     * default is to block the sender.
+     * 
+     * @param overflowPolicy the overflow policy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the number of packets currently waiting to be sent
+     */
+    public int getQueuedPackets() {
+        return queue.size();
+    }
+
+    /**
+     * @return the estimated size in bytes of the packets currently waiting to
+     *         be sent
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return the highest number of packets that waited in the queue at once
+     */
+    public long getPacketHighWaterMark() {
+        return packetHighWaterMark.get();
     }
 
     /**
-     * Clears the entire queue and any packets waiting for reply.
+     * @return the highest estimated size in bytes of the packets that waited
+     *         in the queue at once
+     */
+    public long getByteHighWaterMark() {
+        return byteHighWaterMark.get();
+    }
+
+    /**
+     * @return the number of presence packets dropped to make room in the queue
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of packets rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Resets the high-water marks to the current number and size of the
+     * queued packets.
+     */
+    public void resetHighWaterMarks() {
+        packetHighWaterMark.set(queue.size());
+        byteHighWaterMark.set(queuedBytes.get());
+    }
+
+    /**
+     * Keeps a stanza that was sent until it is acknowledged. This is called
+     * by the handler for every stanza it sends while stream management is
+     * enabled, before the stanza is written out.
+     * 
+     * @param packet the stanza sent
+     */
+    void stanzaSent(IStanzaPacket packet) {
+        synchronized (unacked) {
+            unacked.add(packet);
+        }
+    }
+
+    /**
+     * Forgets a stanza that was kept by stanzaSent() but could not be
+     * written out. The stanza is the last one kept, since stanzas are written
+     * with the handler's lock held.
+     * 
+     * @param packet the stanza that was not sent
+     */
+    void stanzaNotSent(IStanzaPacket packet) {
+        synchronized (unacked) {
+            if (!unacked.isEmpty() && unacked.getLast() == packet)
+                unacked.removeLast();
+        }
+    }
+
+    /**
+     * Removes the stanzas acknowledged by the server. Stanzas are
+     * acknowledged in the order they were sent.
+     * 
+     * @param count the number of stanzas acknowledged since the last ack
+     * @return the number of stanzas removed
+     */
+    public int acknowledge(long count) {
+        int removed = 0;
+        synchronized (unacked) {
+            while (removed < count && !unacked.isEmpty()) {
+                unacked.removeFirst();
+                removed++;
+            }
+        }
+        if (removed < count && log.isWarnEnabled())
+            log.warn("Server acknowledged " + count + " stanzas, but only " + removed + " were waiting for an ack");
+        return removed;
+    }
+
+    /**
+     * @return the number of stanzas sent that are not acknowledged yet
+     */
+    public int getUnacknowledgedCount() {
+        synchronized (unacked) {
+            return unacked.size();
+        }
+    }
+
+    /**
+     * Removes all the stanzas that are not acknowledged yet. They are
+     * normally sent again after the session is resumed.
+     * 
+     * @return the stanzas in the order they were sent
+     */
+    public List<IStanzaPacket> takeUnacknowledged() {
+        synchronized (unacked) {
+            List<IStanzaPacket> packets = new ArrayList<IStanzaPacket>(unacked);
+            unacked.clear();
+            return packets;
+        }
+    }
+
+    /**
+     * Forgets the stanzas that are not acknowledged yet. This is done when
+     * the session ends and can no longer be resumed.
+     */
+    public void clearUnacknowledged() {
+        synchronized (unacked) {
+            unacked.clear();
+        }
+    }
+
+    /**
+     * Clears the entire queue and cancels the waits of any packets waiting for
+     * reply. The stanzas waiting for an ack are kept.
      */
     public void clear() {
         lock.lock();
         try {
+            presenceCoalescer.clear();
             queue.clear();
-            packetReplyTable.clear();
-            replyPackets.clear();
+            queuedBytes.set(0);
+            notFull.signalAll();
+            cancelReplyWaits();
         } finally {
             lock.unlock();
         }
@@ -84,9 +487,8 @@ public class PacketQueue implements Runnable {
             else
                 state = RunningState.RUNNING;
             clear();
-            queueThread = new Thread(this);
-            queueThread.setName(QUEUE_RUNNING);
-            queueThread.start();
+            if (threaded)
+                queueThread = ThreadUtil.startThread(threadFactory, this, QUEUE_RUNNING);
         } finally {
             lock.unlock();
         }
@@ -95,35 +497,28 @@ public class PacketQueue implements Runnable {
     /**
      * Stops the queue. This method will actually send all currently queued
      * outgoing packets before shutting down and giving control back to the
-     * caller.
+     * caller. While stream management is enabled, the packets that cannot be
+     * sent are kept with the unacknowledged stanzas.
      */
     public void stop() {
         if (state == RunningState.STOPPED || state == RunningState.STOPPING)
             return;
+        // the presence held back goes out with the remaining packets
+        presenceCoalescer.flush();
         lock.lock();
         try {
             state = RunningState.STOPPING;
-            queueThread.interrupt();
-            if (!queue.isEmpty()) {
-                // finish sending off all the remaining packets
-                Iterator<IStanzaPacket> iter = queue.iterator();
-                IStanzaPacket packet;
-                while (iter.hasNext()) {
-                    packet = iter.next();
-                    handler.sendPacket(packet);
-                }
-            }
-            // iterate through all the msgs waiting for a reply and interrupt
-            // them
-            synchronized (packetReplyTable) {
-                Iterator<IStanzaPacket> iter = packetReplyTable.values().iterator();
-                IStanzaPacket packet;
-                while (iter.hasNext()) {
-                    packet = iter.next();
-                    synchronized (packet) {
-                        packet.notifyAll();
-                    }
-                }
+            // release the senders waiting for room in the queue
+            notFull.signalAll();
+            if (queueThread != null)
+                queueThread.interrupt();
+            // finish sending off all the remaining packets. They are taken out
+            // of the queue, so that a batch still lingering in the queue
+            // thread cannot send them again.
+            List<IStanzaPacket> remaining = new ArrayList<IStanzaPacket>();
+            if (queue.drainTo(remaining) > 0) {
+                removed(remaining);
+                handler.sendPackets(remaining);
             }
         } catch (SendPacketFailedException ex) {
             // intentionally left empty (connection likely closed)
@@ -131,6 +526,17 @@ public class PacketQueue implements Runnable {
             state = RunningState.STOPPED;
             lock.unlock();
         }
+        // release everything still waiting for a reply
+        cancelReplyWaits();
+    }
+
+    /**
+     * cancels the futures of all the packets waiting for a reply
+     */
+    private void cancelReplyWaits() {
+        for (ReplyFuture future : packetReplyTable.values())
+            future.cancel(false);
+        packetReplyTable.clear();
     }
 
     /**
@@ -160,8 +566,9 @@ public class PacketQueue implements Runnable {
             if (state != RunningState.PAUSED)
                 return;
             state = RunningState.RUNNING;
-            while (pauseLock.hasQueuedThreads())
-                pauseLock.release();
+            if (!threaded)
+                sendQueuedPackets();
+            resumed.signalAll();
         } finally {
             lock.unlock();
         }
@@ -191,12 +598,10 @@ public class PacketQueue implements Runnable {
             return null;
         if (replyPkt.getId() == null)
             return replyPkt;
-        IStanzaPacket oldPacket = null;
-        synchronized (packetReplyTable) {
-            oldPacket = packetReplyTable.remove(replyPkt.getId());
-        }
+        ReplyFuture future = packetReplyTable.remove(replyPkt.getId());
         IStanzaPacket newPkt = replyPkt;
-        if (oldPacket != null) {
+        if (future != null) {
+            IStanzaPacket oldPacket = future.getPacket();
             // if reply packet is IQPacket, then we need to recast
             if (IQPacket.class.getName().equals(replyPkt.getClass().getName())) {
                 try {
@@ -207,72 +612,404 @@ public class PacketQueue implements Runnable {
                         log.warn("Unable to instantiate new packet for casting.. returning current reply packet instead...", ex);
                 }
             }
-            replyPackets.put(newPkt.getId(), newPkt);
-            synchronized (oldPacket) {
-                oldPacket.notifyAll();
-            }
+            future.complete(newPkt);
         }
         return newPkt;
     }
 
+    /**
+     * called by a future once it is done so that it is no longer waiting for
+     * a reply
+     * 
+     * @param future the future that is done
+     */
+    void replyFinished(ReplyFuture future) {
+        IStanzaPacket packet = future.getPacket();
+        if (packet.getId() != null)
+            packetReplyTable.remove(packet.getId(), future);
+    }
+
+    /**
+     * called by a future once the reply was received
+     * 
+     * @param nanos the time waited for the reply in nanoseconds
+     */
+    void replyReceived(long nanos) {
+        handler.getMetrics().replyReceived(nanos);
+    }
+
     /**
      * Queues the packet for delivery
      * 
      * @param packet the packet to send
      * @param wait whether to wait for a reply
-     * @return the reply packet if wait is true, or null if wait is false
+     * @return the reply packet if wait is true, or null if wait is false or no
+     *         reply was received within the packet's timeout
      * @throws SendPacketFailedException when packet cannot be sent
-     *             (IOException) or when waiting timed out before receiving
-     *             reply
+     *             (IOException) or when the wait is interrupted
      */
     public IStanzaPacket queuePacket(IStanzaPacket packet, boolean wait) throws SendPacketFailedException {
+        if (!wait) {
+            if (state == RunningState.STOPPED)
+                throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+            if (!presenceCoalescer.offer(packet))
+                sendNow(packet);
+            return null;
+        }
+        IPacketFuture future = queuePacketAsync(packet);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(false);
+            throw new SendPacketFailedException("Wait interrupted");
+        } catch (CancellationException ex) {
+            // queue is stopped
+            return null;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof TimeoutException)
+                return null;
+            throw new SendPacketFailedException(ex.getCause());
+        }
+    }
+
+    /**
+     * Queues the packet for delivery and returns right away with a future for
+     * the reply. The wait for the reply times out after the packet's timeout,
+     * in which case the future fails with a TimeoutException. A timeout of 0
+     * or less waits forever. The packet must have an ID to match the reply
+     * with.
+     * 
+     * @param packet the packet to send
+     * @return the future for the reply
+     * @throws SendPacketFailedException when packet cannot be sent
+     *             (IOException)
+     */
+    public IPacketFuture queuePacketAsync(final IStanzaPacket packet) throws SendPacketFailedException {
         if (state == RunningState.STOPPED)
             throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
-        if (wait) {
-            synchronized (packetReplyTable) {
-                packetReplyTable.put(packet.getId(), packet);
+        if (packet.getId() == null)
+            throw new SendPacketFailedException("Packet must have an ID in order to wait for a reply");
+        final ReplyFuture future = new ReplyFuture(this, packet);
+        ReplyFuture previous = packetReplyTable.put(packet.getId(), future);
+        if (previous != null)
+            previous.fail(new SendPacketFailedException("Another packet with the same ID was sent: " + packet.getId()));
+        try {
+            sendNow(packet);
+        } catch (SendPacketFailedException ex) {
+            future.fail(ex);
+            throw ex;
+        }
+        if (packet.getTimeout() > 0 && !future.isDone()) {
+            future.setTimeout(timer.newTimeout(new Runnable() {
+                public void run() {
+                    if (future.fail(new TimeoutException("No reply received within " + packet.getTimeout() + "ms")))
+                        handler.getMetrics().replyTimedOut();
+                }
+            }, packet.getTimeout(), TimeUnit.MILLISECONDS));
+        }
+        return future;
+    }
+
+    /**
+     * Sends the packet through the queue thread, or directly if the queue has
+     * no thread.
+     * 
+     * @param packet the packet to send
+     * @throws SendPacketFailedException if the packet cannot be sent
+     */
+    private void sendNow(IStanzaPacket packet) throws SendPacketFailedException {
+        if (threaded)
+            enqueue(packet);
+        else
+            sendDirect(packet);
+    }
+
+    /**
+     * Adds the packet to the queue. If the queue is bounded, it makes room for
+     * the packet according to the overflow policy first.
+     * 
+     * @param packet the packet to queue
+     * @throws SendPacketFailedException if the queue is full and the packet is
+     *             rejected, or if the wait for room is interrupted
+     */
+    private void enqueue(IStanzaPacket packet) throws SendPacketFailedException {
+        long size = estimateSize(packet);
+        if (maxQueuedPackets == 0 && maxQueuedBytes == 0) {
+            added(packet, size);
+            return;
+        }
+        lock.lock();
+        try {
+            makeRoom(packet, size);
+            added(packet, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room in the queue for the packet according to the overflow
+     * policy. Must be called with the lock held. The state is checked before
+     * the room, since a stop empties the queue while senders wait for room.
+     */
+    private void makeRoom(IStanzaPacket packet, long size) throws SendPacketFailedException {
+        while (true) {
+            if (state == RunningState.STOPPED || state == RunningState.STOPPING)
+                throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+            if (!isFull(size))
+                return;
+            switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    notFull.await();
+                } catch (InterruptedException ex) {
+                    throw new SendPacketFailedException("Wait interrupted");
+                }
+                continue;
+            case DROP_OLDEST_PRESENCE:
+                if (dropQueuedPresence(null))
+                    continue;
+                break;
+            case COALESCE_PRESENCE:
+                if (packet instanceof PresencePacket && dropQueuedPresence((PresencePacket) packet))
+                    continue;
+                break;
+            default:
+                break;
             }
+            rejectedCount.incrementAndGet();
+            throw new SendPacketFailedException("The outgoing queue is full, unable to queue packet for sending.");
         }
+    }
+
+    /**
+     * @return true if a packet of the given size does not fit into the queue.
+     *         An empty queue always has room.
+     */
+    private boolean isFull(long size) {
+        int count = queue.size();
+        if (count == 0)
+            return false;
+        if (maxQueuedPackets > 0 && count >= maxQueuedPackets)
+            return true;
+        return maxQueuedBytes > 0 && queuedBytes.get() + size > maxQueuedBytes;
+    }
+
+    /**
+     * Drops the oldest queued availability presence. If a new presence is
+     * given, only the presence that it supersedes is dropped.
+     * 
+     * @param presence the new presence, or null to drop any presence
+     * @return true if a presence was dropped
+     */
+    private boolean dropQueuedPresence(PresencePacket presence) {
+        if (presence != null && !PresenceCoalescer.isAvailabilityPresence(presence))
+            return false;
+        for (IStanzaPacket queued : queue) {
+            if (!PresenceCoalescer.isAvailabilityPresence(queued))
+                continue;
+            if (presence != null && !equals(presence.getTo(), queued.getTo()))
+                continue;
+            if (queue.remove(queued)) {
+                queuedBytes.addAndGet(-estimateSize(queued));
+                droppedCount.incrementAndGet();
+                if (log.isDebugEnabled())
+                    log.debug("Outgoing queue is full.  Dropped presence to " + queued.getTo());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(JID jid1, JID jid2) {
+        return (jid1 == null) ? jid2 == null : jid1.equals(jid2);
+    }
+
+    /**
+     * adds the packet to the queue and updates the high-water marks
+     */
+    private void added(IStanzaPacket packet, long size) {
+        // bytes are added first so that they never drop below 0 when the
+        // packet is taken right away
+        long bytes = queuedBytes.addAndGet(size);
+        queue.offer(packet);
+        int depth = queue.size();
+        updateMax(packetHighWaterMark, depth);
+        updateMax(byteHighWaterMark, bytes);
+        handler.getMetrics().packetQueued(depth);
+    }
+
+    /**
+     * updates the size of the queue after the packets were taken from it, and
+     * wakes up the senders that wait for room
+     */
+    private void removed(Collection<IStanzaPacket> packets) {
+        long size = 0;
+        for (IStanzaPacket packet : packets)
+            size += estimateSize(packet);
+        queuedBytes.addAndGet(-size);
+        if (maxQueuedPackets != 0 || maxQueuedBytes != 0) {
+            lock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()))
+            if (max.compareAndSet(current, value))
+                break;
+    }
+
+    /**
+     * Estimates the size in bytes of the packet once it is written out. The
+     * estimate only needs to be good enough to bound the memory used by the
+     * queue; it is based on the length of the addresses and the text content.
+     * 
+     * @param packet the packet
+     * @return the estimated size in bytes
+     */
+    protected long estimateSize(IStanzaPacket packet) {
+        long size = PACKET_SIZE_OVERHEAD + length(packet.getId()) + length(packet.getTo()) + length(packet.getFrom());
+        if (packet instanceof MessagePacket) {
+            MessagePacket msg = (MessagePacket) packet;
+            size += length(msg.getBodies()) + length(msg.getSubjects());
+        } else if (packet instanceof PresencePacket) {
+            size += length(((PresencePacket) packet).getStatuses());
+        }
+        if (packet instanceof IMPacket)
+            size += ((IMPacket) packet).getExtensions().size() * EXTENSION_SIZE_ESTIMATE;
+        return size;
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length();
+    }
+
+    private static int length(JID jid) {
+        if (jid == null)
+            return 0;
+        return length(jid.getNode()) + length(jid.getHost()) + length(jid.getResource()) + 2;
+    }
+
+    private static int length(Map<?, ?> texts) {
+        int len = 0;
+        for (Object text : texts.values())
+            len += ((String) text).length();
+        return len;
+    }
+
+    /**
+     * Sends the packet right away if the queue is running and no other packets
+     * are waiting to be sent. Otherwise, the packet is queued until the queue
+     * is resumed.
+     * 
+     * @param packet the packet to send
+     * @throws SendPacketFailedException if the packet cannot be sent
+     */
+    private void sendDirect(IStanzaPacket packet) throws SendPacketFailedException {
+        lock.lock();
+        try {
+            if (state != RunningState.RUNNING || !queue.isEmpty()) {
+                enqueue(packet);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        handler.sendPacket(packet);
+    }
+
+    /**
+     * Sends out all the packets that were queued while the queue was paused.
+     * Must be called with the lock held.
+     */
+    private void sendQueuedPackets() {
+        List<IStanzaPacket> batch = new ArrayList<IStanzaPacket>();
         try {
-            queue.put(packet);
-            if (wait) {
-                synchronized (packet) {
-                    packet.wait(packet.getTimeout());
-                    // retrieve reply packet
-                    return replyPackets.remove(packet.getId());
+            while (state == RunningState.RUNNING && queue.drainTo(batch, maxBatchSize) > 0) {
+                removed(batch);
+                handler.sendPackets(batch);
+                batch.clear();
+            }
+        } catch (SendPacketFailedException ex) {
+            if (log.isInfoEnabled())
+                log.info("Packet cannot be sent.  Likely an IO Exception occurred.", ex);
+        }
+    }
+
+    /**
+     * Blocks the queue thread until the queue is no longer paused. The state
+     * is checked with the lock held, so a resume can never be missed.
+     */
+    private void waitWhilePaused() {
+        lock.lock();
+        try {
+            Thread.currentThread().setName(QUEUE_PAUSED);
+            while (state == RunningState.PAUSED) {
+                try {
+                    resumed.await();
+                } catch (InterruptedException ex) {
+                    // the state is checked again; a stop changes it
                 }
             }
-        } catch (InterruptedException ex1) {
-            throw new SendPacketFailedException("Wait interrupted");
+            Thread.currentThread().setName(QUEUE_RUNNING);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the packets that are waiting in the queue to the batch until the
+     * batch is full. If lingering is enabled, it will wait up to the linger
+     * time for more packets to arrive. If the wait is interrupted, the batch
+     * is returned as is so that it can still be sent out.
+     * 
+     * @param batch the batch containing at least one packet
+     */
+    private void fillBatch(List<IStanzaPacket> batch) {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        if (maxLinger <= 0 || batch.size() >= maxBatchSize)
+            return;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLinger);
+        try {
+            long remaining;
+            IStanzaPacket packet;
+            while (batch.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                packet = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (packet == null)
+                    break;
+                batch.add(packet);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+            }
+        } catch (InterruptedException ex) {
+            // preserve the interrupt so that the queue thread still shuts down
+            Thread.currentThread().interrupt();
         }
-        return null;
     }
 
     /*
      * This will process the data packets inside the queue. If any exist, it
-     * will send them out immediately.
+     * will send them out immediately in batches.
      * 
      * @see java.lang.Runnable#run()
      */
     public void run() {
-        IStanzaPacket packet;
+        List<IStanzaPacket> batch = new ArrayList<IStanzaPacket>();
         try {
             while (state != RunningState.STOPPED && state != RunningState.STOPPING) {
-                while (state == RunningState.PAUSED) {
-                    try {
-                        Thread.currentThread().setName(QUEUE_PAUSED);
-                        pauseLock.drainPermits();
-                        //expect the following to lock
-                        pauseLock.acquire();
-                        Thread.currentThread().setName(QUEUE_RUNNING);
-                    } catch (InterruptedException ex) {
-                    } finally {
-                        //pauseLock.release();
-                    }
-                }
+                if (state == RunningState.PAUSED)
+                    waitWhilePaused();
                 if (state == RunningState.RUNNING) {
-                    packet = queue.take();
-                    handler.sendPacket(packet);
+                    batch.add(queue.take());
+                    fillBatch(batch);
+                    removed(batch);
+                    handler.sendPackets(batch);
+                    batch.clear();
                 }
             }
         } catch (InterruptedException ex) {
@@ -0,0 +1,275 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * <p>
+ * Collapses floods of presence into the latest state per JID. When an
+ * availability presence (presence without type, or of type unavailable) is
+ * offered, it is held back for the coalescing window. Any presence for the
+ * same JID that arrives within the window replaces the one held back, and only
+ * the latest presence is delivered once the window closes. On login, or when
+ * a large roster or chat room changes, this cuts down the presence that is
+ * processed or sent by an order of magnitude.
+ * </p>
+ * <p>
+ * The JID is the sender for incoming presence and the recipient for outgoing
+ * presence. Presence of other types, such as subscription requests, is never
+ * held back. If such a presence is offered while a presence for the same JID
+ * is held back, the held back presence is delivered first so that the order
+ * of the two is kept.
+ * </p>
+ * <p>
+ * Coalescing is disabled until a window is set. Presence that was held back is
+ * delivered on the given executor, not on the thread that offered it.
+ * </p>
+ */
+public class PresenceCoalescer {
+    private static final Log log = LogFactory.getLog(PresenceCoalescer.class);
+
+    /**
+     * Receives the presence that is delivered after its window closes
+     */
+    public interface IPresenceSink {
+        /**
+         * @param presence the latest presence for a JID
+         */
+        void deliver(PresencePacket presence);
+    }
+
+    private final IPresenceSink sink;
+    private final boolean byRecipient;
+    private final HashMap<JID, PendingPresence> pending = new HashMap<JID, PendingPresence>();
+    private final AtomicLong heldCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private volatile long window;
+    private volatile HashedWheelTimer timer = HashedWheelTimer.getSharedTimer();
+    private volatile Executor executor;
+
+    /**
+     * @param sink the sink that the held back presence is delivered to
+     * @param byRecipient true to coalesce by recipient (outgoing presence),
+     *            false to coalesce by sender (incoming presence)
+     */
+    public PresenceCoalescer(IPresenceSink sink, boolean byRecipient) {
+        this.sink = sink;
+        this.byRecipient = byRecipient;
+    }
+
+    /**
+     * @return the coalescing window in milliseconds, 0 if disabled
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the time that presence is held back for newer presence of the same
+     * JID. The window should be a multiple of the timer's tick duration.
+     * Disabling coalescing delivers all the presence that is held back.
+     *
+     * @param window the window in milliseconds, 0 to disable coalescing
+     */
+    public void setWindow(long window) {
+        if (window < 0)
+            throw new IllegalArgumentException("Window cannot be negative");
+        this.window = window;
+        if (window == 0)
+            flush();
+    }
+
+    /**
+     * Sets the timer that closes the windows. By default, the timer shared by
+     * the whole library is used.
+     *
+     * @param timer the timer to use
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Sets the executor that delivers the presence once its window closes. By
+     * default, the shared packet dispatch pool is used.
+     *
+     * @param executor the executor, null to use the shared pool
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the number of presence packets that were held back
+     */
+    public long getHeldCount() {
+        return heldCount.get();
+    }
+
+    /**
+     * @return the number of presence packets that were replaced by newer
+     *         presence and never delivered
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * @return the number of JIDs with presence currently held back
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Offers a packet for coalescing.
+     *
+     * @param packet the packet
+     * @return true if the packet is held back and will be delivered to the
+     *         sink later, false if the caller should deliver the packet itself
+     */
+    public boolean offer(IStanzaPacket packet) {
+        if (window <= 0 || !(packet instanceof PresencePacket))
+            return false;
+        JID jid = byRecipient ? packet.getTo() : packet.getFrom();
+        if (!isAvailabilityPresence(packet)) {
+            // deliver anything that is held back first to keep the order
+            PendingPresence held;
+            synchronized (this) {
+                held = pending.remove(jid);
+            }
+            if (held != null)
+                deliver(held);
+            return false;
+        }
+        PresencePacket presence = (PresencePacket) packet;
+        heldCount.incrementAndGet();
+        final PendingPresence held;
+        synchronized (this) {
+            PendingPresence current = pending.get(jid);
+            if (current != null) {
+                current.presence = presence;
+                supersededCount.incrementAndGet();
+                return true;
+            }
+            held = new PendingPresence(jid, presence);
+            pending.put(jid, held);
+        }
+        held.timeout = timer.newTimeout(new Runnable() {
+            public void run() {
+                windowClosed(held);
+            }
+        }, window, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Delivers all the presence that is held back right away, on the calling
+     * thread.
+     */
+    public void flush() {
+        List<PendingPresence> held;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;
+            held = new ArrayList<PendingPresence>(pending.values());
+            pending.clear();
+        }
+        for (PendingPresence presence : held)
+            deliver(presence);
+    }
+
+    /**
+     * Discards all the presence that is held back without delivering it
+     */
+    public void clear() {
+        List<PendingPresence> held;
+        synchronized (this) {
+            held = new ArrayList<PendingPresence>(pending.values());
+            pending.clear();
+        }
+        for (PendingPresence presence : held)
+            if (presence.timeout != null)
+                presence.timeout.cancel();
+    }
+
+    /**
+     * called by the timer when the window of the presence closes. The
+     * delivery is handed off to the executor so that the timer thread is
+     * never held up by the sink.
+     */
+    private void windowClosed(final PendingPresence held) {
+        synchronized (this) {
+            if (pending.get(held.jid) != held)
+                return;
+            pending.remove(held.jid);
+        }
+        Executor exec = executor;
+        if (exec == null)
+            exec = PacketListenerManager.getSharedExecutor();
+        try {
+            exec.execute(new Runnable() {
+                public void run() {
+                    deliver(held);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Presence delivery rejected by executor.  Delivering presence in the timer thread.", ex);
+            deliver(held);
+        }
+    }
+
+    private void deliver(PendingPresence held) {
+        if (held.timeout != null)
+            held.timeout.cancel();
+        PresencePacket presence;
+        synchronized (this) {
+            presence = held.presence;
+        }
+        try {
+            sink.deliver(presence);
+        } catch (RuntimeException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to deliver coalesced presence for " + held.jid, ex);
+        }
+    }
+
+    /**
+     * @return true if the packet is a presence that announces availability,
+     *         which is superseded by the next such presence of the same JID
+     */
+    static boolean isAvailabilityPresence(IStanzaPacket packet) {
+        if (!(packet instanceof PresencePacket) || packet.getError() != null)
+            return false;
+        String type = packet.getType();
+        return type == null || PresencePacket.TYPE_UNAVAILABLE.equals(type);
+    }
+
+    /**
+     * The presence held back for a JID
+     */
+    private static class PendingPresence {
+        final JID jid;
+        PresencePacket presence;
+        volatile HashedWheelTimer.Timeout timeout;
+
+        PendingPresence(JID jid, PresencePacket presence) {
+            this.jid = jid;
+            this.presence = presence;
+        }
+    }
+}
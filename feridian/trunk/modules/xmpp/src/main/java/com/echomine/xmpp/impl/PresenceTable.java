@@ -0,0 +1,337 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.net.ConnectionEvent;
+import com.echomine.net.ConnectionListener;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IPresenceListener;
+import com.echomine.xmpp.IPresenceTable;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PresenceShow;
+import com.echomine.xmpp.ResourcePresence;
+import com.echomine.xmpp.StreamManagementContext;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * <p>
+ * The presence table kept by a connection. The table listens for incoming
+ * presence: available presence adds or updates the resource, and presence of
+ * type unavailable or error removes it. Presence of other types, such as
+ * subscription requests, is ignored.
+ * </p>
+ * <p>
+ * Each contact is a single entry in a concurrent map, keyed by bare JID, that
+ * holds an array of its resources ranked from best to worst. The array is
+ * never modified; a change creates a new array and swaps it in, so readers
+ * never lock and the best resource is always the first element. Contacts
+ * rarely have more than a few resources, so copying the array is cheap. The
+ * JIDs are the ones parsed from the packets, which are shared through the JID
+ * cache, so the table does not keep copies of its own.
+ * </p>
+ */
+public class PresenceTable implements IPresenceTable, IPacketListener, ConnectionListener {
+    private static final Log log = LogFactory.getLog(PresenceTable.class);
+
+    private static final ResourcePresence[] EMPTY = new ResourcePresence[0];
+
+    private final ConcurrentHashMap<JID, ResourcePresence[]> contacts = new ConcurrentHashMap<JID, ResourcePresence[]>();
+    private final CopyOnWriteArrayList<IPresenceListener> listeners = new CopyOnWriteArrayList<IPresenceListener>();
+    private final StreamManagementContext smCtx;
+
+    /**
+     * Creates a table that is emptied whenever the connection closes.
+     */
+    public PresenceTable() {
+        this(null);
+    }
+
+    /**
+     * Creates a table that is kept when the connection breaks while its
+     * session can still be resumed with stream management (XEP-0198), since
+     * the server does not send the presence again for a resumed session.
+     *
+     * @param smCtx the stream management state of the connection
+     */
+    public PresenceTable(StreamManagementContext smCtx) {
+        this.smCtx = smCtx;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#getBestResource(com.echomine.xmpp.JID)
+     */
+    public JID getBestResource(JID jid) {
+        if (jid == null)
+            return null;
+        ResourcePresence[] resources = contacts.get(jid.getBareJID());
+        if (resources == null || resources[0].getPriority() < 0)
+            return null;
+        return resources[0].getJID();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#getPresence(com.echomine.xmpp.JID)
+     */
+    public ResourcePresence getPresence(JID jid) {
+        if (jid == null)
+            return null;
+        ResourcePresence[] resources = contacts.get(jid.getBareJID());
+        if (resources == null)
+            return null;
+        if (jid.getResource() == null)
+            return resources[0];
+        int idx = indexOf(resources, jid);
+        return (idx == -1) ? null : resources[idx];
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#getResources(com.echomine.xmpp.JID)
+     */
+    public List<ResourcePresence> getResources(JID jid) {
+        ResourcePresence[] resources = (jid == null) ? null : contacts.get(jid.getBareJID());
+        if (resources == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(resources));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#isAvailable(com.echomine.xmpp.JID)
+     */
+    public boolean isAvailable(JID jid) {
+        return jid != null && contacts.containsKey(jid.getBareJID());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#getAvailableContacts()
+     */
+    public Set<JID> getAvailableContacts() {
+        return Collections.unmodifiableSet(contacts.keySet());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#size()
+     */
+    public int size() {
+        return contacts.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#addPresenceListener(com.echomine.xmpp.IPresenceListener)
+     */
+    public void addPresenceListener(IPresenceListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPresenceTable#removePresenceListener(com.echomine.xmpp.IPresenceListener)
+     */
+    public void removePresenceListener(IPresenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Applies the incoming presence
+     *
+     * @see com.echomine.xmpp.IPacketListener#packetReceived(com.echomine.xmpp.PacketEvent)
+     */
+    public void packetReceived(PacketEvent event) {
+        if (!(event.getPacket() instanceof PresencePacket))
+            return;
+        PresencePacket presence = (PresencePacket) event.getPacket();
+        JID from = presence.getFrom();
+        if (from == null)
+            return;
+        String type = presence.getType();
+        if (type == null) {
+            update(new ResourcePresence(from, presence.getPriority(), PresenceShow.fromShow(presence.getShow()), presence.getStatus()));
+        } else if (PresencePacket.TYPE_UNAVAILABLE.equals(type) || IStanzaPacket.TYPE_ERROR.equals(type)) {
+            // unavailable presence from the bare JID covers all resources
+            if (from.getResource() == null)
+                removeContact(from);
+            else
+                remove(from);
+        }
+    }
+
+    /**
+     * Adds or replaces the presence of a resource
+     *
+     * @param presence the presence of the resource
+     */
+    public void update(ResourcePresence presence) {
+        JID jid = presence.getJID();
+        JID bare = jid.getBareJID();
+        ResourcePresence[] old;
+        ResourcePresence[] updated;
+        do {
+            old = contacts.get(bare);
+            updated = insert((old == null) ? EMPTY : old, presence);
+        } while (!swap(bare, old, updated));
+        for (IPresenceListener l : listeners)
+            l.resourceChanged(jid, presence);
+        // the best resource changes when the presence ranks first, or when
+        // the presence of the best resource drops below another resource
+        if (old == null || old[0] != updated[0])
+            for (IPresenceListener l : listeners)
+                l.bestResourceChanged(bare, updated[0]);
+    }
+
+    /**
+     * Removes a resource, as when it becomes unavailable
+     *
+     * @param jid the full JID of the resource
+     */
+    public void remove(JID jid) {
+        JID bare = jid.getBareJID();
+        ResourcePresence[] old;
+        ResourcePresence[] updated;
+        int idx;
+        do {
+            old = contacts.get(bare);
+            if (old == null)
+                return;
+            idx = indexOf(old, jid);
+            if (idx == -1)
+                return;
+            updated = new ResourcePresence[old.length - 1];
+            System.arraycopy(old, 0, updated, 0, idx);
+            System.arraycopy(old, idx + 1, updated, idx, updated.length - idx);
+        } while (!swap(bare, old, updated));
+        for (IPresenceListener l : listeners)
+            l.resourceChanged(jid, null);
+        if (idx == 0) {
+            ResourcePresence best = (updated.length == 0) ? null : updated[0];
+            for (IPresenceListener l : listeners)
+                l.bestResourceChanged(bare, best);
+        }
+    }
+
+    /**
+     * Removes all the resources of a contact
+     *
+     * @param jid the JID of the contact, the resource is ignored
+     */
+    public void removeContact(JID jid) {
+        JID bare = jid.getBareJID();
+        ResourcePresence[] old = contacts.remove(bare);
+        if (old == null)
+            return;
+        for (IPresenceListener l : listeners) {
+            for (int i = 0; i < old.length; i++)
+                l.resourceChanged(old[i].getJID(), null);
+            l.bestResourceChanged(bare, null);
+        }
+    }
+
+    /**
+     * Removes all the contacts. The listeners are notified of every contact
+     * that becomes unavailable.
+     */
+    public void clear() {
+        if (log.isDebugEnabled())
+            log.debug("Clearing presence of " + contacts.size() + " contacts");
+        for (JID bare : new ArrayList<JID>(contacts.keySet()))
+            removeContact(bare);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.ConnectionListener#connectionStarting(com.echomine.net.ConnectionEvent)
+     */
+    public void connectionStarting(ConnectionEvent e) {
+        // not used
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.ConnectionListener#connectionEstablished(com.echomine.net.ConnectionEvent)
+     */
+    public void connectionEstablished(ConnectionEvent e) {
+        // not used
+    }
+
+    /**
+     * Presence is only valid for the session, so the table is emptied when
+     * the connection closes, unless the session can be resumed
+     *
+     * @see com.echomine.net.ConnectionListener#connectionClosed(com.echomine.net.ConnectionEvent)
+     */
+    public void connectionClosed(ConnectionEvent e) {
+        if (smCtx == null || !smCtx.isResumable())
+            clear();
+    }
+
+    /**
+     * swaps in the new resources of a contact
+     *
+     * @return false if the resources were changed by another thread
+     */
+    private boolean swap(JID bare, ResourcePresence[] old, ResourcePresence[] updated) {
+        if (old == null)
+            return contacts.putIfAbsent(bare, updated) == null;
+        if (updated.length == 0)
+            return contacts.remove(bare, old);
+        return contacts.replace(bare, old, updated);
+    }
+
+    /**
+     * creates the ranked array with the presence added, replacing the old
+     * presence of the same resource. The presence ranks before the resources
+     * that are as good.
+     */
+    private static ResourcePresence[] insert(ResourcePresence[] resources, ResourcePresence presence) {
+        int existing = indexOf(resources, presence.getJID());
+        int length = (existing == -1) ? resources.length + 1 : resources.length;
+        ResourcePresence[] updated = new ResourcePresence[length];
+        int j = 0;
+        boolean inserted = false;
+        for (int i = 0; i < resources.length; i++) {
+            if (i == existing)
+                continue;
+            if (!inserted && !resources[i].isPreferredTo(presence)) {
+                updated[j++] = presence;
+                inserted = true;
+            }
+            updated[j++] = resources[i];
+        }
+        if (!inserted)
+            updated[j] = presence;
+        return updated;
+    }
+
+    private static int indexOf(ResourcePresence[] resources, JID jid) {
+        for (int i = 0; i < resources.length; i++)
+            if (resources[i].getJID().equals(jid))
+                return i;
+        return -1;
+    }
+}
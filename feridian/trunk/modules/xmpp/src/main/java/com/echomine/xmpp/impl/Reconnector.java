@@ -0,0 +1,262 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.net.ConnectionEvent;
+import com.echomine.net.ConnectionException;
+import com.echomine.net.ConnectionListener;
+import com.echomine.net.ConnectionVetoException;
+import com.echomine.util.Backoff;
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.util.ThreadUtil;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPException;
+
+/**
+ * <p>
+ * Reconnects a connection that was closed or failed to connect. The attempts
+ * are spaced out by a backoff, so a server that is down is not hammered by
+ * its clients. If login information is set, the connection is also logged in
+ * again after it is reconnected.
+ * </p>
+ * <p>
+ * The waits between the attempts are scheduled on the timer shared by the
+ * whole library, so no thread is kept waiting. Only the attempt itself, which
+ * blocks while connecting, runs on a thread of its own.
+ * </p>
+ * <p>
+ * The reconnector reconnects after every close of the connection once it is
+ * started, including a close done by calling disconnect(). The reconnector
+ * must therefore be stopped before the connection is disconnected for good.
+ * </p>
+ */
+public class Reconnector implements ConnectionListener {
+    private static final Log log = LogFactory.getLog(Reconnector.class);
+
+    private final IXMPPConnection connection;
+    private final String host;
+    private final int port;
+    private final String domain;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private Backoff backoff = new Backoff();
+    private HashedWheelTimer timer = HashedWheelTimer.getSharedTimer();
+    private ThreadFactory threadFactory;
+    private String username;
+    private char[] password;
+    private String resource;
+    private volatile boolean started;
+    private HashedWheelTimer.Timeout timeout;
+
+    /**
+     * @param connection the connection to reconnect
+     * @param host the host to connect to
+     * @param port the port to connect to
+     * @param domain the domain of the server
+     */
+    public Reconnector(IXMPPConnection connection, String host, int port, String domain) {
+        this.connection = connection;
+        this.host = host;
+        this.port = port;
+        this.domain = domain;
+    }
+
+    /**
+     * Sets the information to login with once the connection is reconnected.
+     * Without it, the connection is only reconnected.
+     *
+     * @param username the username
+     * @param password the password
+     * @param resource optional resource to bind to
+     */
+    public synchronized void setLogin(String username, char[] password, String resource) {
+        this.username = username;
+        this.password = password;
+        this.resource = resource;
+    }
+
+    /**
+     * @return the backoff that spaces out the attempts
+     */
+    public synchronized Backoff getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Sets the backoff that spaces out the attempts. By default, the first
+     * attempt is made after about a second, and the attempts are no further
+     * apart than five minutes.
+     *
+     * @param backoff the backoff
+     */
+    public synchronized void setBackoff(Backoff backoff) {
+        if (backoff == null)
+            throw new IllegalArgumentException("Backoff cannot be null");
+        this.backoff = backoff;
+    }
+
+    /**
+     * Sets the timer that schedules the attempts. By default, the timer shared
+     * by the whole library is used.
+     *
+     * @param timer the timer to use
+     */
+    public synchronized void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Sets the factory that creates the threads the attempts are made on.
+     *
+     * @param threadFactory the factory, or null to use the default factory
+     */
+    public synchronized void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Starts listening for the connection to close. If the connection is not
+     * connected, the first attempt is scheduled right away.
+     */
+    public void start() {
+        synchronized (this) {
+            if (started)
+                return;
+            started = true;
+        }
+        connection.addConnectionListener(this);
+        if (!connection.isConnected())
+            schedule();
+    }
+
+    /**
+     * Stops reconnecting. An attempt that is already connecting is not
+     * interrupted, but no further attempts are made.
+     */
+    public void stop() {
+        synchronized (this) {
+            started = false;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+        connection.removeConnectionListener(this);
+        pending.set(false);
+    }
+
+    /**
+     * @return true if an attempt is scheduled or being made
+     */
+    public boolean isPending() {
+        return pending.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.ConnectionListener#connectionClosed(com.echomine.net.ConnectionEvent)
+     */
+    public void connectionClosed(ConnectionEvent e) {
+        schedule();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.ConnectionListener#connectionEstablished(com.echomine.net.ConnectionEvent)
+     */
+    public void connectionEstablished(ConnectionEvent e) {
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.ConnectionListener#connectionStarting(com.echomine.net.ConnectionEvent)
+     */
+    public void connectionStarting(ConnectionEvent e) throws ConnectionVetoException {
+    }
+
+    /**
+     * Schedules the next attempt unless one is already pending. The closes of
+     * the connection while an attempt is being made are left to the attempt.
+     */
+    private void schedule() {
+        if (!started || !pending.compareAndSet(false, true))
+            return;
+        scheduleAttempt();
+    }
+
+    /**
+     * schedules the next attempt after the backoff delay
+     */
+    private synchronized void scheduleAttempt() {
+        if (!started) {
+            pending.set(false);
+            return;
+        }
+        long delay = backoff.nextDelay();
+        if (log.isInfoEnabled())
+            log.info("Reconnecting to " + host + ":" + port + " in " + delay + "ms (attempt " + backoff.getAttempts() + ")");
+        timeout = timer.newTimeout(new Runnable() {
+            public void run() {
+                // connecting blocks, which the timer thread must not do
+                ThreadUtil.startThread(threadFactory, new Runnable() {
+                    public void run() {
+                        attempt();
+                    }
+                }, "Feridian Reconnect - " + host);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connects and logs in. If either fails, or the connection is closed
+     * again before the attempt is over, the next attempt is scheduled.
+     */
+    private void attempt() {
+        String username, resource;
+        char[] password;
+        synchronized (this) {
+            if (!started)
+                return;
+            timeout = null;
+            username = this.username;
+            password = this.password;
+            resource = this.resource;
+        }
+        boolean failed = true;
+        try {
+            connection.connect(host, port, domain, true);
+            if (username != null)
+                connection.login(username, password, resource);
+            failed = false;
+            getBackoff().reset();
+            if (log.isInfoEnabled())
+                log.info("Reconnected to " + host + ":" + port);
+        } catch (ConnectionException ex) {
+            if (log.isInfoEnabled())
+                log.info("Unable to reconnect to " + host + ":" + port, ex);
+        } catch (ConnectionVetoException ex) {
+            if (log.isInfoEnabled())
+                log.info("Reconnecting to " + host + ":" + port + " was vetoed", ex);
+        } catch (XMPPException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to login after reconnecting to " + host + ":" + port, ex);
+            connection.disconnect();
+        } finally {
+            if (failed) {
+                scheduleAttempt();
+            } else {
+                pending.set(false);
+                // the connection may have closed before the attempt was over
+                if (!connection.isConnected())
+                    schedule();
+            }
+        }
+    }
+}
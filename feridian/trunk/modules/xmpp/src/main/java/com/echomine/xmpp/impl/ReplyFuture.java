@@ -0,0 +1,227 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.IPacketFuture;
+import com.echomine.xmpp.IReplyListener;
+import com.echomine.xmpp.IStanzaPacket;
+
+/**
+ * The future used by the packet queue to wait for the reply of a packet. The
+ * future removes itself from the queue's reply table before it is done, no
+ * matter how it is done. Listeners are notified after any waiting threads are
+ * woken up.
+ */
+public class ReplyFuture implements IPacketFuture {
+    private static final Log log = LogFactory.getLog(ReplyFuture.class);
+
+    private final PacketQueue queue;
+    private final IStanzaPacket packet;
+    private final long sentTime = System.nanoTime();
+    private List<IReplyListener> listeners;
+    private IStanzaPacket reply;
+    private Throwable failure;
+    private boolean done;
+    private boolean cancelled;
+    private HashedWheelTimer.Timeout timeout;
+
+    ReplyFuture(PacketQueue queue, IStanzaPacket packet) {
+        this.queue = queue;
+        this.packet = packet;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketFuture#getPacket()
+     */
+    public IStanzaPacket getPacket() {
+        return packet;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IPacketFuture#addReplyListener(com.echomine.xmpp.IReplyListener)
+     */
+    public void addReplyListener(IReplyListener listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null)
+                    listeners = new ArrayList<IReplyListener>(2);
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * sets the timeout that fails this future, so that it can be cancelled
+     * once the future is done
+     */
+    void setTimeout(HashedWheelTimer.Timeout timeout) {
+        boolean cancel;
+        synchronized (this) {
+            this.timeout = timeout;
+            cancel = done;
+        }
+        if (cancel)
+            timeout.cancel();
+    }
+
+    /**
+     * Completes the future with the reply
+     *
+     * @param reply the reply packet
+     * @return true if completed, false if the future was already done
+     */
+    boolean complete(IStanzaPacket reply) {
+        queue.replyFinished(this);
+        synchronized (this) {
+            if (done)
+                return false;
+            this.reply = reply;
+            done = true;
+            notifyAll();
+        }
+        queue.replyReceived(System.nanoTime() - sentTime);
+        finished();
+        return true;
+    }
+
+    /**
+     * Fails the future
+     *
+     * @param cause the reason why no reply will be received
+     * @return true if failed, false if the future was already done
+     */
+    boolean fail(Throwable cause) {
+        queue.replyFinished(this);
+        synchronized (this) {
+            if (done)
+                return false;
+            this.failure = cause;
+            done = true;
+            notifyAll();
+        }
+        finished();
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        queue.replyFinished(this);
+        synchronized (this) {
+            if (done)
+                return false;
+            cancelled = true;
+            failure = new CancellationException("Wait for reply was cancelled");
+            done = true;
+            notifyAll();
+        }
+        finished();
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Future#isDone()
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Future#get()
+     */
+    public synchronized IStanzaPacket get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return getResult();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    public synchronized IStanzaPacket get(long time, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toMillis(time);
+        long end = System.currentTimeMillis() + remaining;
+        while (!done) {
+            if (remaining <= 0)
+                throw new TimeoutException("No reply received within wait time");
+            wait(remaining);
+            remaining = end - System.currentTimeMillis();
+        }
+        return getResult();
+    }
+
+    /**
+     * must be called with the lock held once the future is done
+     */
+    private IStanzaPacket getResult() throws ExecutionException {
+        if (cancelled)
+            throw (CancellationException) failure;
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return reply;
+    }
+
+    /**
+     * cleans up and notifies all the listeners once the future is done
+     */
+    private void finished() {
+        List<IReplyListener> toNotify;
+        HashedWheelTimer.Timeout toCancel;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+            toCancel = timeout;
+        }
+        if (toCancel != null)
+            toCancel.cancel();
+        if (toNotify != null) {
+            for (IReplyListener listener : toNotify)
+                notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(IReplyListener listener) {
+        try {
+            if (failure == null)
+                listener.replyReceived(packet, reply);
+            else
+                listener.replyFailed(packet, failure);
+        } catch (RuntimeException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Reply listener threw an exception", ex);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IRoster;
+import com.echomine.xmpp.IRosterListener;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStanzaErrorException;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.RosterItem;
+
+/**
+ * <p>
+ * The roster kept by a connection. The roster listens for roster pushes (iq
+ * of type set) and applies them item by item, replying to the server as
+ * required by the XMPP specs. Pushes that do not come from the server or the
+ * user's own account are ignored.
+ * </p>
+ * <p>
+ * The items are kept in concurrent maps indexed by bare JID and by group, so
+ * lookups never block. Changes are applied one at a time, and listeners are
+ * notified after each change.
+ * </p>
+ */
+public class Roster implements IRoster, IPacketListener {
+    private static final Log log = LogFactory.getLog(Roster.class);
+
+    private final IXMPPConnection connection;
+    private final XMPPSessionContext sessCtx;
+    private final XMPPStreamContext streamCtx;
+    private final ConcurrentHashMap<JID, RosterItem> items = new ConcurrentHashMap<JID, RosterItem>();
+    private final ConcurrentHashMap<String, Map<JID, RosterItem>> groups = new ConcurrentHashMap<String, Map<JID, RosterItem>>();
+    private final CopyOnWriteArrayList<IRosterListener> listeners = new CopyOnWriteArrayList<IRosterListener>();
+    private volatile String version;
+    private volatile boolean loaded;
+    private String account;
+
+    /**
+     * @param connection the connection that the roster is requested through
+     * @param sessCtx the session context, used to check the sender of pushes
+     * @param streamCtx the stream context, used to check for roster
+     *            versioning support
+     */
+    public Roster(IXMPPConnection connection, XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) {
+        this.connection = connection;
+        this.sessCtx = sessCtx;
+        this.streamCtx = streamCtx;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#load()
+     */
+    public void load() throws SendPacketFailedException, XMPPStanzaErrorException {
+        RosterIQPacket packet = new RosterIQPacket(IQPacket.TYPE_GET);
+        boolean versioning = streamCtx.getFeatures().isRosterVersioningSupported();
+        String current = version;
+        if (versioning)
+            packet.setVersion(current != null ? current : "");
+        IStanzaPacket reply = connection.sendPacket(packet, true);
+        if (reply == null)
+            return;
+        if (reply.getError() != null)
+            throw new XMPPStanzaErrorException(reply.getError());
+        // with versioning, a result without a query (or with an empty one)
+        // means that the cached roster is current and the changes, if any,
+        // follow as roster pushes
+        RosterIQPacket result = (reply instanceof RosterIQPacket) ? (RosterIQPacket) reply : null;
+        if (result == null || (versioning && current != null && result.getVersion() == null && result.getRosterItems().isEmpty())) {
+            if (log.isDebugEnabled())
+                log.debug("Roster version " + current + " is current");
+        } else {
+            replace(result.getRosterItems(), versioning ? result.getVersion() : null);
+        }
+        loaded = true;
+        for (IRosterListener l : listeners)
+            l.rosterLoaded(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#isLoaded()
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#restore(java.util.Collection,
+     *      java.lang.String)
+     */
+    public void restore(Collection<RosterItem> restored, String version) {
+        replace(restored, version);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#getVersion()
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#getItem(com.echomine.xmpp.JID)
+     */
+    public RosterItem getItem(JID jid) {
+        if (jid == null)
+            return null;
+        return items.get(jid.getBareJID());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#contains(com.echomine.xmpp.JID)
+     */
+    public boolean contains(JID jid) {
+        return getItem(jid) != null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#getItems()
+     */
+    public Collection<RosterItem> getItems() {
+        return Collections.unmodifiableCollection(items.values());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#getItemsInGroup(java.lang.String)
+     */
+    public Collection<RosterItem> getItemsInGroup(String group) {
+        Map<JID, RosterItem> members = (group == null) ? null : groups.get(group);
+        if (members == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableCollection(members.values());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#getGroups()
+     */
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(groups.keySet());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#size()
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#addRosterListener(com.echomine.xmpp.IRosterListener)
+     */
+    public void addRosterListener(IRosterListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IRoster#removeRosterListener(com.echomine.xmpp.IRosterListener)
+     */
+    public void removeRosterListener(IRosterListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Applies the roster pushes sent by the server
+     *
+     * @see com.echomine.xmpp.IPacketListener#packetReceived(com.echomine.xmpp.PacketEvent)
+     */
+    public void packetReceived(PacketEvent event) {
+        if (!(event.getPacket() instanceof RosterIQPacket))
+            return;
+        RosterIQPacket push = (RosterIQPacket) event.getPacket();
+        if (!IQPacket.TYPE_SET.equals(push.getType()))
+            return;
+        if (!isFromServer(push.getFrom())) {
+            if (log.isWarnEnabled())
+                log.warn("Ignoring roster push from " + push.getFrom());
+            return;
+        }
+        for (RosterItem item : push.getRosterItems())
+            apply(item);
+        if (push.getVersion() != null)
+            version = push.getVersion();
+        // the server must be told that the push was received
+        IQPacket result = new IQPacket(IQPacket.TYPE_RESULT);
+        result.setId(push.getId());
+        result.setTo(push.getFrom());
+        try {
+            connection.sendPacket(result, false);
+        } catch (SendPacketFailedException ex) {
+            if (log.isInfoEnabled())
+                log.info("Unable to acknowledge roster push", ex);
+        }
+    }
+
+    /**
+     * Sets the account that the roster belongs to. This is called by the
+     * connection once it is authenticated. The roster of another account is
+     * cleared.
+     *
+     * @param account the bare JID of the account
+     */
+    synchronized void setAccount(String account) {
+        if (this.account != null && !this.account.equals(account))
+            clear();
+        this.account = account;
+    }
+
+    /**
+     * Empties the roster, such as when the user changes. The listeners are
+     * not notified.
+     */
+    public synchronized void clear() {
+        items.clear();
+        groups.clear();
+        version = null;
+        loaded = false;
+    }
+
+    /**
+     * applies a single item of a push
+     */
+    private void apply(RosterItem item) {
+        if (item.getJid() == null)
+            return;
+        RosterItem removed = null;
+        synchronized (this) {
+            if (RosterItem.SUBSCRIBE_REMOVE.equals(item.getSubscription()))
+                removed = remove(item.getJid().getBareJID());
+            else
+                put(item);
+        }
+        if (removed != null) {
+            for (IRosterListener l : listeners)
+                l.rosterItemRemoved(removed);
+        } else if (!RosterItem.SUBSCRIBE_REMOVE.equals(item.getSubscription())) {
+            for (IRosterListener l : listeners)
+                l.rosterItemUpdated(item);
+        }
+    }
+
+    /**
+     * replaces all the items, notifying the listeners of the items that are
+     * gone
+     */
+    private void replace(Collection<RosterItem> newItems, String newVersion) {
+        List<RosterItem> removed;
+        synchronized (this) {
+            ConcurrentHashMap<JID, RosterItem> old = new ConcurrentHashMap<JID, RosterItem>(items);
+            for (RosterItem item : newItems) {
+                if (item.getJid() == null)
+                    continue;
+                old.remove(item.getJid().getBareJID());
+                put(item);
+            }
+            removed = new ArrayList<RosterItem>(old.size());
+            for (JID jid : old.keySet()) {
+                RosterItem item = remove(jid);
+                if (item != null)
+                    removed.add(item);
+            }
+            version = newVersion;
+        }
+        for (RosterItem item : removed)
+            for (IRosterListener l : listeners)
+                l.rosterItemRemoved(item);
+    }
+
+    /**
+     * puts the item into the indexes. Must be called while synchronized.
+     */
+    private void put(RosterItem item) {
+        JID jid = item.getJid().getBareJID();
+        RosterItem old = items.put(jid, item);
+        if (old != null)
+            removeFromGroups(jid, old);
+        for (Object group : item.getGroups()) {
+            Map<JID, RosterItem> members = groups.get(group);
+            if (members == null) {
+                members = new ConcurrentHashMap<JID, RosterItem>();
+                groups.put((String) group, members);
+            }
+            members.put(jid, item);
+        }
+    }
+
+    /**
+     * removes the item from the indexes. Must be called while synchronized.
+     */
+    private RosterItem remove(JID jid) {
+        RosterItem old = items.remove(jid);
+        if (old != null)
+            removeFromGroups(jid, old);
+        return old;
+    }
+
+    private void removeFromGroups(JID jid, RosterItem item) {
+        for (Object group : item.getGroups()) {
+            Map<JID, RosterItem> members = groups.get(group);
+            if (members == null)
+                continue;
+            members.remove(jid);
+            if (members.isEmpty())
+                groups.remove(group);
+        }
+    }
+
+    /**
+     * @return true if the push comes from the server, which is when it has no
+     *         sender or when it is sent by the user's bare JID
+     */
+    private boolean isFromServer(JID from) {
+        if (from == null)
+            return true;
+        if (from.getResource() != null)
+            return false;
+        String host = sessCtx.getHostName();
+        if (host == null || !host.equalsIgnoreCase(from.getHost()))
+            return false;
+        return from.getNode() == null || from.getNode().equalsIgnoreCase(sessCtx.getUsername());
+    }
+}
@@ -0,0 +1,306 @@
+package com.echomine.xmpp.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.StreamManagementContext;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.XMLTextPacket;
+
+/**
+ * <p>
+ * Handles the acks of stream management (XEP-0198) once it is enabled on a
+ * connection. Stream management itself is enabled or resumed during login by
+ * the StreamManagementStream.
+ * </p>
+ * <p>
+ * Acks are not requested for every stanza sent. A request is appended to the
+ * batch of stanzas that brings the number of stanzas sent since the last
+ * request to the ack request count, so that it goes out with the same flush.
+ * If fewer stanzas are sent, a request is sent once the ack request delay has
+ * passed since the first of them. The delay is tracked on the timer shared by
+ * the whole library. Requests from the server are answered right away.
+ * </p>
+ * <p>
+ * The stanzas sent are kept by the packet queue until they are acknowledged.
+ * When the connection breaks, they stay there, and are sent again once the
+ * session is resumed on a new connection.
+ * </p>
+ */
+public class StreamManager {
+    private static final Log log = LogFactory.getLog(StreamManager.class);
+    /**
+     * the default number of stanzas sent after which an ack is requested
+     */
+    public static final int DEFAULT_ACK_REQUEST_COUNT = 5;
+    /**
+     * the default time in milliseconds after which an ack is requested for
+     * fewer stanzas
+     */
+    public static final long DEFAULT_ACK_REQUEST_DELAY = 1000;
+    /** the markup of an ack request */
+    static final String REQUEST_MARKUP = "<r xmlns='" + XMPPConstants.NS_STREAM_MANAGEMENT + "'/>";
+    private static final XMLTextPacket REQUEST = new XMLTextPacket();
+
+    static {
+        REQUEST.setText(REQUEST_MARKUP);
+    }
+
+    private final XMPPConnectionHandler handler;
+    private final StreamManagementContext smCtx;
+    private HashedWheelTimer timer = HashedWheelTimer.getSharedTimer();
+    private int ackRequestCount = DEFAULT_ACK_REQUEST_COUNT;
+    private long ackRequestDelay = DEFAULT_ACK_REQUEST_DELAY;
+    private int unrequested;
+    private HashedWheelTimer.Timeout requestTimeout;
+
+    /**
+     * @param handler the handler of the connection
+     * @param smCtx the stream management state of the connection
+     */
+    public StreamManager(XMPPConnectionHandler handler, StreamManagementContext smCtx) {
+        this.handler = handler;
+        this.smCtx = smCtx;
+    }
+
+    /**
+     * Sets the timer that schedules the delayed ack requests. By default, the
+     * timer shared by the whole library is used.
+     *
+     * @param timer the timer to use
+     */
+    public synchronized void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @return the number of stanzas sent after which an ack is requested
+     */
+    public synchronized int getAckRequestCount() {
+        return ackRequestCount;
+    }
+
+    /**
+     * Sets the number of stanzas sent after which an ack is requested. A
+     * count of 1 requests an ack for every batch of stanzas sent.
+     *
+     * @param ackRequestCount the count, must be > 0
+     * @throws IllegalArgumentException if the count is not positive
+     */
+    public synchronized void setAckRequestCount(int ackRequestCount) {
+        if (ackRequestCount <= 0)
+            throw new IllegalArgumentException("Ack request count must be positive");
+        this.ackRequestCount = ackRequestCount;
+    }
+
+    /**
+     * @return the time in milliseconds after which an ack is requested for
+     *         fewer stanzas than the ack request count, or 0 if it is not
+     */
+    public synchronized long getAckRequestDelay() {
+        return ackRequestDelay;
+    }
+
+    /**
+     * Sets the time after which an ack is requested for stanzas that did not
+     * reach the ack request count.
+     *
+     * @param ackRequestDelay the delay in milliseconds, or 0 to only request
+     *            acks by count
+     */
+    public synchronized void setAckRequestDelay(long ackRequestDelay) {
+        this.ackRequestDelay = Math.max(0, ackRequestDelay);
+    }
+
+    /**
+     * @return the stream management state of the connection
+     */
+    public StreamManagementContext getContext() {
+        return smCtx;
+    }
+
+    /**
+     * @return true if stream management is enabled on the connection
+     */
+    public boolean isEnabled() {
+        return smCtx.isEnabled();
+    }
+
+    /**
+     * @return true if the connection resumed a previous session
+     */
+    public boolean isResumed() {
+        return smCtx.isResumed();
+    }
+
+    /**
+     * @return the number of stanzas sent that are not acknowledged yet
+     */
+    public int getUnacknowledgedCount() {
+        return handler.getPacketQueue().getUnacknowledgedCount();
+    }
+
+    /**
+     * Called when a new stream is started. Stream management must be enabled
+     * or resumed again before acks are exchanged.
+     */
+    public synchronized void start() {
+        smCtx.streamStarted();
+        unrequested = 0;
+        cancelRequest();
+    }
+
+    /**
+     * Called when the connection is shut down. The session can still be
+     * resumed.
+     */
+    public synchronized void stop() {
+        cancelRequest();
+    }
+
+    /**
+     * Ends the session for good. The stanzas that are not acknowledged are
+     * dropped, and the session can no longer be resumed.
+     */
+    public void endSession() {
+        synchronized (this) {
+            unrequested = 0;
+            cancelRequest();
+        }
+        smCtx.clear();
+        handler.getPacketQueue().clearUnacknowledged();
+    }
+
+    /**
+     * Called once the session is resumed on a new connection. The stanzas
+     * that the server handled before the connection broke are dropped, and
+     * the rest are sent again.
+     *
+     * @param ackedCount the number of stanzas acknowledged before the session
+     *            was resumed
+     * @return the number of stanzas sent again
+     */
+    public int sessionResumed(long ackedCount) {
+        // the counters wrap around at 2^32
+        handler.getPacketQueue().acknowledge((smCtx.getAckedCount() - ackedCount) & 0xFFFFFFFFL);
+        return resendUnacknowledged();
+    }
+
+    /**
+     * Sends the stanzas that are not acknowledged again, in the order they
+     * were first sent. This is done once the session is resumed, or once a
+     * new session is bound if the previous one could not be resumed.
+     *
+     * @return the number of stanzas sent again
+     */
+    public int resendUnacknowledged() {
+        List<IStanzaPacket> packets = handler.getPacketQueue().takeUnacknowledged();
+        if (packets.isEmpty())
+            return 0;
+        if (log.isDebugEnabled())
+            log.debug("Sending " + packets.size() + " unacknowledged stanzas again");
+        try {
+            for (IStanzaPacket packet : packets)
+                handler.queuePacket(packet, false);
+        } catch (SendPacketFailedException ex) {
+            if (log.isInfoEnabled())
+                log.info("Unable to send the unacknowledged stanzas again", ex);
+        }
+        return packets.size();
+    }
+
+    /**
+     * Called by the handler for every batch of stanzas it sends while stream
+     * management is enabled, before the batch is flushed. This is called with
+     * the handler's lock held, so the ack request, if any, must be written by
+     * the handler itself.
+     *
+     * @param count the number of stanzas in the batch
+     * @return true if an ack request must be appended to the batch
+     */
+    synchronized boolean stanzasSent(int count) {
+        unrequested += count;
+        if (unrequested >= ackRequestCount) {
+            unrequested = 0;
+            cancelRequest();
+            return true;
+        }
+        if (requestTimeout == null && ackRequestDelay > 0) {
+            requestTimeout = timer.newTimeout(new Runnable() {
+                public void run() {
+                    requestAck();
+                }
+            }, ackRequestDelay, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Sends an ack request for the stanzas that did not reach the ack request
+     * count within the delay. The request goes through the queue, since the
+     * handler's lock cannot be taken while holding this one.
+     */
+    private void requestAck() {
+        synchronized (this) {
+            requestTimeout = null;
+            if (unrequested == 0 || !smCtx.isEnabled())
+                return;
+            unrequested = 0;
+        }
+        try {
+            handler.queuePacket(REQUEST, false);
+        } catch (SendPacketFailedException ex) {
+            if (log.isDebugEnabled())
+                log.debug("Unable to request an ack", ex);
+        }
+    }
+
+    /**
+     * cancels the delayed ack request, if any
+     */
+    private void cancelRequest() {
+        if (requestTimeout != null) {
+            requestTimeout.cancel();
+            requestTimeout = null;
+        }
+    }
+
+    /**
+     * Processes an element of the stream management namespace received while
+     * the connection is running. The parser is left at the start tag of the
+     * element.
+     *
+     * @param uctx the unmarshalling context positioned at the start tag
+     * @throws JiBXException if the element cannot be parsed
+     */
+    void elementReceived(UnmarshallingContext uctx) throws JiBXException {
+        String name = uctx.getName();
+        if ("r".equals(name)) {
+            XMLTextPacket ack = new XMLTextPacket();
+            ack.setText("<a xmlns='" + XMPPConstants.NS_STREAM_MANAGEMENT + "' h='" + smCtx.getHandledCount() + "'/>");
+            try {
+                handler.queuePacket(ack, false);
+            } catch (SendPacketFailedException ex) {
+                if (log.isDebugEnabled())
+                    log.debug("Unable to answer ack request", ex);
+            }
+        } else if ("a".equals(name)) {
+            try {
+                long h = Long.parseLong(uctx.attributeText(null, "h"));
+                handler.getPacketQueue().acknowledge(smCtx.acknowledged(h));
+            } catch (NumberFormatException ex) {
+                throw new JiBXException("Invalid ack count: " + uctx.attributeText(null, "h", null), ex);
+            }
+        } else if (log.isDebugEnabled()) {
+            log.debug("Ignoring stream management element: " + name);
+        }
+    }
+}
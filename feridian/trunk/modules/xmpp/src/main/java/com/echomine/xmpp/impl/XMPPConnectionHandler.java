@@ -2,7 +2,9 @@ package com.echomine.xmpp.impl;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
@@ -11,27 +13,37 @@ import org.jibx.runtime.IXMLReader;
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.IElementHandler;
 import com.echomine.jibx.JiBXUtil;
-import com.echomine.jibx.XMPPLoggableReader;
+import com.echomine.jibx.XMPPUnmarshallingContext;
 import com.echomine.net.ConnectionContext;
 import com.echomine.net.HandshakeFailedException;
 import com.echomine.net.HandshakeableSocketHandler;
+import com.echomine.net.MeteredSocket;
+import com.echomine.net.NIOSocket;
+import com.echomine.net.TokenBucketThrottler;
 import com.echomine.net.XMPPConnectionContext;
 import com.echomine.util.IOUtil;
 import com.echomine.xmpp.ErrorCode;
 import com.echomine.xmpp.IDGenerator;
+import com.echomine.xmpp.IPacketFuture;
 import com.echomine.xmpp.IStanzaPacket;
 import com.echomine.xmpp.IXMPPStream;
 import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.StreamManagementContext;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStanzaErrorException;
 import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPStreamFactory;
+import com.echomine.xmpp.metrics.IMetricsRecorder;
+import com.echomine.xmpp.metrics.MetricsRegistry;
 import com.echomine.xmpp.packet.ErrorPacket;
 import com.echomine.xmpp.packet.IQPacket;
 import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PingIQPacket;
 import com.echomine.xmpp.packet.PresencePacket;
 import com.echomine.xmpp.packet.StanzaErrorPacket;
 import com.echomine.xmpp.packet.StanzaPacketBase;
@@ -65,14 +77,15 @@ import com.echomine.xmpp.packet.XMLTextPacket;
  * TODO: Error reply for IQ request will include the original request data if
  * the request is unknown.
  * </p>
+ * <p>
+ * Once stream management (XEP-0198) is enabled, the stanzas received are
+ * counted and the acks are exchanged through the stream manager. Every stanza
+ * sent is kept by the packet queue until it is acknowledged.
+ * </p>
  */
 public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         XMPPConstants {
     private static final Log log = LogFactory.getLog(XMPPConnectionHandler.class);
-    private static final String PRESENCE_ELEMENT_NAME = "presence";
-    private static final String IQ_ELEMENT_NAME = "iq";
-    private static final String MESSAGE_ELEMENT_NAME = "message";
-    private static final String ERROR_ELEMENT_NAME = "error";
 
     protected enum RunningState {
         HANDSHAKING, RUNNING, PAUSED, STOPPED
@@ -85,6 +98,17 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
     private IXMPPStream tlsStream;
     private PacketQueue queue;
     private PacketListenerManager listenerManager;
+    private PresenceCoalescer presenceCoalescer;
+    private KeepAlive keepAlive;
+    private StreamManager streamManager;
+    private final ConnectTimings connectTimings = new ConnectTimings();
+    private volatile IMetricsRecorder metrics = MetricsRegistry.getRegistry().createConnectionMetrics();
+    private volatile TokenBucketThrottler throttler;
+    private long startTime;
+    private volatile long lastSentTime;
+    private volatile long lastReceivedTime;
+    private volatile boolean streamEnded;
+    private volatile int generation;
     private Socket mainSocket;
     private ReentrantLock lock;
     private Semaphore pauseLock = new Semaphore(1);
@@ -113,7 +137,18 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
     public XMPPConnectionHandler(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) {
         this.sessCtx = sessCtx;
         this.streamCtx = streamCtx;
-        this.queue = new PacketQueue(this);
+        this.queue = createPacketQueue();
+        this.presenceCoalescer = new PresenceCoalescer(new PresenceCoalescer.IPresenceSink() {
+            public void deliver(PresencePacket presence) {
+                PacketListenerManager lmanager = listenerManager;
+                if (lmanager != null)
+                    lmanager.firePacketReceived(presence);
+            }
+        }, false);
+        this.keepAlive = new KeepAlive(this);
+        if (streamCtx.getStreamManagementContext() == null)
+            streamCtx.setStreamManagementContext(new StreamManagementContext());
+        this.streamManager = new StreamManager(this, streamCtx.getStreamManagementContext());
         lock = new ReentrantLock();
         try {
             handshakeStream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_HANDSHAKE);
@@ -138,18 +173,28 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
      */
     public void handshake(Socket socket, ConnectionContext connCtx) throws HandshakeFailedException {
         state = RunningState.HANDSHAKING;
+        long phaseStart = System.nanoTime();
+        // the socket is opened right after the handler is started
+        if (startTime != 0) {
+            connectTimings.record(ConnectTimings.Phase.TCP, phaseStart - startTime);
+            metrics.handshakePhase(ConnectTimings.Phase.TCP, phaseStart - startTime);
+        }
         try {
             this.mainSocket = socket;
+            // count the bytes as they are on the wire
+            if (socket instanceof NIOSocket)
+                ((NIOSocket) socket).getSession().setTrafficMeter(metrics);
+            else
+                socket = new MeteredSocket(socket, metrics, throttler);
             socket.setKeepAlive(true);
             streamCtx.getWriter().setOutput(socket.getOutputStream());
-            XMPPLoggableReader reader = new XMPPLoggableReader(socket.getInputStream(), "UTF-8");
-            streamCtx.getUnmarshallingContext().setDocument(reader);
+            streamCtx.setInput(socket.getInputStream());
             streamCtx.setSocket(socket);
-            streamCtx.setReader(reader);
             sessCtx.setHostName(((XMPPConnectionContext) connCtx).getDomain());
             if (log.isDebugEnabled())
                 log.debug("Starting Handshake with " + sessCtx.getHostName());
             handshakeStream.process(sessCtx, streamCtx);
+            phaseStart = recordPhase(ConnectTimings.Phase.STREAM, phaseStart);
             // tls stream negotiation if a stream supports it
             if (tlsStream != null && streamCtx.getFeatures().isTLSSupported()) {
                 if (log.isDebugEnabled())
@@ -158,6 +203,7 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                 if (log.isDebugEnabled())
                     log.debug("TLS negotiation successful! Redoing handshaking in TLS mode...");
                 handshakeStream.process(sessCtx, streamCtx);
+                recordPhase(ConnectTimings.Phase.TLS, phaseStart);
             }
             if (log.isDebugEnabled())
                 log.debug("Handshake completed... Ready for XMPP Stanza processing...");
@@ -171,6 +217,74 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         }
     }
 
+    /**
+     * Records the time since the start of the phase.
+     * 
+     * @param phase the phase that ended
+     * @param phaseStart the start time of the phase, in nanoseconds
+     * @return the end time of the phase, which is the start of the next one
+     */
+    long recordPhase(ConnectTimings.Phase phase, long phaseStart) {
+        long now = System.nanoTime();
+        connectTimings.record(phase, now - phaseStart);
+        metrics.handshakePhase(phase, now - phaseStart);
+        return now;
+    }
+
+    /**
+     * Retrieves the time spent in each phase of establishing the current
+     * session. The timings are reset when a new connection is started.
+     * 
+     * @return the timings of the current session
+     */
+    public ConnectTimings getConnectTimings() {
+        return connectTimings;
+    }
+
+    /**
+     * Retrieves the recorder of the metrics of this connection. By default,
+     * this is the connection's ConnectionMetrics from the MetricsRegistry.
+     * 
+     * @return the metrics recorder
+     */
+    public IMetricsRecorder getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the recorder of the metrics of this connection. It should be set
+     * before the connection is started.
+     * 
+     * @param metrics the metrics recorder
+     * @throws IllegalArgumentException if the recorder is null
+     */
+    public void setMetrics(IMetricsRecorder metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("Metrics recorder cannot be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the throttler that shapes the outgoing traffic, or null
+     */
+    public TokenBucketThrottler getThrottler() {
+        return throttler;
+    }
+
+    /**
+     * Sets the throttler that shapes the outgoing traffic of this connection.
+     * The stanzas sent are shaped as soon as it is set. The bytes are shaped
+     * as they are written to the socket, below TLS, and only for
+     * connections started after the throttler is set. The bytes of NIO
+     * sockets are not shaped, since they are written out by the selector
+     * thread. Connections that share a parent throttler are shaped together.
+     * 
+     * @param throttler the throttler, or null to send without limits
+     */
+    public void setThrottler(TokenBucketThrottler throttler) {
+        this.throttler = throttler;
+    }
+
     /*
      * The main handler method. It simply begins the incoming packet processing
      * mode. The code is also written so that the packet processing mode can be
@@ -188,6 +302,7 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
      *      com.echomine.net.ConnectionContext)
      */
     public void handle(Socket socket, ConnectionContext connCtx) throws IOException {
+        int connection = generation;
         UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
         // sets the stream context as user context for unmarshallers to use
         uctx.setUserContext(streamCtx);
@@ -204,102 +319,201 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                     }
                 if (state == RunningState.STOPPED)
                     break;
-                streamCtx.getReader().startLogging();
-                // purposely synchronize because of possible multithread
-                // accessing issue
-                synchronized (uctx) {
-                    uctx.next();
-                }
-                IStanzaPacket packet = null;
-                if (state == RunningState.RUNNING) {
-                    // parse incoming data
-                    if (uctx.currentEvent() == IXMLReader.END_DOCUMENT) {
-                        break;
-                    } else if (uctx.isEnd()) {
-                        continue;
-                    } else if (uctx.isAt(NS_XMPP_CLIENT, PRESENCE_ELEMENT_NAME)) {
-                        packet = (IStanzaPacket) JiBXUtil.unmarshallObject(uctx, PresencePacket.class);
-                    } else if (uctx.isAt(NS_XMPP_CLIENT, MESSAGE_ELEMENT_NAME)) {
-                        MessagePacket msgPkt = (MessagePacket) JiBXUtil.unmarshallObject(uctx, MessagePacket.class);
-                        // according to XMPP, message stanza with no child
-                        // element or unknown namespace extensions should be
-                        // ignored. This translates to this API ignoring message
-                        // stanzas with no child elements and no extensions in
-                        // this API.
-                        if (msgPkt.getBodies().isEmpty()
-                                && msgPkt.getExtensions().isEmpty()
-                                && msgPkt.getSubjects().isEmpty()
-                                && msgPkt.getThreadID() == null)
-                            streamCtx.getReader().flushIgnoredDataToLog();
-                        else
-                            packet = msgPkt;
-                    } else if (uctx.isAt(NS_XMPP_CLIENT, IQ_ELEMENT_NAME)) {
-                        IQPacket iqpkt = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
-                        // according to XMPP, if an entity receives an IQ stanza
-                        // of type "get" or "set" containing a child element
-                        // qualified by a namespace it does not understand, the
-                        // entity SHOULD return an IQ stanza of type "error"
-                        // with an error condition of <service-unavailable/>.
-                        // Here, it is ignored as well. In addition, an
-                        // error packet is also sent back to the user, as
-                        // specified by the specs.
-                        if (IQPacket.class.getName().equals(iqpkt.getClass().getName())
-                                && (IQPacket.TYPE_SET.equals(iqpkt.getType()) || IQPacket.TYPE_GET.equals(iqpkt.getType()))) {
-                            if (log.isDebugEnabled())
-                                log.debug("Found IQ packet with unknown extension inside.  Ignoring and sending unavailable error packet reply...");
-                            streamCtx.getReader().flushIgnoredDataToLog();
-                            IQPacket errpkt = new IQPacket();
-                            errpkt.setTo(iqpkt.getFrom());
-                            errpkt.setId(iqpkt.getId());
-                            // TODO: For now, the return result does not include
-                            // the original packet request data. XMPP specs
-                            // RECOMMENDS includes the original packet request
-                            // data.
-                            StanzaErrorPacket error = new StanzaErrorPacket();
-                            error.setCondition(ErrorCode.C_SERVICE_UNAVAILABLE);
-                            error.setErrorType(StanzaErrorPacket.CANCEL);
-                            errpkt.setError(error);
-                            try {
-                                queuePacket(errpkt, false);
-                            } catch (SendPacketFailedException ex) {
-                                // intentionally empty (will never get thrown)
-                            }
-                        } else {
-                            packet = iqpkt;
-                        }
-                    } else if (uctx.isAt(NS_JABBER_STREAM, ERROR_ELEMENT_NAME)) {
-                        // stream level error received = close stream
-                        ErrorPacket errorPkt = (ErrorPacket) JiBXUtil.unmarshallObject(uctx, ErrorPacket.class);
-                        XMPPStanzaErrorException ex = new XMPPStanzaErrorException("Stream error", errorPkt);
-                        IOException ioex = new IOException();
-                        ioex.initCause(ex);
-                        throw ioex;
-                    } else {
-                        uctx.skipElement();
-                        streamCtx.getReader().flushIgnoredDataToLog();
-                    }
-                    // match packets with those in queue in case any packets are
-                    // waiting for replies
-                    if (packet != null) {
-                        packet = queue.packetReceived(packet);
-                        if (listenerManager != null)
-                            listenerManager.firePacketReceived(packet);
-                        streamCtx.getReader().flushLog();
-                    }
-                }
+                if (!processIncomingElement(uctx))
+                    break;
             }
         } catch (JiBXException ex) {
-            // intentionally left empty
+            // an error after the shutdown is only the closed stream
+            if (state != RunningState.STOPPED)
+                metrics.parseError();
             if (log.isInfoEnabled())
                 log.info("Error while reading incoming data. Likely stream is closed due to shutdown or error", ex);
         } finally {
-            // error reading incoming data (maybe connection closed)
-            shutdown();
-            endStream();
-            IOUtil.closeSocket(streamCtx.getSocket());
+            // error reading incoming data (maybe connection closed). The
+            // handler may already be handling a new connection after a quick
+            // reconnect, which must be left alone. The check is made under
+            // the lock, so that start() cannot begin in between.
+            lock.lock();
+            try {
+                if (connection == generation) {
+                    shutdown();
+                    endStream();
+                }
+            } finally {
+                lock.unlock();
+            }
+            IOUtil.closeSocket(socket);
         }
     }
 
+    /**
+     * Reads the next incoming element from the stream and processes it. Known
+     * stanzas are unmarshalled, matched against the packets waiting for
+     * replies and then fired to the packet listeners. Unknown elements are
+     * skipped. After processing, the parser is left positioned at the end tag
+     * of the element so that it never reads ahead into the next stanza.
+     * 
+     * @param uctx the unmarshalling context to read from
+     * @return false if the end of the document is reached, true otherwise
+     * @throws IOException if a stream level error is received
+     * @throws JiBXException if the incoming data cannot be parsed
+     */
+    protected boolean processIncomingElement(UnmarshallingContext uctx) throws IOException, JiBXException {
+        streamCtx.getReader().startLogging();
+        // purposely synchronize because of possible multithread
+        // accessing issue
+        synchronized (uctx) {
+            // a stream may have taken over the parser while waiting for it
+            if (state != RunningState.RUNNING)
+                return true;
+            uctx.next();
+        }
+        lastReceivedTime = System.nanoTime();
+        if (state != RunningState.RUNNING)
+            return true;
+        IStanzaPacket packet = null;
+        // parse incoming data
+        if (uctx.currentEvent() == IXMLReader.END_DOCUMENT)
+            return false;
+        else if (uctx.isEnd())
+            return true;
+        String ns = uctx.getNamespace();
+        // acks and ack requests are not stanzas
+        if (NS_STREAM_MANAGEMENT.equals(ns)) {
+            streamManager.elementReceived(uctx);
+            skipElement(uctx);
+            streamCtx.getReader().flushLog();
+            return true;
+        }
+        // route the element through the dispatch table
+        IElementHandler handler = FeridianConfiguration.getConfig().getDispatchTable().get(ns, uctx.getName());
+        if (handler == null) {
+            skipElement(uctx);
+            streamCtx.getReader().flushIgnoredDataToLog();
+            return true;
+        }
+        Object obj = handler.unmarshall(uctx);
+        metrics.stanzaReceived();
+        if (NS_XMPP_CLIENT.equals(ns) && streamManager.isEnabled())
+            streamManager.getContext().stanzaHandled();
+        if (obj instanceof MessagePacket) {
+            MessagePacket msgPkt = (MessagePacket) obj;
+            // according to XMPP, message stanza with no child
+            // element or unknown namespace extensions should be
+            // ignored. This translates to this API ignoring message
+            // stanzas with no child elements and no extensions in
+            // this API.
+            if (msgPkt.getBodies().isEmpty()
+                    && msgPkt.getExtensions().isEmpty()
+                    && msgPkt.getSubjects().isEmpty()
+                    && msgPkt.getThreadID() == null)
+                streamCtx.getReader().flushIgnoredDataToLog();
+            else
+                packet = msgPkt;
+        } else if (obj instanceof IQPacket) {
+            IQPacket iqpkt = (IQPacket) obj;
+            // pings (XEP-0199) are answered right away
+            if (iqpkt instanceof PingIQPacket && IQPacket.TYPE_GET.equals(iqpkt.getType())) {
+                replyToPing(iqpkt);
+                streamCtx.getReader().flushLog();
+                return true;
+            }
+            // according to XMPP, if an entity receives an IQ stanza
+            // of type "get" or "set" containing a child element
+            // qualified by a namespace it does not understand, the
+            // entity SHOULD return an IQ stanza of type "error"
+            // with an error condition of <service-unavailable/>.
+            // Here, it is ignored as well. In addition, an
+            // error packet is also sent back to the user, as
+            // specified by the specs.
+            if (iqpkt.getClass() == IQPacket.class
+                    && (IQPacket.TYPE_SET.equals(iqpkt.getType()) || IQPacket.TYPE_GET.equals(iqpkt.getType()))) {
+                if (log.isDebugEnabled())
+                    log.debug("Found IQ packet with unknown extension inside.  Ignoring and sending unavailable error packet reply...");
+                streamCtx.getReader().flushIgnoredDataToLog();
+                IQPacket errpkt = new IQPacket();
+                errpkt.setTo(iqpkt.getFrom());
+                errpkt.setId(iqpkt.getId());
+                // TODO: For now, the return result does not include
+                // the original packet request data. XMPP specs
+                // RECOMMENDS includes the original packet request
+                // data.
+                StanzaErrorPacket error = new StanzaErrorPacket();
+                error.setCondition(ErrorCode.C_SERVICE_UNAVAILABLE);
+                error.setErrorType(StanzaErrorPacket.CANCEL);
+                errpkt.setError(error);
+                try {
+                    queuePacket(errpkt, false);
+                } catch (SendPacketFailedException ex) {
+                    // intentionally empty (will never get thrown)
+                }
+            } else {
+                packet = iqpkt;
+            }
+        } else if (obj instanceof ErrorPacket) {
+            // stream level error received = close stream
+            XMPPStanzaErrorException ex = new XMPPStanzaErrorException("Stream error", (ErrorPacket) obj);
+            IOException ioex = new IOException();
+            ioex.initCause(ex);
+            throw ioex;
+        } else if (obj instanceof IStanzaPacket) {
+            packet = (IStanzaPacket) obj;
+        } else {
+            // the handler processed the element by itself
+            streamCtx.getReader().flushLog();
+        }
+        // match packets with those in queue in case any packets are
+        // waiting for replies
+        if (packet != null) {
+            packet = queue.packetReceived(packet);
+            if (listenerManager != null && !presenceCoalescer.offer(packet))
+                listenerManager.firePacketReceived(packet);
+            streamCtx.getReader().flushLog();
+        }
+        return true;
+    }
+
+    /**
+     * Sends the result reply to a ping.
+     * 
+     * @param ping the ping received
+     */
+    private void replyToPing(IQPacket ping) {
+        IQPacket result = new IQPacket(IQPacket.TYPE_RESULT);
+        result.setTo(ping.getFrom());
+        result.setId(ping.getId());
+        try {
+            queuePacket(result, false);
+        } catch (SendPacketFailedException ex) {
+            if (log.isDebugEnabled())
+                log.debug("Unable to reply to ping", ex);
+        }
+    }
+
+    /**
+     * Skips the current element, leaving the parser positioned at the
+     * element's end tag. Unlike UnmarshallingContext.skipElement(), this does
+     * not read past the end tag.
+     * 
+     * @param uctx the unmarshalling context positioned at a start tag
+     * @throws JiBXException if the data cannot be parsed
+     */
+    private void skipElement(UnmarshallingContext uctx) throws JiBXException {
+        if (uctx instanceof XMPPUnmarshallingContext) {
+            ((XMPPUnmarshallingContext) uctx).skipToEnd();
+            return;
+        }
+        int depth = 0;
+        do {
+            if (uctx.isStart())
+                depth++;
+            else
+                depth--;
+            if (depth > 0)
+                uctx.next();
+        } while (depth > 0);
+    }
+
     /**
      * This will queue a packet for later delivery. This should be the method of
      * choice when sending ALL packets. The sendPacket() is used by the queue.
@@ -314,7 +528,29 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
      *             shutdown
      */
     public IStanzaPacket queuePacket(IStanzaPacket packet, boolean wait) throws SendPacketFailedException {
-        // set default ID if one isn't set
+        assignPacketID(packet);
+        return queue.queuePacket(packet, wait);
+    }
+
+    /**
+     * Queues a packet for later delivery and returns right away with a future
+     * for the reply. The ID of the packet is set the same way as in
+     * queuePacket().
+     * 
+     * @param packet the packet to send
+     * @return the future for the reply
+     * @throws SendPacketFailedException if the packet cannot be sent
+     * @see PacketQueue#queuePacketAsync(IStanzaPacket)
+     */
+    public IPacketFuture queuePacketAsync(IStanzaPacket packet) throws SendPacketFailedException {
+        assignPacketID(packet);
+        return queue.queuePacketAsync(packet);
+    }
+
+    /**
+     * sets default ID if one isn't set
+     */
+    private void assignPacketID(IStanzaPacket packet) {
         if (packet.getId() == null && packet instanceof StanzaPacketBase)
             try {
                 ((StanzaPacketBase) packet).setId(IDGenerator.nextID());
@@ -322,7 +558,6 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                 if (log.isWarnEnabled())
                     log.warn("Unable to generate packet ID.  Will not auto-set ID. You should check into cause", ex);
             }
-        return queue.queuePacket(packet, wait);
     }
 
     /**
@@ -341,7 +576,128 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
     void sendPacket(IStanzaPacket packet) throws SendPacketFailedException {
         if (packet == null)
             return;
+        throttleStanzas((packet instanceof XMLTextPacket) ? 0 : 1);
+        lock.lock();
+        try {
+            boolean tracked = writeStanza(packet);
+            if (tracked && streamManager.stanzasSent(1))
+                streamCtx.getWriter().writeMarkup(StreamManager.REQUEST_MARKUP);
+            streamCtx.getWriter().flush();
+            lastSentTime = System.nanoTime();
+            metrics.stanzasSent(1);
+        } catch (IOException ex) {
+            throw new SendPacketFailedException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a batch of packets with a single flush at the end. The packets are
+     * marshalled into the writer's buffer one after the other, which means
+     * that they normally go out in a single socket write (and a single TLS
+     * record) instead of one write per packet. The packets are sent in order,
+     * and no other packets are sent in between them.
+     * 
+     * @param packets the packets to send
+     * @throws SendPacketFailedException if the packets cannot be sent
+     *             (connection closed, IO error, etc)
+     */
+    void sendPackets(List<IStanzaPacket> packets) throws SendPacketFailedException {
+        if (packets.isEmpty())
+            return;
+        int stanzas = 0;
+        for (IStanzaPacket packet : packets) {
+            if (packet != null && !(packet instanceof XMLTextPacket))
+                stanzas++;
+        }
+        throttleStanzas(stanzas);
         lock.lock();
+        try {
+            int count = 0;
+            int tracked = 0;
+            for (IStanzaPacket packet : packets) {
+                if (packet != null) {
+                    if (writeStanza(packet))
+                        tracked++;
+                    count++;
+                }
+            }
+            if (tracked > 0 && streamManager.stanzasSent(tracked))
+                streamCtx.getWriter().writeMarkup(StreamManager.REQUEST_MARKUP);
+            streamCtx.getWriter().flush();
+            lastSentTime = System.nanoTime();
+            metrics.stanzasSent(count);
+        } catch (IOException ex) {
+            throw new SendPacketFailedException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the throttler allows the stanzas to be sent. This is done
+     * before taking the write lock, so that other writes (ie. acks and
+     * keepalives) are not held up by the wait.
+     * 
+     * @param count the number of stanzas about to be sent
+     */
+    private void throttleStanzas(int count) {
+        TokenBucketThrottler throttler = this.throttler;
+        if (throttler == null || count == 0)
+            return;
+        long nanos = throttler.acquireStanzas(count);
+        if (nanos > 0)
+            metrics.sendThrottled(nanos);
+    }
+
+    /**
+     * Writes the packet and keeps it until it is acknowledged if stream
+     * management is enabled. A packet that cannot be marshalled was never
+     * sent, so it is not kept. Must be called with the lock held.
+     * 
+     * @param packet the packet to write
+     * @return true if the packet is kept
+     * @throws SendPacketFailedException if the packet cannot be marshalled
+     * @throws IOException if the packet cannot be written
+     */
+    private boolean writeStanza(IStanzaPacket packet) throws SendPacketFailedException, IOException {
+        boolean tracked = track(packet);
+        try {
+            writePacket(packet);
+        } catch (SendPacketFailedException ex) {
+            if (tracked)
+                queue.stanzaNotSent(packet);
+            throw ex;
+        }
+        return tracked;
+    }
+
+    /**
+     * Keeps the stanza until it is acknowledged if stream management is
+     * enabled. This is done before the stanza is written out, so that it is
+     * not lost if the write fails. Raw xml text is not a stanza and is not
+     * kept.
+     * 
+     * @param packet the packet about to be sent
+     * @return true if the packet is kept
+     */
+    private boolean track(IStanzaPacket packet) {
+        if (packet instanceof XMLTextPacket || !streamManager.isEnabled())
+            return false;
+        queue.stanzaSent(packet);
+        return true;
+    }
+
+    /**
+     * Marshalls the packet into the writer without flushing it. Must be called
+     * with the lock held.
+     * 
+     * @param packet the packet to write
+     * @throws SendPacketFailedException if the packet cannot be marshalled
+     * @throws IOException if the packet cannot be written
+     */
+    private void writePacket(IStanzaPacket packet) throws SendPacketFailedException, IOException {
         try {
             // IQ Packets are marshalled differently
             if (packet instanceof IQPacket)
@@ -350,13 +706,8 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                 streamCtx.getWriter().writeMarkup(((XMLTextPacket) packet).getText());
             else
                 JiBXUtil.marshallObject(streamCtx.getWriter(), packet);
-            streamCtx.getWriter().flush();
         } catch (JiBXException ex) {
             throw new SendPacketFailedException(ex);
-        } catch (IOException ex) {
-            throw new SendPacketFailedException(ex);
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -388,11 +739,23 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
     public void start() {
         lock.lock();
         try {
+            // a new connection begins before any of the old one is reset, so
+            // that a reader still ending the old one leaves this one alone
+            generation++;
             state = RunningState.STOPPED;
             streamCtx.reset();
             sessCtx.reset();
+            presenceCoalescer.clear();
+            connectTimings.reset();
+            metrics.connectionOpened();
+            startTime = System.nanoTime();
+            lastSentTime = startTime;
+            lastReceivedTime = startTime;
+            streamEnded = false;
             // start queue paused
             queue.start(true);
+            keepAlive.start();
+            streamManager.start();
         } finally {
             lock.unlock();
         }
@@ -407,6 +770,9 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
      * @see com.echomine.net.SocketHandler#shutdown()
      */
     public void shutdown() {
+        metrics.connectionClosed();
+        keepAlive.stop();
+        streamManager.stop();
         if (state == RunningState.STOPPED)
             return;
         lock.lock();
@@ -421,6 +787,8 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                 // intentionally left empty
             }
             queue.stop();
+            // the presence held back was received and is still passed on
+            presenceCoalescer.flush();
         } finally {
             lock.unlock();
         }
@@ -471,6 +839,72 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         this.listenerManager = lmanager;
     }
 
+    /**
+     * Retrieves the coalescer of incoming presence. Once its window is set,
+     * only the latest availability presence of each sender within the window
+     * is passed on to the packet listeners.
+     * 
+     * @return the incoming presence coalescer
+     */
+    public PresenceCoalescer getPresenceCoalescer() {
+        return presenceCoalescer;
+    }
+
+    /**
+     * Retrieves the queue that sends out the outgoing packets. The queue can
+     * be used to tune how outgoing packets are batched.
+     * 
+     * @return the outgoing packet queue
+     */
+    public PacketQueue getPacketQueue() {
+        return queue;
+    }
+
+    /**
+     * Retrieves the keepalive of this connection. Whitespace keepalives and
+     * pings are off until their intervals are set.
+     * 
+     * @return the keepalive of the connection
+     */
+    public KeepAlive getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Retrieves the stream manager of this connection, which handles the acks
+     * of stream management (XEP-0198) once it is enabled.
+     * 
+     * @return the stream manager of the connection
+     */
+    public StreamManager getStreamManager() {
+        return streamManager;
+    }
+
+    /**
+     * @return the time of the last packet sent, in nanoseconds as returned by
+     *         System.nanoTime()
+     */
+    long getLastSentTime() {
+        return lastSentTime;
+    }
+
+    /**
+     * @return the time of the last element received, in nanoseconds as
+     *         returned by System.nanoTime()
+     */
+    long getLastReceivedTime() {
+        return lastReceivedTime;
+    }
+
+    /**
+     * Sets the factory that creates the outgoing packet queue thread.
+     * 
+     * @param threadFactory the factory, or null to use the default factory
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        queue.setThreadFactory(threadFactory);
+    }
+
     /**
      * pauses all processing of incoming packets. This is normally used to
      * indicate that some stream wishes to take over the stream processing for
@@ -506,12 +940,41 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         }
     }
 
+    /**
+     * Creates the queue used for sending out packets. This is called once by
+     * the constructor. Subclasses can override this to use a differently
+     * configured queue.
+     * 
+     * @return the packet queue
+     */
+    protected PacketQueue createPacketQueue() {
+        return new PacketQueue(this);
+    }
+
+    /**
+     * Closes the stream while the connection is still running, so that the
+     * remote entity knows the connection is closed on purpose. With stream
+     * management, this ends the session instead of leaving it to be resumed.
+     */
+    void closeStream() {
+        lock.lock();
+        try {
+            if (state != RunningState.STOPPED)
+                endStream();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Ends the stream due to either receiving an error from remote entity or
      * any error encountered here. The method will not flush or close the
-     * underlying stream.
+     * underlying stream. The stream is only ended once.
      */
     protected void endStream() {
+        if (streamEnded)
+            return;
+        streamEnded = true;
         try {
             streamCtx.getWriter().endStream();
         } catch (IOException ex) {
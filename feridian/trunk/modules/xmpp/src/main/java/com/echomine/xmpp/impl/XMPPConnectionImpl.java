@@ -2,6 +2,7 @@ package com.echomine.xmpp.impl;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,19 +12,34 @@ import com.echomine.net.ConnectionException;
 import com.echomine.net.ConnectionListener;
 import com.echomine.net.ConnectionVetoException;
 import com.echomine.net.HandshakeableSocketConnector;
+import com.echomine.net.NIOConnectionEngine;
+import com.echomine.net.NIOSocketConnector;
+import com.echomine.net.TokenBucketThrottler;
 import com.echomine.net.XMPPConnectionContext;
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketFilter;
+import com.echomine.xmpp.IPacketFuture;
 import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IPacketListenerRegistration;
+import com.echomine.xmpp.IPresenceTable;
+import com.echomine.xmpp.IRoster;
 import com.echomine.xmpp.IStanzaPacket;
 import com.echomine.xmpp.IXMPPAuthenticator;
 import com.echomine.xmpp.IXMPPConnection;
 import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.PacketFilter;
 import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.StreamManagementContext;
 import com.echomine.xmpp.XMPPAuthCallback;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPStreamFactory;
+import com.echomine.xmpp.metrics.IMetricsRecorder;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
 
 /**
  * The primary default implementation for the API. It allows the user to
@@ -40,6 +56,11 @@ public class XMPPConnectionImpl implements IXMPPConnection {
 
     private PacketListenerManager listenerManager;
 
+    private Roster roster;
+    private String account;
+
+    private PresenceTable presenceTable;
+
     /**
      * The default constructor that most classes should use. It will use all
      * default objects.
@@ -60,6 +81,17 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         this(new HandshakeableSocketConnector(), handler);
     }
 
+    /**
+     * Uses NIO connection handling through the given engine. The connection
+     * will not use any threads of its own; all processing is done by the
+     * engine's shared threads.
+     * 
+     * @param engine the NIO engine to connect with
+     */
+    public XMPPConnectionImpl(NIOConnectionEngine engine) {
+        this(new NIOSocketConnector(engine), new NIOXMPPConnectionHandler());
+    }
+
     /**
      * uses the specified alternate objects. This is really a method used to
      * perform unit testing.
@@ -118,12 +150,17 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Closes the connection. The session ends for good, so it cannot be
+     * resumed with stream management.
      * 
      * @see com.echomine.xmpp.IXMPPConnection#disconnect()
      */
     public void disconnect() {
+        StreamManager streamManager = handler.getStreamManager();
+        if (streamManager.isEnabled())
+            handler.closeStream();
+        streamManager.endSession();
         handler.shutdown();
     }
 
@@ -139,6 +176,14 @@ public class XMPPConnectionImpl implements IXMPPConnection {
      * authenticated. Also, this login method actually searches through a list
      * of registered authenticators and use the first one that indicates its
      * ability to authenticate the stream.
+     * <p>
+     * If the previous connection broke while stream management (XEP-0198) was
+     * enabled, the session is resumed instead of binding a new one. Resource
+     * binding and session establishment are then skipped, the roster and
+     * presence of the session are still valid, and the stanzas that were not
+     * acknowledged are sent again. Otherwise, stream management is enabled
+     * after the session is established if the server supports it.
+     * </p>
      * 
      * @param username the username
      * @param password the password
@@ -170,18 +215,126 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         if (log.isDebugEnabled())
             log.debug("Authenticating using the following authenticator: "
                     + auth.getClass().getName());
+        long phaseStart = System.nanoTime();
         handler.processStream(auth, auth.redoHandshake());
+        // the roster of the previous account must not be kept
+        synchronized (this) {
+            account = username + '@' + handler.getSessionContext().getHostName();
+            if (roster != null)
+                roster.setAccount(account);
+        }
+        // stream compression is negotiated after authentication (XEP-0170)
+        IXMPPStream stream;
+        if (streamCtx.getFeatures().isCompressionSupported()) {
+            stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_FEATURE_COMPRESS);
+            if (stream != null) {
+                handler.processStream(stream, false);
+                // the features are cleared once compression is established,
+                // and the stream must then be restarted
+                if (!streamCtx.getFeatures().isCompressionSupported())
+                    handler.processStream(XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_HANDSHAKE), false);
+            }
+        }
+        phaseStart = handler.recordPhase(ConnectTimings.Phase.AUTH, phaseStart);
+        StreamManager streamManager = handler.getStreamManager();
+        StreamManagementContext smCtx = streamManager.getContext();
+        IXMPPStream smStream = null;
+        if (streamCtx.getFeatures().isStreamManagementSupported())
+            smStream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_MANAGEMENT);
+        if (smCtx.isResumable()) {
+            long ackedCount = smCtx.getAckedCount();
+            if (smStream != null)
+                handler.processStream(smStream, false);
+            if (smCtx.isResumed()) {
+                handler.recordPhase(ConnectTimings.Phase.RESUME, phaseStart);
+                streamManager.sessionResumed(ackedCount);
+                return;
+            }
+            // the previous session is gone along with its presence
+            smCtx.clear();
+            synchronized (this) {
+                if (presenceTable != null)
+                    presenceTable.clear();
+            }
+        }
         // now check if binding and session features are supported
         // if so, binding and session negotiation must be done
-        IXMPPStream stream;
         if (streamCtx.getFeatures().isBindingSupported()) {
             stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_BINDING);
             handler.processStream(stream, false);
+            phaseStart = handler.recordPhase(ConnectTimings.Phase.BIND, phaseStart);
         }
         if (streamCtx.getFeatures().isSessionSupported()) {
             stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_SESSION);
             handler.processStream(stream, false);
+            handler.recordPhase(ConnectTimings.Phase.SESSION, phaseStart);
         }
+        if (smStream != null)
+            handler.processStream(smStream, false);
+        // stanzas left over from a session that could not be resumed
+        streamManager.resendUnacknowledged();
+    }
+
+    /**
+     * Retrieves the time spent in each phase of connecting and logging in.
+     * 
+     * @return the timings of the current session
+     */
+    public ConnectTimings getConnectTimings() {
+        return handler.getConnectTimings();
+    }
+
+    /**
+     * Retrieves the metrics of this connection, such as the stanzas and bytes
+     * sent and received and the time waited for replies.
+     * 
+     * @return the metrics recorder of the connection
+     * @see com.echomine.xmpp.metrics.MetricsRegistry
+     */
+    public IMetricsRecorder getMetrics() {
+        return handler.getMetrics();
+    }
+
+    /**
+     * Sets the throttler that shapes the outgoing traffic of this connection
+     * to the rates allowed by the server. A throttler that is the parent of
+     * the throttlers of several connections shapes them together. The byte
+     * rate applies to connections started after it is set.
+     * 
+     * @param throttler the throttler, or null to send without limits
+     * @see TokenBucketThrottler
+     */
+    public void setThrottler(TokenBucketThrottler throttler) {
+        handler.setThrottler(throttler);
+    }
+
+    /**
+     * @return the throttler of this connection, or null
+     */
+    public TokenBucketThrottler getThrottler() {
+        return handler.getThrottler();
+    }
+
+    /**
+     * Retrieves the keepalive of this connection, which sends whitespace
+     * keepalives and pings (XEP-0199) while the connection is idle. Both are
+     * off until their intervals are set.
+     * 
+     * @return the keepalive of the connection
+     */
+    public KeepAlive getKeepAlive() {
+        return handler.getKeepAlive();
+    }
+
+    /**
+     * Retrieves the stream manager of this connection, which tells whether
+     * stream management (XEP-0198) is enabled or the session was resumed, and
+     * tunes how often acks are requested.
+     * 
+     * @return the stream manager of the connection
+     */
+    public StreamManager getStreamManager() {
+        return handler.getStreamManager();
     }
 
     /*
@@ -194,6 +347,16 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         return handler.queuePacket(packet, wait);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#sendPacketAsync(com.echomine.xmpp.IStanzaPacket)
+     */
+    public IPacketFuture sendPacketAsync(IStanzaPacket packet)
+            throws SendPacketFailedException {
+        return handler.queuePacketAsync(packet);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -221,6 +384,16 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         listenerManager.addPacketListener(listener);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#addPacketListener(com.echomine.xmpp.IPacketListener,
+     *      com.echomine.xmpp.IPacketFilter, com.echomine.xmpp.DispatchPolicy)
+     */
+    public IPacketListenerRegistration addPacketListener(IPacketListener listener, IPacketFilter filter, DispatchPolicy policy) {
+        return listenerManager.addPacketListener(listener, filter, policy);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -230,4 +403,45 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         listenerManager.removePacketListener(listener);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#getRoster()
+     */
+    public synchronized IRoster getRoster() {
+        if (roster == null) {
+            roster = new Roster(this, handler.getSessionContext(), handler.getStreamContext());
+            roster.setAccount(account);
+            // pushes are applied in the order they are received
+            listenerManager.addPacketListener(roster, new PacketFilter(RosterIQPacket.class, IQPacket.TYPE_SET), DispatchPolicy.INLINE);
+        }
+        return roster;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#getPresenceTable()
+     */
+    public synchronized IPresenceTable getPresenceTable() {
+        if (presenceTable == null) {
+            presenceTable = new PresenceTable(handler.getStreamManager().getContext());
+            listenerManager.addPacketListener(presenceTable, new PacketFilter(PresencePacket.class), DispatchPolicy.INLINE);
+            conn.addConnectionListener(presenceTable);
+        }
+        return presenceTable;
+    }
+
+    /**
+     * Sets the factory that creates the threads used by this connection,
+     * which are the connection handling thread and the outgoing packet queue
+     * thread. This is mainly used to run the connection on virtual threads.
+     * 
+     * @param threadFactory the factory, or null to use the default factory
+     * @see com.echomine.util.ThreadUtil
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        conn.setThreadFactory(threadFactory);
+        handler.setThreadFactory(threadFactory);
+    }
 }
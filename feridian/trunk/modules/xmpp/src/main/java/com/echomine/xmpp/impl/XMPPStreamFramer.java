@@ -0,0 +1,216 @@
+package com.echomine.xmpp.impl;
+
+import com.echomine.net.NIOStreamFramer;
+
+/**
+ * Finds complete stanzas inside the raw bytes of an XMPP stream. The framer
+ * does not parse the XML; it only tracks the element nesting depth by looking
+ * at the markup characters, which are all ASCII and thus safe to scan for in
+ * UTF-8 data. Quoted attribute values, comments, processing instructions and
+ * CDATA sections are skipped so that markup characters inside them are not
+ * miscounted.
+ * <p>
+ * A unit is complete every time an element closes back to the level of the
+ * stream root. The closing of the stream root itself is also a unit. The
+ * opening tag of the stream root is not a unit, but it resets the depth so
+ * that the stream restarts required by TLS and SASL are handled.
+ * </p>
+ */
+public class XMPPStreamFramer implements NIOStreamFramer {
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int START_TAG_NAME = 2;
+    private static final int START_TAG = 3;
+    private static final int ATTRIBUTE_VALUE = 4;
+    private static final int EMPTY_TAG_END = 5;
+    private static final int END_TAG = 6;
+    private static final int PROCESSING_INSTRUCTION = 7;
+    private static final int MARKUP_DECLARATION = 8;
+    private static final int COMMENT_OPEN = 9;
+    private static final int COMMENT = 10;
+    private static final int CDATA_OPEN = 11;
+    private static final int CDATA = 12;
+    private static final int DECLARATION = 13;
+    private static final byte[] STREAM_NAME = "stream".getBytes();
+    private static final int MAX_NAME = 64;
+
+    private int state = TEXT;
+    private int depth;
+    private byte quote;
+    private int marks;
+    private byte[] name = new byte[MAX_NAME];
+    private int nameLength;
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.NIOStreamFramer#scan(byte[], int, int)
+     */
+    public int scan(byte[] data, int offset, int length) {
+        int units = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            switch (state) {
+            case TEXT:
+                if (b == '<')
+                    state = TAG_OPEN;
+                break;
+            case TAG_OPEN:
+                if (b == '/') {
+                    state = END_TAG;
+                } else if (b == '?') {
+                    state = PROCESSING_INSTRUCTION;
+                    marks = 0;
+                } else if (b == '!') {
+                    state = MARKUP_DECLARATION;
+                } else {
+                    state = START_TAG_NAME;
+                    nameLength = 0;
+                    appendName(b);
+                }
+                break;
+            case START_TAG_NAME:
+                if (b == '>') {
+                    openElement();
+                } else if (b == '/') {
+                    state = EMPTY_TAG_END;
+                } else if (isWhitespace(b)) {
+                    state = START_TAG;
+                } else {
+                    appendName(b);
+                }
+                break;
+            case START_TAG:
+                if (b == '"' || b == '\'') {
+                    quote = b;
+                    state = ATTRIBUTE_VALUE;
+                } else if (b == '/') {
+                    state = EMPTY_TAG_END;
+                } else if (b == '>') {
+                    openElement();
+                }
+                break;
+            case ATTRIBUTE_VALUE:
+                if (b == quote)
+                    state = START_TAG;
+                break;
+            case EMPTY_TAG_END:
+                if (b == '>') {
+                    state = TEXT;
+                    if (depth == 1)
+                        units++;
+                } else {
+                    state = START_TAG;
+                }
+                break;
+            case END_TAG:
+                if (b == '>') {
+                    state = TEXT;
+                    if (depth > 0) {
+                        depth--;
+                        if (depth <= 1)
+                            units++;
+                    }
+                }
+                break;
+            case PROCESSING_INSTRUCTION:
+                if (b == '>' && marks > 0)
+                    state = TEXT;
+                marks = (b == '?') ? 1 : 0;
+                break;
+            case MARKUP_DECLARATION:
+                if (b == '-')
+                    state = COMMENT_OPEN;
+                else if (b == '[')
+                    state = CDATA_OPEN;
+                else
+                    state = DECLARATION;
+                break;
+            case COMMENT_OPEN:
+                state = COMMENT;
+                marks = 0;
+                break;
+            case COMMENT:
+                if (b == '>' && marks >= 2)
+                    state = TEXT;
+                marks = (b == '-') ? marks + 1 : 0;
+                break;
+            case CDATA_OPEN:
+                // skips the "CDATA[" part of the section start
+                if (b == '[') {
+                    state = CDATA;
+                    marks = 0;
+                }
+                break;
+            case CDATA:
+                if (b == '>' && marks >= 2)
+                    state = TEXT;
+                marks = (b == ']') ? marks + 1 : 0;
+                break;
+            case DECLARATION:
+                if (b == '>')
+                    state = TEXT;
+                break;
+            }
+        }
+        return units;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.NIOStreamFramer#reset()
+     */
+    public void reset() {
+        state = TEXT;
+        depth = 0;
+        marks = 0;
+        nameLength = 0;
+    }
+
+    /**
+     * @return the current element nesting depth. The stream root is at depth
+     *         1.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Processes the end of a start tag. The stream root (or a new stream root
+     * after a stream restart) sets the depth back to 1.
+     */
+    private void openElement() {
+        state = TEXT;
+        if (depth == 0 || (depth == 1 && isStreamRoot()))
+            depth = 1;
+        else
+            depth++;
+    }
+
+    /**
+     * @return true if the local name of the current start tag is "stream"
+     */
+    private boolean isStreamRoot() {
+        int start = 0;
+        for (int i = 0; i < nameLength; i++)
+            if (name[i] == ':')
+                start = i + 1;
+        if (nameLength - start != STREAM_NAME.length)
+            return false;
+        for (int i = 0; i < STREAM_NAME.length; i++)
+            if (name[start + i] != STREAM_NAME[i])
+                return false;
+        return true;
+    }
+
+    private void appendName(byte b) {
+        if (nameLength < MAX_NAME)
+            name[nameLength++] = b;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
@@ -0,0 +1,481 @@
+package com.echomine.xmpp.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.echomine.xmpp.impl.ConnectTimings;
+
+/**
+ * <p>
+ * The default metrics recorder. It keeps lock-free counters and histograms of
+ * one connection, and passes everything it records on to the aggregate
+ * metrics of all the connections. The metrics are created by the
+ * MetricsRegistry, which keeps track of the connections that are open.
+ * </p>
+ * <p>
+ * The metrics of a connection are cleared when the connection is started
+ * again. The aggregate metrics are never cleared, except through reset().
+ * Since a connection is mostly updated by one thread at a time, its counters
+ * are not striped, and its histograms are less precise than the aggregate
+ * ones to keep the memory used per connection low. The time of each handshake
+ * phase is only kept as a histogram in the aggregate metrics; a single
+ * connection keeps the total time of each phase.
+ * </p>
+ */
+public class ConnectionMetrics implements IMetricsRecorder, ConnectionMetricsMBean {
+    /** the highest time kept precisely by the histograms, about 68 seconds */
+    private static final long MAX_TIME = 1L << 36;
+    /** the highest queue depth kept precisely */
+    private static final long MAX_DEPTH = 1L << 20;
+    private static final int PHASES = ConnectTimings.Phase.values().length;
+
+    private final MetricsRegistry registry;
+    private final String name;
+    private final ConnectionMetrics parent;
+    private final AtomicBoolean open = new AtomicBoolean();
+    private final Counter openConnections;
+    private final Counter stanzasReceived;
+    private final Counter stanzasSent;
+    private final Counter bytesReceived;
+    private final Counter bytesSent;
+    private final Counter parseErrors;
+    private final Counter replyTimeouts;
+    private final Counter throttledTime;
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final Histogram queueDepths;
+    private final Histogram replyWaits;
+    private final AtomicLongArray phaseTimes = new AtomicLongArray(PHASES);
+    private final AtomicLongArray phaseCounts = new AtomicLongArray(PHASES);
+    private final Histogram[] phaseHistograms;
+
+    /**
+     * @param registry the registry that keeps track of the open connections
+     * @param name the name of the metrics
+     * @param parent the aggregate metrics, or null if these are the aggregate
+     *            metrics
+     * @param bits the bits of precision of the histograms
+     */
+    ConnectionMetrics(MetricsRegistry registry, String name, ConnectionMetrics parent, int bits) {
+        this.registry = registry;
+        this.name = name;
+        this.parent = parent;
+        int stripes = (parent == null) ? Counter.DEFAULT_STRIPES : 1;
+        openConnections = new Counter(stripes);
+        stanzasReceived = new Counter(stripes);
+        stanzasSent = new Counter(stripes);
+        bytesReceived = new Counter(stripes);
+        bytesSent = new Counter(stripes);
+        parseErrors = new Counter(stripes);
+        replyTimeouts = new Counter(stripes);
+        throttledTime = new Counter(stripes);
+        queueDepths = new Histogram(bits, MAX_DEPTH);
+        replyWaits = new Histogram(bits, MAX_TIME);
+        if (parent == null) {
+            phaseHistograms = new Histogram[PHASES];
+            for (int i = 0; i < PHASES; i++)
+                phaseHistograms[i] = new Histogram(bits, MAX_TIME);
+        } else {
+            phaseHistograms = null;
+        }
+    }
+
+    /*
+     * Clears the metrics of the connection and adds it to the open
+     * connections of the registry.
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#connectionOpened()
+     */
+    public void connectionOpened() {
+        if (!open.compareAndSet(false, true))
+            return;
+        if (parent != null) {
+            reset();
+            parent.openConnections.increment();
+        }
+        openConnections.increment();
+        registry.opened(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#connectionClosed()
+     */
+    public void connectionClosed() {
+        if (!open.compareAndSet(true, false))
+            return;
+        openConnections.add(-1);
+        if (parent != null)
+            parent.openConnections.add(-1);
+        registry.closed(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#handshakePhase(com.echomine.xmpp.impl.ConnectTimings.Phase,
+     *      long)
+     */
+    public void handshakePhase(ConnectTimings.Phase phase, long nanos) {
+        int idx = phase.ordinal();
+        phaseTimes.addAndGet(idx, nanos);
+        phaseCounts.incrementAndGet(idx);
+        if (phaseHistograms != null)
+            phaseHistograms[idx].record(nanos);
+        if (parent != null)
+            parent.handshakePhase(phase, nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#stanzaReceived()
+     */
+    public void stanzaReceived() {
+        stanzasReceived.increment();
+        if (parent != null)
+            parent.stanzaReceived();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#stanzasSent(int)
+     */
+    public void stanzasSent(int count) {
+        stanzasSent.add(count);
+        if (parent != null)
+            parent.stanzasSent(count);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.TrafficMeter#bytesReceived(int)
+     */
+    public void bytesReceived(int count) {
+        bytesReceived.add(count);
+        if (parent != null)
+            parent.bytesReceived(count);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.TrafficMeter#bytesSent(int)
+     */
+    public void bytesSent(int count) {
+        bytesSent.add(count);
+        if (parent != null)
+            parent.bytesSent(count);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.net.TrafficMeter#sendThrottled(long)
+     */
+    public void sendThrottled(long nanos) {
+        throttledTime.add(nanos);
+        if (parent != null)
+            parent.sendThrottled(nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#packetQueued(int)
+     */
+    public void packetQueued(int depth) {
+        queueDepths.record(depth);
+        long max;
+        while (depth > (max = maxQueueDepth.get()))
+            if (maxQueueDepth.compareAndSet(max, depth))
+                break;
+        if (parent != null)
+            parent.packetQueued(depth);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#replyReceived(long)
+     */
+    public void replyReceived(long nanos) {
+        replyWaits.record(nanos);
+        if (parent != null)
+            parent.replyReceived(nanos);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#replyTimedOut()
+     */
+    public void replyTimedOut() {
+        replyTimeouts.increment();
+        if (parent != null)
+            parent.replyTimedOut();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.IMetricsRecorder#parseError()
+     */
+    public void parseError() {
+        parseErrors.increment();
+        if (parent != null)
+            parent.parseError();
+    }
+
+    /**
+     * @return true if these are the metrics of a connection that is open
+     */
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     * @return the histogram of the times from sending a packet to receiving
+     *         its reply, in nanoseconds
+     */
+    public Histogram getReplyWaits() {
+        return replyWaits;
+    }
+
+    /**
+     * @return the histogram of the number of packets in the outgoing queue,
+     *         recorded each time a packet is queued
+     */
+    public Histogram getQueueDepths() {
+        return queueDepths;
+    }
+
+    /**
+     * @param phase the handshake phase
+     * @return the histogram of the times of the phase in nanoseconds, or null
+     *         for the metrics of a single connection
+     */
+    public Histogram getHandshakePhase(ConnectTimings.Phase phase) {
+        return (phaseHistograms == null) ? null : phaseHistograms[phase.ordinal()];
+    }
+
+    /**
+     * @param phase the handshake phase
+     * @return the total time spent in the phase in nanoseconds
+     */
+    public long getHandshakePhaseTime(ConnectTimings.Phase phase) {
+        return phaseTimes.get(phase.ordinal());
+    }
+
+    /**
+     * @param phase the handshake phase
+     * @return the number of times the phase was recorded
+     */
+    public long getHandshakePhaseCount(ConnectTimings.Phase phase) {
+        return phaseCounts.get(phase.ordinal());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getName()
+     */
+    public String getName() {
+        return name;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getOpenConnections()
+     */
+    public long getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getStanzasReceived()
+     */
+    public long getStanzasReceived() {
+        return stanzasReceived.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getStanzasSent()
+     */
+    public long getStanzasSent() {
+        return stanzasSent.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getBytesReceived()
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getBytesSent()
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getParseErrors()
+     */
+    public long getParseErrors() {
+        return parseErrors.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getThrottledTime()
+     */
+    public long getThrottledTime() {
+        return micros(throttledTime.get());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getMaxQueueDepth()
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getQueueDepth99thPercentile()
+     */
+    public long getQueueDepth99thPercentile() {
+        return queueDepths.getValueAtPercentile(99);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getRepliesReceived()
+     */
+    public long getRepliesReceived() {
+        return replyWaits.getCount();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getReplyTimeouts()
+     */
+    public long getReplyTimeouts() {
+        return replyTimeouts.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getReplyWaitMedian()
+     */
+    public long getReplyWaitMedian() {
+        return micros(replyWaits.getValueAtPercentile(50));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getReplyWait99thPercentile()
+     */
+    public long getReplyWait99thPercentile() {
+        return micros(replyWaits.getValueAtPercentile(99));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getReplyWait999thPercentile()
+     */
+    public long getReplyWait999thPercentile() {
+        return micros(replyWaits.getValueAtPercentile(99.9));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getReplyWaitMax()
+     */
+    public long getReplyWaitMax() {
+        return micros(replyWaits.getMax());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#getHandshakePhases()
+     */
+    public String[] getHandshakePhases() {
+        ConnectTimings.Phase[] phases = ConnectTimings.Phase.values();
+        String[] result = new String[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            StringBuffer buf = new StringBuffer();
+            buf.append(phases[i]).append(": count=").append(phaseCounts.get(i));
+            if (phaseHistograms != null) {
+                buf.append(", p50=").append(micros(phaseHistograms[i].getValueAtPercentile(50)));
+                buf.append("us, p99=").append(micros(phaseHistograms[i].getValueAtPercentile(99))).append("us");
+            } else {
+                buf.append(", total=").append(micros(phaseTimes.get(i))).append("us");
+            }
+            result[i] = buf.toString();
+        }
+        return result;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.metrics.ConnectionMetricsMBean#reset()
+     */
+    public void reset() {
+        stanzasReceived.reset();
+        stanzasSent.reset();
+        bytesReceived.reset();
+        bytesSent.reset();
+        parseErrors.reset();
+        replyTimeouts.reset();
+        throttledTime.reset();
+        maxQueueDepth.set(0);
+        queueDepths.reset();
+        replyWaits.reset();
+        for (int i = 0; i < PHASES; i++) {
+            phaseTimes.set(i, 0);
+            phaseCounts.set(i, 0);
+            if (phaseHistograms != null)
+                phaseHistograms[i].reset();
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public String toString() {
+        return name + ": stanzas in=" + getStanzasReceived() + " out=" + getStanzasSent() + ", bytes in=" + getBytesReceived()
+                + " out=" + getBytesSent() + ", parse errors=" + getParseErrors() + ", replies=" + getRepliesReceived()
+                + " timeouts=" + getReplyTimeouts() + ", reply wait p99=" + getReplyWait99thPercentile() + "us";
+    }
+}
@@ -0,0 +1,59 @@
+package com.echomine.xmpp.metrics;
+
+/**
+ * The JMX view of the metrics of a connection, or of all connections
+ * together. Times are in microseconds.
+ */
+public interface ConnectionMetricsMBean {
+    String getName();
+
+    /**
+     * @return the number of connections that are open
+     */
+    long getOpenConnections();
+
+    long getStanzasReceived();
+
+    long getStanzasSent();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getParseErrors();
+
+    /**
+     * @return the total time sending was delayed to keep the outgoing rates
+     */
+    long getThrottledTime();
+
+    /**
+     * @return the highest number of packets that were in the outgoing queue
+     */
+    long getMaxQueueDepth();
+
+    long getQueueDepth99thPercentile();
+
+    long getRepliesReceived();
+
+    long getReplyTimeouts();
+
+    long getReplyWaitMedian();
+
+    long getReplyWait99thPercentile();
+
+    long getReplyWait999thPercentile();
+
+    long getReplyWaitMax();
+
+    /**
+     * @return the count, median and 99th percentile time of each handshake
+     *         phase
+     */
+    String[] getHandshakePhases();
+
+    /**
+     * Clears all the metrics except for the number of open connections
+     */
+    void reset();
+}
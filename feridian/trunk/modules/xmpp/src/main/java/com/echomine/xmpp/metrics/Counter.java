@@ -0,0 +1,90 @@
+package com.echomine.xmpp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter. A counter that is updated by many threads at once can
+ * be striped: each thread then adds to one of several cells, picked by the
+ * thread's ID, and the cells are only summed up when the counter is read.
+ * The cells are spaced apart so that they do not share a cache line. Adding
+ * never allocates anything.
+ */
+public class Counter {
+    /** the number of longs between two cells, 64 bytes apart */
+    private static final int PADDING = 8;
+    /** the number of stripes used by counters that are updated concurrently */
+    public static final int DEFAULT_STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * Creates a counter with a single cell, for counters that are mostly
+     * updated by one thread at a time.
+     */
+    public Counter() {
+        this(1);
+    }
+
+    /**
+     * @param stripes the number of cells, rounded up to a power of two
+     */
+    public Counter(int stripes) {
+        int size = stripesFor(stripes);
+        cells = new AtomicLongArray(size * PADDING);
+        mask = size - 1;
+    }
+
+    /**
+     * @param delta the amount to add, which may be negative
+     */
+    public void add(long delta) {
+        if (mask == 0)
+            cells.addAndGet(0, delta);
+        else
+            cells.addAndGet(cell(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the sum of all the cells. Updates that happen while the cells
+     *         are summed up may or may not be included.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * Sets the counter back to 0
+     */
+    public void reset() {
+        for (int i = 0; i <= mask; i++)
+            cells.set(i * PADDING, 0);
+    }
+
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    /**
+     * picks the cell of the current thread. The ID is mixed so that threads
+     * created one after the other do not end up next to each other.
+     */
+    private int cell() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & mask) * PADDING;
+    }
+
+    private static int stripesFor(int count) {
+        int stripes = 1;
+        while (stripes < count && stripes < 64)
+            stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,146 @@
+package com.echomine.xmpp.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock-free histogram of positive values, such as latencies in nanoseconds,
+ * in the style of the HDR histogram. The values are counted in buckets whose
+ * width grows with the value, so that each value is kept with the same
+ * relative precision over the whole range: the values from 0 to 2^bits are
+ * counted exactly, and above that each power of two is split into 2^(bits-1)
+ * buckets. With 7 bits, for instance, a value is off by less than 1.6%.
+ * </p>
+ * <p>
+ * Recording a value is a few atomic increments and never allocates anything,
+ * so a histogram can be recorded into on hot paths. Values above the highest
+ * trackable value are counted as the highest trackable value. Reading the
+ * histogram while values are recorded gives an approximate snapshot.
+ * </p>
+ */
+public class Histogram {
+    private final int bits;
+    private final int halfCount;
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * @param bits the number of bits of precision, from 1 to 16
+     * @param highestTrackableValue the highest value that is kept precisely
+     */
+    public Histogram(int bits, long highestTrackableValue) {
+        if (bits < 1 || bits > 16)
+            throw new IllegalArgumentException("Bits of precision must be between 1 and 16");
+        if (highestTrackableValue < 1)
+            throw new IllegalArgumentException("Highest trackable value must be positive");
+        this.bits = bits;
+        this.halfCount = 1 << (bits - 1);
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    /**
+     * @param value the value to record. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        else if (value > highestTrackableValue)
+            value = highestTrackableValue;
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        long max;
+        while (value > (max = maxValue.get()))
+            if (maxValue.compareAndSet(max, value))
+                break;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return the highest value recorded, 0 if none
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if none
+     */
+    public double getMean() {
+        long count = totalCount.get();
+        return (count == 0) ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * Retrieves the value that the given percentage of the recorded values are
+     * at or below. The value is the highest value that falls into the same
+     * bucket, so it is never lower than the real percentile.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the value at the percentile, 0 if no values were recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        int size = counts.length();
+        long total = 0;
+        for (int i = 0; i < size; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < size; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestEquivalentValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears all the values recorded
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+    /**
+     * @return the bucket the value is counted in
+     */
+    private int indexOf(long value) {
+        if (value < (halfCount << 1))
+            return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - bits;
+        return shift * halfCount + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value that is counted in the bucket
+     */
+    private long highestEquivalentValue(int index) {
+        if (index < (halfCount << 1))
+            return index;
+        int shift = index / halfCount - 1;
+        long lowest = (long) (index - shift * halfCount) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getValueAtPercentile(50) + ", p99="
+                + getValueAtPercentile(99) + ", p99.9=" + getValueAtPercentile(99.9) + ", max=" + getMax();
+    }
+}
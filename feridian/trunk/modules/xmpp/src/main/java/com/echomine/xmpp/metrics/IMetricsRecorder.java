@@ -0,0 +1,66 @@
+package com.echomine.xmpp.metrics;
+
+import com.echomine.net.TrafficMeter;
+import com.echomine.xmpp.impl.ConnectTimings;
+
+/**
+ * The interface through which a connection reports what it is doing. The
+ * default recorder (ConnectionMetrics) keeps counters and histograms that
+ * can be pulled through the MetricsRegistry or JMX; another recorder can be
+ * plugged into a connection handler to feed a different metrics system.
+ * <p>
+ * The methods are called on the hot paths of the connection (the thread
+ * reading the incoming stanzas, the threads sending packets, the socket I/O),
+ * so they must be fast, must not block and should not allocate anything.
+ * </p>
+ */
+public interface IMetricsRecorder extends TrafficMeter {
+    /**
+     * called when the connection is started, before the socket is opened
+     */
+    void connectionOpened();
+
+    /**
+     * called when the connection is shut down
+     */
+    void connectionClosed();
+
+    /**
+     * @param phase the phase of establishing the session that ended
+     * @param nanos the time spent in the phase in nanoseconds
+     */
+    void handshakePhase(ConnectTimings.Phase phase, long nanos);
+
+    /**
+     * called for each incoming element that was parsed into a packet
+     */
+    void stanzaReceived();
+
+    /**
+     * @param count the number of packets that were just written out
+     */
+    void stanzasSent(int count);
+
+    /**
+     * @param depth the number of packets in the outgoing queue, including the
+     *            packet just queued
+     */
+    void packetQueued(int depth);
+
+    /**
+     * @param nanos the time from sending a packet to receiving its reply in
+     *            nanoseconds
+     */
+    void replyReceived(long nanos);
+
+    /**
+     * called when no reply was received within a packet's timeout
+     */
+    void replyTimedOut();
+
+    /**
+     * called when the incoming stream could not be parsed, which ends the
+     * connection
+     */
+    void parseError();
+}
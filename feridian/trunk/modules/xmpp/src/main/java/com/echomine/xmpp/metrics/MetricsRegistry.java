@@ -0,0 +1,179 @@
+package com.echomine.xmpp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Keeps track of the metrics of all the connections. The aggregate metrics
+ * sum up all the connections there ever were, while the metrics of each
+ * connection can be pulled for as long as the connection is open.
+ * </p>
+ * <p>
+ * The metrics can also be exposed through JMX. Once the MBeans are
+ * registered, the aggregate metrics are available under the name
+ * com.echomine.feridian:type=ConnectionMetrics,name=aggregate, and each open
+ * connection under its own name until it is closed.
+ * </p>
+ */
+public class MetricsRegistry {
+    private static final Log log = LogFactory.getLog(MetricsRegistry.class);
+    /** the JMX domain the MBeans are registered in */
+    public static final String JMX_DOMAIN = "com.echomine.feridian";
+    private static final int AGGREGATE_BITS = 7;
+    private static final int CONNECTION_BITS = 5;
+    private static final MetricsRegistry registry = new MetricsRegistry();
+
+    private final ConnectionMetrics aggregate = new ConnectionMetrics(this, "aggregate", null, AGGREGATE_BITS);
+    private final ConcurrentHashMap<String, ConnectionMetrics> connections = new ConcurrentHashMap<String, ConnectionMetrics>();
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+    private volatile MBeanServer mbeanServer;
+
+    /**
+     * only the shared registry is used outside of tests
+     */
+    MetricsRegistry() {
+    }
+
+    /**
+     * @return the registry shared by all connections
+     */
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Creates the metrics for a new connection. The metrics are added to the
+     * open connections once the connection is opened.
+     *
+     * @return the metrics of the connection
+     */
+    public ConnectionMetrics createConnectionMetrics() {
+        return new ConnectionMetrics(this, "connection-" + connectionCounter.incrementAndGet(), aggregate, CONNECTION_BITS);
+    }
+
+    /**
+     * @return the metrics of all the connections together
+     */
+    public ConnectionMetrics getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @return the metrics of the connections that are open
+     */
+    public Collection<ConnectionMetrics> getConnectionMetrics() {
+        return Collections.unmodifiableCollection(new ArrayList<ConnectionMetrics>(connections.values()));
+    }
+
+    /**
+     * @param name the name of the metrics
+     * @return the metrics of the open connection with the name, or null if
+     *         there is none
+     */
+    public ConnectionMetrics getConnectionMetrics(String name) {
+        return connections.get(name);
+    }
+
+    /**
+     * Registers the aggregate metrics and the metrics of each open connection
+     * as MBeans. Connections opened later are registered when they are
+     * opened, and unregistered when they are closed.
+     *
+     * @param server the server to register with, or null for the platform
+     *            MBean server
+     */
+    public synchronized void registerMBeans(MBeanServer server) {
+        if (mbeanServer != null)
+            return;
+        mbeanServer = (server == null) ? ManagementFactory.getPlatformMBeanServer() : server;
+        register(aggregate);
+        for (ConnectionMetrics metrics : connections.values())
+            register(metrics);
+    }
+
+    /**
+     * Unregisters all the MBeans registered by registerMBeans()
+     */
+    public synchronized void unregisterMBeans() {
+        if (mbeanServer == null)
+            return;
+        unregister(aggregate);
+        for (ConnectionMetrics metrics : connections.values())
+            unregister(metrics);
+        mbeanServer = null;
+    }
+
+    /**
+     * @return true if the metrics are registered as MBeans
+     */
+    public boolean isMBeansRegistered() {
+        return mbeanServer != null;
+    }
+
+    /**
+     * called by the metrics of a connection that was opened
+     */
+    void opened(ConnectionMetrics metrics) {
+        connections.put(metrics.getName(), metrics);
+        if (mbeanServer != null)
+            register(metrics);
+    }
+
+    /**
+     * called by the metrics of a connection that was closed
+     */
+    void closed(ConnectionMetrics metrics) {
+        connections.remove(metrics.getName(), metrics);
+        if (mbeanServer != null)
+            unregister(metrics);
+    }
+
+    private void register(ConnectionMetrics metrics) {
+        MBeanServer server = mbeanServer;
+        if (server == null)
+            return;
+        try {
+            ObjectName name = getObjectName(metrics);
+            if (!server.isRegistered(name))
+                server.registerMBean(metrics, name);
+        } catch (JMException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to register the metrics MBean of " + metrics.getName(), ex);
+        }
+    }
+
+    private void unregister(ConnectionMetrics metrics) {
+        MBeanServer server = mbeanServer;
+        if (server == null)
+            return;
+        try {
+            ObjectName name = getObjectName(metrics);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to unregister the metrics MBean of " + metrics.getName(), ex);
+        }
+    }
+
+    /**
+     * @param metrics the metrics
+     * @return the JMX name the metrics are registered under
+     * @throws JMException if the name is not valid
+     */
+    public static ObjectName getObjectName(ConnectionMetrics metrics) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=ConnectionMetrics,name=" + metrics.getName());
+    }
+}
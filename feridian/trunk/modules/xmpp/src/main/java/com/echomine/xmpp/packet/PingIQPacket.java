@@ -0,0 +1,13 @@
+package com.echomine.xmpp.packet;
+
+/**
+ * Represents the IQ ping packet (XEP-0199) used to check that the other end of
+ * the stream is still alive. Due to the jibx binding mechanism, this class is
+ * created purely for binding purposes. It contains no data as the ping element
+ * is an empty element.
+ */
+public class PingIQPacket extends IQPacket {
+    public PingIQPacket() {
+        super();
+    }
+}
@@ -33,4 +33,11 @@ public class ResourceBindIQPacket extends IQPacket {
     public JID getJid() {
         return jid;
     }
+
+    /**
+     * @param jid The full jid that the resource is bound to.
+     */
+    public void setJid(JID jid) {
+        this.jid = jid;
+    }
 }
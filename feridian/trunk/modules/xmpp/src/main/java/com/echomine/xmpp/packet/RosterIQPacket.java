@@ -42,9 +42,15 @@ import java.util.List;
  * connection with limited bandwidth, the client's request for the roster is
  * OPTIONAL).
  * </p>
+ * <p>
+ * If the server supports roster versioning (XEP-0237), the query carries the
+ * version of the roster. The client sends the version of the roster it has
+ * cached, and the server then only sends the changes since that version.
+ * </p>
  */
 public class RosterIQPacket extends IQPacket {
     private List<RosterItem> rosterItems;
+    private String version;
 
     /**
      * Constructs the IQ packet with the default "get" type
@@ -67,9 +73,9 @@ public class RosterIQPacket extends IQPacket {
      * 
      * @return Returns a non-null list of rosterItems.
      */
-    public List getRosterItems() {
+    public List<RosterItem> getRosterItems() {
         if (rosterItems == null)
-            return Collections.EMPTY_LIST;
+            return Collections.emptyList();
         return rosterItems;
     }
 
@@ -94,4 +100,21 @@ public class RosterIQPacket extends IQPacket {
             rosterItems = new ArrayList<RosterItem>();
         rosterItems.add(item);
     }
+
+    /**
+     * @return the roster version, or null if versioning is not used
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * sets the roster version. When requesting the roster, this is the
+     * version of the cached roster, or an empty string if nothing is cached.
+     * 
+     * @param version the roster version, null to not use versioning
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
 }
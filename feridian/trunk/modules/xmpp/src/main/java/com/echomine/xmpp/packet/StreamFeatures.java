@@ -1,5 +1,6 @@
 package com.echomine.xmpp.packet;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -174,4 +175,60 @@ public class StreamFeatures implements IPacket {
             return Collections.EMPTY_LIST;
         return Collections.unmodifiableList((List<? extends String>) feature.getValue());
     }
+
+    /**
+     * Convenience method to check if roster versioning (XEP-0237) is
+     * supported
+     * 
+     * @return true if roster versioning is supported
+     */
+    public boolean isRosterVersioningSupported() {
+        return isFeatureSupported(XMPPConstants.NS_FEATURE_ROSTERVER);
+    }
+
+    /**
+     * Convenience method to check if stream management (XEP-0198) is
+     * supported
+     * 
+     * @return true if stream management is supported
+     */
+    public boolean isStreamManagementSupported() {
+        return isFeatureSupported(XMPPConstants.NS_STREAM_MANAGEMENT);
+    }
+
+    /**
+     * Convenience method to check if stream compression is supported
+     * 
+     * @return true if stream compression is supported
+     */
+    public boolean isCompressionSupported() {
+        return isFeatureSupported(XMPPConstants.NS_FEATURE_COMPRESS);
+    }
+
+    /**
+     * Checks if the specified compression method (ie. zlib) is supported
+     * 
+     * @param method the compression method to check
+     * @return true if the method is supported, false otherwise.
+     */
+    public boolean isCompressionMethodSupported(String method) {
+        return getCompressionMethods().contains(method);
+    }
+
+    /**
+     * Returns a unmodifiable list of supported compression method strings.
+     * 
+     * @return a non-null list of compression method strings, but possibly
+     *         empty
+     */
+    public List<String> getCompressionMethods() {
+        StreamFeature feature = getFeature(XMPPConstants.NS_FEATURE_COMPRESS);
+        if (feature == null || !(feature.getValue() instanceof List))
+            return Collections.emptyList();
+        List<?> values = (List<?>) feature.getValue();
+        List<String> methods = new ArrayList<String>(values.size());
+        for (Object value : values)
+            methods.add((String) value);
+        return Collections.unmodifiableList(methods);
+    }
 }
@@ -1,7 +1,5 @@
 package com.echomine.xmpp.packet.mapper;
 
-import java.io.IOException;
-import java.io.StringWriter;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
@@ -11,6 +9,7 @@ import org.jibx.runtime.impl.MarshallingContext;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.IElementHandler;
 import com.echomine.jibx.JiBXUtil;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.util.LocaleUtil;
@@ -119,18 +118,9 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
      */
     protected void marshallExtensions(MarshallingContext ctx, IMPacket packet) throws JiBXException {
         Iterator iter = packet.getExtensions().iterator();
-        IPacket ext;
-        StringWriter strWriter = new StringWriter(256);
         XMPPStreamWriter writer = (XMPPStreamWriter) ctx.getXmlWriter();
-        try {
-            while (iter.hasNext()) {
-                ext = (IPacket) iter.next();
-                JiBXUtil.marshallObject(strWriter, ext);
-                writer.writeMarkup(strWriter.toString());
-            }
-        } catch (IOException ex) {
-            throw new JiBXException("Error Occurred while writing markup to writer", ex);
-        }
+        while (iter.hasNext())
+            JiBXUtil.marshallExtension(writer, iter.next());
     }
 
     /**
@@ -145,12 +135,12 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
     protected void unmarshallExtension(UnmarshallingContext ctx, IMPacket packet) throws JiBXException {
         // extension/unknown stanzas
         String ns = ctx.getNamespace();
-        Class extClass = FeridianConfiguration.getConfig().getClassForUri(ns);
-        IPacket extPacket;
-        if (extClass != null) {
-            extPacket = (IPacket) JiBXUtil.unmarshallObject(ctx, extClass);
+        IElementHandler handler = FeridianConfiguration.getConfig().getDispatchTable().get(ns, ctx.getName());
+        if (handler != null) {
+            Object extPacket = handler.unmarshall(ctx);
             // add packet to main packet
-            packet.addExtension(ns, extPacket);
+            if (extPacket instanceof IPacket)
+                packet.addExtension(ns, (IPacket) extPacket);
         } else {
             // ignore unknown stanza
             ctx.skipElement();
@@ -1,7 +1,6 @@
 package com.echomine.xmpp.packet.mapper;
 
 import java.io.IOException;
-import java.io.StringWriter;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,6 +12,7 @@ import org.jibx.runtime.impl.MarshallingContext;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.IElementHandler;
 import com.echomine.jibx.JiBXUtil;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.xmpp.packet.IQPacket;
@@ -60,16 +60,13 @@ public class IQPacketMapper extends AbstractStanzaPacketMapper {
                 // data
                 if (packet.getClass() != IQPacket.class) {
                     // marshall the packet's real contents
-                    StringWriter strWriter = new StringWriter(256);
-                    JiBXUtil.marshallObject(strWriter, packet);
                     //write out empty text to work around jibx issue
                     ctx.writeContent("");
-                    writer.writeMarkup(strWriter.toString());
+                    JiBXUtil.marshallExtension(writer, packet);
                 }
                 if (packet.getError() != null)
                     marshallStanzaError(packet.getError(), ctx);
                 writer.endStanzaTag(name);
-                writer.flush();
             } catch (IOException ex) {
                 throw new JiBXException("Error writing to stream", ex);
             }
@@ -100,13 +97,15 @@ public class IQPacketMapper extends AbstractStanzaPacketMapper {
             if (ctx.isAt(uri, "error")) {
                 tpkt.setError((StanzaErrorPacket) JiBXUtil.unmarshallObject(ctx, StanzaErrorPacket.class));
             } else {
-                Class iqClass = FeridianConfiguration.getConfig().getClassForUri(ctx.getNamespace());
+                IElementHandler handler = FeridianConfiguration.getConfig().getDispatchTable().get(ctx.getNamespace(), ctx.getName());
                 if (packet != null) {
                     if (log.isWarnEnabled())
                         log.warn("Invalid IQ Packet.  Already unmarshalled one child element, but found more than one.  This does not conform to XMPP specs.  Ignoring this child element");
                     ctx.skipElement();
-                } else if (iqClass != null) {
-                    packet = (IQPacket) JiBXUtil.unmarshallObject(ctx, iqClass);
+                } else if (handler != null) {
+                    Object child = handler.unmarshall(ctx);
+                    if (child instanceof IQPacket)
+                        packet = (IQPacket) child;
                 } else {
                     // ignore unknown stanza
                     ctx.skipElement();
@@ -64,9 +64,8 @@ public class MessagePacketMapper extends AbstractIMPacketMapper implements
                 // marshall extensions
                 marshallExtensions(ctx, packet);
                 writer.endStanzaTag(name);
-                writer.flush();
             } catch (IOException ex) {
-                throw new JiBXException("Error flushing stream", ex);
+                throw new JiBXException("Error writing to stream", ex);
             }
         }
     }
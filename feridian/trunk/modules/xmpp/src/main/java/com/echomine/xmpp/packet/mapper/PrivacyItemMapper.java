@@ -1,11 +1,8 @@
 package com.echomine.xmpp.packet.mapper;
 
-import java.io.IOException;
-
 import org.jibx.runtime.IMarshallingContext;
 import org.jibx.runtime.IUnmarshallingContext;
 import org.jibx.runtime.IXMLReader;
-import org.jibx.runtime.IXMLWriter;
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.MarshallingContext;
 import org.jibx.runtime.impl.UnmarshallingContext;
@@ -53,7 +50,6 @@ public abstract class PrivacyItemMapper extends AbstractPacketMapper {
             // start by generating start tag for container
             MarshallingContext ctx = (MarshallingContext) ictx;
             PrivacyItem item = (PrivacyItem) obj;
-            IXMLWriter writer = ctx.getXmlWriter();
             ctx.startTagAttributes(index, name);
             // marshall attributes
             if (item.isAllow())
@@ -78,11 +74,6 @@ public abstract class PrivacyItemMapper extends AbstractPacketMapper {
                     ctx.element(index, BLOCK_PRESENCE_OUT, "");
             }
             ctx.endTag(index, name);
-            try {
-                writer.flush();
-            } catch (IOException ex) {
-                throw new JiBXException("Error flushing stream", ex);
-            }
         }
     }
 
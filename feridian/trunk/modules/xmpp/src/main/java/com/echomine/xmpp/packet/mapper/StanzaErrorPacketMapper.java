@@ -60,10 +60,9 @@ public class StanzaErrorPacketMapper extends StreamErrorPacketMapper {
                 marshallErrorCondition(ctx, stanzasIdx, stanzasIdx + 1, packet);
                 // close error tag
                 writer.endStanzaTag(name);
-                writer.flush();
                 writer.popExtensionNamespaces();
             } catch (IOException ex) {
-                throw new JiBXException("Error flushing stream", ex);
+                throw new JiBXException("Error writing to stream", ex);
             }
         }
     }
@@ -1,7 +1,6 @@
 package com.echomine.xmpp.packet.mapper;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -44,6 +43,8 @@ public class StreamFeaturesMapper extends AbstractPacketMapper implements
     protected static final String SASL_ELEMENT_NAME = "mechanisms";
     protected static final String MECHANISM_ELEMENT_NAME = "mechanism";
     protected static final String MECHANISMS_ELEMENT_NAME = "mechanisms";
+    protected static final String COMPRESSION_ELEMENT_NAME = "compression";
+    protected static final String METHOD_ELEMENT_NAME = "method";
 
     public StreamFeaturesMapper(String uri, int index, String name) {
         super(uri, index, name);
@@ -83,6 +84,18 @@ public class StreamFeaturesMapper extends AbstractPacketMapper implements
                     ctx.endTag(saslIdx, MECHANISMS_ELEMENT_NAME);
                     ctx.getXmlWriter().popExtensionNamespaces();
                 }
+                // marshall compression methods
+                List<String> methods = packet.getCompressionMethods();
+                if (!methods.isEmpty()) {
+                    int compressIdx = writer.getNamespaceCount();
+                    String[] extns = new String[] { NS_FEATURE_COMPRESS };
+                    writer.pushExtensionNamespaces(extns);
+                    ctx.startTagNamespaces(compressIdx, COMPRESSION_ELEMENT_NAME, new int[] { compressIdx }, new String[] { "" }).closeStartContent();
+                    for (String method : methods)
+                        ctx.element(compressIdx, METHOD_ELEMENT_NAME, method);
+                    ctx.endTag(compressIdx, COMPRESSION_ELEMENT_NAME);
+                    ctx.getXmlWriter().popExtensionNamespaces();
+                }
                 // marshall the rest
                 marshallSupportedFeatures(writer, packet);
                 writer.endStreamTag(name);
@@ -108,17 +121,16 @@ public class StreamFeaturesMapper extends AbstractPacketMapper implements
         String[] extns;
         while (iter.hasNext()) {
             ns = (String) iter.next();
-            // TLS is marshalled separately, so ignore it here
-            if (NS_STREAM_TLS.equals(ns) || NS_STREAM_SASL.equals(ns))
+            // TLS, SASL and compression are marshalled separately, so ignore
+            // them here
+            if (NS_STREAM_TLS.equals(ns) || NS_STREAM_SASL.equals(ns) || NS_FEATURE_COMPRESS.equals(ns))
                 continue;
             // if there is a value associated with the feature, then
             // it is automatically assumed that the feature requires a
             // marshaller. Otherwise, simple marshalling is used
             StreamFeature feature = packet.getFeature(ns);
             if (feature.getValue() != null) {
-                StringWriter strWriter = new StringWriter(256);
-                JiBXUtil.marshallObject(strWriter, feature.getValue());
-                writer.writeMarkup(strWriter.toString());
+                JiBXUtil.marshallExtension(writer, feature.getValue());
             } else {
                 extns = new String[] { ns };
                 writer.pushExtensionNamespaces(extns);
@@ -186,6 +198,13 @@ public class StreamFeaturesMapper extends AbstractPacketMapper implements
                     list.add(ctx.parseElementText(NS_STREAM_SASL, MECHANISM_ELEMENT_NAME));
                 packet.addFeature(NS_STREAM_SASL, SASL_ELEMENT_NAME, list);
                 ctx.parsePastEndTag(NS_STREAM_SASL, SASL_ELEMENT_NAME);
+            } else if (ctx.isAt(NS_FEATURE_COMPRESS, COMPRESSION_ELEMENT_NAME)) {
+                ctx.parsePastStartTag(NS_FEATURE_COMPRESS, COMPRESSION_ELEMENT_NAME);
+                ArrayList<String> list = new ArrayList<String>(2);
+                while (ctx.isAt(NS_FEATURE_COMPRESS, METHOD_ELEMENT_NAME))
+                    list.add(ctx.parseElementText(NS_FEATURE_COMPRESS, METHOD_ELEMENT_NAME));
+                packet.addFeature(NS_FEATURE_COMPRESS, COMPRESSION_ELEMENT_NAME, list);
+                ctx.parsePastEndTag(NS_FEATURE_COMPRESS, COMPRESSION_ELEMENT_NAME);
             } else {
                 // if no unmarshaller found, then do simple feature add
                 Class cls = FeridianConfiguration.getConfig().getUnmarshallerForFeature(ctx.getNamespace());
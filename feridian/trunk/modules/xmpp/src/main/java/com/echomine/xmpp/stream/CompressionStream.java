@@ -0,0 +1,193 @@
+package com.echomine.xmpp.stream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.Socket;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.net.NIOSocket;
+import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+
+/**
+ * This stream negotiates stream compression (XEP-0138) using the zlib method.
+ * It will first determine if the remote entity offers zlib compression. If
+ * not, it does nothing. The stream follows the negotiation procedure of the
+ * specification: <br/>
+ * <ol>
+ * <li>Send compress command with the zlib method</li>
+ * <li>Remote replies with either compressed or failure</li>
+ * <li>If failure, then the stream continues uncompressed</li>
+ * </ol>
+ * <br/>Once the remote entity replies with compressed, the writer and
+ * unmarshalling context are redone to read from an inflating stream and write
+ * to a deflating stream over the same socket. The deflater is flushed with
+ * SYNC_FLUSH whenever the writer is flushed, which happens once per batch of
+ * packets, so every batch is sent out right away while the compression
+ * dictionary is kept across batches. Just like the TLS stream, this stream
+ * will NOT redo the handshake, and the caller must redo the handshake after
+ * compression is established.
+ * <p>
+ * Compression is skipped for NIO sockets, since their framing works on the
+ * raw bytes. It is also skipped on runtimes older than Java 7, whose
+ * deflating stream cannot be flushed without ending the compressed data. The
+ * flushing stream is looked up through reflection so that the library still
+ * runs on older runtimes.
+ * </p>
+ */
+public class CompressionStream implements IXMPPStream, XMPPConstants {
+    private static final Log log = LogFactory.getLog(CompressionStream.class);
+    protected static final String METHOD_ZLIB = "zlib";
+    protected final static int SOCKETBUF = 8192;
+    private static final String COMPRESS_ELEMENT_NAME = "compress";
+    private static final String METHOD_ELEMENT_NAME = "method";
+    private static Constructor<DeflaterOutputStream> syncFlushConstructor;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    static {
+        try {
+            syncFlushConstructor = DeflaterOutputStream.class.getConstructor(OutputStream.class, Deflater.class, int.class, boolean.class);
+        } catch (Exception ex) {
+            // the sync flush mode is not supported by this runtime
+        }
+    }
+
+    /**
+     * @return true if the runtime can flush the compressed data, which is
+     *         required for compression to be negotiated
+     */
+    public static boolean isSyncFlushSupported() {
+        return syncFlushConstructor != null;
+    }
+
+    /**
+     * @return the deflater compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the compression level used for outgoing data. Lower levels cost
+     * less CPU per stanza at the expense of more bytes on the wire.
+     *
+     * @param level the level from 0 to 9, or Deflater.DEFAULT_COMPRESSION
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IXMPPStream#process(com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    public void process(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        if (!streamCtx.getFeatures().isCompressionMethodSupported(METHOD_ZLIB))
+            return;
+        if (streamCtx.getSocket() instanceof NIOSocket) {
+            if (log.isDebugEnabled())
+                log.debug("Stream compression is not supported over NIO sockets.  Continuing uncompressed...");
+            return;
+        }
+        if (!isSyncFlushSupported()) {
+            if (log.isDebugEnabled())
+                log.debug("Stream compression requires a Java 7 or newer runtime.  Continuing uncompressed...");
+            return;
+        }
+        XMPPStreamWriter writer = streamCtx.getWriter();
+        UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
+        int idx = writer.getNamespaceCount();
+        String[] extns = new String[] { NS_PROTOCOL_COMPRESS };
+        writer.pushExtensionNamespaces(extns);
+        try {
+            // send compress
+            writer.startTagNamespaces(idx, COMPRESS_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+            writer.closeStartTag();
+            writer.startTagClosed(idx, METHOD_ELEMENT_NAME);
+            writer.writeTextContent(METHOD_ZLIB);
+            writer.endTag(idx, METHOD_ELEMENT_NAME);
+            writer.endTag(idx, COMPRESS_ELEMENT_NAME);
+            writer.flush();
+            writer.popExtensionNamespaces();
+            // start logging
+            streamCtx.getReader().startLogging();
+            // check for failure or compressed
+            uctx.next();
+            if (uctx.isAt(NS_PROTOCOL_COMPRESS, "failure")) {
+                // the failure carries the reason as a child element
+                uctx.parsePastElement(NS_PROTOCOL_COMPRESS, "failure");
+                streamCtx.getReader().stopLogging();
+                if (log.isInfoEnabled())
+                    log.info("Remote entity refused stream compression.  Continuing uncompressed...");
+                return;
+            }
+            if (!uctx.isAt(NS_PROTOCOL_COMPRESS, "compressed"))
+                throw new XMPPException("Expecting <compressed> tag, but found: " + uctx.getName());
+            uctx.toEnd();
+            streamCtx.getReader().stopLogging();
+            Socket socket = streamCtx.getSocket();
+            // Workaround for JiBX's reset() not resetting prefix
+            // Thus, a new stream writer must be created
+            BufferedOutputStream bos = new BufferedOutputStream(createDeflaterStream(socket.getOutputStream()), SOCKETBUF);
+            writer.flush();
+            writer = new XMPPStreamWriter();
+            writer.setOutput(bos);
+            streamCtx.setInput(createInflaterStream(socket.getInputStream()));
+            streamCtx.setWriter(writer);
+            // as per the specs, the stream is restarted without the features
+            // of the previous stream, but the session data is kept
+            streamCtx.clearFeatures();
+        } catch (Exception ex) {
+            if (ex instanceof XMPPException)
+                throw (XMPPException) ex;
+            throw new XMPPException(ex);
+        }
+    }
+
+    /**
+     * creates the stream that decompresses the incoming data
+     *
+     * @param in the socket's input stream
+     * @return the inflating stream
+     */
+    protected InputStream createInflaterStream(InputStream in) {
+        return new InflaterInputStream(in, new Inflater(), SOCKETBUF);
+    }
+
+    /**
+     * creates the stream that compresses the outgoing data. Flushing the
+     * stream does a SYNC_FLUSH of the deflater.
+     *
+     * @param out the socket's output stream
+     * @return the deflating stream
+     * @throws IOException if the runtime does not support the flush mode
+     */
+    protected OutputStream createDeflaterStream(OutputStream out) throws IOException {
+        if (syncFlushConstructor == null)
+            throw new IOException("Sync flush is not supported by this runtime");
+        try {
+            return syncFlushConstructor.newInstance(out, new Deflater(level), SOCKETBUF, true);
+        } catch (InvocationTargetException ex) {
+            throw new IOException("Unable to create deflating stream: " + ex.getCause());
+        } catch (Exception ex) {
+            throw new IOException("Unable to create deflating stream: " + ex);
+        }
+    }
+}
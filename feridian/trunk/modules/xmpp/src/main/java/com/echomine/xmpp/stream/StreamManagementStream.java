@@ -0,0 +1,145 @@
+package com.echomine.xmpp.stream;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.StreamManagementContext;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+
+/**
+ * This stream negotiates stream management (XEP-0198). What it does depends
+ * on the stream management context of the connection:
+ * <ol>
+ * <li>If a previous session can be resumed, it sends resume with the ID of
+ * the session and the number of stanzas handled so far. If the remote entity
+ * replies with resumed, the session continues where it left off and resource
+ * binding and session establishment must be skipped. If it replies with
+ * failed, the context is cleared and the caller must bind a new session.</li>
+ * <li>Otherwise, it sends enable, asking for the session to be resumable.
+ * This must be done after resource binding. If the remote entity replies with
+ * failed, the stream continues without stream management.</li>
+ * </ol>
+ * If the remote entity does not offer stream management, nothing is done.
+ * <p>
+ * The acks exchanged once stream management is enabled are handled by the
+ * connection handler, not by this stream.
+ * </p>
+ */
+public class StreamManagementStream implements IXMPPStream, XMPPConstants {
+    private static final Log log = LogFactory.getLog(StreamManagementStream.class);
+    private static final String ENABLE_ELEMENT_NAME = "enable";
+    private static final String ENABLED_ELEMENT_NAME = "enabled";
+    private static final String RESUME_ELEMENT_NAME = "resume";
+    private static final String RESUMED_ELEMENT_NAME = "resumed";
+    private static final String FAILED_ELEMENT_NAME = "failed";
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IXMPPStream#process(com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    public void process(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        StreamManagementContext smCtx = streamCtx.getStreamManagementContext();
+        if (smCtx == null || smCtx.isEnabled() || !streamCtx.getFeatures().isStreamManagementSupported())
+            return;
+        XMPPStreamWriter writer = streamCtx.getWriter();
+        UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
+        boolean resume = smCtx.isResumable();
+        int idx = writer.getNamespaceCount();
+        writer.pushExtensionNamespaces(new String[] { NS_STREAM_MANAGEMENT });
+        try {
+            if (resume) {
+                writer.startTagNamespaces(idx, RESUME_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+                writer.addAttribute(0, "h", String.valueOf(smCtx.getHandledCount()));
+                writer.addAttribute(0, "previd", smCtx.getResumeId());
+            } else {
+                writer.startTagNamespaces(idx, ENABLE_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+                writer.addAttribute(0, "resume", "true");
+            }
+            writer.closeEmptyTag();
+            writer.flush();
+            writer.popExtensionNamespaces();
+            // start logging
+            streamCtx.getReader().startLogging();
+            // the reply is read while holding the parser, so that the
+            // connection's reading thread cannot move it in between
+            synchronized (uctx) {
+                if (!uctx.isStart())
+                    uctx.next();
+                if (uctx.isAt(NS_STREAM_MANAGEMENT, FAILED_ELEMENT_NAME)) {
+                    toEndTag(uctx);
+                    if (resume) {
+                        if (log.isInfoEnabled())
+                            log.info("Remote entity is unable to resume the session.  A new session must be bound...");
+                        smCtx.clear();
+                    } else if (log.isInfoEnabled()) {
+                        log.info("Remote entity refused to enable stream management.  Continuing without it...");
+                    }
+                } else if (resume) {
+                    if (!uctx.isAt(NS_STREAM_MANAGEMENT, RESUMED_ELEMENT_NAME))
+                        throw new XMPPException("Expecting <resumed> tag, but found: " + uctx.getName());
+                    long h = Long.parseLong(uctx.attributeText(null, "h"));
+                    toEndTag(uctx);
+                    smCtx.resumed(h);
+                    // the resource is not bound again
+                    sessCtx.setResource(smCtx.getResource());
+                } else {
+                    if (!uctx.isAt(NS_STREAM_MANAGEMENT, ENABLED_ELEMENT_NAME))
+                        throw new XMPPException("Expecting <enabled> tag, but found: " + uctx.getName());
+                    String id = null;
+                    long max = 0;
+                    if (isTrue(uctx.attributeText(null, "resume", null)))
+                        id = uctx.attributeText(null, "id", null);
+                    if (uctx.hasAttribute(null, "max"))
+                        max = Long.parseLong(uctx.attributeText(null, "max"));
+                    toEndTag(uctx);
+                    smCtx.enabled(id, sessCtx.getResource(), max);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            throw new XMPPException(ex);
+        } catch (JiBXException ex) {
+            throw new XMPPException(ex);
+        } catch (IOException ex) {
+            throw new XMPPException(ex);
+        } finally {
+            streamCtx.getReader().stopLogging();
+        }
+    }
+
+    /**
+     * checks a boolean attribute, which can either be true or 1
+     */
+    private static boolean isTrue(String value) {
+        return "true".equals(value) || "1".equals(value);
+    }
+
+    /**
+     * Moves the parser to the end tag of the current element, so that the
+     * element following it is not read ahead.
+     *
+     * @param uctx the unmarshalling context positioned at a start tag
+     * @throws JiBXException if the data cannot be parsed
+     */
+    private void toEndTag(UnmarshallingContext uctx) throws JiBXException {
+        int depth = 0;
+        do {
+            if (uctx.isStart())
+                depth++;
+            else
+                depth--;
+            if (depth > 0)
+                uctx.next();
+        } while (depth > 0);
+    }
+}
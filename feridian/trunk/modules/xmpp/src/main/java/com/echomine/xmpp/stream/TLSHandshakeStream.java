@@ -8,6 +8,7 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -17,8 +18,8 @@ import javax.net.ssl.TrustManagerFactory;
 
 import org.jibx.runtime.impl.UnmarshallingContext;
 
-import com.echomine.jibx.XMPPLoggableReader;
 import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.net.NIOSocket;
 import com.echomine.util.SimpleTrustManager;
 import com.echomine.xmpp.IXMPPStream;
 import com.echomine.xmpp.XMPPConstants;
@@ -43,10 +44,18 @@ import com.echomine.xmpp.XMPPStreamContext;
  * also be replaced with the new SSL socket. This stream will NOT redo the
  * handshake. Thus, the caller must subsequently redo the handshake after TLS
  * negotiation succeeds.
+ * <p>
+ * The SSL context is created once and shared by all connections (one context
+ * per stream class, so subclasses can still initialize it differently). Apart
+ * from saving the key store and trust manager setup on every connection, the
+ * shared context keeps the TLS sessions, so that reconnecting to the same
+ * server resumes the previous session with an abbreviated handshake.
+ * </p>
  */
 public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
     private static final String STARTTLS_ELEMENT_NAME = "starttls";
     protected final static int SOCKETBUF = 8192;
+    private static final ConcurrentHashMap<Class<?>, SSLContext> sslContexts = new ConcurrentHashMap<Class<?>, SSLContext>();
 
     /*
      * (non-Javadoc)
@@ -81,20 +90,21 @@ public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
                 throw new XMPPException("Expecting <proceed> tag, but found: " + uctx.getName());
             uctx.toEnd();
             streamCtx.getReader().stopLogging();
-            SSLSocket tlsSocket = startTLSHandshake(streamCtx.getSocket());
+            Socket tlsSocket = streamCtx.getSocket();
+            if (tlsSocket instanceof NIOSocket)
+                ((NIOSocket) tlsSocket).startTLS(getSSLContext());
+            else
+                tlsSocket = startTLSHandshake(tlsSocket);
             streamCtx.setSocket(tlsSocket);
             // Workaround for JiBX's reset() not resetting prefix
             // Thus, a new stream writer must be created
-            XMPPLoggableReader bis = new XMPPLoggableReader(tlsSocket.getInputStream(), "UTF-8");
             BufferedOutputStream bos = new BufferedOutputStream(tlsSocket.getOutputStream(), SOCKETBUF);
             writer.flush();
             writer = new XMPPStreamWriter();
             writer.setOutput(bos);
-            uctx.setDocument(bis);
+            streamCtx.setInput(tlsSocket.getInputStream());
             streamCtx.setSocket(tlsSocket);
             streamCtx.setWriter(writer);
-            streamCtx.setUnmarshallingContext(uctx);
-            streamCtx.setReader(bis);
             // as per XMPP specs, must reset all previous session data
             String hostname = sessCtx.getHostName();
             sessCtx.reset();
@@ -129,17 +139,52 @@ public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
      * @throws IOException
      */
     protected SSLSocket setupSSLSocket(Socket socket) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException, IOException {
-        // Create an SSL context
-        SSLContext context = null;
-        context = SSLContext.getInstance("TLS");
+        SSLContext context = getSSLContext();
+        SSLSocketFactory factory = context.getSocketFactory();
+        SSLSocket sslsocket = (SSLSocket) factory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslsocket.setUseClientMode(true);
+        return sslsocket;
+    }
+
+    /**
+     * Retrieves the SSL context shared by all connections that use this stream
+     * class. The context is created on first use.
+     * 
+     * @return the shared SSL context
+     */
+    protected SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException {
+        SSLContext context = sslContexts.get(getClass());
+        if (context == null) {
+            SSLContext newContext = createSSLContext();
+            context = sslContexts.putIfAbsent(getClass(), newContext);
+            if (context == null)
+                context = newContext;
+        }
+        return context;
+    }
+
+    /**
+     * Discards the shared SSL contexts, along with the TLS sessions they hold.
+     * The contexts are created again on the next TLS negotiation. This is
+     * useful once the key store has changed.
+     */
+    public static void clearSSLContexts() {
+        sslContexts.clear();
+    }
+
+    /**
+     * creates the SSL context used for the TLS negotiation, doing any key
+     * management, trust manager, etc initialization.
+     * 
+     * @return the initialized SSL context
+     */
+    protected SSLContext createSSLContext() throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException {
+        SSLContext context = SSLContext.getInstance("TLS");
         KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
         TrustManagerFactory tfactory = TrustManagerFactory.getInstance("SunPKIX");
         tfactory.init(keyStore);
         SimpleTrustManager tmanager = new SimpleTrustManager(keyStore, System.getProperty("user.home") + System.getProperty("file.separator") + ".keystore", null);
         context.init(null, new TrustManager[] { tmanager }, null);
-        SSLSocketFactory factory = context.getSocketFactory();
-        SSLSocket sslsocket = (SSLSocket) factory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
-        sslsocket.setUseClientMode(true);
-        return sslsocket;
+        return context;
     }
 }
@@ -1,5 +1,7 @@
 package com.echomine.xmpp.stream;
 
+import java.io.IOException;
+
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
@@ -47,6 +49,7 @@ public class XMPPResourceBindingStream implements IXMPPStream {
             request.setType(IQPacket.TYPE_SET);
             request.setResourceName(sessCtx.getResource());
             JiBXUtil.marshallIQPacket(writer, request);
+            writer.flush();
             //synchronized for first access is required to prevent thread racing issue
             synchronized (uctx) {
                 if (!uctx.isAt(XMPPConstants.NS_XMPP_CLIENT, "iq"))
@@ -63,6 +66,8 @@ public class XMPPResourceBindingStream implements IXMPPStream {
             sessCtx.setResource(result.getJid().getResource());
         } catch (JiBXException ex) {
             throw new XMPPException(ex);
+        } catch (IOException ex) {
+            throw new XMPPException(ex);
         } finally {
             streamCtx.getReader().stopLogging();
         }
@@ -1,5 +1,7 @@
 package com.echomine.xmpp.stream;
 
+import java.io.IOException;
+
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
@@ -43,6 +45,7 @@ public class XMPPSessionStream implements IXMPPStream, XMPPConstants {
             request.setId(IDGenerator.nextID());
             request.setType(IQPacket.TYPE_SET);
             JiBXUtil.marshallIQPacket(writer, request);
+            writer.flush();
             // synchronized for first access is required to prevent thread
             // racing issue
             synchronized (uctx) {
@@ -56,6 +59,8 @@ public class XMPPSessionStream implements IXMPPStream, XMPPConstants {
                 throw new XMPPStanzaErrorException(result.getError());
         } catch (JiBXException ex) {
             throw new XMPPException(ex);
+        } catch (IOException ex) {
+            throw new XMPPException(ex);
         } finally {
             streamCtx.getReader().stopLogging();
         }
@@ -0,0 +1,69 @@
+package com.echomine.jibx;
+
+import junit.framework.TestCase;
+
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+/**
+ * Tests the element dispatch table
+ */
+public class ElementDispatchTableTest extends TestCase {
+    private ElementDispatchTable table;
+
+    protected void setUp() throws Exception {
+        table = new ElementDispatchTable();
+    }
+
+    public void testRegisterAndGet() throws Exception {
+        IElementHandler presence = new MockHandler();
+        IElementHandler message = new MockHandler();
+        table.register("jabber:client", "presence", presence);
+        table.register("jabber:client", "message", message);
+        assertSame(presence, table.get("jabber:client", "presence"));
+        // strings from the parser are not necessarily the same instances
+        assertSame(message, table.get(new String("jabber:client"), new String("message")));
+        assertNull(table.get("jabber:client", "iq"));
+        assertNull(table.get("jabber:server", "presence"));
+        assertEquals(2, table.size());
+    }
+
+    public void testReplaceAndUnregister() throws Exception {
+        IElementHandler first = new MockHandler();
+        IElementHandler second = new MockHandler();
+        assertNull(table.register("jabber:iq:roster", "query", first));
+        assertSame(first, table.register("jabber:iq:roster", "query", second));
+        assertSame(second, table.get("jabber:iq:roster", "query"));
+        assertEquals(1, table.size());
+        assertSame(second, table.unregister("jabber:iq:roster", "query"));
+        assertNull(table.get("jabber:iq:roster", "query"));
+        assertNull(table.unregister("jabber:iq:roster", "query"));
+        assertEquals(0, table.size());
+    }
+
+    public void testNoNamespace() throws Exception {
+        IElementHandler handler = new MockHandler();
+        table.register(null, "test", handler);
+        assertSame(handler, table.get(null, "test"));
+        assertSame(handler, table.get("", "test"));
+    }
+
+    /**
+     * The table must keep all the entries while it grows
+     */
+    public void testGrow() throws Exception {
+        IElementHandler[] handlers = new IElementHandler[100];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new MockHandler();
+            table.register("urn:test:" + (i % 7), "element" + i, handlers[i]);
+        }
+        for (int i = 0; i < handlers.length; i++)
+            assertSame(handlers[i], table.get("urn:test:" + (i % 7), "element" + i));
+        assertEquals(handlers.length, table.size());
+    }
+
+    class MockHandler implements IElementHandler {
+        public Object unmarshall(UnmarshallingContext ctx) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.echomine.jibx;
+
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * <p>
+ * Measures the number of bytes allocated per stanza when presence, message
+ * and IQ stanzas are unmarshalled and marshalled through JiBXUtil, the same
+ * way the connection handler does it. The stanzas are read from an in-memory
+ * stream and written to a discarding stream so that only the parsing and
+ * binding work is measured.
+ * </p>
+ *
+ * <pre>
+ * java com.echomine.jibx.JiBXAllocationBenchmark [stanzas]
+ * </pre>
+ *
+ * <p>
+ * Requires a runtime that supports measuring thread allocations
+ * (com.sun.management.ThreadMXBean).
+ * </p>
+ */
+public class JiBXAllocationBenchmark {
+    private static final String STREAM_START = "<stream:stream xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client'>";
+    private static final String STREAM_END = "</stream:stream>";
+    private static final String PRESENCE = "<presence from='romeo@example.net/orchard' to='juliet@example.com'><show>away</show><status>be right back</status><priority>1</priority></presence>";
+    private static final String MESSAGE = "<message from='juliet@example.com/balcony' to='romeo@example.net' type='chat' id='m1'><body>Wherefore art thou, Romeo?</body><thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread></message>";
+    private static final String IQ = "<iq type='result' id='r1' to='juliet@example.com/balcony'><query xmlns='jabber:iq:roster'><item jid='romeo@example.net' name='Romeo' subscription='both'><group>Friends</group></item></query></iq>";
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        report("presence", PRESENCE, PresencePacket.class, count);
+        report("message", MESSAGE, MessagePacket.class, count);
+        report("iq", IQ, IQPacket.class, count);
+    }
+
+    private static void report(String name, String stanza, Class<?> cls, int count) throws Exception {
+        String doc = buildDocument(stanza, count);
+        // warm up so that the measurement does not include class loading
+        // and the one-time lookups
+        Object packet = unmarshall(doc, cls);
+        marshall(packet, count);
+        long bytes = getAllocatedBytes();
+        unmarshall(doc, cls);
+        long unmarshallBytes = getAllocatedBytes() - bytes;
+        bytes = getAllocatedBytes();
+        marshall(packet, count);
+        long marshallBytes = getAllocatedBytes() - bytes;
+        System.out.println(name + ": unmarshall " + (unmarshallBytes / count) + " bytes/stanza, marshall " + (marshallBytes / count) + " bytes/stanza");
+    }
+
+    private static String buildDocument(String stanza, int count) {
+        StringBuffer buf = new StringBuffer(STREAM_START.length() + stanza.length() * count + STREAM_END.length());
+        buf.append(STREAM_START);
+        for (int i = 0; i < count; i++)
+            buf.append(stanza);
+        buf.append(STREAM_END);
+        return buf.toString();
+    }
+
+    /**
+     * unmarshalls all the stanzas in the document
+     *
+     * @return the last stanza unmarshalled
+     */
+    private static Object unmarshall(String doc, Class<?> cls) throws Exception {
+        UnmarshallingContext uctx = new UnmarshallingContext();
+        uctx.setDocument(new StringReader(doc));
+        uctx.toStart();
+        Object packet = null;
+        while (true) {
+            uctx.next();
+            if (uctx.currentEvent() == IXMLReader.END_DOCUMENT || uctx.isEnd())
+                break;
+            packet = JiBXUtil.unmarshallObject(uctx, cls);
+        }
+        return packet;
+    }
+
+    private static void marshall(Object packet, int count) throws Exception {
+        XMPPStreamWriter writer = new XMPPStreamWriter();
+        writer.setOutput(new DiscardingOutputStream());
+        writer.pushExtensionNamespaces(new String[] { XMPPConstants.NS_XMPP_CLIENT });
+        for (int i = 0; i < count; i++) {
+            if (packet instanceof IQPacket)
+                JiBXUtil.marshallIQPacket(writer, (IQPacket) packet);
+            else
+                JiBXUtil.marshallObject(writer, packet);
+            writer.flush();
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static class DiscardingOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.echomine.jibx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.RosterItem;
+import com.echomine.xmpp.packet.StanzaErrorPacket;
+
+/**
+ * Tests the jibx utility methods
+ */
+public class JiBXUtilTest extends TestCase {
+    private XMPPStreamWriter writer;
+    private ByteArrayOutputStream os;
+
+    protected void setUp() throws Exception {
+        writer = new XMPPStreamWriter();
+        os = new ByteArrayOutputStream();
+        writer.setOutput(os);
+        writer.pushExtensionNamespaces(new String[] { XMPPConstants.NS_XMPP_CLIENT });
+    }
+
+    /**
+     * Extensions are marshalled straight into the stream writer with their
+     * own namespace declared, and the namespaces are scoped to the extension.
+     */
+    public void testMarshallExtension() throws Exception {
+        RosterIQPacket packet = new RosterIQPacket();
+        RosterItem item = new RosterItem();
+        item.setJid(JID.parseJID("contact@example.org"));
+        item.setName("MyContact");
+        item.addGroup("MyBuddies");
+        packet.addItem(item);
+        int nsCount = writer.getNamespaceCount();
+        writer.startStanzaTagOpen("iq");
+        writer.closeStartTag();
+        JiBXUtil.marshallExtension(writer, packet);
+        JiBXUtil.marshallExtension(writer, packet);
+        writer.endStanzaTag("iq");
+        writer.flush();
+        assertEquals(nsCount, writer.getNamespaceCount());
+        String query = "<query xmlns=\"jabber:iq:roster\"><item jid=\"contact@example.org\" name=\"MyContact\"><group>MyBuddies</group></item></query>";
+        assertEquals("<iq xmlns=\"jabber:client\">" + query + query + "</iq>", os.toString("UTF-8"));
+    }
+
+    /**
+     * Marshalling an extension must not close the underlying stream
+     */
+    public void testMarshallExtensionKeepsStreamOpen() throws Exception {
+        JiBXUtil.marshallExtension(writer, new RosterIQPacket());
+        writer.writeMarkup("<a/>");
+        writer.flush();
+        assertTrue(os.toString("UTF-8").endsWith("<a/>"));
+    }
+
+    /**
+     * The binding factory is looked up once and shared by the classes of the
+     * same binding
+     */
+    public void testFactoryIsCached() throws Exception {
+        assertNotNull(JiBXUtil.getFactory(IQPacket.class));
+        assertSame(JiBXUtil.getFactory(IQPacket.class), JiBXUtil.getFactory(IQPacket.class));
+        assertSame(JiBXUtil.getFactory(IQPacket.class), JiBXUtil.getFactory(StanzaErrorPacket.class));
+    }
+
+    /**
+     * Reused contexts must work for consecutive stanzas as well as for nested
+     * unmarshalling within the same binding (the error inside the IQ)
+     */
+    public void testUnmarshallWithReusedContexts() throws Exception {
+        String iq = "<iq type='error' id='iq_0001'><error type='cancel'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>";
+        UnmarshallingContext uctx = new UnmarshallingContext();
+        uctx.setDocument(new StringReader("<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>" + iq + iq + "</stream:stream>"));
+        uctx.toStart();
+        for (int i = 0; i < 2; i++) {
+            uctx.next();
+            IQPacket packet = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
+            assertEquals("iq_0001", packet.getId());
+            assertNotNull(packet.getError());
+            assertEquals(StanzaErrorPacket.CANCEL, packet.getError().getErrorType());
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.echomine.jibx;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.XMLPullReaderFactory;
+
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.StanzaErrorPacket;
+
+/**
+ * Tests the byte level tokenizer against the pull parser, and with the
+ * mappers
+ */
+public class XMPPStreamTokenizerTest extends TestCase {
+    private static final String STREAM_START = "<?xml version='1.0' encoding='UTF-8'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+    private static final String STREAM_END = "</stream:stream>";
+
+    /**
+     * the events and their data must be the same as the pull parser's
+     */
+    public void testSameAsPullParser() throws Exception {
+        compare(STREAM_START + "<message to='romeo@example.net' from='juliet@example.com/balcony' type='chat' xml:lang='en'>"
+                + "<body>Wherefore art thou, Romeo?</body><thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread></message>"
+                + "<presence><show>away</show><status>Out &amp; about &lt;soon&gt; &#233;&#x4E2D;</status><priority>5</priority></presence>"
+                + "<iq type='result' id='roster_1'><query xmlns='jabber:iq:roster'><item jid='a@b.c' name='A &quot;B&quot;' subscription='both'>"
+                + "<group>Friends</group></item><item jid='d@e.f'/></query></iq>\n  " + STREAM_END);
+        compare("<a:root xmlns:a='urn:a' xmlns:b='urn:b' b:attr=\"x'y\"><b:child a:attr='1'/><plain>text<![CDATA[<raw> & ]]>more</plain></a:root>");
+    }
+
+    /**
+     * multi-byte characters must be decoded correctly even when they are split
+     * across reads
+     */
+    public void testSplitReads() throws Exception {
+        String doc = STREAM_START + "<message><body>caf\u00e9 \u4e2d\u6587 \ud834\udd1e</body></message>" + STREAM_END;
+        XMPPStreamTokenizer tokenizer = new XMPPStreamTokenizer(new TrickleInputStream(doc.getBytes("UTF-8")));
+        assertEquals(IXMLReader.START_TAG, tokenizer.next());
+        assertEquals("stream", tokenizer.getName());
+        assertEquals("http://etherx.jabber.org/streams", tokenizer.getNamespace());
+        assertEquals("example.com", tokenizer.getAttributeValue(null, "to"));
+        assertEquals(IXMLReader.START_TAG, tokenizer.next());
+        assertEquals(IXMLReader.START_TAG, tokenizer.next());
+        assertEquals("body", tokenizer.getName());
+        assertEquals(IXMLReader.TEXT, tokenizer.next());
+        assertEquals("caf\u00e9 \u4e2d\u6587 \ud834\udd1e", tokenizer.getText());
+        assertEquals(IXMLReader.END_TAG, tokenizer.next());
+        assertEquals(IXMLReader.END_TAG, tokenizer.next());
+        assertEquals(IXMLReader.END_TAG, tokenizer.next());
+        assertEquals(IXMLReader.END_DOCUMENT, tokenizer.next());
+    }
+
+    /**
+     * the names are interned, and looked up rather than decoded again
+     */
+    public void testSymbolTable() throws Exception {
+        StringBuffer doc = new StringBuffer(STREAM_START);
+        for (int i = 0; i < 10; i++)
+            doc.append("<presence from='a@b.c/" + i + "'><show>away</show></presence>");
+        doc.append(STREAM_END);
+        XMPPStreamTokenizer tokenizer = tokenizer(doc.toString());
+        int symbols = 0;
+        while (tokenizer.next() != IXMLReader.END_DOCUMENT) {
+            if (tokenizer.getEventType() == IXMLReader.START_TAG) {
+                assertSame(tokenizer.getName(), tokenizer.getName().intern());
+                assertSame(tokenizer.getNamespace(), tokenizer.getNamespace().intern());
+                if ("show".equals(tokenizer.getName()))
+                    symbols = tokenizer.getSymbolCount();
+            }
+        }
+        assertEquals(symbols, tokenizer.getSymbolCount());
+    }
+
+    /**
+     * skipping leaves the tokenizer at the end tag of the skipped element,
+     * without reading any further
+     */
+    public void testSkipElement() throws Exception {
+        String doc = STREAM_START + "<x xmlns='urn:x'><y a='/>' b=\"</x>\"><z/><!-- </x> --><![CDATA[</x>]]>text</y><empty/></x><message/>";
+        XMPPStreamTokenizer tokenizer = tokenizer(doc);
+        tokenizer.next();
+        assertEquals(IXMLReader.START_TAG, tokenizer.next());
+        assertEquals("x", tokenizer.getName());
+        assertEquals(2, tokenizer.getNestingDepth());
+        tokenizer.skipElement();
+        assertEquals(IXMLReader.END_TAG, tokenizer.getEventType());
+        assertEquals("x", tokenizer.getName());
+        assertEquals(2, tokenizer.getNestingDepth());
+        assertEquals(IXMLReader.START_TAG, tokenizer.next());
+        assertEquals("message", tokenizer.getName());
+        assertEquals("jabber:client", tokenizer.getNamespace());
+        tokenizer.skipElement();
+        assertEquals(IXMLReader.END_TAG, tokenizer.getEventType());
+        // the stream is not ended, so the next token is not complete
+        try {
+            tokenizer.next();
+            fail("stream ended in the middle of the document");
+        } catch (JiBXException ex) {
+            // expected
+        }
+    }
+
+    public void testUndeclaredPrefix() throws Exception {
+        XMPPStreamTokenizer tokenizer = tokenizer("<a><b:c/></a>");
+        tokenizer.next();
+        try {
+            tokenizer.next();
+            fail("prefix is not declared");
+        } catch (JiBXException ex) {
+            // expected
+        }
+    }
+
+    public void testMismatchedEndTag() throws Exception {
+        XMPPStreamTokenizer tokenizer = tokenizer("<a><b></a></b>");
+        tokenizer.next();
+        tokenizer.next();
+        try {
+            tokenizer.next();
+            fail("end tag does not match");
+        } catch (JiBXException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * the mappers must work the same with the tokenizer, including the
+     * elements they skip
+     */
+    public void testUnmarshall() throws Exception {
+        String doc = STREAM_START + "<message to='romeo@example.net' type='chat' id='m1'><body>Hi &amp; bye</body><unknown xmlns='urn:x'><a/></unknown></message>"
+                + "<presence from='juliet@example.com/balcony'><show>dnd</show><status>busy</status></presence>"
+                + "<iq type='error' id='iq_0001'><error type='cancel'><service-unavailable xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>"
+                + STREAM_END;
+        XMPPUnmarshallingContext uctx = new XMPPUnmarshallingContext();
+        uctx.setDocument(tokenizer(doc));
+        uctx.reset();
+        assertNotNull(uctx.getTokenizer());
+        uctx.toStart();
+        uctx.next();
+        MessagePacket message = (MessagePacket) JiBXUtil.unmarshallObject(uctx, MessagePacket.class);
+        assertEquals("m1", message.getId());
+        assertEquals("Hi & bye", message.getBody());
+        uctx.next();
+        PresencePacket presence = (PresencePacket) JiBXUtil.unmarshallObject(uctx, PresencePacket.class);
+        assertEquals("busy", presence.getStatus());
+        assertEquals(PresencePacket.SHOW_DND, presence.getShow());
+        uctx.next();
+        IQPacket iq = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
+        assertEquals("iq_0001", iq.getId());
+        assertEquals(StanzaErrorPacket.CANCEL, iq.getError().getErrorType());
+        // the pull parser can still be used afterwards
+        uctx.setDocument(new StringReader(doc));
+        assertNull(uctx.getTokenizer());
+        uctx.toStart();
+    }
+
+    private static XMPPStreamTokenizer tokenizer(String doc) throws Exception {
+        return new XMPPStreamTokenizer(new ByteArrayInputStream(doc.getBytes("UTF-8")));
+    }
+
+    /**
+     * goes through the document with both readers, and compares every event
+     */
+    private static void compare(String doc) throws Exception {
+        IXMLReader expected = XMLPullReaderFactory.getInstance().createReader(new StringReader(doc), null, true);
+        XMPPStreamTokenizer actual = tokenizer(doc);
+        int event;
+        do {
+            event = expected.next();
+            assertEquals(event, actual.next());
+            assertEquals(expected.getNestingDepth(), actual.getNestingDepth());
+            if (event == IXMLReader.START_TAG || event == IXMLReader.END_TAG) {
+                assertEquals(expected.getName(), actual.getName());
+                assertEquals(expected.getNamespace(), actual.getNamespace());
+                assertEquals(expected.getPrefix(), actual.getPrefix());
+                int depth = actual.getNestingDepth();
+                assertEquals(expected.getNamespaceCount(depth), actual.getNamespaceCount(depth));
+            }
+            if (event == IXMLReader.START_TAG) {
+                assertEquals(expected.getAttributeCount(), actual.getAttributeCount());
+                for (int i = 0; i < actual.getAttributeCount(); i++) {
+                    assertEquals(expected.getAttributeName(i), actual.getAttributeName(i));
+                    assertEquals(expected.getAttributeNamespace(i), actual.getAttributeNamespace(i));
+                    assertEquals(expected.getAttributePrefix(i), actual.getAttributePrefix(i));
+                    assertEquals(expected.getAttributeValue(i), actual.getAttributeValue(i));
+                }
+            }
+            if (event == IXMLReader.TEXT)
+                assertEquals(expected.getText(), actual.getText());
+        } while (event != IXMLReader.END_DOCUMENT);
+    }
+
+    /**
+     * hands out the data one byte at a time
+     */
+    static class TrickleInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+
+        TrickleInputStream(byte[] data) {
+            in = new ByteArrayInputStream(data);
+        }
+
+        public int read() {
+            return in.read();
+        }
+
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, Math.min(len, 1));
+        }
+    }
+}
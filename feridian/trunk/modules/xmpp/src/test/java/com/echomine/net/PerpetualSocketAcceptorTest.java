@@ -0,0 +1,212 @@
+package com.echomine.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.echomine.util.IOUtil;
+
+/**
+ * Tests the pooled accept, its overload policies and the handshake limit
+ */
+public class PerpetualSocketAcceptorTest extends TestCase {
+    InetAddress loopback;
+    PerpetualSocketAcceptor acceptor;
+    List<Socket> clients = new ArrayList<Socket>();
+    CountDownLatch released = new CountDownLatch(1);
+
+    protected void setUp() throws Exception {
+        loopback = InetAddress.getByName("127.0.0.1");
+        acceptor = new HandshakeablePerpetualSocketAcceptor(new ConnectionContext(loopback, 0), 50);
+    }
+
+    protected void tearDown() throws Exception {
+        released.countDown();
+        for (Socket s : clients)
+            IOUtil.closeSocket(s);
+        acceptor.close();
+    }
+
+    public void testPooledAcceptLimitsWorkers() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        acceptor.setMaxWorkers(2);
+        acceptor.setQueueSize(10);
+        acceptor.paccept(handler, "Pooled Acceptor");
+        for (int i = 0; i < 5; i++)
+            connect();
+        AcceptorMetrics metrics = acceptor.getMetrics();
+        assertTrue(waitFor(metrics, 2, 3));
+        released.countDown();
+        assertTrue(handler.waitForHandled(5));
+        assertEquals(2, handler.maxActive.get());
+        assertEquals(5, metrics.getAccepted());
+        assertEquals(0, metrics.getRejected());
+        assertTrue(metrics.getQueueWaitMax() > 0);
+    }
+
+    public void testRejectWhenFull() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        acceptor.setMaxWorkers(1);
+        acceptor.setOverloadPolicy(PerpetualSocketAcceptor.OverloadPolicy.REJECT);
+        acceptor.paccept(handler, "Pooled Acceptor");
+        connect();
+        assertTrue(waitFor(acceptor.getMetrics(), 1, 0));
+        Socket rejected = connect();
+        rejected.setSoTimeout(5000);
+        assertEquals(-1, rejected.getInputStream().read());
+        assertEquals(1, acceptor.getMetrics().getRejected());
+        released.countDown();
+        assertTrue(handler.waitForHandled(1));
+    }
+
+    /**
+     * a full acceptor leaves the connections in the backlog until a worker is
+     * free
+     */
+    public void testBlockWhenFull() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        acceptor.setMaxWorkers(1);
+        acceptor.paccept(handler, "Pooled Acceptor");
+        for (int i = 0; i < 3; i++)
+            connect();
+        assertTrue(waitFor(acceptor.getMetrics(), 1, 0));
+        Thread.sleep(200);
+        // the second connection waits for a slot, the third is not accepted
+        assertEquals(2, acceptor.getMetrics().getAccepted());
+        released.countDown();
+        assertTrue(handler.waitForHandled(3));
+        assertEquals(0, acceptor.getMetrics().getRejected());
+    }
+
+    public void testHandshakeLimit() throws Exception {
+        HandshakingHandler handler = new HandshakingHandler();
+        released.countDown();
+        acceptor.setMaxWorkers(4);
+        acceptor.setMaxHandshakes(1);
+        acceptor.paccept(handler, "Pooled Acceptor");
+        for (int i = 0; i < 4; i++)
+            connect();
+        assertTrue(handler.waitForHandled(4));
+        assertEquals(1, handler.maxHandshakes.get());
+        AcceptorMetrics metrics = acceptor.getMetrics();
+        assertEquals(4, metrics.getHandshakeCount());
+        assertTrue(metrics.getHandshakeMax() >= 50000);
+        assertTrue(metrics.getHandshakePercentile(99) >= metrics.getHandshakePercentile(50));
+    }
+
+    public void testAdmissionThrottler() throws Exception {
+        final AtomicInteger admitted = new AtomicInteger();
+        acceptor.setAdmissionThrottler(new ConnectionThrottler() {
+            public void throttle(ConnectionContext ccontext) {
+                admitted.incrementAndGet();
+            }
+        });
+        BlockingHandler handler = new BlockingHandler();
+        released.countDown();
+        acceptor.aaccept(handler, "Async Acceptor");
+        for (int i = 0; i < 3; i++)
+            connect();
+        assertTrue(handler.waitForHandled(3));
+        assertEquals(3, admitted.get());
+        assertEquals(3, acceptor.getMetrics().getAccepted());
+    }
+
+    public void testWorkersRequired() throws Exception {
+        try {
+            acceptor.paccept(new BlockingHandler(), null);
+            fail("number of workers must be set");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket(loopback, acceptor.getLocalPort());
+        clients.add(s);
+        return s;
+    }
+
+    private static boolean waitFor(AcceptorMetrics metrics, int active, int queued) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (metrics.getActiveConnections() == active && metrics.getQueuedConnections() == queued)
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    /**
+     * holds each connection until the test releases them
+     */
+    class BlockingHandler implements SocketHandler {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger handled = new AtomicInteger();
+
+        public void handle(Socket socket, ConnectionContext connCtx) throws IOException {
+            int current = active.incrementAndGet();
+            synchronized (maxActive) {
+                if (current > maxActive.get())
+                    maxActive.set(current);
+            }
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // end the connection
+            }
+            active.decrementAndGet();
+            synchronized (handled) {
+                handled.incrementAndGet();
+                handled.notifyAll();
+            }
+        }
+
+        boolean waitForHandled(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            synchronized (handled) {
+                while (handled.get() < count && System.currentTimeMillis() < end)
+                    handled.wait(100);
+            }
+            return handled.get() == count;
+        }
+
+        public void start() {
+        }
+
+        public void shutdown() {
+        }
+
+        public boolean isConnected() {
+            return true;
+        }
+    }
+
+    /**
+     * takes a while for each handshake
+     */
+    class HandshakingHandler extends BlockingHandler implements HandshakeableSocketHandler {
+        final AtomicInteger handshakes = new AtomicInteger();
+        final AtomicInteger maxHandshakes = new AtomicInteger();
+
+        public void handshake(Socket socket, ConnectionContext connCtx) throws HandshakeFailedException {
+            int current = handshakes.incrementAndGet();
+            synchronized (maxHandshakes) {
+                if (current > maxHandshakes.get())
+                    maxHandshakes.set(current);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                throw new HandshakeFailedException("interrupted");
+            }
+            handshakes.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.echomine.net;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.echomine.util.IOUtil;
+import com.echomine.util.ThreadUtil;
+
+/**
+ * <p>
+ * Compares platform threads against virtual threads for the blocking
+ * connection code path. The benchmark opens the given number of loopback
+ * connections through SocketConnector.aconnect() against a
+ * PerpetualSocketAcceptor.aaccept(), with each side holding a blocked thread
+ * per connection. It reports the time it takes until all connections are
+ * established and the growth of the resident memory of the process.
+ * </p>
+ * <p>
+ * Since resident memory is measured for the whole process, run each mode in a
+ * JVM of its own:
+ * </p>
+ *
+ * <pre>
+ * java com.echomine.net.ThreadModeBenchmark platform 10000
+ * java com.echomine.net.ThreadModeBenchmark virtual 10000
+ * </pre>
+ *
+ * <p>
+ * Virtual threads require a Java 21 or newer runtime. High connection counts
+ * may require raising the open file limit (ulimit -n).
+ * </p>
+ */
+public class ThreadModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : ThreadUtil.MODE_PLATFORM;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        ThreadFactory factory;
+        if (ThreadUtil.MODE_VIRTUAL.equals(mode))
+            factory = ThreadUtil.getVirtualThreadFactory();
+        else
+            factory = ThreadUtil.getPlatformThreadFactory();
+        Result result = run(factory, count);
+        System.out.println("mode=" + mode + " connections=" + count);
+        System.out.println("ramp-up: " + result.rampUpMillis + " ms (" + (count * 1000L / Math.max(1, result.rampUpMillis)) + " conn/s)");
+        System.out.println("resident memory: +" + (result.residentBytes / 1024) + " KB (" + (result.residentBytes / count) + " bytes/conn)");
+        System.out.println("heap used: +" + (result.heapBytes / 1024) + " KB");
+    }
+
+    /**
+     * Opens the connections and measures them
+     *
+     * @param factory the factory to create all the threads with
+     * @param count the number of connections to open
+     * @return the measurements
+     */
+    public static Result run(ThreadFactory factory, int count) throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        PerpetualSocketAcceptor acceptor = new PerpetualSocketAcceptor(new ConnectionContext(loopback, 0), 1024);
+        SocketConnector connector = new SocketConnector();
+        acceptor.setThreadFactory(factory);
+        connector.setThreadFactory(factory);
+        CountDownLatch released = new CountDownLatch(1);
+        CountDownLatch established = new CountDownLatch(count);
+        CountDownLatch closed = new CountDownLatch(count);
+        EstablishedListener listener = new EstablishedListener(established, closed);
+        connector.addConnectionListener(listener);
+        acceptor.aaccept(new BlockingHandler(released), "Benchmark Acceptor");
+        ConnectionContext ctx = new ConnectionContext(loopback, acceptor.socket.getLocalPort());
+        System.gc();
+        long residentBefore = getResidentMemory();
+        long heapBefore = getUsedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            connector.aconnect(new BlockingHandler(released), ctx, null);
+        if (!established.await(5, TimeUnit.MINUTES))
+            throw new IllegalStateException("Only " + (count - established.getCount()) + " connections established");
+        Result result = new Result();
+        result.rampUpMillis = (System.nanoTime() - start) / 1000000;
+        result.residentBytes = getResidentMemory() - residentBefore;
+        result.heapBytes = getUsedHeap() - heapBefore;
+        released.countDown();
+        closed.await(1, TimeUnit.MINUTES);
+        acceptor.close();
+        return result;
+    }
+
+    private static long getUsedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * @return the resident set size of the process, or 0 if the platform
+     *         does not provide it
+     */
+    private static long getResidentMemory() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+            }
+        } catch (IOException ex) {
+        } finally {
+            IOUtil.closeStream(reader);
+        }
+        return 0;
+    }
+
+    public static class Result {
+        public long rampUpMillis;
+        public long residentBytes;
+        public long heapBytes;
+    }
+
+    /**
+     * Blocks the handling thread until the benchmark is done, just like a
+     * connection waiting for incoming data would
+     */
+    static class BlockingHandler implements SocketHandler {
+        private CountDownLatch released;
+
+        BlockingHandler(CountDownLatch released) {
+            this.released = released;
+        }
+
+        public void handle(Socket socket, ConnectionContext connCtx) throws IOException {
+            try {
+                released.await();
+            } catch (InterruptedException ex) {
+            }
+        }
+
+        public void start() {
+        }
+
+        public void shutdown() {
+        }
+
+        public boolean isConnected() {
+            return released.getCount() > 0;
+        }
+    }
+
+    static class EstablishedListener implements ConnectionListener {
+        private CountDownLatch established;
+        private CountDownLatch closed;
+
+        EstablishedListener(CountDownLatch established, CountDownLatch closed) {
+            this.established = established;
+            this.closed = closed;
+        }
+
+        public void connectionStarting(ConnectionEvent event) throws ConnectionVetoException {
+        }
+
+        public void connectionEstablished(ConnectionEvent event) {
+            established.countDown();
+        }
+
+        public void connectionClosed(ConnectionEvent event) {
+            closed.countDown();
+        }
+    }
+}
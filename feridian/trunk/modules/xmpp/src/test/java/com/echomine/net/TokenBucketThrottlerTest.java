@@ -0,0 +1,118 @@
+package com.echomine.net;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the rates, bursts and sharing of the token bucket throttler
+ */
+public class TokenBucketThrottlerTest extends TestCase {
+    public void testUnlimited() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(0, 0);
+        assertEquals(0, throttler.acquireBytes(1000000));
+        assertEquals(0, throttler.acquireStanzas(1000));
+        assertEquals(0, throttler.getThrottledMillis());
+    }
+
+    /**
+     * the burst is sent at once, and the rest is delayed
+     */
+    public void testBurstThenDelay() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(10000, 0);
+        throttler.setBurstMillis(100);
+        assertEquals(0, throttler.acquireBytes(1000));
+        long start = System.nanoTime();
+        long delay = throttler.acquireBytes(1000);
+        long elapsed = System.nanoTime() - start;
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(delay) >= 80);
+        assertTrue(elapsed >= delay);
+        assertTrue(throttler.getThrottledMillis() >= 80);
+    }
+
+    /**
+     * a write larger than the bucket goes through, and the writes after it pay
+     * off the debt
+     */
+    public void testDebt() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(10000, 0);
+        throttler.setBurstMillis(100);
+        assertEquals(0, throttler.acquireBytes(1000));
+        long delay = throttler.acquireBytes(3000);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(delay) >= 250);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(delay) < 1000);
+    }
+
+    public void testStanzaRate() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(0, 20);
+        throttler.setBurstMillis(50);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            throttler.acquireStanzas(1);
+        // the first stanza is sent at once, the others 50ms apart
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 180);
+    }
+
+    /**
+     * connections sharing a parent are shaped together, and the parent counts
+     * the delays of all of them
+     */
+    public void testParent() throws Exception {
+        TokenBucketThrottler global = new TokenBucketThrottler(0, 10);
+        global.setBurstMillis(100);
+        TokenBucketThrottler first = new TokenBucketThrottler(0, 0, global);
+        TokenBucketThrottler second = new TokenBucketThrottler(0, 0, global);
+        assertSame(global, first.getParent());
+        assertEquals(0, first.acquireStanzas(1));
+        assertTrue(second.acquireStanzas(1) > 0);
+        assertEquals(0, first.getThrottledMillis());
+        assertTrue(second.getThrottledMillis() >= 80);
+        assertEquals(second.getThrottledMillis(), global.getThrottledMillis());
+        // the limit of a connection applies even when the parent allows more
+        TokenBucketThrottler strict = new TokenBucketThrottler(0, 10, new TokenBucketThrottler(0, 0));
+        strict.setBurstMillis(100);
+        strict.acquireStanzas(1);
+        assertTrue(strict.acquireStanzas(1) > 0);
+    }
+
+    public void testThrottleContext() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(10000, 0);
+        throttler.setBurstMillis(100);
+        ConnectionContext ccontext = new ConnectionContext(5222);
+        ccontext.setThrottler(throttler);
+        ccontext.incrementBytesTransferred(1000);
+        throttler.throttle(ccontext);
+        assertEquals(0, throttler.getThrottledMillis());
+        ccontext.incrementBytesTransferred(1000);
+        throttler.throttle(ccontext);
+        assertTrue(throttler.getThrottledMillis() >= 80);
+    }
+
+    public void testMeasuredRate() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(0, 0);
+        throttler.acquireBytes(5000);
+        throttler.acquireStanzas(5);
+        Thread.sleep(1100);
+        assertTrue(throttler.getByteRate() > 3000);
+        assertTrue(throttler.getByteRate() <= 5000);
+        assertTrue(throttler.getStanzaRate() >= 3);
+    }
+
+    /**
+     * lowering the rate takes away the tokens above the new burst
+     */
+    public void testSetRate() throws Exception {
+        TokenBucketThrottler throttler = new TokenBucketThrottler(100000, 0);
+        throttler.setBytesPerSecond(1000);
+        throttler.setBurstMillis(100);
+        assertEquals(1000, throttler.getBytesPerSecond());
+        assertEquals(0, throttler.acquireBytes(100));
+        assertTrue(throttler.acquireBytes(100) > 0);
+        try {
+            throttler.setBurstMillis(0);
+            fail("burst allowance must be positive");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
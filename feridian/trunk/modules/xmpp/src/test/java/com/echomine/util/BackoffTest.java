@@ -0,0 +1,57 @@
+package com.echomine.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the delays calculated by the backoff
+ */
+public class BackoffTest extends TestCase {
+    public void testDelaysDoubleUpToMax() {
+        Backoff backoff = new Backoff(100, 1000, new Random(42));
+        long[] ceilings = { 100, 200, 400, 800, 1000, 1000 };
+        for (int i = 0; i < ceilings.length; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay <= ceilings[i]);
+            assertTrue(delay >= ceilings[i] / 2);
+        }
+        assertEquals(ceilings.length, backoff.getAttempts());
+    }
+
+    public void testReset() {
+        Backoff backoff = new Backoff(100, 1000);
+        for (int i = 0; i < 5; i++)
+            backoff.nextDelay();
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelay() <= 100);
+    }
+
+    /**
+     * the delay must stay at the max no matter how many attempts there are
+     */
+    public void testManyAttempts() {
+        Backoff backoff = new Backoff(1000, Long.MAX_VALUE / 2);
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay > 0);
+            assertTrue(delay <= Long.MAX_VALUE / 2);
+        }
+    }
+
+    public void testInvalidDelays() {
+        try {
+            new Backoff(0, 1000);
+            fail("Initial delay must be positive");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            new Backoff(1000, 100);
+            fail("Max delay cannot be less than the initial delay");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
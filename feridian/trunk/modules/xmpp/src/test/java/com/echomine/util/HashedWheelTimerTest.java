@@ -0,0 +1,72 @@
+package com.echomine.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the expiry and cancellation of timeouts
+ */
+public class HashedWheelTimerTest extends TestCase {
+    HashedWheelTimer timer;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        timer = new HashedWheelTimer(null, 10, TimeUnit.MILLISECONDS, 8);
+    }
+
+    protected void tearDown() throws Exception {
+        timer.stop();
+        super.tearDown();
+    }
+
+    public void testTimeoutExpires() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+            public void run() {
+                expired.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    /**
+     * delays longer than one turn of the wheel must wait for the right round
+     */
+    public void testTimeoutLongerThanWheel() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        timer.newTimeout(new Runnable() {
+            public void run() {
+                expired.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 250);
+    }
+
+    public void testCancelledTimeoutDoesNotRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < 1000; i++)
+            assertTrue(timer.newTimeout(task, 50, TimeUnit.MILLISECONDS).cancel());
+        final CountDownLatch last = new CountDownLatch(1);
+        timer.newTimeout(new Runnable() {
+            public void run() {
+                last.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        assertTrue(last.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+}
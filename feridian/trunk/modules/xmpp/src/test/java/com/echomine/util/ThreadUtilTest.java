@@ -0,0 +1,72 @@
+package com.echomine.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the thread factory support
+ */
+public class ThreadUtilTest extends TestCase {
+    protected void tearDown() throws Exception {
+        ThreadUtil.setDefaultThreadFactory(null);
+        super.tearDown();
+    }
+
+    public void testStartThreadWithName() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Thread thread = ThreadUtil.startThread(null, new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, "Test Thread");
+        assertEquals("Test Thread", thread.getName());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testDefaultFactoryIsUsed() throws Exception {
+        CountingThreadFactory factory = new CountingThreadFactory();
+        ThreadUtil.setDefaultThreadFactory(factory);
+        assertSame(factory, ThreadUtil.getDefaultThreadFactory());
+        ThreadUtil.startThread(null, new Runnable() {
+            public void run() {
+            }
+        }, null).join();
+        assertEquals(1, factory.count.get());
+        // null resets back to platform threads
+        ThreadUtil.setDefaultThreadFactory(null);
+        assertSame(ThreadUtil.getPlatformThreadFactory(), ThreadUtil.getDefaultThreadFactory());
+    }
+
+    public void testVirtualThreadFactory() throws Exception {
+        if (!ThreadUtil.isVirtualThreadSupported()) {
+            try {
+                ThreadUtil.getVirtualThreadFactory();
+                fail("Virtual threads should not be supported");
+            } catch (UnsupportedOperationException ex) {
+            }
+            return;
+        }
+        Thread thread = ThreadUtil.startThread(ThreadUtil.getVirtualThreadFactory(), new Runnable() {
+            public void run() {
+            }
+        }, "Virtual");
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        assertEquals(Boolean.TRUE, isVirtual.invoke(thread));
+        assertEquals("Virtual", thread.getName());
+        thread.join();
+    }
+
+    static class CountingThreadFactory implements ThreadFactory {
+        AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            count.incrementAndGet();
+            return new Thread(r);
+        }
+    }
+}
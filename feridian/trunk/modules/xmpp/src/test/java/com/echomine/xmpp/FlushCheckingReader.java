@@ -0,0 +1,59 @@
+package com.echomine.xmpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Plays the incoming side of a request/reply exchange, and fails if a reply is
+ * read before its request was flushed. The incoming data is split into
+ * segments: the first one is read right away, and each one after it is only
+ * handed out once the output contains as many requests as the segment's
+ * index. Since the writer only writes to its output when it is flushed, a
+ * request that is left in the writer's buffer makes the read fail instead of
+ * blocking forever, as it would against a real server.
+ */
+public class FlushCheckingReader extends Reader {
+    private final String[] segments;
+    private final ByteArrayOutputStream out;
+    private final String request;
+    private int segment;
+    private int pos;
+
+    /**
+     * @param segments the incoming data, split where a reply needs a request
+     * @param out the output the requests are flushed to
+     * @param request the start of a request in the output
+     */
+    public FlushCheckingReader(String[] segments, ByteArrayOutputStream out, String request) {
+        this.segments = segments;
+        this.out = out;
+        this.request = request;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        while (segment < segments.length && pos == segments[segment].length()) {
+            segment++;
+            pos = 0;
+        }
+        if (segment == segments.length)
+            return -1;
+        if (pos == 0 && countRequests() < segment)
+            throw new IOException("Reply " + segment + " was read before its request was flushed");
+        int count = Math.min(len, segments[segment].length() - pos);
+        segments[segment].getChars(pos, pos + count, cbuf, off);
+        pos += count;
+        return count;
+    }
+
+    public void close() {
+    }
+
+    private int countRequests() throws IOException {
+        String flushed = out.toString("UTF-8");
+        int count = 0;
+        for (int idx = flushed.indexOf(request); idx != -1; idx = flushed.indexOf(request, idx + 1))
+            count++;
+        return count;
+    }
+}
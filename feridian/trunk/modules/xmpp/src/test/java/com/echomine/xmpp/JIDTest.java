@@ -38,4 +38,74 @@ public class JIDTest extends XMPPTestCase {
         } catch (JIDFormatException ex) {
         }
     }
+
+    public void testJIDPartsParsing() throws Exception {
+        JID jid = JID.parseJID("romeo@example.net/orchard");
+        assertEquals("romeo", jid.getNode());
+        assertEquals("example.net", jid.getHost());
+        assertEquals("orchard", jid.getResource());
+        // the resource starts at the first slash and may contain anything
+        jid = JID.parseJID("example.net/a@b/c");
+        assertNull(jid.getNode());
+        assertEquals("example.net", jid.getHost());
+        assertEquals("a@b/c", jid.getResource());
+        jid = JID.parseJID("romeo@example.net/a@b");
+        assertEquals("romeo", jid.getNode());
+        assertEquals("a@b", jid.getResource());
+        String[] invalid = new String[] { "", "@example.net", "romeo@", "romeo@/res", "/res", "a@b@c" };
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                JID.parseJID(invalid[i]);
+                fail("JID '" + invalid[i] + "' should not have passed");
+            } catch (JIDFormatException ex) {
+            }
+        }
+    }
+
+    public void testParseFromCharBuffer() throws Exception {
+        char[] buf = "from='juliet@example.com/balcony'".toCharArray();
+        JID jid = JID.parseJID(buf, 6, 26);
+        assertEquals("juliet", jid.getNode());
+        assertEquals("example.com", jid.getHost());
+        assertEquals("balcony", jid.getResource());
+        assertEquals("juliet@example.com/balcony", jid.toString());
+        assertSame(jid, JID.parseJID(buf, 6, 26));
+        assertSame(jid, JID.parseJID("juliet@example.com/balcony"));
+    }
+
+    public void testParsedJIDsAreCached() throws Exception {
+        JID jid = JID.parseJID("romeo@example.net/orchard");
+        assertSame(jid, JID.parseJID("romeo@example.net/orchard"));
+        assertEquals(jid, new JID("romeo", "example.net", "orchard"));
+        assertEquals(jid.hashCode(), new JID("romeo", "example.net", "orchard").hashCode());
+        JID.clearCache();
+        JID other = JID.parseJID("romeo@example.net/orchard");
+        assertNotSame(jid, other);
+        assertEquals(jid, other);
+        int size = JID.getCacheSize();
+        try {
+            JID.setCacheSize(0);
+            assertNotSame(JID.parseJID("romeo@example.net"), JID.parseJID("romeo@example.net"));
+            JID.setCacheSize(1000);
+            assertEquals(1024, JID.getCacheSize());
+        } finally {
+            JID.setCacheSize(size);
+        }
+    }
+
+    public void testEqualsString() throws Exception {
+        JID jid = new JID("romeo", "example.net", null);
+        assertTrue(jid.equals("romeo@example.net"));
+        assertEquals("romeo@example.net".hashCode(), jid.hashCode());
+    }
+
+    public void testBareJID() throws Exception {
+        JID jid = JID.parseJID("romeo@example.net/orchard");
+        JID bare = jid.getBareJID();
+        assertEquals("romeo@example.net", bare.toString());
+        assertNull(bare.getResource());
+        assertSame(bare, jid.getBareJID());
+        assertSame(bare, bare.getBareJID());
+        assertEquals(bare, JID.parseJID("romeo@example.net"));
+    }
 }
@@ -0,0 +1,96 @@
+package com.echomine.xmpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the wire tap logs the data in order in the background, and drops
+ * data instead of blocking when its buffer is full
+ */
+public class XMPPWireTapTest extends TestCase {
+    RecordingWireTap tap;
+
+    protected void tearDown() throws Exception {
+        if (tap != null)
+            tap.stop();
+    }
+
+    public void testLogsInOrder() throws Exception {
+        tap = new RecordingWireTap(1024);
+        tap.start();
+        tap.incoming("<message/>".toCharArray(), 0, 10, false);
+        tap.incoming("xx<junk/>xx".toCharArray(), 2, 7, true);
+        byte[] out = "<presence/>".getBytes("UTF-8");
+        tap.outgoing(out, 0, out.length);
+        assertTrue(tap.drain(5000));
+        assertEquals(3, tap.entries.size());
+        assertEquals("in:<message/>", tap.entries.get(0));
+        assertEquals("ignored:<junk/>", tap.entries.get(1));
+        assertEquals("out:<presence/>", tap.entries.get(2));
+        assertEquals(3, tap.getLoggedCount());
+        assertEquals(0, tap.getDroppedCount());
+    }
+
+    public void testOutgoingIsDecodedAsUTF8() throws Exception {
+        tap = new RecordingWireTap(1024);
+        tap.start();
+        String body = "<body>\u00e9t\u00e9 \u65e5\u672c</body>";
+        byte[] out = body.getBytes("UTF-8");
+        tap.outgoing(out, 0, out.length);
+        assertTrue(tap.drain(5000));
+        assertEquals("out:" + body, tap.entries.get(0));
+    }
+
+    /**
+     * The entries must come out intact when they wrap around the end of the
+     * ring buffer
+     */
+    public void testWrapAround() throws Exception {
+        tap = new RecordingWireTap(32);
+        tap.start();
+        for (int i = 0; i < 50; i++) {
+            String data = "<iq id='" + i + "'/>";
+            tap.incoming(data.toCharArray(), 0, data.length(), false);
+            assertTrue(tap.drain(5000));
+        }
+        assertEquals(50, tap.entries.size());
+        for (int i = 0; i < 50; i++)
+            assertEquals("in:<iq id='" + i + "'/>", tap.entries.get(i));
+    }
+
+    /**
+     * When the log cannot keep up, the data must be dropped without blocking
+     */
+    public void testDropsWhenFull() throws Exception {
+        tap = new RecordingWireTap(64);
+        char[] data = "<presence from='romeo@example.net'/>".toCharArray();
+        // not started, so nothing is taken out of the buffer
+        tap.incoming(data, 0, data.length, false);
+        tap.incoming(data, 0, data.length, false);
+        tap.incoming(data, 0, data.length, false);
+        assertEquals(2, tap.getDroppedCount());
+        tap.start();
+        assertTrue(tap.drain(5000));
+        assertEquals(1, tap.entries.size());
+        // an entry larger than the buffer can never fit
+        char[] large = new char[100];
+        tap.incoming(large, 0, large.length, false);
+        assertEquals(3, tap.getDroppedCount());
+    }
+
+    static class RecordingWireTap extends XMPPWireTap {
+        List<String> entries = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingWireTap(int capacity) {
+            super(capacity);
+        }
+
+        protected void log(int type, String data) {
+            String prefix = (type == INCOMING) ? "in:" : (type == IGNORED) ? "ignored:" : "out:";
+            entries.add(prefix + data);
+        }
+    }
+}
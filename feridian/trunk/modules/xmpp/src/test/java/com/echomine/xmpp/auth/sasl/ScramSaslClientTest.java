@@ -0,0 +1,130 @@
+package com.echomine.xmpp.auth.sasl;
+
+import junit.framework.TestCase;
+
+import com.echomine.util.Base64;
+import com.echomine.xmpp.XMPPException;
+
+/**
+ * Tests the SCRAM exchange against the examples of RFC 5802 (SCRAM-SHA-1) and
+ * RFC 7677 (SCRAM-SHA-256)
+ */
+public class ScramSaslClientTest extends TestCase {
+    private static final String SHA1_CNONCE = "fyko+d2lbbFgONRv9qkxdawL";
+    private static final String SHA1_SERVER_FIRST = "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096";
+    private static final String SHA1_CLIENT_FINAL = "c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=";
+    private static final String SHA1_SERVER_FINAL = "v=rmF9pqV8S7suAoZWja4dJRkFsKQ=";
+    ScramKeyCache cache;
+
+    protected void setUp() throws Exception {
+        cache = new ScramKeyCache(4);
+    }
+
+    public void testSha1() throws Exception {
+        ScramSaslClient client = new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1, cache, SHA1_CNONCE);
+        assertEquals("n,,n=user,r=" + SHA1_CNONCE, Base64.decodeToString(client.getInitialResponse("user")));
+        String response = client.getFinalResponse(Base64.encodeString(SHA1_SERVER_FIRST), "user@example.com", "pencil".toCharArray());
+        assertEquals(SHA1_CLIENT_FINAL, Base64.decodeToString(response));
+        assertTrue(client.verifyServerFinal(Base64.encodeString(SHA1_SERVER_FINAL)));
+    }
+
+    public void testSha256() throws Exception {
+        String cnonce = "rOprNGfwEbeRWgbNEkqO";
+        String serverFirst = "r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096";
+        ScramSaslClient client = new ScramSaslClient(ScramSaslClient.Mechanism.SHA_256, cache, cnonce);
+        assertEquals("n,,n=user,r=" + cnonce, Base64.decodeToString(client.getInitialResponse("user")));
+        String response = client.getFinalResponse(Base64.encodeString(serverFirst), "user@example.com", "pencil".toCharArray());
+        assertEquals("c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ=",
+                Base64.decodeToString(response));
+        assertTrue(client.verifyServerFinal(Base64.encodeString("v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4=")));
+    }
+
+    /**
+     * the keys are derived once per account, salt and iteration count
+     */
+    public void testKeysCached() throws Exception {
+        for (int i = 0; i < 3; i++)
+            assertEquals(SHA1_CLIENT_FINAL, runSha1("user@example.com", "pencil"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        runSha1("other@example.com", "pencil");
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * keys derived from another password are not used
+     */
+    public void testChangedPasswordDerivesAgain() throws Exception {
+        runSha1("user@example.com", "pencil");
+        assertFalse(SHA1_CLIENT_FINAL.equals(runSha1("user@example.com", "crayon")));
+        assertEquals(SHA1_CLIENT_FINAL, runSha1("user@example.com", "pencil"));
+        assertEquals(3, cache.getMisses());
+    }
+
+    /**
+     * the password is encoded in UTF-8, so the keys cached for it are the
+     * ones derived from its UTF-8 bytes
+     */
+    public void testPasswordEncodedInUTF8() throws Exception {
+        String password = "p\u00e4ss\u4e2d\ud834\udd1e";
+        runSha1("user@example.com", password);
+        cache.getKeys(ScramSaslClient.Mechanism.SHA_1, "user@example.com", password.getBytes("UTF-8"), Base64.decode("QSXCR+Q6sek8bf92"), 4096);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testNameEscaped() throws Exception {
+        ScramSaslClient client = new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1, cache, SHA1_CNONCE);
+        assertEquals("n,,n=a=2Cb=3Dc,r=" + SHA1_CNONCE, Base64.decodeToString(client.getInitialResponse("a,b=c")));
+    }
+
+    public void testNonceNotExtended() throws Exception {
+        ScramSaslClient client = new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1, cache, SHA1_CNONCE);
+        client.getInitialResponse("user");
+        try {
+            client.getFinalResponse(Base64.encodeString("r=abcdef,s=QSXCR+Q6sek8bf92,i=4096"), "user@example.com", "pencil".toCharArray());
+            fail("nonce of another client must not be accepted");
+        } catch (XMPPException ex) {
+            // expected
+        }
+    }
+
+    public void testEmptyPasswordRejected() throws Exception {
+        try {
+            runSha1("user@example.com", "");
+            fail("empty password must not be accepted");
+        } catch (XMPPException ex) {
+            // expected
+        }
+    }
+
+    public void testWrongServerSignature() throws Exception {
+        ScramSaslClient client = new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1, cache, SHA1_CNONCE);
+        client.getInitialResponse("user");
+        client.getFinalResponse(Base64.encodeString(SHA1_SERVER_FIRST), "user@example.com", "pencil".toCharArray());
+        assertFalse(client.verifyServerFinal(Base64.encodeString("v=AAAAAAAAAAAAAAAAAAAAAAAAAAA=")));
+        try {
+            client.verifyServerFinal(Base64.encodeString("e=invalid-proof"));
+            fail("error must be thrown");
+        } catch (XMPPException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * the nonces generated for the shared random are not repeated
+     */
+    public void testGeneratedNonce() throws Exception {
+        String first = Base64.decodeToString(new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1).getInitialResponse("user"));
+        String second = Base64.decodeToString(new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1).getInitialResponse("user"));
+        assertTrue(first.startsWith("n,,n=user,r="));
+        assertFalse(first.equals(second));
+    }
+
+    private String runSha1(String account, String password) throws XMPPException {
+        ScramSaslClient client = new ScramSaslClient(ScramSaslClient.Mechanism.SHA_1, cache, SHA1_CNONCE);
+        client.getInitialResponse("user");
+        return Base64.decodeToString(client.getFinalResponse(Base64.encodeString(SHA1_SERVER_FIRST), account, password.toCharArray()));
+    }
+}
@@ -0,0 +1,126 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.echomine.net.ConnectionException;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+
+/**
+ * Tests connecting many accounts through the bulk connector
+ */
+public class BulkConnectorTest extends TestCase {
+    TestableBulkConnector connector;
+
+    protected void setUp() throws Exception {
+        connector = new TestableBulkConnector(4);
+    }
+
+    protected void tearDown() throws Exception {
+        connector.shutdown();
+    }
+
+    public void testConnectAll() throws Exception {
+        List<Future<BulkConnector.Result>> results = connector.connectAll(createAccounts(20));
+        assertEquals(20, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            BulkConnector.Result result = results.get(i).get(5, TimeUnit.SECONDS);
+            assertTrue(result.isSuccess());
+            assertEquals("user" + i, result.getAccount().getUsername());
+            assertNotNull(result.getConnection());
+            assertEquals(1, result.getTimings().getCount(ConnectTimings.Phase.TCP));
+            assertEquals(1, result.getTimings().getCount(ConnectTimings.Phase.AUTH));
+        }
+        assertEquals(20, connector.getConnectedCount());
+        assertEquals(0, connector.getFailedCount());
+        assertEquals(20, connector.getTotalTimings().getCount(ConnectTimings.Phase.TCP));
+        assertTrue(connector.maxConcurrent.get() <= 4);
+    }
+
+    public void testFailedLogin() throws Exception {
+        BulkConnector.Account account = new BulkConnector.Account("localhost", 5222, null, "fail", "pass".toCharArray(), null);
+        BulkConnector.Result result = connector.connect(account).get(5, TimeUnit.SECONDS);
+        assertFalse(result.isSuccess());
+        assertNull(result.getConnection());
+        assertTrue(result.getFailure() instanceof XMPPException);
+        assertEquals("localhost", result.getAccount().getDomain());
+        assertEquals(1, connector.getFailedCount());
+        assertEquals(1, connector.disconnects.get());
+    }
+
+    public void testConnectRate() throws Exception {
+        connector.setConnectRate(50);
+        assertEquals(50, connector.getConnectRate(), 0.01);
+        long start = System.currentTimeMillis();
+        List<Future<BulkConnector.Result>> results = connector.connectAll(createAccounts(10));
+        for (Future<BulkConnector.Result> result : results)
+            assertTrue(result.get(5, TimeUnit.SECONDS).isSuccess());
+        // 10 connections at 50 per second are spread over at least 180ms
+        assertTrue(System.currentTimeMillis() - start >= 170);
+    }
+
+    private List<BulkConnector.Account> createAccounts(int count) {
+        List<BulkConnector.Account> accounts = new ArrayList<BulkConnector.Account>();
+        for (int i = 0; i < count; i++)
+            accounts.add(new BulkConnector.Account("localhost", 5222, "example.com", "user" + i, "pass".toCharArray(), "res"));
+        return accounts;
+    }
+
+    class TestableBulkConnector extends BulkConnector {
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        AtomicInteger disconnects = new AtomicInteger();
+
+        TestableBulkConnector(int workers) {
+            super(workers);
+        }
+
+        protected IXMPPConnection createConnection() throws XMPPException {
+            return new StubConnection(this);
+        }
+    }
+
+    /**
+     * A connection that only pretends to connect and log in
+     */
+    static class StubConnection extends XMPPConnectionImpl {
+        TestableBulkConnector connector;
+
+        StubConnection(TestableBulkConnector connector) {
+            this.connector = connector;
+        }
+
+        public XMPPSessionContext connect(String host, int port, String domain, boolean wait) throws ConnectionException {
+            int count = connector.concurrent.incrementAndGet();
+            int max;
+            while (count > (max = connector.maxConcurrent.get()))
+                if (connector.maxConcurrent.compareAndSet(max, count))
+                    break;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                throw new ConnectionException(ex);
+            }
+            getConnectTimings().record(ConnectTimings.Phase.TCP, 10000000);
+            return null;
+        }
+
+        public void login(String username, char[] password, String resource) throws XMPPException {
+            connector.concurrent.decrementAndGet();
+            if ("fail".equals(username))
+                throw new XMPPException("not-authorized");
+            getConnectTimings().record(ConnectTimings.Phase.AUTH, 1000000);
+        }
+
+        public void disconnect() {
+            connector.disconnects.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.echomine.xmpp.impl;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.echomine.net.ConnectionContext;
+import com.echomine.net.MockConnectionContext;
+import com.echomine.net.MockSocket;
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPTestCase;
+import com.echomine.xmpp.server.LoopbackXMPPServer;
+
+/**
+ * Tests the whitespace keepalives and pings sent on idle connections
+ */
+public class KeepAliveTest extends XMPPTestCase {
+    XMPPConnectionHandler handler;
+    KeepAlive keepAlive;
+    MockSocket socket;
+    ConnectionContext connectionCtx;
+    HashedWheelTimer timer;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        timer = new HashedWheelTimer(null, 10, TimeUnit.MILLISECONDS, 8);
+        handler = new XMPPConnectionHandler();
+        handler.start();
+        keepAlive = handler.getKeepAlive();
+        keepAlive.setTimer(timer);
+        socket = new MockSocket(IXMPPConnection.DEFAULT_XMPP_PORT);
+        connectionCtx = new MockConnectionContext("example.com", "127.0.0.1", IXMPPConnection.DEFAULT_XMPP_PORT);
+        String reply = "<stream:stream id='c2s_123' from='example.com' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+                + "<stream:features/>";
+        socket.setInputStream(new ByteArrayInputStream(reply.getBytes()));
+        socket.setOutputStream(os);
+        handler.handshake(socket, connectionCtx);
+        // login is over, the queue sends right away
+        handler.pause();
+        handler.resume();
+    }
+
+    protected void tearDown() throws Exception {
+        handler.shutdown();
+        timer.stop();
+        super.tearDown();
+    }
+
+    public void testOffByDefault() throws Exception {
+        int size = os.size();
+        Thread.sleep(200);
+        assertEquals(size, os.size());
+    }
+
+    public void testWhitespaceWhenIdle() throws Exception {
+        int size = os.size();
+        keepAlive.setWhitespaceInterval(50);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return os.toString().endsWith("  ");
+            }
+        }));
+        assertEquals(" ", os.toString().substring(size, size + 1));
+        assertTrue(handler.isConnected());
+    }
+
+    /**
+     * the keepalives are sent from the executor, not from the timer thread
+     */
+    public void testSentFromExecutor() throws Exception {
+        final AtomicInteger tasks = new AtomicInteger();
+        keepAlive.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                new Thread(command).start();
+            }
+        });
+        keepAlive.setWhitespaceInterval(50);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return os.toString().endsWith(" ");
+            }
+        }));
+        assertTrue(tasks.get() > 0);
+    }
+
+    public void testUnansweredPingShutsDown() throws Exception {
+        handler.getSessionContext().setResource("balcony");
+        keepAlive.setPingInterval(50);
+        keepAlive.setPingTimeout(100);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return !handler.isConnected();
+            }
+        }));
+        assertTrue(os.toString().indexOf("urn:xmpp:ping") != -1);
+    }
+
+    /**
+     * pings are only sent once the session has a bound resource
+     */
+    public void testNoPingBeforeBinding() throws Exception {
+        int size = os.size();
+        keepAlive.setPingInterval(50);
+        Thread.sleep(200);
+        assertEquals(size, os.size());
+        assertTrue(handler.isConnected());
+    }
+
+    public void testAnsweredPingsKeepConnection() throws Exception {
+        final LoopbackXMPPServer server = new LoopbackXMPPServer();
+        server.start();
+        XMPPConnectionImpl conn = new XMPPConnectionImpl();
+        try {
+            conn.connect("127.0.0.1", server.getPort(), "localhost", true);
+            conn.login("juliet", "secret".toCharArray(), "balcony");
+            final long received = server.getStanzasReceived();
+            conn.getKeepAlive().setPingInterval(50);
+            assertTrue(waitFor(new Condition() {
+                public boolean isMet() {
+                    return server.getStanzasReceived() >= received + 3;
+                }
+            }));
+            assertTrue(conn.isConnected());
+        } finally {
+            conn.disconnect();
+            server.stop();
+        }
+    }
+
+    private boolean waitFor(Condition condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.isMet()) {
+            if (System.currentTimeMillis() > end)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    interface Condition {
+        boolean isMet();
+    }
+}
@@ -0,0 +1,170 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import com.echomine.net.ConnectionEvent;
+import com.echomine.net.MockConnectionListener;
+import com.echomine.net.NIOConnectionEngine;
+import com.echomine.net.NIOSocketConnector;
+import com.echomine.util.IOUtil;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Tests the NIO connection handling against a scripted server running on a
+ * local socket.
+ */
+public class NIOXMPPConnectionHandlerTest extends TestCase {
+    static final String SERVER_HEADER = "<?xml version='1.0'?><stream:stream id='c2s_123' from='localhost' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+            + "<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/></stream:features>";
+
+    NIOConnectionEngine engine;
+    ServerSocket server;
+    Socket serverSide;
+    NIOXMPPConnectionHandler handler;
+    XMPPConnectionImpl conn;
+    MockConnectionListener l;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        engine = new NIOConnectionEngine(2);
+        engine.start();
+        server = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+        handler = new NIOXMPPConnectionHandler();
+        conn = new XMPPConnectionImpl(new NIOSocketConnector(engine), handler);
+        l = new MockConnectionListener();
+        conn.addConnectionListener(l);
+    }
+
+    protected void tearDown() throws Exception {
+        conn.disconnect();
+        IOUtil.closeSocket(serverSide);
+        IOUtil.closeSocket(server);
+        engine.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Accepts the connection in the background and answers the stream
+     * handshake.
+     */
+    private Thread startServer() {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    serverSide = server.accept();
+                    serverSide.setSoTimeout(5000);
+                    String header = readUntil(serverSide.getInputStream(), "<stream:stream");
+                    if (header.indexOf('>', header.indexOf("<stream:stream")) == -1)
+                        readUntil(serverSide.getInputStream(), ">");
+                    write(SERVER_HEADER);
+                } catch (IOException ex) {
+                    // test will fail on the client side
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private void write(String data) throws IOException {
+        OutputStream os = serverSide.getOutputStream();
+        os.write(data.getBytes("UTF-8"));
+        os.flush();
+    }
+
+    private static String readUntil(InputStream is, String text) throws IOException {
+        StringBuffer buf = new StringBuffer();
+        int ch;
+        while (buf.indexOf(text) == -1 && (ch = is.read()) != -1)
+            buf.append((char) ch);
+        return buf.toString();
+    }
+
+    private void connect() throws Exception {
+        Thread thread = startServer();
+        conn.connect("127.0.0.1", server.getLocalPort(), true);
+        thread.join(5000);
+        assertTrue(conn.isConnected());
+    }
+
+    public void testReceiveStanzaSentInPieces() throws Exception {
+        PacketReceiver rec = new PacketReceiver();
+        conn.addPacketListener(rec);
+        connect();
+        write("<message from='juliet@example.com' to='romeo@example.net'><bo");
+        Thread.sleep(100);
+        write("dy>Wherefore art thou?</bo");
+        Thread.sleep(100);
+        assertNull(rec.packet);
+        write("dy></message>");
+        IStanzaPacket packet = rec.waitForPacket();
+        assertTrue(packet instanceof MessagePacket);
+        assertEquals("Wherefore art thou?", ((MessagePacket) packet).getBody());
+    }
+
+    /**
+     * Packets are held until the handler resumes (ie. after login), and are
+     * then sent out in order without a queue thread.
+     */
+    public void testSendPacketAfterResume() throws Exception {
+        connect();
+        PresencePacket packet = new PresencePacket();
+        packet.setStatus("first");
+        conn.sendPacket(packet, false);
+        packet = new PresencePacket();
+        packet.setStatus("second");
+        conn.sendPacket(packet, false);
+        assertEquals(0, serverSide.getInputStream().available());
+        handler.processStream(new IXMPPStream() {
+            public void process(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) {
+            }
+        }, false);
+        String data = readUntil(serverSide.getInputStream(), "second</status></presence>");
+        assertTrue(data.indexOf("<status>first</status>") != -1);
+        assertTrue(data.indexOf("<status>first</status>") < data.indexOf("<status>second</status>"));
+        // once resumed, packets go out right away
+        packet = new PresencePacket();
+        packet.setStatus("third");
+        conn.sendPacket(packet, false);
+        data = readUntil(serverSide.getInputStream(), "</presence>");
+        assertTrue(data.indexOf("<status>third</status>") != -1);
+    }
+
+    public void testRemoteClose() throws Exception {
+        connect();
+        write("</stream:stream>");
+        serverSide.close();
+        l.waitForConnectionClose();
+        assertEquals(ConnectionEvent.CONNECTION_CLOSED, l.getCloseEvent().getStatus());
+        assertFalse(conn.isConnected());
+    }
+
+    class PacketReceiver implements IPacketListener {
+        IStanzaPacket packet;
+
+        public synchronized void packetReceived(PacketEvent event) {
+            packet = event.getPacket();
+            notifyAll();
+        }
+
+        public synchronized IStanzaPacket waitForPacket() throws InterruptedException {
+            if (packet == null)
+                wait(5000);
+            return packet;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IPacketListenerRegistration;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PacketFilter;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Tests the filtering and dispatching of packets to listeners
+ */
+public class PacketListenerManagerTest extends TestCase {
+    PacketListenerManager manager;
+
+    ExecutorService executor;
+
+    protected void setUp() throws Exception {
+        manager = new PacketListenerManager(new XMPPConnectionImpl());
+        executor = Executors.newFixedThreadPool(4);
+        manager.setExecutor(executor);
+    }
+
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    public void testInlineListenerWithoutFilter() throws Exception {
+        RecordingListener listener = new RecordingListener(2);
+        manager.addPacketListener(listener);
+        manager.firePacketReceived(new MessagePacket());
+        manager.firePacketReceived(new PresencePacket());
+        assertEquals(2, listener.packets.size());
+        assertEquals(0, listener.latch.getCount());
+    }
+
+    public void testFilterByClassAndType() throws Exception {
+        RecordingListener chatListener = new RecordingListener(1);
+        RecordingListener iqListener = new RecordingListener(1);
+        manager.addPacketListener(chatListener, new PacketFilter(MessagePacket.class, MessagePacket.TYPE_CHAT), DispatchPolicy.INLINE);
+        manager.addPacketListener(iqListener, new PacketFilter(IQPacket.class), DispatchPolicy.INLINE);
+        MessagePacket normal = new MessagePacket();
+        MessagePacket chat = new MessagePacket();
+        chat.setType(MessagePacket.TYPE_CHAT);
+        manager.firePacketReceived(normal);
+        manager.firePacketReceived(chat);
+        manager.firePacketReceived(new PresencePacket());
+        assertEquals(1, chatListener.packets.size());
+        assertSame(chat, chatListener.packets.get(0));
+        assertEquals(0, iqListener.packets.size());
+        manager.firePacketReceived(new IQPacket());
+        assertEquals(1, iqListener.packets.size());
+    }
+
+    public void testFilterBySender() throws Exception {
+        RecordingListener bareListener = new RecordingListener(2);
+        RecordingListener fullListener = new RecordingListener(1);
+        PacketFilter bareFilter = new PacketFilter();
+        bareFilter.setFrom(new JID("romeo", "example.net", null));
+        PacketFilter fullFilter = new PacketFilter();
+        fullFilter.setFrom(new JID("romeo", "example.net", "orchard"));
+        manager.addPacketListener(bareListener, bareFilter, DispatchPolicy.INLINE);
+        manager.addPacketListener(fullListener, fullFilter, DispatchPolicy.INLINE);
+        MessagePacket orchard = new MessagePacket();
+        orchard.setFrom(new JID("romeo", "example.net", "orchard"));
+        MessagePacket balcony = new MessagePacket();
+        balcony.setFrom(new JID("romeo", "example.net", "balcony"));
+        MessagePacket other = new MessagePacket();
+        other.setFrom(new JID("juliet", "example.com", "balcony"));
+        manager.firePacketReceived(orchard);
+        manager.firePacketReceived(balcony);
+        manager.firePacketReceived(other);
+        manager.firePacketReceived(new MessagePacket());
+        assertEquals(2, bareListener.packets.size());
+        assertEquals(1, fullListener.packets.size());
+        assertSame(orchard, fullListener.packets.get(0));
+    }
+
+    public void testSharedPoolDispatch() throws Exception {
+        RecordingListener listener = new RecordingListener(10);
+        IPacketListenerRegistration reg = manager.addPacketListener(listener, null, DispatchPolicy.SHARED_POOL);
+        for (int i = 0; i < 10; i++)
+            manager.firePacketReceived(new MessagePacket());
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        waitForDispatch(reg, 10);
+        assertEquals(0, reg.getQueueDepth());
+        assertTrue(reg.getMaxLatency() >= reg.getAverageLatency());
+    }
+
+    public void testOrderedDispatchKeepsOrder() throws Exception {
+        int count = 500;
+        RecordingListener listener = new RecordingListener(count);
+        IPacketListenerRegistration reg = manager.addPacketListener(listener, null, DispatchPolicy.ORDERED);
+        List<MessagePacket> sent = new ArrayList<MessagePacket>();
+        for (int i = 0; i < count; i++) {
+            MessagePacket msg = new MessagePacket();
+            sent.add(msg);
+            manager.firePacketReceived(msg);
+        }
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        waitForDispatch(reg, count);
+        assertEquals(sent, listener.packets);
+        assertEquals(0, manager.getQueueDepth());
+    }
+
+    public void testQueueDepthOfBlockedListener() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        IPacketListenerRegistration reg = manager.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    // exit
+                }
+            }
+        }, null, DispatchPolicy.ORDERED);
+        for (int i = 0; i < 5; i++)
+            manager.firePacketReceived(new MessagePacket());
+        // the first packet may have been taken off the queue already
+        assertTrue(reg.getQueueDepth() >= 4);
+        release.countDown();
+        waitForDispatch(reg, 5);
+        assertEquals(0, reg.getQueueDepth());
+    }
+
+    public void testListenerExceptionDoesNotStopOthers() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        manager.addPacketListener(listener);
+        IPacketListenerRegistration reg = manager.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                throw new IllegalStateException("listener failure");
+            }
+        }, null, DispatchPolicy.INLINE);
+        manager.firePacketReceived(new MessagePacket());
+        assertEquals(1, listener.packets.size());
+        assertEquals(1, reg.getDispatchedCount());
+    }
+
+    public void testRemoveListener() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        manager.addPacketListener(listener, new PacketFilter(MessagePacket.class), DispatchPolicy.INLINE);
+        assertEquals(1, manager.getRegistrations().length);
+        manager.removePacketListener(listener);
+        assertEquals(0, manager.getRegistrations().length);
+        manager.firePacketReceived(new MessagePacket());
+        assertEquals(0, listener.packets.size());
+    }
+
+    private void waitForDispatch(IPacketListenerRegistration reg, long count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (reg.getDispatchedCount() < count && System.currentTimeMillis() < timeout)
+            Thread.sleep(10);
+        assertEquals(count, reg.getDispatchedCount());
+    }
+
+    static class RecordingListener implements IPacketListener {
+        List<Object> packets = Collections.synchronizedList(new ArrayList<Object>());
+
+        CountDownLatch latch;
+
+        RecordingListener(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        public void packetReceived(PacketEvent event) {
+            packets.add(event.getPacket());
+            latch.countDown();
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package com.echomine.xmpp.impl;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import junit.framework.TestCase;
 
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.IPacketFuture;
+import com.echomine.xmpp.IReplyListener;
 import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
 import com.echomine.xmpp.MockXMPPConnectionHandler;
 import com.echomine.xmpp.SendPacketFailedException;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
 import com.echomine.xmpp.packet.PresencePacket;
 import com.echomine.xmpp.packet.RosterIQPacket;
 
@@ -49,7 +59,8 @@ public class PacketQueueTest extends TestCase {
         QueuePacketRunnable runner = new QueuePacketRunnable();
         Thread thread = new Thread(runner);
         thread.start();
-        while (queue.getReplyTable().size() == 0)
+        // wait until the packet is both waiting for a reply and sent out
+        while (queue.getReplyTable().size() == 0 || queue.getQueue().size() > 0)
             Thread.yield();
         IQPacket packet = new IQPacket();
         packet.setId("id_001");
@@ -68,7 +79,8 @@ public class PacketQueueTest extends TestCase {
         QueuePacketRunnable runner = new QueuePacketRunnable();
         Thread thread = new Thread(runner);
         thread.start();
-        while (queue.getReplyTable().size() == 0)
+        // wait until the packet is both waiting for a reply and sent out
+        while (queue.getReplyTable().size() == 0 || queue.getQueue().size() > 0)
             Thread.yield();
         RosterIQPacket packet = new RosterIQPacket();
         packet.setId("id_001");
@@ -81,6 +93,68 @@ public class PacketQueueTest extends TestCase {
         assertEquals(IQPacket.TYPE_RESULT, runner.replyPacket.getType());
     }
 
+    public void testQueuePacketAsync() throws Exception {
+        queue.start();
+        RosterIQPacket packet = new RosterIQPacket();
+        packet.setId("id_002");
+        packet.setType(IQPacket.TYPE_GET);
+        IPacketFuture future = queue.queuePacketAsync(packet);
+        ReplyRecorder recorder = new ReplyRecorder();
+        future.addReplyListener(recorder);
+        assertFalse(future.isDone());
+        assertEquals(1, queue.getReplyTable().size());
+        IQPacket reply = new IQPacket();
+        reply.setId("id_002");
+        reply.setType(IQPacket.TYPE_RESULT);
+        queue.packetReceived(reply);
+        assertTrue(future.isDone());
+        assertTrue(future.get() instanceof RosterIQPacket);
+        assertSame(future.get(), recorder.reply);
+        assertEquals(0, queue.getReplyTable().size());
+    }
+
+    public void testQueuePacketAsyncTimeout() throws Exception {
+        queue.start();
+        IQPacket packet = new IQPacket();
+        packet.setId("id_003");
+        packet.setTimeout(200);
+        IPacketFuture future = queue.queuePacketAsync(packet);
+        ReplyRecorder recorder = new ReplyRecorder();
+        future.addReplyListener(recorder);
+        try {
+            future.get();
+            fail("Wait should time out");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        recorder.waitForResult();
+        assertTrue(recorder.cause instanceof TimeoutException);
+        assertEquals(0, queue.getReplyTable().size());
+        // a late reply is simply passed on
+        IQPacket reply = new IQPacket();
+        reply.setId("id_003");
+        assertSame(reply, queue.packetReceived(reply));
+    }
+
+    public void testSynchronousWaitTimesOutWithNull() throws Exception {
+        queue.start();
+        IQPacket packet = new IQPacket();
+        packet.setId("id_004");
+        packet.setTimeout(200);
+        assertNull(queue.queuePacket(packet, true));
+        assertEquals(0, queue.getReplyTable().size());
+    }
+
+    public void testStopCancelsReplyWaits() throws Exception {
+        queue.start();
+        IQPacket packet = new IQPacket();
+        packet.setId("id_005");
+        IPacketFuture future = queue.queuePacketAsync(packet);
+        queue.stop();
+        assertTrue(future.isCancelled());
+        assertEquals(0, queue.getReplyTable().size());
+    }
+
     public void testPacketReceived() throws Exception {
         assertNull(queue.packetReceived(null));
         assertNotNull(queue.packetReceived(new RosterIQPacket()));
@@ -114,6 +188,274 @@ public class PacketQueueTest extends TestCase {
         assertTrue(queue.isShutdown());
     }
 
+    /**
+     * Packets queued up while paused should go out with one flush per batch
+     */
+    public void testBatchedFlush() throws Exception {
+        assertEquals(1, sendPresences(10, PacketQueue.DEFAULT_MAX_BATCH_SIZE));
+    }
+
+    public void testBatchSizeLimit() throws Exception {
+        assertEquals(3, sendPresences(10, 4));
+    }
+
+    public void testSinglePacketFlush() throws Exception {
+        assertEquals(10, sendPresences(10, 1));
+    }
+
+    public void testLingerWaitsForMorePackets() throws Exception {
+        WriteCountingOutputStream os = createOutput();
+        queue.setMaxLinger(500);
+        queue.start();
+        queue.queuePacket(new PresencePacket(), false);
+        Thread.sleep(50);
+        queue.queuePacket(new PresencePacket(), false);
+        os.waitForPackets(2);
+        assertEquals(1, os.writes);
+    }
+
+    public void testFailWhenFull() throws Exception {
+        queue.setMaxQueuedPackets(2);
+        queue.setOverflowPolicy(PacketQueue.OverflowPolicy.FAIL);
+        queue.start(true);
+        queue.queuePacket(new PresencePacket(), false);
+        queue.queuePacket(new MessagePacket(), false);
+        try {
+            queue.queuePacket(new MessagePacket(), false);
+            fail("Queue should be full");
+        } catch (SendPacketFailedException ex) {
+        }
+        assertEquals(2, queue.getQueuedPackets());
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(2, queue.getPacketHighWaterMark());
+    }
+
+    public void testByteBound() throws Exception {
+        MessagePacket msg = new MessagePacket();
+        msg.setBody("0123456789012345678901234567890123456789");
+        queue.setMaxQueuedBytes(queue.estimateSize(msg) * 2);
+        queue.setOverflowPolicy(PacketQueue.OverflowPolicy.FAIL);
+        queue.start(true);
+        queue.queuePacket(msg, false);
+        queue.queuePacket(msg, false);
+        assertEquals(queue.estimateSize(msg) * 2, queue.getQueuedBytes());
+        try {
+            queue.queuePacket(new PresencePacket(), false);
+            fail("Queue should be full");
+        } catch (SendPacketFailedException ex) {
+        }
+        assertEquals(queue.getQueuedBytes(), queue.getByteHighWaterMark());
+    }
+
+    public void testDropOldestPresence() throws Exception {
+        queue.setMaxQueuedPackets(2);
+        queue.setOverflowPolicy(PacketQueue.OverflowPolicy.DROP_OLDEST_PRESENCE);
+        queue.start(true);
+        PresencePacket first = new PresencePacket();
+        MessagePacket msg = new MessagePacket();
+        PresencePacket second = new PresencePacket();
+        queue.queuePacket(first, false);
+        queue.queuePacket(msg, false);
+        queue.queuePacket(second, false);
+        assertEquals(2, queue.getQueue().size());
+        assertFalse(queue.getQueue().contains(first));
+        assertEquals(1, queue.getDroppedCount());
+        // subscription requests are never dropped
+        queue.clear();
+        PresencePacket subscribe = new PresencePacket();
+        subscribe.setType(PresencePacket.TYPE_SUBSCRIBE);
+        queue.queuePacket(subscribe, false);
+        queue.queuePacket(msg, false);
+        try {
+            queue.queuePacket(second, false);
+            fail("Queue should be full");
+        } catch (SendPacketFailedException ex) {
+        }
+        assertEquals(2, queue.getQueuedPackets());
+    }
+
+    public void testCoalescePresence() throws Exception {
+        JID romeo = new JID("romeo", "example.net", null);
+        JID juliet = new JID("juliet", "example.com", null);
+        queue.setMaxQueuedPackets(2);
+        queue.setOverflowPolicy(PacketQueue.OverflowPolicy.COALESCE_PRESENCE);
+        queue.start(true);
+        PresencePacket toRomeo = new PresencePacket();
+        toRomeo.setTo(romeo);
+        PresencePacket toJuliet = new PresencePacket();
+        toJuliet.setTo(juliet);
+        PresencePacket awayToRomeo = new PresencePacket();
+        awayToRomeo.setTo(romeo);
+        awayToRomeo.setShow(PresencePacket.SHOW_AWAY);
+        queue.queuePacket(toRomeo, false);
+        queue.queuePacket(toJuliet, false);
+        queue.queuePacket(awayToRomeo, false);
+        assertEquals(2, queue.getQueue().size());
+        assertFalse(queue.getQueue().contains(toRomeo));
+        assertTrue(queue.getQueue().contains(awayToRomeo));
+        // nothing is superseded by a presence to someone else
+        PresencePacket toOther = new PresencePacket();
+        toOther.setTo(new JID("mercutio", "example.org", null));
+        try {
+            queue.queuePacket(toOther, false);
+            fail("Queue should be full");
+        } catch (SendPacketFailedException ex) {
+        }
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    public void testBlockUntilRoom() throws Exception {
+        WriteCountingOutputStream os = createOutput();
+        queue.setMaxQueuedPackets(1);
+        queue.start(true);
+        queue.queuePacket(new PresencePacket(), false);
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    queue.queuePacket(new PresencePacket(), false);
+                } catch (SendPacketFailedException ex) {
+                }
+            }
+        };
+        sender.start();
+        sender.join(200);
+        assertTrue("Sender should block while the queue is full", sender.isAlive());
+        assertEquals(1, queue.getQueuedPackets());
+        queue.resume();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        os.waitForPackets(2);
+        assertEquals(2, os.packets);
+        assertEquals(1, queue.getPacketHighWaterMark());
+    }
+
+    public void testStopReleasesBlockedSender() throws Exception {
+        queue.setMaxQueuedPackets(1);
+        queue.start(true);
+        queue.queuePacket(new PresencePacket(), false);
+        final SendPacketFailedException[] failure = new SendPacketFailedException[1];
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    queue.queuePacket(new PresencePacket(), false);
+                } catch (SendPacketFailedException ex) {
+                    failure[0] = ex;
+                }
+            }
+        };
+        sender.start();
+        sender.join(200);
+        assertTrue(sender.isAlive());
+        queue.stop();
+        sender.join(5000);
+        assertFalse(sender.isAlive());
+        assertNotNull(failure[0]);
+    }
+
+    public void testOutgoingPresenceCoalesced() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer(null, 10, TimeUnit.MILLISECONDS, 64);
+        try {
+            PresenceCoalescer coalescer = queue.getPresenceCoalescer();
+            coalescer.setTimer(timer);
+            coalescer.setWindow(50);
+            queue.start(true);
+            for (int i = 0; i < 20; i++)
+                queue.queuePacket(new PresencePacket(), false);
+            long end = System.currentTimeMillis() + 5000;
+            while (coalescer.getPendingCount() > 0 && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            while (queue.getQueuedPackets() == 0 && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertEquals(1, queue.getQueuedPackets());
+            assertEquals(19, coalescer.getSupersededCount());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * the packets sent on stop are taken out of the queue, so that the queue
+     * thread cannot send them a second time
+     */
+    public void testStopSendsRemainingPacketsOnce() throws Exception {
+        WriteCountingOutputStream os = createOutput();
+        queue.start(true);
+        for (int i = 0; i < 3; i++)
+            queue.queuePacket(new PresencePacket(), false);
+        queue.stop();
+        assertEquals(3, os.packets);
+        assertEquals(0, queue.getQueuedPackets());
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    /**
+     * queues up the packets while paused and sends them out on resume
+     * 
+     * @return the number of writes it took to send the packets
+     */
+    private int sendPresences(int count, int batchSize) throws Exception {
+        WriteCountingOutputStream os = createOutput();
+        queue.setMaxBatchSize(batchSize);
+        queue.start(true);
+        for (int i = 0; i < count; i++)
+            queue.queuePacket(new PresencePacket(), false);
+        queue.resume();
+        os.waitForPackets(count);
+        assertEquals(count, os.packets);
+        return os.writes;
+    }
+
+    private WriteCountingOutputStream createOutput() {
+        WriteCountingOutputStream os = new WriteCountingOutputStream();
+        handler.getStreamContext().getWriter().setOutput(os);
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        return os;
+    }
+
+    class WriteCountingOutputStream extends OutputStream {
+        int writes;
+        int packets;
+
+        public synchronized void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            String data = new String(b, off, len, "UTF-8");
+            for (int idx = data.indexOf("<presence"); idx != -1; idx = data.indexOf("<presence", idx + 1))
+                packets++;
+            notifyAll();
+        }
+
+        public synchronized void waitForPackets(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (packets < count && System.currentTimeMillis() < end)
+                wait(100);
+        }
+    }
+
+    class ReplyRecorder implements IReplyListener {
+        IStanzaPacket reply;
+        Throwable cause;
+
+        public synchronized void replyReceived(IStanzaPacket request, IStanzaPacket reply) {
+            this.reply = reply;
+            notifyAll();
+        }
+
+        public synchronized void replyFailed(IStanzaPacket request, Throwable cause) {
+            this.cause = cause;
+            notifyAll();
+        }
+
+        public synchronized void waitForResult() throws InterruptedException {
+            if (reply == null && cause == null)
+                wait(5000);
+        }
+    }
+
     class QueuePacketRunnable implements Runnable {
         IStanzaPacket replyPacket;
         boolean resultReceived;
@@ -162,7 +504,7 @@ public class PacketQueueTest extends TestCase {
             return queue;
         }
 
-        public HashMap getReplyTable() {
+        public Map getReplyTable() {
             return packetReplyTable;
         }
     }
@@ -0,0 +1,127 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Tests that superseded presence is collapsed into the latest presence
+ */
+public class PresenceCoalescerTest extends TestCase {
+    static final JID ROMEO = new JID("romeo", "example.net", "orchard");
+
+    static final JID JULIET = new JID("juliet", "example.com", "balcony");
+
+    HashedWheelTimer timer;
+
+    RecordingSink sink;
+
+    PresenceCoalescer coalescer;
+
+    protected void setUp() throws Exception {
+        timer = new HashedWheelTimer(null, 10, TimeUnit.MILLISECONDS, 64);
+        sink = new RecordingSink();
+        coalescer = new PresenceCoalescer(sink, false);
+        coalescer.setTimer(timer);
+        coalescer.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+        timer.stop();
+    }
+
+    public void testDisabledByDefault() throws Exception {
+        assertEquals(0, coalescer.getWindow());
+        assertFalse(coalescer.offer(createPresence(ROMEO, null)));
+    }
+
+    public void testOnlyPresenceIsHeld() throws Exception {
+        coalescer.setWindow(100);
+        assertFalse(coalescer.offer(new MessagePacket()));
+        PresencePacket subscribe = createPresence(ROMEO, PresencePacket.TYPE_SUBSCRIBE);
+        assertFalse(coalescer.offer(subscribe));
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    public void testLatestPresenceDelivered() throws Exception {
+        coalescer.setWindow(100);
+        PresencePacket latest = null;
+        for (int i = 0; i < 10; i++) {
+            latest = createPresence(ROMEO, null);
+            latest.setStatus("status " + i);
+            assertTrue(coalescer.offer(latest));
+        }
+        PresencePacket fromJuliet = createPresence(JULIET, PresencePacket.TYPE_UNAVAILABLE);
+        assertTrue(coalescer.offer(fromJuliet));
+        assertEquals(2, coalescer.getPendingCount());
+        assertEquals(0, sink.size());
+        sink.waitFor(2);
+        assertEquals(2, sink.size());
+        assertTrue(sink.presences.contains(latest));
+        assertTrue(sink.presences.contains(fromJuliet));
+        assertEquals(11, coalescer.getHeldCount());
+        assertEquals(9, coalescer.getSupersededCount());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+
+    public void testOtherPresenceKeepsOrder() throws Exception {
+        coalescer.setWindow(5000);
+        PresencePacket available = createPresence(ROMEO, null);
+        assertTrue(coalescer.offer(available));
+        assertFalse(coalescer.offer(createPresence(ROMEO, PresencePacket.TYPE_UNSUBSCRIBED)));
+        // the held back presence is delivered before the caller passes on
+        // the unsubscribed presence
+        assertEquals(1, sink.size());
+        assertSame(available, sink.presences.get(0));
+    }
+
+    public void testFlushAndClear() throws Exception {
+        coalescer.setWindow(5000);
+        coalescer.offer(createPresence(ROMEO, null));
+        coalescer.flush();
+        assertEquals(1, sink.size());
+        coalescer.offer(createPresence(JULIET, null));
+        coalescer.clear();
+        assertEquals(0, coalescer.getPendingCount());
+        coalescer.flush();
+        assertEquals(1, sink.size());
+    }
+
+    private PresencePacket createPresence(JID from, String type) {
+        PresencePacket presence = new PresencePacket();
+        presence.setFrom(from);
+        presence.setType(type);
+        return presence;
+    }
+
+    static class RecordingSink implements PresenceCoalescer.IPresenceSink {
+        List<PresencePacket> presences = new ArrayList<PresencePacket>();
+
+        public synchronized void deliver(PresencePacket presence) {
+            presences.add(presence);
+            notifyAll();
+        }
+
+        public synchronized int size() {
+            return presences.size();
+        }
+
+        public synchronized void waitFor(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (presences.size() < count && System.currentTimeMillis() < end)
+                wait(100);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.IPresenceListener;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PresenceShow;
+import com.echomine.xmpp.ResourcePresence;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Tests that the presence table ranks the resources of a contact and keeps
+ * the best resource up to date as presence comes in
+ */
+public class PresenceTableTest extends TestCase {
+    PresenceTable table;
+
+    RecordingPresenceListener l;
+
+    XMPPConnectionImpl conn;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        table = new PresenceTable();
+        l = new RecordingPresenceListener();
+        table.addPresenceListener(l);
+        conn = new XMPPConnectionImpl();
+    }
+
+    public void testBestByPriority() throws Exception {
+        receive("romeo@example.net/orchard", null, 1, null);
+        receive("romeo@example.net/garden", null, 5, null);
+        receive("romeo@example.net/street", null, 3, null);
+        JID romeo = JID.parseJID("romeo@example.net");
+        assertEquals("romeo@example.net/garden", table.getBestResource(romeo).toString());
+        // the resource of the lookup is ignored
+        assertEquals("romeo@example.net/garden", table.getBestResource(JID.parseJID("romeo@example.net/orchard")).toString());
+        List<ResourcePresence> resources = table.getResources(romeo);
+        assertEquals(3, resources.size());
+        assertEquals("romeo@example.net/street", resources.get(1).getJID().toString());
+        assertEquals("romeo@example.net/orchard", resources.get(2).getJID().toString());
+        assertEquals(1, table.size());
+        assertTrue(table.isAvailable(romeo));
+        assertEquals(2, l.bestChanges.size());
+    }
+
+    public void testBestByShow() throws Exception {
+        receive("romeo@example.net/orchard", PresencePacket.SHOW_DND, 1, null);
+        receive("romeo@example.net/garden", PresencePacket.SHOW_AWAY, 1, null);
+        receive("romeo@example.net/street", PresencePacket.SHOW_XA, 1, null);
+        JID romeo = JID.parseJID("romeo@example.net");
+        assertEquals("romeo@example.net/garden", table.getBestResource(romeo).toString());
+        assertEquals(PresenceShow.AWAY, table.getPresence(romeo).getShow());
+        receive("romeo@example.net/orchard", null, 1, null);
+        assertEquals("romeo@example.net/orchard", table.getBestResource(romeo).toString());
+        assertEquals(PresenceShow.AVAILABLE, table.getPresence(romeo).getShow());
+        assertEquals(3, table.getResources(romeo).size());
+    }
+
+    public void testBestDropsInRank() throws Exception {
+        receive("romeo@example.net/orchard", null, 5, null);
+        receive("romeo@example.net/garden", null, 3, null);
+        l.bestChanges.clear();
+        receive("romeo@example.net/orchard", PresencePacket.SHOW_AWAY, 1, "Walking");
+        JID romeo = JID.parseJID("romeo@example.net");
+        assertEquals("romeo@example.net/garden", table.getBestResource(romeo).toString());
+        assertEquals(1, l.bestChanges.size());
+        ResourcePresence orchard = table.getPresence(JID.parseJID("romeo@example.net/orchard"));
+        assertEquals("Walking", orchard.getStatus());
+        assertEquals(1, orchard.getPriority());
+    }
+
+    public void testUnavailable() throws Exception {
+        receive("romeo@example.net/orchard", null, 5, null);
+        receive("romeo@example.net/garden", null, 3, null);
+        JID romeo = JID.parseJID("romeo@example.net");
+        receiveType("romeo@example.net/orchard", PresencePacket.TYPE_UNAVAILABLE);
+        assertEquals("romeo@example.net/garden", table.getBestResource(romeo).toString());
+        assertNull(table.getPresence(JID.parseJID("romeo@example.net/orchard")));
+        receiveType("romeo@example.net/garden", PresencePacket.TYPE_ERROR);
+        assertNull(table.getBestResource(romeo));
+        assertFalse(table.isAvailable(romeo));
+        assertEquals(0, table.size());
+        assertNull(l.bestChanges.get(l.bestChanges.size() - 1));
+        // unavailable from the bare JID removes all resources
+        receive("romeo@example.net/orchard", null, 5, null);
+        receive("romeo@example.net/garden", null, 3, null);
+        receiveType("romeo@example.net", PresencePacket.TYPE_UNAVAILABLE);
+        assertEquals(0, table.size());
+    }
+
+    public void testSubscriptionPresenceIgnored() throws Exception {
+        receiveType("romeo@example.net", PresencePacket.TYPE_SUBSCRIBE);
+        assertEquals(0, table.size());
+        assertTrue(l.resourceChanges.isEmpty());
+    }
+
+    /**
+     * Resources with a negative priority must never be picked for messages to
+     * the bare JID
+     */
+    public void testNegativePriority() throws Exception {
+        receive("romeo@example.net/bot", null, -1, null);
+        JID romeo = JID.parseJID("romeo@example.net");
+        assertNull(table.getBestResource(romeo));
+        assertTrue(table.isAvailable(romeo));
+        assertEquals(-1, table.getPresence(romeo).getPriority());
+    }
+
+    public void testClearOnClose() throws Exception {
+        receive("romeo@example.net/orchard", null, 5, null);
+        receive("juliet@example.com/balcony", null, 5, null);
+        table.connectionClosed(null);
+        assertEquals(0, table.size());
+        assertEquals(4, l.resourceChanges.size());
+    }
+
+    public void testStatusShared() throws Exception {
+        receive("romeo@example.net/orchard", null, 5, new String("Away"));
+        receive("juliet@example.com/balcony", null, 5, new String("Away"));
+        assertSame(table.getPresence(JID.parseJID("romeo@example.net")).getStatus(),
+                table.getPresence(JID.parseJID("juliet@example.com")).getStatus());
+    }
+
+    void receive(String from, String show, int priority, String status) throws Exception {
+        PresencePacket presence = new PresencePacket();
+        presence.setFrom(JID.parseJID(from));
+        presence.setShow(show);
+        presence.setPriority(priority);
+        presence.setStatus(status);
+        table.packetReceived(new PacketEvent(conn, presence));
+    }
+
+    void receiveType(String from, String type) throws Exception {
+        PresencePacket presence = new PresencePacket();
+        presence.setFrom(JID.parseJID(from));
+        presence.setType(type);
+        table.packetReceived(new PacketEvent(conn, presence));
+    }
+
+    static class RecordingPresenceListener implements IPresenceListener {
+        List<ResourcePresence> resourceChanges = new ArrayList<ResourcePresence>();
+
+        List<ResourcePresence> bestChanges = new ArrayList<ResourcePresence>();
+
+        public void resourceChanged(JID jid, ResourcePresence presence) {
+            resourceChanges.add(presence);
+        }
+
+        public void bestResourceChanged(JID bareJID, ResourcePresence best) {
+            bestChanges.add(best);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.echomine.xmpp.impl;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.echomine.util.Backoff;
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.server.LoopbackXMPPServer;
+
+/**
+ * Tests that connections are reconnected with backoff
+ */
+public class ReconnectorTest extends TestCase {
+    HashedWheelTimer timer;
+    XMPPConnectionImpl conn;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        timer = new HashedWheelTimer(null, 10, TimeUnit.MILLISECONDS, 8);
+        conn = new XMPPConnectionImpl();
+    }
+
+    protected void tearDown() throws Exception {
+        conn.disconnect();
+        timer.stop();
+        super.tearDown();
+    }
+
+    /**
+     * attempts to a server that is down keep backing off until stopped
+     */
+    public void testRetriesUntilStopped() throws Exception {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+        Reconnector reconnector = new Reconnector(conn, "127.0.0.1", port, "localhost");
+        Backoff backoff = new Backoff(10, 40);
+        reconnector.setBackoff(backoff);
+        reconnector.setTimer(timer);
+        reconnector.start();
+        long end = System.currentTimeMillis() + 5000;
+        while (backoff.getAttempts() < 3 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertTrue(backoff.getAttempts() >= 3);
+        reconnector.stop();
+        int attempts = backoff.getAttempts();
+        Thread.sleep(200);
+        assertEquals(attempts, backoff.getAttempts());
+        assertFalse(reconnector.isPending());
+        assertFalse(conn.isConnected());
+    }
+
+    /**
+     * a closed connection is connected and logged in again
+     */
+    public void testReconnectAndLogin() throws Exception {
+        LoopbackXMPPServer server = new LoopbackXMPPServer();
+        server.start();
+        Reconnector reconnector = new Reconnector(conn, "127.0.0.1", server.getPort(), "localhost");
+        try {
+            reconnector.setBackoff(new Backoff(10, 40));
+            reconnector.setTimer(timer);
+            reconnector.setLogin("juliet", "secret".toCharArray(), "balcony");
+            reconnector.start();
+            assertTrue(waitForLogin(reconnector));
+            // closing the connection reconnects it
+            conn.disconnect();
+            assertFalse(conn.isConnected());
+            assertTrue(waitForLogin(reconnector));
+            assertEquals(0, reconnector.getBackoff().getAttempts());
+        } finally {
+            reconnector.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * waits until the attempt that connects and logs in is over
+     */
+    private boolean waitForLogin(Reconnector reconnector) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!conn.isConnected() || reconnector.isPending()) {
+            if (System.currentTimeMillis() > end)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
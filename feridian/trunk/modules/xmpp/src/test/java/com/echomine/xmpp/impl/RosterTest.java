@@ -0,0 +1,266 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.IRoster;
+import com.echomine.xmpp.IRosterListener;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStanzaErrorException;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.RosterItem;
+import com.echomine.xmpp.packet.StanzaErrorPacket;
+
+/**
+ * Tests that the roster loads the items from the server, applies the pushes
+ * incrementally and keeps its indexes in sync
+ */
+public class RosterTest extends TestCase {
+    RecordingConnection conn;
+
+    XMPPSessionContext sessCtx;
+
+    XMPPStreamContext streamCtx;
+
+    Roster roster;
+
+    RecordingRosterListener l;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        conn = new RecordingConnection();
+        sessCtx = new XMPPSessionContext();
+        sessCtx.setHostName("example.com");
+        sessCtx.setUsername("juliet");
+        sessCtx.setResource("balcony");
+        streamCtx = new XMPPStreamContext();
+        roster = new Roster(conn, sessCtx, streamCtx);
+        l = new RecordingRosterListener();
+        roster.addRosterListener(l);
+    }
+
+    public void testLoad() throws Exception {
+        RosterIQPacket reply = new RosterIQPacket(IQPacket.TYPE_RESULT);
+        reply.addItem(createItem("romeo@example.net", RosterItem.SUBSCRIBE_BOTH, "Friends"));
+        reply.addItem(createItem("mercutio@example.org", RosterItem.SUBSCRIBE_FROM, "Friends"));
+        reply.addItem(createItem("benvolio@example.org", RosterItem.SUBSCRIBE_TO, null));
+        conn.replies.add(reply);
+        assertFalse(roster.isLoaded());
+        roster.load();
+        assertTrue(roster.isLoaded());
+        RosterIQPacket request = (RosterIQPacket) conn.sent.get(0);
+        assertEquals(IQPacket.TYPE_GET, request.getType());
+        // no versioning offered, so none is requested
+        assertNull(request.getVersion());
+        assertEquals(3, roster.size());
+        assertTrue(roster.contains(JID.parseJID("romeo@example.net")));
+        // lookups ignore the resource
+        assertTrue(roster.contains(JID.parseJID("romeo@example.net/orchard")));
+        assertFalse(roster.contains(JID.parseJID("tybalt@example.org")));
+        assertEquals(2, roster.getItemsInGroup("Friends").size());
+        assertEquals(0, roster.getItemsInGroup("Enemies").size());
+        assertEquals(1, roster.getGroups().size());
+        assertEquals(1, l.loaded);
+    }
+
+    public void testLoadError() throws Exception {
+        RosterIQPacket reply = new RosterIQPacket(IQPacket.TYPE_ERROR);
+        reply.setError(new StanzaErrorPacket());
+        conn.replies.add(reply);
+        try {
+            roster.load();
+            fail("Error reply should throw an exception");
+        } catch (XMPPStanzaErrorException ex) {
+            // expected
+        }
+        assertFalse(roster.isLoaded());
+    }
+
+    /**
+     * an error reply may come without the query
+     */
+    public void testLoadErrorWithoutQuery() throws Exception {
+        IQPacket reply = new IQPacket(IQPacket.TYPE_ERROR);
+        reply.setError(new StanzaErrorPacket());
+        conn.replies.add(reply);
+        try {
+            roster.load();
+            fail("Error reply should throw an exception");
+        } catch (XMPPStanzaErrorException ex) {
+            // expected
+        }
+        assertFalse(roster.isLoaded());
+    }
+
+    /**
+     * the roster of one account is not kept when another account logs in
+     */
+    public void testAccountChangeClears() throws Exception {
+        List<RosterItem> items = new ArrayList<RosterItem>();
+        items.add(createItem("romeo@example.net", RosterItem.SUBSCRIBE_BOTH, "Friends"));
+        roster.setAccount("juliet@example.com");
+        roster.restore(items, "ver3");
+        roster.setAccount("juliet@example.com");
+        assertEquals(1, roster.size());
+        roster.setAccount("nurse@example.com");
+        assertEquals(0, roster.size());
+        assertTrue(roster.getGroups().isEmpty());
+        assertNull(roster.getVersion());
+    }
+
+    public void testPushAddsAndUpdates() throws Exception {
+        RosterIQPacket push = createPush(null, createItem("nurse@example.com", RosterItem.SUBSCRIBE_NONE, "Servants"));
+        roster.packetReceived(new PacketEvent(conn, push));
+        RosterItem item = roster.getItem(JID.parseJID("nurse@example.com"));
+        assertNotNull(item);
+        assertEquals(RosterItem.SUBSCRIBE_NONE, item.getSubscription());
+        assertEquals(1, roster.getItemsInGroup("Servants").size());
+        // the push is acknowledged
+        IQPacket result = (IQPacket) conn.sent.get(0);
+        assertEquals(IQPacket.TYPE_RESULT, result.getType());
+        assertEquals("push1", result.getId());
+        // the update moves the item to another group
+        push = createPush(null, createItem("nurse@example.com", RosterItem.SUBSCRIBE_BOTH, "Friends"));
+        roster.packetReceived(new PacketEvent(conn, push));
+        assertEquals(1, roster.size());
+        assertEquals(RosterItem.SUBSCRIBE_BOTH, roster.getItem(JID.parseJID("nurse@example.com")).getSubscription());
+        assertEquals(0, roster.getItemsInGroup("Servants").size());
+        assertFalse(roster.getGroups().contains("Servants"));
+        assertEquals(1, roster.getItemsInGroup("Friends").size());
+        assertEquals(2, l.updated.size());
+    }
+
+    public void testPushRemoves() throws Exception {
+        roster.packetReceived(new PacketEvent(conn, createPush(null, createItem("nurse@example.com", RosterItem.SUBSCRIBE_BOTH, "Servants"))));
+        RosterItem remove = new RosterItem();
+        remove.setJid(JID.parseJID("nurse@example.com"));
+        remove.setSubscription(RosterItem.SUBSCRIBE_REMOVE);
+        roster.packetReceived(new PacketEvent(conn, createPush(JID.parseJID("juliet@example.com"), remove)));
+        assertEquals(0, roster.size());
+        assertTrue(roster.getGroups().isEmpty());
+        assertEquals(1, l.removed.size());
+        assertEquals(2, conn.sent.size());
+    }
+
+    /**
+     * Pushes from anyone other than the server or the user's bare JID must
+     * be ignored
+     */
+    public void testPushFromOthersIgnored() throws Exception {
+        RosterItem item = createItem("tybalt@example.org", RosterItem.SUBSCRIBE_BOTH, null);
+        roster.packetReceived(new PacketEvent(conn, createPush(JID.parseJID("tybalt@example.org"), item)));
+        roster.packetReceived(new PacketEvent(conn, createPush(JID.parseJID("juliet@example.com/balcony"), item)));
+        assertEquals(0, roster.size());
+        assertTrue(conn.sent.isEmpty());
+    }
+
+    public void testVersionedLoad() throws Exception {
+        streamCtx.getFeatures().addFeature(XMPPConstants.NS_FEATURE_ROSTERVER, "ver", null);
+        RosterIQPacket reply = new RosterIQPacket(IQPacket.TYPE_RESULT);
+        reply.setVersion("ver7");
+        reply.addItem(createItem("romeo@example.net", RosterItem.SUBSCRIBE_BOTH, null));
+        conn.replies.add(reply);
+        roster.load();
+        // an empty version asks for the full roster
+        assertEquals("", ((RosterIQPacket) conn.sent.get(0)).getVersion());
+        assertEquals("ver7", roster.getVersion());
+        // the version is updated by the pushes
+        RosterIQPacket push = createPush(null, createItem("nurse@example.com", RosterItem.SUBSCRIBE_BOTH, null));
+        push.setVersion("ver8");
+        roster.packetReceived(new PacketEvent(conn, push));
+        assertEquals("ver8", roster.getVersion());
+        // the roster is current, so the reply has no query
+        conn.sent.clear();
+        conn.replies.add(new IQPacket(IQPacket.TYPE_RESULT));
+        roster.load();
+        assertEquals("ver8", ((RosterIQPacket) conn.sent.get(0)).getVersion());
+        assertEquals(2, roster.size());
+        assertEquals("ver8", roster.getVersion());
+        assertTrue(l.removed.isEmpty());
+    }
+
+    public void testRestoreAndFullReload() throws Exception {
+        streamCtx.getFeatures().addFeature(XMPPConstants.NS_FEATURE_ROSTERVER, "ver", null);
+        List<RosterItem> items = new ArrayList<RosterItem>();
+        items.add(createItem("romeo@example.net", RosterItem.SUBSCRIBE_BOTH, "Friends"));
+        items.add(createItem("tybalt@example.org", RosterItem.SUBSCRIBE_NONE, "Enemies"));
+        roster.restore(items, "ver3");
+        assertEquals(2, roster.size());
+        assertEquals("ver3", roster.getVersion());
+        // the server sends the full roster when the version is too old
+        RosterIQPacket reply = new RosterIQPacket(IQPacket.TYPE_RESULT);
+        reply.setVersion("ver9");
+        reply.addItem(createItem("romeo@example.net", RosterItem.SUBSCRIBE_BOTH, "Friends"));
+        conn.replies.add(reply);
+        roster.load();
+        assertEquals("ver3", ((RosterIQPacket) conn.sent.get(0)).getVersion());
+        assertEquals(1, roster.size());
+        assertFalse(roster.contains(JID.parseJID("tybalt@example.org")));
+        assertFalse(roster.getGroups().contains("Enemies"));
+        assertEquals(1, l.removed.size());
+        assertEquals("ver9", roster.getVersion());
+    }
+
+    RosterItem createItem(String jid, String subscription, String group) throws Exception {
+        RosterItem item = new RosterItem();
+        item.setJid(JID.parseJID(jid));
+        item.setSubscription(subscription);
+        if (group != null)
+            item.addGroup(group);
+        return item;
+    }
+
+    RosterIQPacket createPush(JID from, RosterItem item) {
+        RosterIQPacket push = new RosterIQPacket(IQPacket.TYPE_SET);
+        push.setId("push1");
+        push.setFrom(from);
+        push.addItem(item);
+        return push;
+    }
+
+    /**
+     * records the packets sent and replies with the canned replies
+     */
+    static class RecordingConnection extends XMPPConnectionImpl {
+        List<IStanzaPacket> sent = new ArrayList<IStanzaPacket>();
+
+        LinkedList<IStanzaPacket> replies = new LinkedList<IStanzaPacket>();
+
+        public IStanzaPacket sendPacket(IStanzaPacket packet, boolean wait) throws SendPacketFailedException {
+            sent.add(packet);
+            if (!wait || replies.isEmpty())
+                return null;
+            return replies.removeFirst();
+        }
+    }
+
+    static class RecordingRosterListener implements IRosterListener {
+        int loaded;
+
+        List<RosterItem> updated = new ArrayList<RosterItem>();
+
+        List<RosterItem> removed = new ArrayList<RosterItem>();
+
+        public void rosterLoaded(IRoster roster) {
+            loaded++;
+        }
+
+        public void rosterItemUpdated(RosterItem item) {
+            updated.add(item);
+        }
+
+        public void rosterItemRemoved(RosterItem item) {
+            removed.add(item);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.echomine.net.ConnectionEvent;
+import com.echomine.net.ConnectionListener;
+import com.echomine.util.HashedWheelTimer;
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PacketFilter;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.server.LoopbackXMPPServer;
+
+/**
+ * Tests stream management (XEP-0198) against the loopback server: stanzas are
+ * acknowledged, and a broken connection resumes its session without binding a
+ * new one and without losing the stanzas that were in flight.
+ */
+public class StreamManagementTest extends TestCase {
+    LoopbackXMPPServer server;
+    XMPPConnectionHandler handler;
+    XMPPConnectionImpl conn;
+    HashedWheelTimer timer;
+    LinkedBlockingQueue<MessagePacket> received;
+    Semaphore closed;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LoopbackXMPPServer();
+        server.start();
+        timer = new HashedWheelTimer(null, 10, TimeUnit.MILLISECONDS, 8);
+        // packets are sent by the caller, so that they can be held in the
+        // queue deterministically while the connection breaks
+        handler = new XMPPConnectionHandler() {
+            protected PacketQueue createPacketQueue() {
+                return new PacketQueue(this, false);
+            }
+        };
+        handler.getStreamManager().setTimer(timer);
+        conn = new XMPPConnectionImpl(handler);
+        received = new LinkedBlockingQueue<MessagePacket>();
+        conn.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.add((MessagePacket) event.getPacket());
+            }
+        }, new PacketFilter(MessagePacket.class), DispatchPolicy.INLINE);
+        // released once the reader of a connection has finished
+        closed = new Semaphore(0);
+        conn.addConnectionListener(new ConnectionListener() {
+            public void connectionStarting(ConnectionEvent e) {
+            }
+
+            public void connectionEstablished(ConnectionEvent e) {
+            }
+
+            public void connectionClosed(ConnectionEvent e) {
+                closed.release();
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+        conn.disconnect();
+        server.stop();
+        timer.stop();
+        super.tearDown();
+    }
+
+    public void testAcksByCount() throws Exception {
+        login();
+        assertTrue(conn.getStreamManager().isEnabled());
+        conn.getStreamManager().setAckRequestCount(2);
+        conn.getStreamManager().setAckRequestDelay(0);
+        send(4);
+        assertEchoes(4);
+        assertTrue(waitForUnacknowledged(0));
+        assertEquals(4, handler.getStreamManager().getContext().getAckedCount());
+        // the echoes are counted for the acks the client sends
+        assertEquals(4, handler.getStreamManager().getContext().getHandledCount());
+    }
+
+    /**
+     * fewer stanzas than the request count are acked once the delay passes
+     */
+    public void testAcksByDelay() throws Exception {
+        login();
+        conn.getStreamManager().setAckRequestCount(100);
+        conn.getStreamManager().setAckRequestDelay(50);
+        send(1);
+        assertEchoes(1);
+        assertTrue(waitForUnacknowledged(0));
+    }
+
+    /**
+     * The stanzas queued when the connection breaks are kept, and are sent
+     * again once the session is resumed. Resource binding is skipped.
+     */
+    public void testResumeAfterBrokenConnection() throws Exception {
+        login();
+        conn.getStreamManager().setAckRequestCount(1);
+        send(2);
+        assertEchoes(2);
+        assertTrue(waitForUnacknowledged(0));
+        // the stanzas are still in the queue when the connection breaks
+        handler.getPacketQueue().pause();
+        send(2);
+        breakConnection();
+        assertTrue(waitForUnacknowledged(2));
+        assertTrue(waitForDetached());
+        login();
+        assertTrue(conn.getStreamManager().isResumed());
+        assertEquals(1, server.getBindCount());
+        assertEquals(1, server.getResumeCount());
+        assertEquals(1, handler.getConnectTimings().getCount(ConnectTimings.Phase.RESUME));
+        assertEquals(0, handler.getConnectTimings().getCount(ConnectTimings.Phase.BIND));
+        assertEquals("balcony", handler.getSessionContext().getResource());
+        assertEchoes(2);
+        assertTrue(waitForUnacknowledged(0));
+    }
+
+    /**
+     * the stanzas the server handled before the connection broke are not
+     * sent again
+     */
+    public void testHandledStanzasNotSentAgain() throws Exception {
+        login();
+        conn.getStreamManager().setAckRequestCount(100);
+        conn.getStreamManager().setAckRequestDelay(0);
+        send(3);
+        assertEchoes(3);
+        assertEquals(3, conn.getStreamManager().getUnacknowledgedCount());
+        long stanzas = server.getStanzasReceived();
+        breakConnection();
+        assertTrue(waitForDetached());
+        login();
+        assertTrue(conn.getStreamManager().isResumed());
+        assertEquals(0, conn.getStreamManager().getUnacknowledgedCount());
+        assertEquals(stanzas, server.getStanzasReceived());
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * a stanza that cannot be marshalled was never sent, so it is not kept
+     * for an ack
+     */
+    public void testUnmarshallableStanzaNotKept() throws Exception {
+        login();
+        conn.getStreamManager().setAckRequestCount(100);
+        conn.getStreamManager().setAckRequestDelay(0);
+        try {
+            handler.sendPacket(new MessagePacket() {
+            });
+            fail("packet without a binding must not be sent");
+        } catch (SendPacketFailedException ex) {
+            // expected
+        }
+        assertEquals(0, conn.getStreamManager().getUnacknowledgedCount());
+        send(1);
+        assertEchoes(1);
+        assertEquals(1, conn.getStreamManager().getUnacknowledgedCount());
+    }
+
+    /**
+     * a session that the server no longer has is replaced by a new one, and
+     * the stanzas that were not acknowledged are sent in the new session
+     */
+    public void testResumeFailedBindsNewSession() throws Exception {
+        login();
+        handler.getPacketQueue().pause();
+        send(1);
+        breakConnection();
+        assertTrue(waitForUnacknowledged(1));
+        server.stop();
+        server = new LoopbackXMPPServer();
+        server.start();
+        login();
+        assertFalse(conn.getStreamManager().isResumed());
+        assertTrue(conn.getStreamManager().isEnabled());
+        assertEquals(1, server.getBindCount());
+        assertEchoes(1);
+    }
+
+    /**
+     * disconnecting on purpose ends the session, so the next login binds a
+     * new one. The reader of the old connection is finished before the next
+     * login.
+     */
+    public void testDisconnectEndsSession() throws Exception {
+        login();
+        conn.disconnect();
+        assertTrue(closed.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(handler.getStreamManager().getContext().isResumable());
+        login();
+        assertFalse(conn.getStreamManager().isResumed());
+        assertEquals(2, server.getBindCount());
+        assertEquals(0, server.getDetachedCount());
+    }
+
+    private void login() throws Exception {
+        conn.connect("127.0.0.1", server.getPort(), "localhost", true);
+        conn.login("juliet", "secret".toCharArray(), "balcony");
+    }
+
+    private void send(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            MessagePacket message = new MessagePacket();
+            message.setBody("echo" + i);
+            conn.sendPacket(message, false);
+        }
+    }
+
+    private void assertEchoes(int count) throws InterruptedException {
+        for (int i = 0; i < count; i++)
+            assertNotNull(received.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * closes the socket without closing the stream, as when the network drops
+     */
+    private void breakConnection() throws Exception {
+        handler.getStreamContext().getSocket().close();
+    }
+
+    private boolean waitForUnacknowledged(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (handler.getPacketQueue().getUnacknowledgedCount() != count) {
+            if (System.currentTimeMillis() > end)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private boolean waitForDetached() throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (server.getDetachedCount() == 0) {
+            if (System.currentTimeMillis() > end)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
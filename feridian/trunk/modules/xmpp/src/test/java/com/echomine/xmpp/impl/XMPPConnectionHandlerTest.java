@@ -1,9 +1,20 @@
 package com.echomine.xmpp.impl;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.ElementDispatchTable;
+import com.echomine.jibx.IElementHandler;
 import com.echomine.net.ConnectionContext;
 import com.echomine.net.HandshakeFailedException;
 import com.echomine.net.MockConnectionContext;
@@ -17,6 +28,7 @@ import com.echomine.xmpp.PacketEvent;
 import com.echomine.xmpp.XMPPStanzaErrorException;
 import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPTestCase;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
 import com.echomine.xmpp.packet.IQPacket;
 import com.echomine.xmpp.packet.PresencePacket;
 import com.echomine.xmpp.packet.RosterIQPacket;
@@ -117,6 +129,39 @@ public class XMPPConnectionHandlerTest extends XMPPTestCase {
         compare(outRes);
     }
 
+    /**
+     * Pings (XEP-0199) from the server must be answered with a result
+     */
+    public void testReceivePing() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithPing.xml";
+        String outRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithPingReply.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        compare(outRes);
+    }
+
+    /**
+     * The stanzas and bytes going through the connection must be counted
+     */
+    public void testMetricsRecorded() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithUnknownIQ.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        ConnectionMetrics metrics = (ConnectionMetrics) handler.getMetrics();
+        assertTrue(metrics.isOpen());
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        assertFalse(metrics.isOpen());
+        assertEquals(1, metrics.getStanzasReceived());
+        assertEquals(1, metrics.getStanzasSent());
+        assertTrue(metrics.getBytesReceived() > 0);
+        assertTrue(metrics.getBytesSent() > 0);
+        assertEquals(0, metrics.getParseErrors());
+        assertEquals(1, metrics.getHandshakePhaseCount(ConnectTimings.Phase.STREAM));
+    }
+
     /**
      * This tests that message packets with no children and no known extensions
      * are ignored (and consequently no packet receive event is fire)
@@ -180,6 +225,85 @@ public class XMPPConnectionHandlerTest extends XMPPTestCase {
         assertTrue(reply instanceof RosterIQPacket);
     }
 
+    /**
+     * Elements can be routed to custom handlers registered in the dispatch
+     * table. Stanzas returned by the handler are fired like any other stanza.
+     */
+    public void testCustomElementHandler() throws Exception {
+        String in = "<stream:stream from='example.com' id='someid' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+                + "<stream:features/><custom xmlns='test:custom:ns'><child/></custom></stream:stream>";
+        socket.setOutputStream(os);
+        socket.setInputStream(new ByteArrayInputStream(in.getBytes()));
+        PacketListenerManager listenerManager = new PacketListenerManager(new XMPPConnectionImpl());
+        handler.setPacketListenerManager(listenerManager);
+        PacketReceiver rec = new PacketReceiver();
+        listenerManager.addPacketListener(rec);
+        ElementDispatchTable table = FeridianConfiguration.getConfig().getDispatchTable();
+        table.register("test:custom:ns", "custom", new IElementHandler() {
+            public Object unmarshall(UnmarshallingContext ctx) throws JiBXException {
+                ctx.parsePastElement("test:custom:ns", "custom");
+                return new PresencePacket();
+            }
+        });
+        try {
+            handler.handshake(socket, connectionCtx);
+            handler.handle(socket, connectionCtx);
+        } finally {
+            table.unregister("test:custom:ns", "custom");
+        }
+        assertTrue(rec.packet instanceof PresencePacket);
+    }
+
+    /**
+     * The reader of a connection that ends after the handler was started for
+     * a new connection must leave the new connection alone, which is still
+     * able to end its own stream.
+     */
+    public void testOldReaderLeavesNewConnectionAlone() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        handler.shutdown();
+        handler = new XMPPConnectionHandler() {
+            protected boolean processIncomingElement(UnmarshallingContext uctx) throws IOException, JiBXException {
+                reading.countDown();
+                return super.processIncomingElement(uctx);
+            }
+        };
+        handler.start();
+        String reply = "<stream:stream id='c2s_123' from='example.com' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+                + "<stream:features/>";
+        PipedOutputStream in = new PipedOutputStream();
+        socket.setInputStream(new PipedInputStream(in));
+        socket.setOutputStream(os);
+        in.write(reply.getBytes());
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    handler.handshake(socket, connectionCtx);
+                    handler.handle(socket, connectionCtx);
+                } catch (IOException ex) {
+                    // intentionally left empty
+                } catch (HandshakeFailedException ex) {
+                    // intentionally left empty
+                }
+            }
+        };
+        reader.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        // the new connection starts before the old one ends
+        handler.start();
+        in.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        MockSocket newSocket = new MockSocket(IXMPPConnection.DEFAULT_XMPP_PORT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        newSocket.setInputStream(new ByteArrayInputStream(reply.getBytes()));
+        newSocket.setOutputStream(out);
+        handler.handshake(newSocket, connectionCtx);
+        assertTrue(handler.isConnected());
+        handler.closeStream();
+        assertTrue(out.toString("UTF-8").endsWith("</stream:stream>"));
+    }
+
     class PacketReceiver implements IPacketListener {
         IStanzaPacket packet;
 
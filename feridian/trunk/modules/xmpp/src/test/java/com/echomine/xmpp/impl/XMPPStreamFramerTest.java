@@ -0,0 +1,61 @@
+package com.echomine.xmpp.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the detection of complete stanzas in raw stream data
+ */
+public class XMPPStreamFramerTest extends TestCase {
+    static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream from='example.com' id='someid' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>";
+
+    XMPPStreamFramer framer;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        framer = new XMPPStreamFramer();
+    }
+
+    private int scan(String data) throws Exception {
+        byte[] bytes = data.getBytes("UTF-8");
+        return framer.scan(bytes, 0, bytes.length);
+    }
+
+    public void testStreamHeaderIsNotAUnit() throws Exception {
+        assertEquals(0, scan(STREAM_HEADER));
+        assertEquals(1, framer.getDepth());
+    }
+
+    public void testStanzas() throws Exception {
+        assertEquals(3, scan(STREAM_HEADER
+                + "<message to='romeo@example.net'><body>Hi</body></message>\n"
+                + "<presence/>"
+                + "<iq type='get' id='1'><query xmlns='jabber:iq:roster'/></iq>"));
+        assertEquals(1, framer.getDepth());
+    }
+
+    public void testStanzaSplitAcrossChunks() throws Exception {
+        assertEquals(0, scan(STREAM_HEADER + "<message to='romeo@exam"));
+        assertEquals(0, scan("ple.net'><bo"));
+        assertEquals(0, scan("dy>Wherefore art thou?</body></mess"));
+        assertEquals(1, scan("age><presence/"));
+        assertEquals(1, scan(">"));
+    }
+
+    public void testMarkupInsideQuotesCommentsAndCData() throws Exception {
+        assertEquals(1, scan(STREAM_HEADER
+                + "<message to='a>b' from=\"c/>d\"><!-- </message> --><body><![CDATA[</body></message>]]></body></message>"));
+        assertEquals(1, framer.getDepth());
+    }
+
+    public void testStreamRestartAndClose() throws Exception {
+        assertEquals(1, scan(STREAM_HEADER + "<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"));
+        // a new stream starts without the old one ever closing
+        assertEquals(1, scan(STREAM_HEADER + "<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/></stream:features>"));
+        assertEquals(1, scan("</stream:stream>"));
+        assertEquals(0, framer.getDepth());
+    }
+
+    public void testMultibyteCharacters() throws Exception {
+        assertEquals(1, scan(STREAM_HEADER + "<message><body>\u4e2d\u6587 \u00e9t\u00e9</body></message>"));
+    }
+}
@@ -0,0 +1,104 @@
+package com.echomine.xmpp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.impl.ConnectTimings;
+
+/**
+ * Tests that connection metrics are aggregated and exposed through the
+ * registry and JMX
+ */
+public class ConnectionMetricsTest extends TestCase {
+    MetricsRegistry registry;
+    ConnectionMetrics aggregate;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        registry = new MetricsRegistry();
+        aggregate = registry.getAggregate();
+    }
+
+    protected void tearDown() throws Exception {
+        registry.unregisterMBeans();
+        super.tearDown();
+    }
+
+    public void testRecordsAreAggregated() {
+        ConnectionMetrics first = registry.createConnectionMetrics();
+        ConnectionMetrics second = registry.createConnectionMetrics();
+        first.connectionOpened();
+        second.connectionOpened();
+        first.stanzaReceived();
+        second.stanzaReceived();
+        second.stanzasSent(3);
+        first.bytesReceived(100);
+        second.bytesSent(50);
+        first.replyReceived(TimeUnit.MILLISECONDS.toNanos(5));
+        second.replyTimedOut();
+        second.parseError();
+        first.handshakePhase(ConnectTimings.Phase.AUTH, TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, first.getStanzasReceived());
+        assertEquals(3, second.getStanzasSent());
+        assertEquals(2, aggregate.getStanzasReceived());
+        assertEquals(3, aggregate.getStanzasSent());
+        assertEquals(100, aggregate.getBytesReceived());
+        assertEquals(50, aggregate.getBytesSent());
+        assertEquals(1, aggregate.getRepliesReceived());
+        assertEquals(1, aggregate.getReplyTimeouts());
+        assertEquals(1, aggregate.getParseErrors());
+        assertEquals(5000, aggregate.getReplyWaitMax());
+        assertEquals(1, aggregate.getHandshakePhase(ConnectTimings.Phase.AUTH).getCount());
+        assertNull(first.getHandshakePhase(ConnectTimings.Phase.AUTH));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), first.getHandshakePhaseTime(ConnectTimings.Phase.AUTH));
+        assertEquals(2, aggregate.getOpenConnections());
+    }
+
+    public void testOpenConnections() {
+        ConnectionMetrics metrics = registry.createConnectionMetrics();
+        metrics.connectionOpened();
+        metrics.stanzaReceived();
+        assertSame(metrics, registry.getConnectionMetrics(metrics.getName()));
+        assertEquals(1, registry.getConnectionMetrics().size());
+        metrics.connectionClosed();
+        metrics.connectionClosed();
+        assertNull(registry.getConnectionMetrics(metrics.getName()));
+        assertEquals(0, aggregate.getOpenConnections());
+        // the metrics are cleared when the connection is opened again
+        metrics.connectionOpened();
+        assertEquals(0, metrics.getStanzasReceived());
+        assertEquals(1, aggregate.getStanzasReceived());
+        assertEquals(1, aggregate.getOpenConnections());
+    }
+
+    public void testQueueDepth() {
+        ConnectionMetrics metrics = registry.createConnectionMetrics();
+        metrics.packetQueued(1);
+        metrics.packetQueued(7);
+        metrics.packetQueued(2);
+        assertEquals(7, metrics.getMaxQueueDepth());
+        assertEquals(7, metrics.getQueueDepth99thPercentile());
+        assertEquals(3, aggregate.getQueueDepths().getCount());
+    }
+
+    public void testMBeans() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ConnectionMetrics metrics = registry.createConnectionMetrics();
+        metrics.connectionOpened();
+        registry.registerMBeans(server);
+        ObjectName name = MetricsRegistry.getObjectName(metrics);
+        assertTrue(server.isRegistered(name));
+        metrics.stanzasSent(2);
+        assertEquals(new Long(2), server.getAttribute(name, "StanzasSent"));
+        assertEquals(new Long(2), server.getAttribute(MetricsRegistry.getObjectName(aggregate), "StanzasSent"));
+        metrics.connectionClosed();
+        assertFalse(server.isRegistered(name));
+        registry.unregisterMBeans();
+        assertFalse(server.isRegistered(MetricsRegistry.getObjectName(aggregate)));
+    }
+}
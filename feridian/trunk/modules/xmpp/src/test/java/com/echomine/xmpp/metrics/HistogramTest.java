@@ -0,0 +1,79 @@
+package com.echomine.xmpp.metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the precision of the histogram and its percentiles
+ */
+public class HistogramTest extends TestCase {
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram(5, 1000000);
+        for (int i = 1; i <= 32; i++)
+            histogram.record(i);
+        assertEquals(32, histogram.getCount());
+        assertEquals(16, histogram.getValueAtPercentile(50));
+        assertEquals(32, histogram.getValueAtPercentile(100));
+        assertEquals(16.5, histogram.getMean(), 0.001);
+    }
+
+    /**
+     * large values must be kept within the relative precision of the bits
+     */
+    public void testRelativePrecision() {
+        Histogram histogram = new Histogram(7, 1L << 40);
+        long[] values = { 100, 1000, 12345, 999999, 123456789, 1L << 39 };
+        for (int i = 0; i < values.length; i++) {
+            histogram.reset();
+            histogram.record(values[i]);
+            histogram.record(values[i] * 4);
+            long reported = histogram.getValueAtPercentile(50);
+            assertTrue(reported >= values[i]);
+            assertTrue(reported <= values[i] + values[i] / 64);
+        }
+    }
+
+    public void testPercentiles() {
+        Histogram histogram = new Histogram(7, 1L << 36);
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000L);
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 64);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 64);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    public void testOutOfRangeValues() {
+        Histogram histogram = new Histogram(5, 1000);
+        histogram.record(-5);
+        histogram.record(5000);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(1000, histogram.getMax());
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    public void testEmptyHistogram() {
+        Histogram histogram = new Histogram(5, 1000);
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    public void testStripedCounter() throws Exception {
+        final Counter counter = new Counter(8);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++)
+                        counter.increment();
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        assertEquals(40000, counter.get());
+        counter.reset();
+        assertEquals(0, counter.get());
+    }
+}
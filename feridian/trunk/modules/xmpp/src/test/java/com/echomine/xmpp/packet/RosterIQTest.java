@@ -38,7 +38,7 @@ public class RosterIQTest extends XMPPTestCase {
         assertEquals(IQPacket.TYPE_RESULT, packet.getType());
         assertNotNull(packet.getRosterItems());
         assertEquals(1, packet.getRosterItems().size());
-        RosterItem item = (RosterItem) packet.getRosterItems().get(0);
+        RosterItem item = packet.getRosterItems().get(0);
         assertEquals("contact@example.org", item.getJid().toString());
         assertEquals(RosterItem.SUBSCRIBE_NONE, item.getSubscription());
         assertTrue(item.isPending());
@@ -68,17 +68,44 @@ public class RosterIQTest extends XMPPTestCase {
         assertEquals(IQPacket.TYPE_RESULT, packet.getType());
         assertNotNull(packet.getRosterItems());
         assertEquals(2, packet.getRosterItems().size());
-        RosterItem item = (RosterItem) packet.getRosterItems().get(0);
+        RosterItem item = packet.getRosterItems().get(0);
         assertEquals("romeo@example.org", item.getJid().toString());
         assertEquals(RosterItem.SUBSCRIBE_BOTH, item.getSubscription());
         assertNotNull(item.getGroups());
         assertEquals(1, item.getGroups().size());
         assertEquals("Friends", (String) item.getGroups().get(0));
-        item = (RosterItem) packet.getRosterItems().get(1);
+        item = packet.getRosterItems().get(1);
         assertEquals("mercutio@example.org", item.getJid().toString());
         assertEquals(RosterItem.SUBSCRIBE_FROM, item.getSubscription());
         assertNotNull(item.getGroups());
         assertEquals(1, item.getGroups().size());
         assertEquals("Friends", (String) item.getGroups().get(0));
     }
+
+    public void testMarshallRosterVersionRequest() throws Exception {
+        String inRes = "com/echomine/xmpp/data/RosterVersionRequest.xml";
+        Reader rdr = getResourceAsReader(inRes);
+        RosterIQPacket packet = new RosterIQPacket();
+        packet.setVersion("ver14");
+        JiBXUtil.marshallIQPacket(writer, packet);
+        compare(rdr);
+    }
+
+    public void testUnmarshallRosterVersionPush() throws Exception {
+        String inRes = "com/echomine/xmpp/data/RosterVersionPush.xml";
+        Reader rdr = getResourceAsReader(inRes);
+        RosterIQPacket packet = (RosterIQPacket) JiBXUtil.unmarshallObject(rdr, IQPacket.class);
+        assertEquals(IQPacket.TYPE_SET, packet.getType());
+        assertEquals("ver15", packet.getVersion());
+        assertEquals(1, packet.getRosterItems().size());
+        RosterItem item = packet.getRosterItems().get(0);
+        assertEquals("bill@example.org", item.getJid().toString());
+    }
+
+    public void testUnmarshallRosterWithoutVersion() throws Exception {
+        String inRes = "com/echomine/xmpp/data/RosterListResult.xml";
+        Reader rdr = getResourceAsReader(inRes);
+        RosterIQPacket packet = (RosterIQPacket) JiBXUtil.unmarshallObject(rdr, IQPacket.class);
+        assertNull(packet.getVersion());
+    }
 }
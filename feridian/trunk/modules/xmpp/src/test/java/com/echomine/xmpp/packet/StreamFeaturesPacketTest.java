@@ -88,6 +88,30 @@ public class StreamFeaturesPacketTest extends XMPPTestCase implements XMPPConsta
         compare(reader);
     }
 
+    public void testUnmarshallCompression() throws Exception {
+        String xml = "<stream:features xmlns:stream='http://etherx.jabber.org/streams'>"
+                + "\n\t<compression xmlns='http://jabber.org/features/compress'>\n\t<method>zlib</method>\n\t<method>lzw</method></compression></stream:features>";
+        StringReader reader = new StringReader(xml);
+        StreamFeatures packet = (StreamFeatures) JiBXUtil.unmarshallObject(reader, StreamFeatures.class);
+        assertTrue(packet.isCompressionSupported());
+        assertTrue(packet.isCompressionMethodSupported("zlib"));
+        assertTrue(packet.isCompressionMethodSupported("lzw"));
+        assertFalse(packet.isCompressionMethodSupported("exi"));
+        assertEquals(2, packet.getCompressionMethods().size());
+    }
+
+    public void testMarshallCompression() throws Exception {
+        String xml = "<stream:features xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+                + "\n\t<compression xmlns='http://jabber.org/features/compress'>\n\t<method>zlib</method></compression></stream:features>";
+        StringReader reader = new StringReader(xml);
+        StreamFeatures packet = new StreamFeatures();
+        ArrayList<String> list = new ArrayList<String>(1);
+        list.add("zlib");
+        packet.addFeature(NS_FEATURE_COMPRESS, "compression", list);
+        JiBXUtil.marshallObject(writer, packet);
+        compare(reader);
+    }
+
     public void testUnmarshallAll() throws Exception {
         String inRes = "com/echomine/xmpp/data/StreamFeatures.xml";
         Reader reader = getResourceAsReader(inRes);
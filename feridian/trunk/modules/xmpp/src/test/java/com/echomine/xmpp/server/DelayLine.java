@@ -0,0 +1,223 @@
+package com.echomine.xmpp.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.ThreadUtil;
+
+/**
+ * <p>
+ * Holds back the data sent through the links of the loopback server as the
+ * link conditions require. Each flush of a link becomes one delivery, which
+ * is scheduled after the data would have been put on the link at the
+ * configured bandwidth and has then spent the latency on it. A single
+ * background thread writes the deliveries to the sockets when they are due.
+ * </p>
+ * <p>
+ * The deliveries of a link are never reordered, even with jitter, and data is
+ * only written straight to the socket when the link is immediate and has
+ * nothing pending. A socket that blocks on writing holds up all the links,
+ * which is acceptable for a loopback test server.
+ * </p>
+ */
+class DelayLine {
+    private static final Log log = LogFactory.getLog(DelayLine.class);
+
+    private final DelayQueue<Delivery> queue = new DelayQueue<Delivery>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Random random = new Random();
+    private volatile LinkConditions conditions = LinkConditions.NONE;
+    private volatile Thread thread;
+
+    /**
+     * @param conditions the conditions that apply to the data flushed from
+     *            now on
+     */
+    void setConditions(LinkConditions conditions) {
+        this.conditions = (conditions == null) ? LinkConditions.NONE : conditions;
+    }
+
+    LinkConditions getConditions() {
+        return conditions;
+    }
+
+    /**
+     * @param out the socket output that the link writes to
+     * @return a new link
+     */
+    Link createLink(OutputStream out) {
+        return new Link(out);
+    }
+
+    synchronized void start() {
+        if (thread != null)
+            return;
+        Thread t = ThreadUtil.getDefaultThreadFactory().newThread(new Runnable() {
+            public void run() {
+                deliver();
+            }
+        });
+        t.setName("Loopback XMPP Server Delay Line");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the background thread. Pending deliveries are dropped.
+     */
+    synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null)
+            t.interrupt();
+        queue.clear();
+    }
+
+    private void deliver() {
+        Thread current = Thread.currentThread();
+        try {
+            while (thread == current) {
+                Delivery delivery = queue.take();
+                delivery.link.write(delivery);
+            }
+        } catch (InterruptedException ex) {
+            // stopped
+        }
+    }
+
+    private long jitter(long max) {
+        if (max == 0)
+            return 0;
+        synchronized (random) {
+            return (long) (random.nextDouble() * max);
+        }
+    }
+
+    /**
+     * The output of one connection. The data is buffered until flushed, and
+     * is then handed to the delay line as a single delivery.
+     */
+    class Link extends OutputStream {
+        private final OutputStream out;
+        private byte[] buf = new byte[8192];
+        private int count;
+        private int pending;
+        private long nextFree;
+        private long lastDue;
+        private boolean failed;
+
+        Link(OutputStream out) {
+            this.out = out;
+        }
+
+        public synchronized void write(int b) {
+            ensureSpace(1);
+            buf[count++] = (byte) b;
+        }
+
+        public synchronized void write(byte[] b, int off, int len) {
+            ensureSpace(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        /**
+         * hands the buffered data to the delay line, or writes it right away
+         * when the link is immediate
+         */
+        public synchronized void flush() throws IOException {
+            if (failed)
+                throw new IOException("Link is closed");
+            if (count == 0)
+                return;
+            LinkConditions cond = conditions;
+            if (cond.isImmediate() && pending == 0) {
+                out.write(buf, 0, count);
+                out.flush();
+                count = 0;
+                return;
+            }
+            byte[] data = new byte[count];
+            System.arraycopy(buf, 0, data, 0, count);
+            count = 0;
+            long now = System.nanoTime();
+            // the data goes on the link once the earlier data is through
+            long start = Math.max(now, nextFree);
+            nextFree = start + cond.transmitTime(data.length);
+            long due = Math.max(nextFree + cond.getLatency() + jitter(cond.getJitter()), lastDue);
+            lastDue = due;
+            pending++;
+            queue.add(new Delivery(this, data, due, sequence.getAndIncrement()));
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * writes a delivery that is due. Called by the delay line thread.
+         */
+        void write(Delivery delivery) {
+            synchronized (this) {
+                pending--;
+                if (failed)
+                    return;
+                try {
+                    out.write(delivery.data);
+                    out.flush();
+                } catch (IOException ex) {
+                    // the connection is gone; the session finds out on reading
+                    failed = true;
+                    if (log.isDebugEnabled())
+                        log.debug("Unable to deliver delayed data", ex);
+                }
+            }
+        }
+
+        private void ensureSpace(int len) {
+            if (count + len <= buf.length)
+                return;
+            byte[] bigger = new byte[Math.max(buf.length * 2, count + len)];
+            System.arraycopy(buf, 0, bigger, 0, count);
+            buf = bigger;
+        }
+    }
+
+    /**
+     * A chunk of data to write when due. Deliveries that are due at the same
+     * time are written in the order they were scheduled.
+     */
+    static class Delivery implements Delayed {
+        final Link link;
+        final byte[] data;
+        final long due;
+        final long seq;
+
+        Delivery(Link link, byte[] data, long due, long seq) {
+            this.link = link;
+            this.data = data;
+            this.due = due;
+            this.seq = seq;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            Delivery other = (Delivery) o;
+            if (due != other.due)
+                return (due - other.due < 0) ? -1 : 1;
+            return (seq < other.seq) ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+}
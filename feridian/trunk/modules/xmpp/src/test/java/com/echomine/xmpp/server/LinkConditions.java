@@ -0,0 +1,100 @@
+package com.echomine.xmpp.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The conditions of the simulated link between the loopback server and each
+ * client: a fixed latency, a random jitter on top of the latency, and a
+ * bandwidth limit. The conditions are immutable; the with methods return
+ * modified copies, so a load script can change the conditions of a running
+ * server by handing it new ones.
+ */
+public class LinkConditions {
+    /** no latency and unlimited bandwidth */
+    public static final LinkConditions NONE = new LinkConditions(0, 0, 0);
+
+    private final long latency;
+    private final long jitter;
+    private final long bandwidth;
+
+    private LinkConditions(long latency, long jitter, long bandwidth) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @param latency the time each chunk of data spends on the link
+     * @param unit the unit of the latency
+     * @return a copy of these conditions with the latency
+     */
+    public LinkConditions withLatency(long latency, TimeUnit unit) {
+        if (latency < 0)
+            throw new IllegalArgumentException("Latency cannot be negative");
+        return new LinkConditions(unit.toNanos(latency), jitter, bandwidth);
+    }
+
+    /**
+     * @param jitter the max random time added to the latency
+     * @param unit the unit of the jitter
+     * @return a copy of these conditions with the jitter
+     */
+    public LinkConditions withJitter(long jitter, TimeUnit unit) {
+        if (jitter < 0)
+            throw new IllegalArgumentException("Jitter cannot be negative");
+        return new LinkConditions(latency, unit.toNanos(jitter), bandwidth);
+    }
+
+    /**
+     * @param bytesPerSecond the bandwidth of each link, or 0 for unlimited
+     * @return a copy of these conditions with the bandwidth
+     */
+    public LinkConditions withBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Bandwidth cannot be negative");
+        return new LinkConditions(latency, jitter, bytesPerSecond);
+    }
+
+    /**
+     * @return the latency in nanoseconds
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the max jitter in nanoseconds
+     */
+    public long getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return the bandwidth in bytes per second, 0 if unlimited
+     */
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return true if data goes through the link right away
+     */
+    public boolean isImmediate() {
+        return latency == 0 && jitter == 0 && bandwidth == 0;
+    }
+
+    /**
+     * @param bytes the number of bytes
+     * @return the time in nanoseconds to put the bytes on the link
+     */
+    long transmitTime(int bytes) {
+        if (bandwidth == 0)
+            return 0;
+        return bytes * 1000000000L / bandwidth;
+    }
+
+    public String toString() {
+        return "latency=" + TimeUnit.NANOSECONDS.toMillis(latency) + "ms, jitter=" + TimeUnit.NANOSECONDS.toMillis(jitter)
+                + "ms, bandwidth=" + (bandwidth == 0 ? "unlimited" : bandwidth + "B/s");
+    }
+}
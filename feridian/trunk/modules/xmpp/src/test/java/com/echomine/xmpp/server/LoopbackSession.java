@@ -0,0 +1,757 @@
+package com.echomine.xmpp.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.IElementHandler;
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.XMPPLoggableReader;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.util.Base64;
+import com.echomine.util.HexDec;
+import com.echomine.util.IOUtil;
+import com.echomine.xmpp.ErrorCode;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PingIQPacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.ResourceBindIQPacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.RosterItem;
+import com.echomine.xmpp.packet.SessionIQPacket;
+import com.echomine.xmpp.packet.StanzaErrorPacket;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+import com.echomine.xmpp.packet.StreamFeatures;
+import com.echomine.xmpp.packet.XMLTextPacket;
+
+/**
+ * <p>
+ * One client connection of the loopback server. The session negotiates the
+ * stream and SASL authentication during the handshake, and then reads the
+ * stanzas until the client closes the stream. Each session is read by its own
+ * thread; stanzas for a session can be written by any thread, and are
+ * serialized by the session's write lock.
+ * </p>
+ * <p>
+ * The stanzas are parsed with the same dispatch table as the client uses,
+ * which works because the server side of a c2s stream uses the same
+ * jabber:client namespace.
+ * </p>
+ * <p>
+ * Stream management only counts the stanzas received. The stanzas sent are
+ * not kept for resumption, so the server does not request acks.
+ * </p>
+ */
+class LoopbackSession implements XMPPConstants {
+    private static final Log log = LogFactory.getLog(LoopbackSession.class);
+    private static final String PLAIN = "PLAIN";
+    private static final String DIGEST_MD5 = "DIGEST-MD5";
+    private static final String SCRAM_SHA_1 = "SCRAM-SHA-1";
+    private static final String SCRAM_SHA_256 = "SCRAM-SHA-256";
+    private static final int SCRAM_ITERATIONS = 4096;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final LoopbackXMPPServer server;
+    private final Socket socket;
+    private final String streamId;
+    private final DelayLine.Link link;
+    private final UnmarshallingContext uctx = new UnmarshallingContext();
+    private final Object writeLock = new Object();
+    private XMPPStreamWriter writer;
+    private String username;
+    private String successData;
+    private volatile JID jid;
+    private volatile PresencePacket presence;
+    private volatile boolean established;
+    private volatile boolean closed;
+    private boolean ended;
+    private volatile boolean smEnabled;
+    private volatile long handled;
+    private String resumeId;
+
+    LoopbackSession(LoopbackXMPPServer server, Socket socket, String streamId) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.streamId = streamId;
+        this.link = server.getDelayLine().createLink(socket.getOutputStream());
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return the full JID the session is bound to, null before binding
+     */
+    JID getJID() {
+        return jid;
+    }
+
+    /**
+     * @return the username the session is authenticated as
+     */
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return true once the session is bound and the client has started its
+     *         session, so that it can receive stanzas it did not ask for
+     */
+    boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * @return the number of stanzas received since stream management was
+     *         enabled
+     */
+    long getHandledCount() {
+        return handled;
+    }
+
+    /**
+     * @return the last available presence broadcast by the session, null if
+     *         it is not available
+     */
+    PresencePacket getPresence() {
+        return presence;
+    }
+
+    /**
+     * Negotiates the stream up to the point where stanzas are exchanged: the
+     * stream header, SASL authentication, and the restarted stream that
+     * offers resource binding and sessions.
+     */
+    void negotiate() throws IOException, JiBXException {
+        openStream();
+        StreamFeatures features = new StreamFeatures();
+        features.addFeature(NS_STREAM_SASL, "mechanisms", server.getMechanisms());
+        JiBXUtil.marshallObject(writer, features);
+        authenticate();
+        // the stream is restarted after authentication
+        openStream();
+        features = new StreamFeatures();
+        features.addFeature(NS_STREAM_BINDING, "bind", null);
+        features.addFeature(NS_STREAM_SESSION, "session", null);
+        features.addFeature(NS_STREAM_MANAGEMENT, "sm", null);
+        JiBXUtil.marshallObject(writer, features);
+    }
+
+    /**
+     * Reads and processes the stanzas until the stream is closed
+     */
+    void run() {
+        try {
+            while (!closed) {
+                uctx.next();
+                if (uctx.currentEvent() == IXMLReader.END_DOCUMENT)
+                    break;
+                if (uctx.isEnd()) {
+                    // the end of the stream itself
+                    if (NS_JABBER_STREAM.equals(uctx.getNamespace()) && "stream".equals(uctx.getName())) {
+                        ended = true;
+                        break;
+                    }
+                    continue;
+                }
+                if (NS_STREAM_MANAGEMENT.equals(uctx.getNamespace())) {
+                    processStreamManagement(uctx.getName());
+                    skipElement();
+                    continue;
+                }
+                IElementHandler handler = FeridianConfiguration.getConfig().getDispatchTable().get(uctx.getNamespace(), uctx.getName());
+                if (handler == null) {
+                    skipElement();
+                    continue;
+                }
+                Object obj = handler.unmarshall(uctx);
+                if (obj instanceof StanzaPacketBase) {
+                    server.stanzaReceived();
+                    if (smEnabled)
+                        handled++;
+                    process((StanzaPacketBase) obj);
+                }
+            }
+            synchronized (writeLock) {
+                writer.endStream();
+            }
+        } catch (JiBXException ex) {
+            if (log.isDebugEnabled())
+                log.debug("Error while reading from " + jid + ", closing session", ex);
+        } catch (IOException ex) {
+            if (log.isDebugEnabled())
+                log.debug("Error while writing to " + jid + ", closing session", ex);
+        } finally {
+            if (!ended && smEnabled && jid != null)
+                detach();
+            else
+                close();
+        }
+    }
+
+    /**
+     * Closes the connection of a session whose stream was not closed, and
+     * keeps the session for resumption. Its presence stays available.
+     */
+    private void detach() {
+        if (closed)
+            return;
+        closed = true;
+        server.detach(this, resumeId);
+        IOUtil.closeSocket(socket);
+        if (log.isDebugEnabled())
+            log.debug("Connection of " + jid + " broke, keeping session " + resumeId + " for resumption");
+    }
+
+    /**
+     * Closes the session. Its presence becomes unavailable to the contacts.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        server.unregister(this);
+        if (presence != null) {
+            presence = null;
+            PresencePacket unavailable = new PresencePacket();
+            unavailable.setType(PresencePacket.TYPE_UNAVAILABLE);
+            unavailable.setFrom(jid);
+            broadcast(unavailable);
+        }
+        IOUtil.closeSocket(socket);
+    }
+
+    /**
+     * Writes a stanza to the client
+     *
+     * @param packet the stanza
+     */
+    void send(IStanzaPacket packet) {
+        synchronized (writeLock) {
+            if (closed)
+                return;
+            try {
+                if (packet instanceof IQPacket)
+                    JiBXUtil.marshallIQPacket(writer, (IQPacket) packet);
+                else if (packet instanceof XMLTextPacket)
+                    writer.writeMarkup(((XMLTextPacket) packet).getText());
+                else
+                    JiBXUtil.marshallObject(writer, packet);
+                writer.flush();
+                server.stanzaSent();
+            } catch (JiBXException ex) {
+                if (log.isWarnEnabled())
+                    log.warn("Unable to marshall stanza for " + jid, ex);
+            } catch (IOException ex) {
+                // the reading thread closes the session
+                if (log.isDebugEnabled())
+                    log.debug("Unable to write stanza to " + jid, ex);
+            }
+        }
+    }
+
+    /**
+     * starts reading a new stream from the client and answers the stream
+     * header. A new reader and writer are used, as the client does the same
+     * when the stream is restarted.
+     */
+    private void openStream() throws IOException, JiBXException {
+        uctx.setDocument(new XMPPLoggableReader(socket.getInputStream(), "UTF-8"));
+        uctx.toStart();
+        if (!uctx.isAt(NS_JABBER_STREAM, "stream"))
+            uctx.throwStartTagNameError(NS_JABBER_STREAM, "stream");
+        synchronized (writeLock) {
+            writer = new XMPPStreamWriter();
+            writer.setOutput(link);
+            writer.startHandshakeResponseStream(NS_XMPP_CLIENT, server.getDomain(), streamId, null);
+        }
+    }
+
+    /**
+     * runs SASL authentication until the client is authenticated. Failed
+     * attempts are answered with a failure, and the client may try again.
+     */
+    private void authenticate() throws IOException, JiBXException {
+        int idx = writer.getNamespaceCount();
+        writer.pushExtensionNamespaces(new String[] { NS_STREAM_SASL });
+        while (true) {
+            nextStartTag();
+            if (!uctx.isAt(NS_STREAM_SASL, "auth"))
+                uctx.throwStartTagNameError(NS_STREAM_SASL, "auth");
+            String mechanism = uctx.attributeText(null, "mechanism", null);
+            String initial = parseText("auth");
+            String user = null;
+            successData = null;
+            if (PLAIN.equals(mechanism) && server.getMechanisms().contains(PLAIN))
+                user = authenticatePlain(idx, initial);
+            else if (DIGEST_MD5.equals(mechanism) && server.getMechanisms().contains(DIGEST_MD5))
+                user = authenticateDigestMD5(idx);
+            else if ((SCRAM_SHA_1.equals(mechanism) || SCRAM_SHA_256.equals(mechanism))
+                    && server.getMechanisms().contains(mechanism))
+                user = authenticateScram(idx, mechanism, initial);
+            else
+                writeFailure(idx, "invalid-mechanism");
+            if (user != null) {
+                username = user;
+                writeSaslElement(idx, "success", successData);
+                if (log.isDebugEnabled())
+                    log.debug("Authenticated " + user + " on stream " + streamId);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the authenticated user, or null if authentication failed
+     */
+    private String authenticatePlain(int idx, String initial) throws IOException {
+        // the message is [authzid] NUL authcid NUL password
+        String message = (initial == null) ? "" : Base64.decodeToString(initial);
+        int first = message.indexOf('\0');
+        int second = (first == -1) ? -1 : message.indexOf('\0', first + 1);
+        if (second == -1) {
+            writeFailure(idx, "incorrect-encoding");
+            return null;
+        }
+        String user = message.substring(first + 1, second);
+        String password = message.substring(second + 1);
+        if (!server.isAuthorized(user, password)) {
+            writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+            return null;
+        }
+        return user;
+    }
+
+    /**
+     * runs the DIGEST-MD5 exchange of RFC 2831 up to the point where the
+     * client acknowledges the rspauth challenge
+     *
+     * @return the authenticated user, or null if authentication failed
+     */
+    private String authenticateDigestMD5(int idx) throws IOException, JiBXException {
+        byte[] nonceBytes = new byte[16];
+        random.nextBytes(nonceBytes);
+        String nonce = HexDec.convertBytesToHexString(nonceBytes);
+        String realm = server.getDomain();
+        writeSaslElement(idx, "challenge", Base64.encodeString("realm=\"" + realm + "\",nonce=\"" + nonce
+                + "\",qop=\"auth\",charset=utf-8,algorithm=md5-sess"));
+        nextStartTag();
+        HashMap<String, String> response = parseDigest(Base64.decodeToString(parseText("response")));
+        String user = response.get("username");
+        String cnonce = response.get("cnonce");
+        String nc = response.get("nc");
+        String qop = response.get("qop");
+        String digestUri = response.get("digest-uri");
+        if (user == null || cnonce == null || nc == null || qop == null || digestUri == null || !nonce.equals(response.get("nonce"))) {
+            writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+            return null;
+        }
+        String responseRealm = response.containsKey("realm") ? response.get("realm") : "";
+        String password = server.getPassword(user);
+        String ha1 = null;
+        if (password != null) {
+            ha1 = digestHA1(user, responseRealm, password, nonce, cnonce);
+            String expected = digestResponse(ha1, nonce, nc, cnonce, qop, "AUTHENTICATE:" + digestUri);
+            if (!expected.equalsIgnoreCase(response.get("response"))) {
+                writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+                return null;
+            }
+        } else if (!server.isAuthorized(user, null)) {
+            writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+            return null;
+        }
+        // the server proves that it knows the password as well. Without a
+        // password there is no proof, but the client does not check it.
+        String rspauth = (ha1 == null) ? nonce : digestResponse(ha1, nonce, nc, cnonce, qop, ":" + digestUri);
+        writeSaslElement(idx, "challenge", Base64.encodeString("rspauth=" + rspauth));
+        nextStartTag();
+        parseText("response");
+        return user;
+    }
+
+    /**
+     * runs the SCRAM exchange of RFC 5802. The server signature is sent with
+     * the success.
+     *
+     * @return the authenticated user, or null if authentication failed
+     */
+    private String authenticateScram(int idx, String mechanism, String initial) throws IOException, JiBXException {
+        String clientFirst = (initial == null) ? "" : decodeUTF8(initial);
+        if (!clientFirst.startsWith("n,,")) {
+            writeFailure(idx, "incorrect-encoding");
+            return null;
+        }
+        String clientFirstBare = clientFirst.substring(3);
+        HashMap<String, String> values = parseDigest(clientFirstBare);
+        String user = values.get("n");
+        String cnonce = values.get("r");
+        if (user != null)
+            user = user.replace("=2C", ",").replace("=3D", "=");
+        String password = (user == null) ? null : server.getPassword(user);
+        if (cnonce == null || password == null) {
+            writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+            return null;
+        }
+        byte[] nonceBytes = new byte[16];
+        random.nextBytes(nonceBytes);
+        String nonce = cnonce + HexDec.convertBytesToHexString(nonceBytes);
+        String serverFirst = "r=" + nonce + ",s=" + Base64.encodeBytes(server.getScramSalt(user)) + ",i=" + SCRAM_ITERATIONS;
+        writeSaslElement(idx, "challenge", encodeUTF8(serverFirst));
+        nextStartTag();
+        String clientFinal = decodeUTF8(parseText("response"));
+        int proofIdx = clientFinal.lastIndexOf(",p=");
+        if (proofIdx == -1 || !nonce.equals(parseDigest(clientFinal).get("r"))) {
+            writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+            return null;
+        }
+        String authMessage = clientFirstBare + "," + serverFirst + "," + clientFinal.substring(0, proofIdx);
+        byte[] proof = Base64.decode(clientFinal.substring(proofIdx + 3));
+        try {
+            boolean sha1 = SCRAM_SHA_1.equals(mechanism);
+            String macAlgorithm = sha1 ? "HmacSHA1" : "HmacSHA256";
+            MessageDigest md = MessageDigest.getInstance(sha1 ? "SHA-1" : "SHA-256");
+            Mac mac = Mac.getInstance(macAlgorithm);
+            // SaltedPassword := Hi(password, salt, i)
+            mac.init(new SecretKeySpec(password.getBytes("UTF-8"), macAlgorithm));
+            mac.update(server.getScramSalt(user));
+            mac.update(new byte[] { 0, 0, 0, 1 });
+            byte[] u = mac.doFinal();
+            byte[] saltedPassword = u.clone();
+            for (int i = 1; i < SCRAM_ITERATIONS; i++) {
+                u = mac.doFinal(u);
+                for (int j = 0; j < u.length; j++)
+                    saltedPassword[j] ^= u[j];
+            }
+            mac.init(new SecretKeySpec(saltedPassword, macAlgorithm));
+            byte[] storedKey = md.digest(mac.doFinal("Client Key".getBytes("UTF-8")));
+            byte[] serverKey = mac.doFinal("Server Key".getBytes("UTF-8"));
+            // the client key is recovered from the proof, and must hash to
+            // the stored key
+            mac.init(new SecretKeySpec(storedKey, macAlgorithm));
+            byte[] clientKey = mac.doFinal(authMessage.getBytes("UTF-8"));
+            if (clientKey.length != proof.length) {
+                writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+                return null;
+            }
+            for (int i = 0; i < clientKey.length; i++)
+                clientKey[i] ^= proof[i];
+            if (!MessageDigest.isEqual(storedKey, md.digest(clientKey))) {
+                writeFailure(idx, ErrorCode.C_NOT_AUTHORIZED);
+                return null;
+            }
+            mac.init(new SecretKeySpec(serverKey, macAlgorithm));
+            successData = encodeUTF8("v=" + Base64.encodeBytes(mac.doFinal(authMessage.getBytes("UTF-8"))));
+            return user;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(mechanism + " is not supported");
+        }
+    }
+
+    private static String encodeUTF8(String str) throws UnsupportedEncodingException {
+        return Base64.encodeBytes(str.getBytes("UTF-8")).replace("\n", "");
+    }
+
+    private static String decodeUTF8(String str) throws UnsupportedEncodingException {
+        return new String(Base64.decode(str.trim()), "UTF-8");
+    }
+
+    /**
+     * parses the comma-separated name=value pairs of a digest response. The
+     * values may be quoted, and may contain equal signs (ie. base64).
+     */
+    private static HashMap<String, String> parseDigest(String str) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        StringTokenizer tokenizer = new StringTokenizer(str, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String token = tokenizer.nextToken().trim();
+            int eq = token.indexOf('=');
+            if (eq <= 0)
+                continue;
+            String value = token.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+                value = value.substring(1, value.length() - 1);
+            values.put(token.substring(0, eq).trim(), value);
+        }
+        return values;
+    }
+
+    private static String digestHA1(String user, String realm, String password, String nonce, String cnonce) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] secret = md.digest((user + ":" + realm + ":" + password).getBytes("UTF-8"));
+            md.update(secret);
+            md.update((":" + nonce + ":" + cnonce).getBytes("UTF-8"));
+            return HexDec.convertBytesToHexString(md.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not supported");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
+
+    private static String digestResponse(String ha1, String nonce, String nc, String cnonce, String qop, String a2) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            String ha2 = HexDec.convertBytesToHexString(md.digest(a2.getBytes("UTF-8")));
+            String kd = ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":" + qop + ":" + ha2;
+            return HexDec.convertBytesToHexString(md.digest(kd.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not supported");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
+
+    /**
+     * handles the stream management elements sent by the client. A session
+     * is resumed with the ID of the stream that enabled stream management.
+     */
+    private void processStreamManagement(String name) throws JiBXException, IOException {
+        if ("enable".equals(name)) {
+            if (jid == null) {
+                writeStreamManagement("<failed xmlns='" + NS_STREAM_MANAGEMENT + "'><unexpected-request xmlns='"
+                        + NS_STANZA_ERROR + "'/></failed>");
+                return;
+            }
+            handled = 0;
+            resumeId = streamId;
+            smEnabled = true;
+            writeStreamManagement("<enabled xmlns='" + NS_STREAM_MANAGEMENT + "' id='" + streamId + "' resume='true'/>");
+        } else if ("r".equals(name)) {
+            writeStreamManagement("<a xmlns='" + NS_STREAM_MANAGEMENT + "' h='" + handled + "'/>");
+        } else if ("resume".equals(name)) {
+            String previd = uctx.attributeText(null, "previd", null);
+            LoopbackSession old = server.resume(this, previd);
+            if (old == null) {
+                writeStreamManagement("<failed xmlns='" + NS_STREAM_MANAGEMENT + "'><item-not-found xmlns='"
+                        + NS_STANZA_ERROR + "'/></failed>");
+                return;
+            }
+            jid = old.getJID();
+            presence = old.getPresence();
+            established = old.isEstablished();
+            handled = old.getHandledCount();
+            resumeId = previd;
+            smEnabled = true;
+            writeStreamManagement("<resumed xmlns='" + NS_STREAM_MANAGEMENT + "' previd='" + previd + "' h='" + handled + "'/>");
+            if (log.isDebugEnabled())
+                log.debug("Resumed session " + previd + " of " + jid);
+        }
+        // acks are not requested, so any that arrive are ignored
+    }
+
+    private void writeStreamManagement(String markup) throws IOException {
+        synchronized (writeLock) {
+            writer.writeMarkup(markup);
+            writer.flush();
+        }
+    }
+
+    /**
+     * handles a stanza sent by the client
+     */
+    private void process(StanzaPacketBase packet) {
+        // the server stamps the sender of everything that it routes
+        if (jid != null)
+            packet.setFrom(jid);
+        if (packet instanceof IQPacket)
+            processIQ((IQPacket) packet);
+        else if (packet instanceof MessagePacket)
+            processMessage((MessagePacket) packet);
+        else if (packet instanceof PresencePacket)
+            processPresence((PresencePacket) packet);
+    }
+
+    private void processIQ(IQPacket iq) {
+        String type = iq.getType();
+        JID to = iq.getTo();
+        if (to != null && !isServer(to) && (jid == null || (!to.equals(jid) && !to.equals(jid.getBareJID())))) {
+            // addressed to another entity
+            if (server.route(iq, to) == 0 && (IQPacket.TYPE_GET.equals(type) || IQPacket.TYPE_SET.equals(type)))
+                sendError(iq, ErrorCode.C_SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (iq instanceof ResourceBindIQPacket && IQPacket.TYPE_SET.equals(type)) {
+            ResourceBindIQPacket result = new ResourceBindIQPacket();
+            result.setType(IQPacket.TYPE_RESULT);
+            result.setId(iq.getId());
+            result.setJid(server.bind(this, ((ResourceBindIQPacket) iq).getResourceName()));
+            jid = result.getJid();
+            send(result);
+        } else if (iq instanceof SessionIQPacket && IQPacket.TYPE_SET.equals(type)) {
+            sendResult(iq);
+            established = true;
+        } else if (iq instanceof RosterIQPacket && IQPacket.TYPE_GET.equals(type)) {
+            RosterIQPacket result = new RosterIQPacket(IQPacket.TYPE_RESULT);
+            result.setId(iq.getId());
+            result.setTo(jid);
+            result.setRosterItems(server.getRoster(username));
+            send(result);
+        } else if (iq instanceof RosterIQPacket && IQPacket.TYPE_SET.equals(type)) {
+            for (RosterItem item : ((RosterIQPacket) iq).getRosterItems())
+                server.updateRoster(username, item);
+            sendResult(iq);
+        } else if (iq instanceof PingIQPacket && IQPacket.TYPE_GET.equals(type)) {
+            sendResult(iq);
+        } else if (IQPacket.TYPE_GET.equals(type) || IQPacket.TYPE_SET.equals(type)) {
+            sendError(iq, ErrorCode.C_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Messages that are not addressed to anyone, or to the server itself, are
+     * echoed back to the sender. The rest are routed to the recipient.
+     */
+    private void processMessage(MessagePacket message) {
+        JID to = message.getTo();
+        if (to == null || isServer(to)) {
+            message.setFrom(server.getDomainJID());
+            message.setTo(jid);
+            send(message);
+        } else if (server.route(message, to) == 0 && !IStanzaPacket.TYPE_ERROR.equals(message.getType())) {
+            sendError(message, ErrorCode.C_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Presence without a recipient is broadcast to the contacts, and the
+     * first available presence brings back the presence of the contacts that
+     * are online. Directed presence, such as subscription requests, goes to
+     * the recipient only.
+     */
+    private void processPresence(PresencePacket packet) {
+        JID to = packet.getTo();
+        if (to != null) {
+            server.route(packet, to);
+            return;
+        }
+        if (jid == null)
+            return;
+        String type = packet.getType();
+        if (type == null) {
+            boolean initial = (presence == null);
+            presence = packet;
+            broadcast(packet);
+            if (initial)
+                server.probe(this);
+        } else if (PresencePacket.TYPE_UNAVAILABLE.equals(type)) {
+            presence = null;
+            broadcast(packet);
+        }
+    }
+
+    /**
+     * sends the presence to the other resources of the user and to the
+     * sessions of the contacts
+     */
+    private void broadcast(PresencePacket packet) {
+        server.broadcast(this, packet);
+    }
+
+    private void sendResult(IQPacket iq) {
+        IQPacket result = new IQPacket(IQPacket.TYPE_RESULT);
+        result.setId(iq.getId());
+        result.setTo(jid);
+        send(result);
+    }
+
+    /**
+     * bounces the stanza back to the sender with an error
+     */
+    private void sendError(StanzaPacketBase packet, String condition) {
+        StanzaErrorPacket error = new StanzaErrorPacket();
+        error.setCondition(condition);
+        error.setErrorType(StanzaErrorPacket.CANCEL);
+        JID to = packet.getTo();
+        packet.setTo(jid);
+        packet.setFrom(to);
+        packet.setType(IStanzaPacket.TYPE_ERROR);
+        packet.setError(error);
+        send(packet);
+    }
+
+    private boolean isServer(JID to) {
+        return to.getNode() == null && to.getResource() == null && server.getDomain().equalsIgnoreCase(to.getHost());
+    }
+
+    /**
+     * moves to the next start tag, which is the next top level element of
+     * the stream
+     */
+    private void nextStartTag() throws JiBXException {
+        uctx.next();
+        uctx.toStart();
+    }
+
+    /**
+     * parses the text of the current SASL element, leaving the parser at the
+     * end tag so that it does not read ahead into data that is not sent yet
+     */
+    private String parseText(String name) throws JiBXException {
+        uctx.parsePastStartTag(NS_STREAM_SASL, name);
+        String text = uctx.parseContentText();
+        uctx.toEnd();
+        return text;
+    }
+
+    /**
+     * skips the current element, leaving the parser at its end tag
+     */
+    private void skipElement() throws JiBXException {
+        int depth = 0;
+        do {
+            if (uctx.isStart())
+                depth++;
+            else
+                depth--;
+            if (depth > 0)
+                uctx.next();
+        } while (depth > 0);
+    }
+
+    private void writeSaslElement(int idx, String name, String text) throws IOException {
+        synchronized (writeLock) {
+            writer.startTagNamespaces(idx, name, new int[] { idx }, new String[] { "" });
+            if (text == null) {
+                writer.closeEmptyTag();
+            } else {
+                writer.closeStartTag();
+                writer.writeTextContent(text);
+                writer.endTag(idx, name);
+            }
+            writer.flush();
+        }
+    }
+
+    private void writeFailure(int idx, String condition) throws IOException {
+        synchronized (writeLock) {
+            writer.startTagNamespaces(idx, "failure", new int[] { idx }, new String[] { "" });
+            writer.closeStartTag();
+            writer.startTagOpen(idx, condition);
+            writer.closeEmptyTag();
+            writer.endTag(idx, "failure");
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package com.echomine.xmpp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+
+import com.echomine.net.ConnectionContext;
+import com.echomine.net.HandshakeFailedException;
+import com.echomine.net.HandshakeablePerpetualSocketAcceptor;
+import com.echomine.net.HandshakeableSocketHandler;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.RosterItem;
+
+/**
+ * <p>
+ * A lightweight XMPP server that runs in the same process, for driving
+ * clients in load and latency tests. It listens on the loopback interface and
+ * supports what a client needs to log in and exchange stanzas: stream
+ * negotiation, SASL PLAIN, DIGEST-MD5 and SCRAM authentication, resource binding,
+ * sessions, roster retrieval and updates, presence broadcast to the contacts
+ * in the roster, message routing, and stream management (XEP-0198) with
+ * session resumption. Messages without a recipient, or
+ * addressed to the server's domain, are echoed back to the sender, so that a
+ * single client can measure round trips.
+ * </p>
+ * <p>
+ * The link between the server and each client can be slowed down with
+ * latency, jitter and a bandwidth limit (see LinkConditions). The conditions
+ * can be changed at any time, and apply to all the data that the server sends
+ * from then on, so a test can script a sequence of network conditions.
+ * </p>
+ * <p>
+ * A session with stream management enabled whose connection breaks without
+ * the stream being closed is kept until it is resumed or the server stops.
+ * Its presence stays available meanwhile, but the stanzas routed to it are
+ * dropped.
+ * </p>
+ * <p>
+ * Accounts are optional: when none are added, any user can log in with any
+ * password. Each connection is served by its own thread, as with the other
+ * perpetual acceptors.
+ * </p>
+ */
+public class LoopbackXMPPServer {
+    private static final Log log = LogFactory.getLog(LoopbackXMPPServer.class);
+
+    private final String domain;
+    private final JID domainJID;
+    private final DelayLine delayLine = new DelayLine();
+    private final ConcurrentHashMap<Socket, LoopbackSession> sessions = new ConcurrentHashMap<Socket, LoopbackSession>();
+    private final ConcurrentHashMap<JID, LoopbackSession> resources = new ConcurrentHashMap<JID, LoopbackSession>();
+    private final ConcurrentHashMap<JID, CopyOnWriteArrayList<LoopbackSession>> users = new ConcurrentHashMap<JID, CopyOnWriteArrayList<LoopbackSession>>();
+    private final ConcurrentHashMap<String, LoopbackSession> detached = new ConcurrentHashMap<String, LoopbackSession>();
+    private final ConcurrentHashMap<String, String> accounts = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, byte[]> scramSalts = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<RosterItem>> rosters = new ConcurrentHashMap<String, CopyOnWriteArrayList<RosterItem>>();
+    private final AtomicInteger streamCounter = new AtomicInteger();
+    private final AtomicLong stanzasReceived = new AtomicLong();
+    private final AtomicLong stanzasSent = new AtomicLong();
+    private final AtomicLong bindCount = new AtomicLong();
+    private final AtomicLong resumeCount = new AtomicLong();
+    private volatile List<String> mechanisms = Collections.unmodifiableList(Arrays.asList(new String[] { "DIGEST-MD5", "PLAIN" }));
+    private HandshakeablePerpetualSocketAcceptor acceptor;
+
+    /**
+     * Creates a server for the localhost domain
+     */
+    public LoopbackXMPPServer() {
+        this("localhost");
+    }
+
+    /**
+     * @param domain the domain that the server serves
+     */
+    public LoopbackXMPPServer(String domain) {
+        if (domain == null)
+            throw new IllegalArgumentException("Domain cannot be null");
+        this.domain = domain;
+        this.domainJID = new JID(null, domain, null);
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (acceptor != null)
+            return;
+        delayLine.start();
+        acceptor = new HandshakeablePerpetualSocketAcceptor(new ConnectionContext(InetAddress.getByName("127.0.0.1"), 0), 1024);
+        acceptor.aaccept(new SessionHandler(), "Loopback XMPP Server");
+        if (log.isInfoEnabled())
+            log.info("Loopback XMPP server for " + domain + " listening on port " + acceptor.getLocalPort());
+    }
+
+    /**
+     * Stops accepting connections and closes all the sessions
+     */
+    public synchronized void stop() {
+        if (acceptor == null)
+            return;
+        acceptor.close();
+        acceptor = null;
+        for (LoopbackSession session : new ArrayList<LoopbackSession>(sessions.values()))
+            session.close();
+        for (LoopbackSession session : detached.values())
+            unregister(session);
+        detached.clear();
+        delayLine.stop();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public synchronized int getPort() {
+        if (acceptor == null)
+            throw new IllegalStateException("Server is not started");
+        return acceptor.getLocalPort();
+    }
+
+    /**
+     * @return the domain of the server
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Adds an account. Once an account is added, only the users with accounts
+     * can log in.
+     *
+     * @param username the username
+     * @param password the password
+     */
+    public void addAccount(String username, String password) {
+        accounts.put(username, password);
+    }
+
+    /**
+     * Sets the SASL mechanisms offered to the clients, in order of
+     * preference. PLAIN, DIGEST-MD5, SCRAM-SHA-1 and SCRAM-SHA-256 are
+     * supported. SCRAM only works for users with an account.
+     *
+     * @param mechanisms the mechanisms
+     */
+    public void setMechanisms(String[] mechanisms) {
+        this.mechanisms = Collections.unmodifiableList(Arrays.asList(mechanisms.clone()));
+    }
+
+    /**
+     * Replaces the roster of a user. The roster also determines who receives
+     * the user's presence: every contact in the roster does.
+     *
+     * @param username the user
+     * @param items the roster items
+     */
+    public void setRoster(String username, List<RosterItem> items) {
+        rosters.put(username, new CopyOnWriteArrayList<RosterItem>(items));
+    }
+
+    /**
+     * Sets the conditions of the links to the clients. The conditions apply to
+     * all the data sent from now on.
+     *
+     * @param conditions the link conditions, null for none
+     */
+    public void setLinkConditions(LinkConditions conditions) {
+        delayLine.setConditions(conditions);
+        if (log.isInfoEnabled())
+            log.info("Link conditions changed to " + delayLine.getConditions());
+    }
+
+    /**
+     * @return the current link conditions
+     */
+    public LinkConditions getLinkConditions() {
+        return delayLine.getConditions();
+    }
+
+    /**
+     * @return the number of open connections, including the ones that are
+     *         not logged in yet
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the number of stanzas received from all the clients
+     */
+    public long getStanzasReceived() {
+        return stanzasReceived.get();
+    }
+
+    /**
+     * @return the number of stanzas sent to all the clients
+     */
+    public long getStanzasSent() {
+        return stanzasSent.get();
+    }
+
+    /**
+     * @return the number of resources bound
+     */
+    public long getBindCount() {
+        return bindCount.get();
+    }
+
+    /**
+     * @return the number of sessions resumed with stream management
+     */
+    public long getResumeCount() {
+        return resumeCount.get();
+    }
+
+    /**
+     * @return the number of broken sessions kept for resumption
+     */
+    public int getDetachedCount() {
+        return detached.size();
+    }
+
+    DelayLine getDelayLine() {
+        return delayLine;
+    }
+
+    JID getDomainJID() {
+        return domainJID;
+    }
+
+    List<String> getMechanisms() {
+        return mechanisms;
+    }
+
+    void stanzaReceived() {
+        stanzasReceived.incrementAndGet();
+    }
+
+    void stanzaSent() {
+        stanzasSent.incrementAndGet();
+    }
+
+    /**
+     * @return true if the user may log in with the password. A null password
+     *         only passes when there are no accounts.
+     */
+    boolean isAuthorized(String username, String password) {
+        if (accounts.isEmpty())
+            return true;
+        String expected = accounts.get(username);
+        return expected != null && expected.equals(password);
+    }
+
+    /**
+     * @return the password of the user, null if the user has no account
+     */
+    String getPassword(String username) {
+        return accounts.get(username);
+    }
+
+    /**
+     * @return the SCRAM salt of the user, which is kept for as long as the
+     *         server runs so that clients can cache their derived keys
+     */
+    byte[] getScramSalt(String username) {
+        byte[] salt = scramSalts.get(username);
+        if (salt == null) {
+            salt = new byte[16];
+            new Random().nextBytes(salt);
+            byte[] existing = scramSalts.putIfAbsent(username, salt);
+            if (existing != null)
+                salt = existing;
+        }
+        return salt;
+    }
+
+    /**
+     * @return a copy of the roster of the user
+     */
+    List<RosterItem> getRoster(String username) {
+        List<RosterItem> roster = rosters.get(username);
+        if (roster == null)
+            return new ArrayList<RosterItem>();
+        return new ArrayList<RosterItem>(roster);
+    }
+
+    /**
+     * Applies a roster change made by a user and pushes it to all the user's
+     * sessions
+     */
+    void updateRoster(String username, RosterItem item) {
+        if (item.getJid() == null)
+            return;
+        JID contact = item.getJid().getBareJID();
+        CopyOnWriteArrayList<RosterItem> roster = rosters.get(username);
+        if (roster == null) {
+            rosters.putIfAbsent(username, new CopyOnWriteArrayList<RosterItem>());
+            roster = rosters.get(username);
+        }
+        synchronized (roster) {
+            for (RosterItem old : roster)
+                if (old.getJid() != null && contact.equals(old.getJid().getBareJID()))
+                    roster.remove(old);
+            if (!RosterItem.SUBSCRIBE_REMOVE.equals(item.getSubscription()))
+                roster.add(item);
+        }
+        List<LoopbackSession> targets = users.get(new JID(username, domain, null));
+        if (targets == null)
+            return;
+        for (LoopbackSession target : targets) {
+            if (!target.isEstablished())
+                continue;
+            RosterIQPacket push = new RosterIQPacket(IQPacket.TYPE_SET);
+            push.setId("push" + streamCounter.incrementAndGet());
+            push.setTo(target.getJID());
+            push.addItem(item);
+            target.send(push);
+        }
+    }
+
+    /**
+     * Binds a session to a resource. A resource that is taken, or missing, is
+     * replaced by one that is generated.
+     *
+     * @return the full JID of the session
+     */
+    JID bind(LoopbackSession session, String resource) {
+        JID bare = new JID(session.getUsername(), domain, null);
+        JID full = (resource == null) ? null : new JID(bare.getNode(), domain, resource);
+        while (full == null || resources.putIfAbsent(full, session) != null)
+            full = new JID(bare.getNode(), domain, "loopback" + streamCounter.incrementAndGet());
+        CopyOnWriteArrayList<LoopbackSession> list = users.get(bare);
+        if (list == null) {
+            users.putIfAbsent(bare, new CopyOnWriteArrayList<LoopbackSession>());
+            list = users.get(bare);
+        }
+        list.add(session);
+        bindCount.incrementAndGet();
+        return full;
+    }
+
+    /**
+     * Keeps a session whose connection broke so that it can be resumed. It
+     * stays bound to its resource meanwhile.
+     *
+     * @param session the session
+     * @param resumeId the ID to resume the session with
+     */
+    void detach(LoopbackSession session, String resumeId) {
+        sessions.remove(session.getSocket(), session);
+        detached.put(resumeId, session);
+    }
+
+    /**
+     * Moves a kept session over to the new session that resumes it. The
+     * resource it is bound to is handed over to the new session.
+     *
+     * @param session the new session
+     * @param resumeId the ID of the kept session
+     * @return the kept session, or null if there is none for the user
+     */
+    LoopbackSession resume(LoopbackSession session, String resumeId) {
+        LoopbackSession old = (resumeId == null) ? null : detached.get(resumeId);
+        if (old == null || !old.getUsername().equals(session.getUsername()) || !detached.remove(resumeId, old))
+            return null;
+        JID jid = old.getJID();
+        resources.put(jid, session);
+        List<LoopbackSession> list = users.get(jid.getBareJID());
+        if (list != null) {
+            list.remove(old);
+            list.add(session);
+        }
+        resumeCount.incrementAndGet();
+        return old;
+    }
+
+    void unregister(LoopbackSession session) {
+        sessions.remove(session.getSocket(), session);
+        JID jid = session.getJID();
+        if (jid == null)
+            return;
+        resources.remove(jid, session);
+        List<LoopbackSession> list = users.get(jid.getBareJID());
+        if (list != null)
+            list.remove(session);
+    }
+
+    /**
+     * Delivers a stanza to the recipient: to the session of a full JID, or to
+     * all the sessions of a bare JID. Sessions that are still logging in are
+     * left out, as the client expects nothing but the replies to its login.
+     *
+     * @return the number of sessions the stanza was delivered to
+     */
+    int route(IStanzaPacket packet, JID to) {
+        if (to.getResource() != null) {
+            LoopbackSession target = resources.get(to);
+            if (target == null || !target.isEstablished())
+                return 0;
+            target.send(packet);
+            return 1;
+        }
+        List<LoopbackSession> targets = users.get(to);
+        if (targets == null)
+            return 0;
+        int count = 0;
+        for (LoopbackSession target : targets) {
+            if (!target.isEstablished())
+                continue;
+            target.send(packet);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sends the presence of a session to the user's other sessions and to the
+     * sessions of the contacts that are available
+     */
+    void broadcast(LoopbackSession sender, PresencePacket presence) {
+        JID from = sender.getJID();
+        for (LoopbackSession target : sessionsOf(from))
+            if (target != sender && target.getPresence() != null)
+                target.send(copyPresence(presence, from, target.getJID()));
+        for (RosterItem item : getRoster(sender.getUsername()))
+            for (LoopbackSession target : sessionsOf(item.getJid()))
+                if (target.getPresence() != null)
+                    target.send(copyPresence(presence, from, target.getJID()));
+    }
+
+    /**
+     * Sends the presence of the contacts that are online to a session that
+     * has just become available
+     */
+    void probe(LoopbackSession session) {
+        for (RosterItem item : getRoster(session.getUsername())) {
+            for (LoopbackSession contact : sessionsOf(item.getJid())) {
+                PresencePacket presence = contact.getPresence();
+                if (presence != null)
+                    session.send(copyPresence(presence, contact.getJID(), session.getJID()));
+            }
+        }
+    }
+
+    private List<LoopbackSession> sessionsOf(JID jid) {
+        List<LoopbackSession> list = (jid == null) ? null : users.get(jid.getBareJID());
+        if (list == null)
+            return Collections.emptyList();
+        return list;
+    }
+
+    /**
+     * copies a presence for a recipient. The presence of a session is shared
+     * by all the threads that send it, so it is never modified.
+     */
+    private static PresencePacket copyPresence(PresencePacket presence, JID from, JID to) {
+        PresencePacket copy = new PresencePacket();
+        copy.setType(presence.getType());
+        copy.setFrom(from);
+        copy.setTo(to);
+        copy.setPriority(presence.getPriority());
+        copy.setShow(presence.getShow());
+        Map<?, ?> statuses = presence.getStatuses();
+        for (Map.Entry<?, ?> entry : statuses.entrySet())
+            copy.setStatus((String) entry.getValue(), (Locale) entry.getKey());
+        return copy;
+    }
+
+    /**
+     * Serves the connections accepted. The handler itself keeps no state, as
+     * it is shared by all the connections; the session created during the
+     * handshake is looked up by its socket when the connection is handled.
+     */
+    class SessionHandler implements HandshakeableSocketHandler {
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.echomine.net.HandshakeableSocketHandler#handshake(java.net.Socket,
+         *      com.echomine.net.ConnectionContext)
+         */
+        public void handshake(Socket socket, ConnectionContext connCtx) throws HandshakeFailedException {
+            try {
+                socket.setTcpNoDelay(true);
+                LoopbackSession session = new LoopbackSession(LoopbackXMPPServer.this, socket, "loopback" + streamCounter.incrementAndGet());
+                sessions.put(socket, session);
+                session.negotiate();
+            } catch (IOException ex) {
+                sessions.remove(socket);
+                throw new HandshakeFailedException("Socket error during handshake", ex);
+            } catch (JiBXException ex) {
+                sessions.remove(socket);
+                throw new HandshakeFailedException("Jibx Exception occurred during handshake", ex);
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see com.echomine.net.SocketHandler#handle(java.net.Socket,
+         *      com.echomine.net.ConnectionContext)
+         */
+        public void handle(Socket socket, ConnectionContext connCtx) throws IOException {
+            LoopbackSession session = sessions.get(socket);
+            if (session != null)
+                session.run();
+        }
+
+        public void start() {
+            // sessions are created per connection
+        }
+
+        public void shutdown() {
+            // the sessions are closed when the server stops
+        }
+
+        public boolean isConnected() {
+            return true;
+        }
+    }
+}
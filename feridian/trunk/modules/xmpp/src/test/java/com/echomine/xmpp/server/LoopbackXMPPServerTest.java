@@ -0,0 +1,245 @@
+package com.echomine.xmpp.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.echomine.net.TokenBucketThrottler;
+import com.echomine.xmpp.DispatchPolicy;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.PacketFilter;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.auth.sasl.ScramKeyCache;
+import com.echomine.xmpp.impl.XMPPConnectionImpl;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.RosterItem;
+
+/**
+ * Tests the loopback server with real client connections
+ */
+public class LoopbackXMPPServerTest extends TestCase {
+    LoopbackXMPPServer server;
+    HashMap<XMPPConnectionImpl, XMPPSessionContext> connections = new HashMap<XMPPConnectionImpl, XMPPSessionContext>();
+
+    protected void setUp() throws Exception {
+        server = new LoopbackXMPPServer();
+        server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        for (XMPPConnectionImpl conn : connections.keySet())
+            conn.disconnect();
+        server.stop();
+    }
+
+    public void testPlainLoginAndEcho() throws Exception {
+        server.setMechanisms(new String[] { "PLAIN" });
+        server.addAccount("juliet", "secret");
+        XMPPConnectionImpl conn = login("juliet", "secret", "balcony");
+        assertEquals("balcony", connections.get(conn).getResource());
+        LinkedBlockingQueue<MessagePacket> received = listen(conn);
+        long stanzas = server.getStanzasReceived();
+        MessagePacket message = new MessagePacket();
+        message.setBody("echo");
+        conn.sendPacket(message, false);
+        MessagePacket echo = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(echo);
+        assertEquals("echo", echo.getBody());
+        assertEquals("localhost", echo.getFrom().toString());
+        assertEquals(stanzas + 1, server.getStanzasReceived());
+    }
+
+    public void testDigestMD5Login() throws Exception {
+        server.addAccount("juliet", "secret");
+        login("juliet", "secret", "balcony");
+        try {
+            login("juliet", "wrong", "balcony");
+            fail("Login with the wrong password should fail");
+        } catch (XMPPException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * reconnects reuse the keys derived by the first login
+     */
+    public void testScramLoginReusesDerivedKeys() throws Exception {
+        server.setMechanisms(new String[] { "SCRAM-SHA-256", "SCRAM-SHA-1" });
+        server.addAccount("juliet", "secret");
+        ScramKeyCache cache = ScramKeyCache.getSharedCache();
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        for (int i = 0; i < 3; i++)
+            login("juliet", "secret", "balcony" + i).disconnect();
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 2, cache.getHits());
+        try {
+            login("juliet", "wrong", "balcony");
+            fail("Login with the wrong password should fail");
+        } catch (XMPPException ex) {
+            // expected
+        }
+        server.setMechanisms(new String[] { "SCRAM-SHA-1" });
+        login("juliet", "secret", "balcony");
+    }
+
+    public void testResourceConflict() throws Exception {
+        XMPPConnectionImpl first = login("juliet", "secret", "balcony");
+        XMPPConnectionImpl second = login("juliet", "secret", "balcony");
+        assertEquals("balcony", connections.get(first).getResource());
+        assertFalse("balcony".equals(connections.get(second).getResource()));
+    }
+
+    public void testRoster() throws Exception {
+        List<RosterItem> items = new ArrayList<RosterItem>();
+        items.add(createItem("romeo@localhost"));
+        items.add(createItem("nurse@localhost"));
+        server.setRoster("juliet", items);
+        XMPPConnectionImpl conn = login("juliet", "secret", "balcony");
+        conn.getRoster().load();
+        assertEquals(2, conn.getRoster().size());
+        assertTrue(conn.getRoster().contains(JID.parseJID("romeo@localhost")));
+    }
+
+    public void testMessageRouting() throws Exception {
+        XMPPConnectionImpl juliet = login("juliet", "secret", "balcony");
+        XMPPConnectionImpl romeo = login("romeo", "secret", "orchard");
+        LinkedBlockingQueue<MessagePacket> received = listen(juliet);
+        MessagePacket message = new MessagePacket();
+        message.setTo(JID.parseJID("juliet@localhost/balcony"));
+        message.setBody("It is the east");
+        romeo.sendPacket(message, false);
+        MessagePacket routed = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(routed);
+        assertEquals("romeo@localhost/orchard", routed.getFrom().toString());
+        assertEquals("It is the east", routed.getBody());
+        // a recipient that is not online bounces the message
+        LinkedBlockingQueue<MessagePacket> bounced = listen(romeo);
+        message = new MessagePacket();
+        message.setTo(JID.parseJID("tybalt@localhost"));
+        message.setBody("hello");
+        romeo.sendPacket(message, false);
+        MessagePacket error = bounced.poll(5, TimeUnit.SECONDS);
+        assertNotNull(error);
+        assertTrue(error.isError());
+    }
+
+    public void testPresenceBroadcast() throws Exception {
+        List<RosterItem> items = new ArrayList<RosterItem>();
+        items.add(createItem("romeo@localhost"));
+        server.setRoster("juliet", items);
+        items = new ArrayList<RosterItem>();
+        items.add(createItem("juliet@localhost"));
+        server.setRoster("romeo", items);
+        XMPPConnectionImpl juliet = login("juliet", "secret", "balcony");
+        juliet.getPresenceTable();
+        juliet.sendPacket(new PresencePacket(), false);
+        XMPPConnectionImpl romeo = login("romeo", "secret", "orchard");
+        romeo.getPresenceTable();
+        JID julietJID = JID.parseJID("juliet@localhost/balcony");
+        JID romeoJID = JID.parseJID("romeo@localhost/orchard");
+        // romeo's initial presence reaches juliet and brings back hers
+        romeo.sendPacket(new PresencePacket(), false);
+        assertTrue(waitFor(juliet, romeoJID, true));
+        assertTrue(waitFor(romeo, julietJID, true));
+        romeo.disconnect();
+        assertTrue(waitFor(juliet, romeoJID, false));
+    }
+
+    public void testLatency() throws Exception {
+        XMPPConnectionImpl conn = login("juliet", "secret", "balcony");
+        LinkedBlockingQueue<MessagePacket> received = listen(conn);
+        server.setLinkConditions(LinkConditions.NONE.withLatency(200, TimeUnit.MILLISECONDS));
+        MessagePacket message = new MessagePacket();
+        message.setBody("slow");
+        long start = System.nanoTime();
+        conn.sendPacket(message, false);
+        assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        server.setLinkConditions(null);
+        assertTrue(server.getLinkConditions().isImmediate());
+    }
+
+    public void testBandwidth() throws Exception {
+        XMPPConnectionImpl conn = login("juliet", "secret", "balcony");
+        LinkedBlockingQueue<MessagePacket> received = listen(conn);
+        // each echo is over 1000 bytes, so ten of them take at least a second
+        server.setLinkConditions(LinkConditions.NONE.withBandwidth(10000));
+        StringBuffer body = new StringBuffer();
+        for (int i = 0; i < 1000; i++)
+            body.append('x');
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            MessagePacket message = new MessagePacket();
+            message.setBody(body.toString());
+            conn.sendPacket(message, false);
+        }
+        for (int i = 0; i < 10; i++)
+            assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+    }
+
+    /**
+     * the stanzas sent by a throttled connection are spread out to its rate
+     */
+    public void testThrottledSend() throws Exception {
+        XMPPConnectionImpl conn = login("juliet", "secret", "balcony");
+        LinkedBlockingQueue<MessagePacket> received = listen(conn);
+        TokenBucketThrottler throttler = new TokenBucketThrottler(0, 20);
+        throttler.setBurstMillis(50);
+        conn.setThrottler(throttler);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            MessagePacket message = new MessagePacket();
+            message.setBody("paced");
+            conn.sendPacket(message, false);
+        }
+        for (int i = 0; i < 10; i++)
+            assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+        assertTrue(throttler.getThrottledMillis() >= 400);
+        assertTrue(((ConnectionMetrics) conn.getMetrics()).getThrottledTime() >= 400000);
+    }
+
+    private XMPPConnectionImpl login(String username, String password, String resource) throws Exception {
+        XMPPConnectionImpl conn = new XMPPConnectionImpl();
+        connections.put(conn, conn.connect("127.0.0.1", server.getPort(), "localhost", true));
+        conn.login(username, password.toCharArray(), resource);
+        return conn;
+    }
+
+    private LinkedBlockingQueue<MessagePacket> listen(XMPPConnectionImpl conn) {
+        final LinkedBlockingQueue<MessagePacket> received = new LinkedBlockingQueue<MessagePacket>();
+        conn.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.add((MessagePacket) event.getPacket());
+            }
+        }, new PacketFilter(MessagePacket.class), DispatchPolicy.INLINE);
+        return received;
+    }
+
+    private boolean waitFor(XMPPConnectionImpl conn, JID contact, boolean available) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (conn.getPresenceTable().isAvailable(contact) == available)
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static RosterItem createItem(String jid) throws Exception {
+        RosterItem item = new RosterItem();
+        item.setJid(JID.parseJID(jid));
+        item.setSubscription(RosterItem.SUBSCRIBE_BOTH);
+        return item;
+    }
+}
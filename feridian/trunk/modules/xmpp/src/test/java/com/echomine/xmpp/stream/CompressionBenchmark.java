@@ -0,0 +1,166 @@
+package com.echomine.xmpp.stream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.util.IOUtil;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * <p>
+ * Compares the bytes on the wire and the CPU time per stanza with and without
+ * zlib stream compression. The benchmark marshals a mix of presence and
+ * message stanzas, similar to the traffic after login, and sends them in
+ * batches over a loopback connection to a local server that counts the bytes
+ * it receives. The writer is flushed once per batch, just like the packet
+ * queue does, so with compression there is one SYNC_FLUSH per batch.
+ * </p>
+ * <p>
+ * The CPU time is the time spent by the sending thread marshalling,
+ * compressing and writing the stanzas.
+ * </p>
+ *
+ * <pre>
+ * java com.echomine.xmpp.stream.CompressionBenchmark [stanzas] [batch size] [level]
+ * </pre>
+ *
+ * <p>
+ * The flush mode requires a Java 7 or newer runtime.
+ * </p>
+ */
+public class CompressionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        CompressionStream stream = new CompressionStream();
+        if (args.length > 2)
+            stream.setLevel(Integer.parseInt(args[2]));
+        // warm up both paths before measuring
+        run(null, count / 10, batch);
+        run(stream, count / 10, batch);
+        Result plain = run(null, count, batch);
+        Result zlib = run(stream, count, batch);
+        System.out.println("stanzas=" + count + " batch=" + batch);
+        print("plain", plain, count);
+        print("zlib", zlib, count);
+        System.out.println("ratio: " + (plain.wireBytes * 100 / Math.max(1, zlib.wireBytes)) / 100.0 + "x");
+    }
+
+    private static void print(String name, Result result, int count) {
+        System.out.println(name + ": " + result.wireBytes + " bytes (" + (result.wireBytes / count) + " bytes/stanza), " + (result.cpuNanos / count / 1000.0) + " us cpu/stanza");
+    }
+
+    /**
+     * Sends the stanzas to a loopback server and measures them
+     *
+     * @param stream the compression stream that creates the deflater, null to
+     *            send uncompressed
+     * @param count the number of stanzas to send
+     * @param batch the number of stanzas sent per flush
+     * @return the measurements
+     */
+    public static Result run(CompressionStream stream, int count, int batch) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket socket = null;
+        try {
+            Future<Long> received = executor.submit(new ByteCounter(server));
+            socket = new Socket(server.getInetAddress(), server.getLocalPort());
+            OutputStream out = socket.getOutputStream();
+            if (stream != null)
+                out = stream.createDeflaterStream(out);
+            XMPPStreamWriter writer = new XMPPStreamWriter();
+            writer.setOutput(new BufferedOutputStream(out, CompressionStream.SOCKETBUF));
+            writer.pushExtensionNamespaces(new String[] { XMPPConstants.NS_XMPP_CLIENT });
+            ThreadMXBean mxbean = ManagementFactory.getThreadMXBean();
+            long cpuStart = mxbean.getCurrentThreadCpuTime();
+            for (int i = 0; i < count; i++) {
+                JiBXUtil.marshallObject(writer, createStanza(i));
+                if ((i + 1) % batch == 0)
+                    writer.flush();
+            }
+            writer.flush();
+            Result result = new Result();
+            result.cpuNanos = mxbean.getCurrentThreadCpuTime() - cpuStart;
+            socket.shutdownOutput();
+            result.wireBytes = received.get().longValue();
+            return result;
+        } finally {
+            IOUtil.closeSocket(socket);
+            IOUtil.closeSocket(server);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return a presence from a roster contact, with a chat message every
+     *         fifth stanza
+     */
+    private static Object createStanza(int i) {
+        JID from = new JID("contact" + (i % 500), "example.com", "laptop");
+        JID to = new JID("romeo", "example.net", "orchard");
+        if (i % 5 == 4) {
+            MessagePacket msg = new MessagePacket();
+            msg.setType(MessagePacket.TYPE_CHAT);
+            msg.setFrom(from);
+            msg.setTo(to);
+            msg.setId("msg" + i);
+            msg.setBody("Wherefore art thou, Romeo? This is message number " + i);
+            return msg;
+        }
+        PresencePacket presence = new PresencePacket();
+        presence.setFrom(from);
+        presence.setTo(to);
+        presence.setShow(PresencePacket.SHOW_AWAY);
+        presence.setStatus("Away from the keyboard");
+        presence.setPriority(5);
+        return presence;
+    }
+
+    public static class Result {
+        public long wireBytes;
+        public long cpuNanos;
+    }
+
+    /**
+     * The loopback server, which counts the bytes until the client is done
+     */
+    static class ByteCounter implements Callable<Long> {
+        private ServerSocket server;
+
+        ByteCounter(ServerSocket server) {
+            this.server = server;
+        }
+
+        public Long call() throws IOException {
+            Socket socket = server.accept();
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[CompressionStream.SOCKETBUF];
+                long total = 0;
+                int read;
+                while ((read = in.read(buf)) != -1)
+                    total += read;
+                return new Long(total);
+            } finally {
+                IOUtil.closeSocket(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.echomine.xmpp.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.net.MockSocket;
+import com.echomine.util.IOUtil;
+import com.echomine.xmpp.BaseStreamTestCase;
+import com.echomine.xmpp.XMPPConstants;
+
+/**
+ * Tests the stream compression negotiation, and that the streams are swapped
+ * to compress and decompress the data once compression is established.
+ */
+public class CompressionStreamTest extends BaseStreamTestCase {
+    CompressionStream stream;
+    MockSocket socket;
+    ByteArrayOutputStream socketOut;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        stream = new CompressionStream();
+        sessCtx.setHostName("example.com");
+        ArrayList<String> methods = new ArrayList<String>();
+        methods.add("zlib");
+        streamCtx.getFeatures().addFeature(XMPPConstants.NS_FEATURE_COMPRESS, "compression", methods);
+        socket = new MockSocket();
+        socketOut = new ByteArrayOutputStream();
+        socket.setOutputStream(socketOut);
+        streamCtx.setSocket(socket);
+    }
+
+    public void testNotSupported() throws Exception {
+        streamCtx.clearFeatures();
+        stream.process(sessCtx, streamCtx);
+        writer.flush();
+        assertEquals(0, os.size());
+        assertSame(writer, streamCtx.getWriter());
+    }
+
+    public void testMethodNotSupported() throws Exception {
+        ArrayList<String> methods = new ArrayList<String>();
+        methods.add("lzw");
+        streamCtx.getFeatures().addFeature(XMPPConstants.NS_FEATURE_COMPRESS, "compression", methods);
+        stream.process(sessCtx, streamCtx);
+        writer.flush();
+        assertEquals(0, os.size());
+    }
+
+    /**
+     * On failure, the stream continues uncompressed with the same writer
+     */
+    public void testCompressionFailure() throws Exception {
+        String inRes = "com/echomine/xmpp/data/CompressionFailure_in.xml";
+        String outRes = "com/echomine/xmpp/data/Compression_out.xml";
+        runAndCompare(inRes, outRes, stream, true, true);
+        assertSame(writer, streamCtx.getWriter());
+        assertTrue(streamCtx.getFeatures().isCompressionSupported());
+    }
+
+    /**
+     * Once compressed, the data written must be deflated on the socket, and
+     * the data read from the socket must be inflated.
+     */
+    public void testCompressed() throws Exception {
+        String restart = "<stream:stream from='example.com' id='c2s_345' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>";
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(deflated);
+        dos.write(restart.getBytes("UTF-8"));
+        dos.close();
+        socket.setInputStream(new ByteArrayInputStream(deflated.toByteArray()));
+        String inRes = "com/echomine/xmpp/data/CompressionProceed_in.xml";
+        String outRes = "com/echomine/xmpp/data/Compression_out.xml";
+        runAndCompare(inRes, outRes, stream, true, true);
+        assertNotSame(writer, streamCtx.getWriter());
+        assertFalse(streamCtx.getFeatures().isCompressionSupported());
+        assertEquals("example.com", sessCtx.getHostName());
+        // the incoming data is inflated
+        streamCtx.getUnmarshallingContext().next();
+        assertTrue(streamCtx.getUnmarshallingContext().isAt(XMPPConstants.NS_JABBER_STREAM, "stream"));
+        assertEquals("c2s_345", streamCtx.getUnmarshallingContext().attributeText(null, "id"));
+        // the outgoing data is deflated and sent out on flush
+        XMPPStreamWriter compressedWriter = streamCtx.getWriter();
+        compressedWriter.writeMarkup("<presence/>");
+        compressedWriter.flush();
+        assertTrue(socketOut.size() > 0);
+        InputStream is = new InflaterInputStream(new ByteArrayInputStream(socketOut.toByteArray()));
+        byte[] buf = new byte[64];
+        int read = is.read(buf);
+        assertEquals("<presence/>", new String(buf, 0, read, "UTF-8"));
+        IOUtil.closeStream(is);
+    }
+}
@@ -0,0 +1,97 @@
+package com.echomine.xmpp.stream;
+
+import com.echomine.xmpp.BaseStreamTestCase;
+import com.echomine.xmpp.StreamManagementContext;
+import com.echomine.xmpp.XMPPConstants;
+
+/**
+ * Tests the stream management (XEP-0198) enable and resume negotiation
+ */
+public class StreamManagementStreamTest extends BaseStreamTestCase {
+    StreamManagementStream stream;
+    StreamManagementContext smCtx;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        stream = new StreamManagementStream();
+        smCtx = new StreamManagementContext();
+        streamCtx.setStreamManagementContext(smCtx);
+        streamCtx.getFeatures().addFeature(XMPPConstants.NS_STREAM_MANAGEMENT, "sm", null);
+        sessCtx.setHostName("example.com");
+        sessCtx.setResource("balcony");
+    }
+
+    public void testNotSupported() throws Exception {
+        streamCtx.getFeatures().removeFeature(XMPPConstants.NS_STREAM_MANAGEMENT);
+        stream.process(sessCtx, streamCtx);
+        writer.flush();
+        assertEquals("", os.toString());
+        assertFalse(smCtx.isEnabled());
+    }
+
+    public void testEnable() throws Exception {
+        String inRes = "com/echomine/xmpp/data/StreamManagementEnabled_in.xml";
+        String outRes = "com/echomine/xmpp/data/StreamManagementEnable_out.xml";
+        runAndCompare(inRes, outRes, stream, true, true);
+        assertTrue(smCtx.isEnabled());
+        assertFalse(smCtx.isResumed());
+        assertTrue(smCtx.isResumable());
+        assertEquals("sm_001", smCtx.getResumeId());
+        assertEquals("balcony", smCtx.getResource());
+        assertEquals(300, smCtx.getMaxResumeTime());
+    }
+
+    /**
+     * the stream goes on without stream management when it is refused
+     */
+    public void testEnableFailed() throws Exception {
+        String inRes = "com/echomine/xmpp/data/StreamManagementFailed_in.xml";
+        String outRes = "com/echomine/xmpp/data/StreamManagementEnable_out.xml";
+        runAndCompare(inRes, outRes, stream, true, true);
+        assertFalse(smCtx.isEnabled());
+        assertFalse(smCtx.isResumable());
+    }
+
+    public void testResume() throws Exception {
+        smCtx.enabled("sm_001", "balcony", 0);
+        smCtx.stanzaHandled();
+        smCtx.stanzaHandled();
+        smCtx.acknowledged(1);
+        smCtx.streamStarted();
+        sessCtx.setResource(null);
+        String inRes = "com/echomine/xmpp/data/StreamManagementResumed_in.xml";
+        String outRes = "com/echomine/xmpp/data/StreamManagementResume_out.xml";
+        runAndCompare(inRes, outRes, stream, true, true);
+        assertTrue(smCtx.isEnabled());
+        assertTrue(smCtx.isResumed());
+        assertEquals(3, smCtx.getAckedCount());
+        assertEquals(2, smCtx.getHandledCount());
+        assertEquals("balcony", sessCtx.getResource());
+    }
+
+    /**
+     * a session that cannot be resumed is cleared so that a new one is bound
+     */
+    public void testResumeFailed() throws Exception {
+        smCtx.enabled("sm_001", "balcony", 0);
+        smCtx.stanzaHandled();
+        smCtx.stanzaHandled();
+        smCtx.streamStarted();
+        String inRes = "com/echomine/xmpp/data/StreamManagementResumeFailed_in.xml";
+        String outRes = "com/echomine/xmpp/data/StreamManagementResume_out.xml";
+        runAndCompare(inRes, outRes, stream, true, true);
+        assertFalse(smCtx.isEnabled());
+        assertFalse(smCtx.isResumable());
+        assertEquals(0, smCtx.getHandledCount());
+    }
+
+    /**
+     * the counters wrap around at 2^32
+     */
+    public void testCounterWrapAround() throws Exception {
+        smCtx.enabled("sm_001", "balcony", 0);
+        assertEquals(4294967295L, smCtx.acknowledged(4294967295L));
+        assertEquals(3, smCtx.acknowledged(2));
+        assertEquals(2, smCtx.getAckedCount());
+    }
+}
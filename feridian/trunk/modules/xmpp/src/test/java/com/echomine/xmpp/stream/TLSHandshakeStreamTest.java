@@ -7,6 +7,7 @@ import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 
 import com.echomine.net.MockSSLSocket;
@@ -79,6 +80,18 @@ public class TLSHandshakeStreamTest extends BaseStreamTestCase {
         assertNull(sessCtx.getVersion());
     }
 
+    /**
+     * The SSL context, and with it the TLS sessions, must be reused by all
+     * connections
+     */
+    public void testSSLContextIsShared() throws Exception {
+        TLSHandshakeStream.clearSSLContexts();
+        SSLContext context = stream.getSSLContext();
+        assertSame(context, new TestableTLSHandshakeStream().getSSLContext());
+        TLSHandshakeStream.clearSSLContexts();
+        assertNotSame(context, stream.getSSLContext());
+    }
+
     class TestableTLSHandshakeStream extends TLSHandshakeStream {
         protected SSLSocket startTLSHandshake(Socket socket) throws KeyManagementException, NoSuchAlgorithmException, IOException {
             MockSSLSocket mockSocket = new MockSSLSocket();
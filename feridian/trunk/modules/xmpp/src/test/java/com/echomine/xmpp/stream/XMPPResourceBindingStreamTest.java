@@ -2,6 +2,7 @@ package com.echomine.xmpp.stream;
 
 import com.echomine.xmpp.BaseStreamTestCase;
 import com.echomine.xmpp.ErrorCode;
+import com.echomine.xmpp.FlushCheckingReader;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPStanzaErrorException;
@@ -58,4 +59,14 @@ public class XMPPResourceBindingStreamTest extends BaseStreamTestCase {
             assertEquals(ErrorCode.C_BAD_REQUEST, ((XMPPStanzaErrorException) ex).getErrorCondition());
         }
     }
+
+    /**
+     * the request must be flushed before the reply is read
+     */
+    public void testRequestIsFlushed() throws Exception {
+        String[] in = new String[] { "",
+                "<iq xmlns='jabber:client' type='result' id='test_001'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>romeo@example.com/someresource</jid></bind></iq>" };
+        runAndCompare(new FlushCheckingReader(in, os, "<iq"), "com/echomine/xmpp/data/ResourceBinding_out.xml", stream, false, false);
+        assertEquals("someresource", sessCtx.getResource());
+    }
 }
@@ -2,6 +2,7 @@ package com.echomine.xmpp.stream;
 
 import com.echomine.xmpp.BaseStreamTestCase;
 import com.echomine.xmpp.ErrorCode;
+import com.echomine.xmpp.FlushCheckingReader;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPStanzaErrorException;
@@ -47,4 +48,12 @@ public class XMPPSessionStreamTest extends BaseStreamTestCase {
             assertEquals(ErrorCode.C_FORBIDDEN, ((XMPPStanzaErrorException) ex).getErrorCondition());
         }
     }
+
+    /**
+     * the request must be flushed before the reply is read
+     */
+    public void testRequestIsFlushed() throws Exception {
+        String[] in = new String[] { "", "<iq xmlns='jabber:client' type='result' id='test_001'><session xmlns='urn:ietf:params:xml:ns:xmpp-session'/></iq>" };
+        runAndCompare(new FlushCheckingReader(in, os, "<iq"), "com/echomine/xmpp/data/Session_out.xml", stream, false, false);
+    }
 }